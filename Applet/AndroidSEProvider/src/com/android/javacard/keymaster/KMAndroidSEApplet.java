@@ -33,6 +33,9 @@ public class KMAndroidSEApplet extends KMKeymasterApplet implements OnUpgradeLis
    * @param bLength the length in bytes of the parameter data in bArray
    */
   public static void install(byte[] bArray, short bOffset, byte bLength) {
+    KMConfiguration.init(bArray, bOffset, bLength);
+    KMConfiguration.validateAvailableMemory(KMAndroidSEProvider.getTransientSize(),
+        UpgradeManager.isUpgrading());
     new KMAndroidSEApplet().register(bArray, (short) (bOffset + 1), bArray[bOffset]);
   }
 
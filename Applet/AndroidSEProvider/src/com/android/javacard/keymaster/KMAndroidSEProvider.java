@@ -23,6 +23,7 @@ import javacard.framework.Util;
 import javacard.security.AESKey;
 import javacard.security.CryptoException;
 import javacard.security.DESKey;
+import javacard.security.ECKey;
 import javacard.security.ECPrivateKey;
 import javacard.security.ECPublicKey;
 import javacard.security.HMACKey;
@@ -30,6 +31,8 @@ import javacard.security.Key;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
 import javacard.security.MessageDigest;
+import javacard.security.PrivateKey;
+import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
 import javacard.security.RandomData;
@@ -39,6 +42,7 @@ import javacardx.crypto.Cipher;
 
 import com.android.javacard.keymaster.KMAESKey;
 import com.android.javacard.keymaster.KMAttestationKey;
+import com.android.javacard.keymaster.KMComputedHmacKey;
 import com.android.javacard.keymaster.KMECPrivateKey;
 import com.android.javacard.keymaster.KMError;
 import com.android.javacard.keymaster.KMException;
@@ -116,9 +120,24 @@ public class KMAndroidSEProvider implements KMSEProvider {
   public static final byte KEYSIZE_256_OFFSET = 0x01;
   public static final short TMP_ARRAY_SIZE = 256;
   private static final short RSA_KEY_SIZE = 256;
-  public static final short CERT_CHAIN_MAX_SIZE = 2500;//First 2 bytes for length.
-
-  final byte[] CIPHER_ALGS = {
+  private static final byte[] RSA_PUB_EXPONENT = {0x01, 0x00, 0x01};
+  // Initialized private keys kept per asymmetric algorithm. Each cached key is tagged with the
+  // SHA-256 digest of its secret. Tag table layout: tags | slot status | next slot per algorithm |
+  // digest of the current secret.
+  private static final byte KEY_CACHE_RSA = 0;
+  private static final byte KEY_CACHE_EC = 1;
+  private static final byte KEY_CACHE_ALGS = 2;
+  private static final byte KEY_CACHE_SLOTS = 2;
+  private static final short KEY_CACHE_TAG_SIZE = 32;
+  private static final short KEY_CACHE_STATUS_OFFSET =
+      KEY_CACHE_ALGS * KEY_CACHE_SLOTS * KEY_CACHE_TAG_SIZE;
+  private static final short KEY_CACHE_NEXT_SLOT_OFFSET =
+      KEY_CACHE_STATUS_OFFSET + KEY_CACHE_ALGS * KEY_CACHE_SLOTS;
+  private static final short KEY_CACHE_DIGEST_OFFSET = KEY_CACHE_NEXT_SLOT_OFFSET + KEY_CACHE_ALGS;
+  private static final short KEY_CACHE_TAGS_SIZE = KEY_CACHE_DIGEST_OFFSET + KEY_CACHE_TAG_SIZE;
+
+  // The order of the algorithms must match getCipherAlgIndex.
+  static final byte[] CIPHER_ALGS = {
       Cipher.ALG_AES_BLOCK_128_CBC_NOPAD,
       Cipher.ALG_AES_BLOCK_128_ECB_NOPAD,
       Cipher.ALG_DES_CBC_NOPAD,
@@ -129,7 +148,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
       Cipher.ALG_RSA_NOPAD,
       AEADCipher.ALG_AES_GCM};
 
-  final byte[] SIG_ALGS = {
+  // The order of the algorithms must match getSignatureAlgIndex.
+  static final byte[] SIG_ALGS = {
       Signature.ALG_RSA_SHA_256_PKCS1,
       Signature.ALG_RSA_SHA_256_PKCS1_PSS,
       Signature.ALG_ECDSA_SHA_256,
@@ -146,18 +166,34 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private HMACKey hmacKey;
   // RSA Key Pair
   private KeyPair rsaKeyPair;
+  // RSA CRT Key Pair
+  private KeyPair rsaCrtKeyPair;
   // EC Key Pair.
   private KeyPair ecKeyPair;
+  // Key cache used by the operations.
+  private RSAPrivateCrtKey[] rsaCrtKeyCache;
+  private ECPrivateKey[] ecKeyCache;
+  // The tags are kept in transient memory so that a reset, which may interrupt an update of a
+  // cached key, invalidates the whole cache.
+  private byte[] keyCacheTags;
+  private MessageDigest keyCacheDigest;
   // Temporary array.
   public byte[] tmpArray;
   // This is used for internal encryption/decryption operations.
   private static AEADCipher aesGcmCipher;
-  // Cipher pool
+  // Maximum number of instances of each algorithm in the cipher and signature pools.
+  private short poolInstances;
+  // Cipher pool - poolInstances slots per algorithm in CIPHER_ALGS order.
   private Object[] cipherPool;
-  // Signature pool
+  // Signature pool - poolInstances slots per algorithm in SIG_ALGS order.
   private Object[] sigPool;
   // KMOperationImpl pool
   private Object[] operationPool;
+  // Reservation status of the pool slots. The reservations do not survive a
+  // power reset so these are kept in transient memory.
+  private byte[] cipherPoolReserved;
+  private byte[] sigPoolReserved;
+  private byte[] operationPoolReserved;
 
   private Signature kdf;
 
@@ -172,6 +208,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private KMAESKey masterKey;
   private KMECPrivateKey attestationKey;
   private KMHmacKey preSharedKey;
+  private KMHmacKey computedHmacKey;
 
   private static KMAndroidSEProvider androidSEProvider = null;
 
@@ -190,14 +227,27 @@ public class KMAndroidSEProvider implements KMSEProvider {
         KeyBuilder.LENGTH_DES3_3KEY, false);
     hmacKey = (HMACKey) KeyBuilder.buildKey(KeyBuilder.TYPE_HMAC, (short) 512,
         false);
+    // Computed hmac key in transient memory, reloaded from the repository after reset.
+    computedHmacKey = new KMHmacKey((HMACKey) KeyBuilder.buildKey(
+        KeyBuilder.TYPE_HMAC_TRANSIENT_RESET,
+        (short) (KMRepository.COMPUTED_HMAC_KEY_SIZE * 8), false));
     rsaKeyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
+    rsaCrtKeyPair = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
     ecKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
     initECKey(ecKeyPair);
+    initKeyCache();
 
     // Re-usable cipher and signature instances
-    cipherPool = new Object[(short) (CIPHER_ALGS.length * 4)];
-    sigPool = new Object[(short) (SIG_ALGS.length * 4)];
-    operationPool = new Object[4];
+    poolInstances = KMConfiguration.getPoolInstances();
+    cipherPool = new Object[(short) (CIPHER_ALGS.length * poolInstances)];
+    sigPool = new Object[(short) (SIG_ALGS.length * poolInstances)];
+    operationPool = new Object[KMConfiguration.getMaxOps()];
+    cipherPoolReserved = JCSystem.makeTransientByteArray((short) cipherPool.length,
+        JCSystem.CLEAR_ON_RESET);
+    sigPoolReserved = JCSystem.makeTransientByteArray((short) sigPool.length,
+        JCSystem.CLEAR_ON_RESET);
+    operationPoolReserved = JCSystem.makeTransientByteArray(KMConfiguration.getMaxOps(),
+        JCSystem.CLEAR_ON_RESET);
     // Creates an instance of each cipher algorithm once.
     initializeCipherPool();
     // Creates an instance of each signature algorithm once.
@@ -217,7 +267,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
     rng = RandomData.getInstance(RandomData.ALG_KEYGENERATION);
     //Allocate buffer for certificate chain.
     if (!isUpgrading()) {
-      certificateChain = new byte[CERT_CHAIN_MAX_SIZE];
+      // First 2 bytes for length.
+      certificateChain = new byte[KMConfiguration.getCertChainMaxSize()];
       // Initialize attestationKey and preShared key with zeros.
       Util.arrayFillNonAtomic(tmpArray, (short) 0, TMP_ARRAY_SIZE, (byte) 0);
       // Create attestation key of P-256 curve.
@@ -232,51 +283,167 @@ public class KMAndroidSEProvider implements KMSEProvider {
     Util.arrayFillNonAtomic(tmpArray, (short) 0, (short) 256, (byte) 0);
   }
 
+  // Returns the transient memory allocated for the limits of KMConfiguration: the pool reservation
+  // flags, the operation pool, the scratch buffers, the key cache tags and the attestation buffers.
+  // The tmp array and the MGF1 buffer are cleared on deselect, they are counted all the same.
+  public static short getTransientSize() {
+    short maxOps = KMConfiguration.getMaxOps();
+    return (short) ((short) (KMConfiguration.getPoolInstances()
+        * (short) (CIPHER_ALGS.length + SIG_ALGS.length))
+        + (short) (maxOps * (short) (KMOperationImpl.TRANSIENT_SIZE + 1))
+        + TMP_ARRAY_SIZE + KMRsaOAEPEncoding.MGF1_BUF_SIZE + KEY_CACHE_TAGS_SIZE
+        + KMAttestationCertImpl.TRANSIENT_SIZE);
+  }
+
   private void initECKey(KeyPair ecKeyPair) {
-    ECPrivateKey privKey = (ECPrivateKey) ecKeyPair.getPrivate();
-    ECPublicKey pubkey = (ECPublicKey) ecKeyPair.getPublic();
-    pubkey.setFieldFP(secp256r1_P, (short) 0, (short) secp256r1_P.length);
-    pubkey.setA(secp256r1_A, (short) 0, (short) secp256r1_A.length);
-    pubkey.setB(secp256r1_B, (short) 0, (short) secp256r1_B.length);
-    pubkey.setG(secp256r1_UCG, (short) 0, (short) secp256r1_UCG.length);
-    pubkey.setK(secp256r1_H);
-    pubkey.setR(secp256r1_N, (short) 0, (short) secp256r1_N.length);
-
-    privKey.setFieldFP(secp256r1_P, (short) 0, (short) secp256r1_P.length);
-    privKey.setA(secp256r1_A, (short) 0, (short) secp256r1_A.length);
-    privKey.setB(secp256r1_B, (short) 0, (short) secp256r1_B.length);
-    privKey.setG(secp256r1_UCG, (short) 0, (short) secp256r1_UCG.length);
-    privKey.setK(secp256r1_H);
-    privKey.setR(secp256r1_N, (short) 0, (short) secp256r1_N.length);
-  }
-
-  private boolean isCipherAlgorithm(byte alg) {
-    short index = 0;
-    while (index < CIPHER_ALGS.length) {
-      if (CIPHER_ALGS[index++] == alg) {
-        return true;
-      }
+    initECDomainParams((ECPublicKey) ecKeyPair.getPublic());
+    initECDomainParams((ECPrivateKey) ecKeyPair.getPrivate());
+  }
+
+  private void initECDomainParams(ECKey key) {
+    key.setFieldFP(secp256r1_P, (short) 0, (short) secp256r1_P.length);
+    key.setA(secp256r1_A, (short) 0, (short) secp256r1_A.length);
+    key.setB(secp256r1_B, (short) 0, (short) secp256r1_B.length);
+    key.setG(secp256r1_UCG, (short) 0, (short) secp256r1_UCG.length);
+    key.setK(secp256r1_H);
+    key.setR(secp256r1_N, (short) 0, (short) secp256r1_N.length);
+  }
+
+  private void initKeyCache() {
+    rsaCrtKeyCache = new RSAPrivateCrtKey[KEY_CACHE_SLOTS];
+    ecKeyCache = new ECPrivateKey[KEY_CACHE_SLOTS];
+    byte slot = 0;
+    while (slot < KEY_CACHE_SLOTS) {
+      rsaCrtKeyCache[slot] = (RSAPrivateCrtKey) KeyBuilder.buildKey(
+          KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
+      ecKeyCache[slot] = (ECPrivateKey) KeyBuilder.buildKey(
+          KeyBuilder.TYPE_EC_FP_PRIVATE, KeyBuilder.LENGTH_EC_FP_256, false);
+      initECDomainParams(ecKeyCache[slot]);
+      slot++;
     }
-    return false;
+    keyCacheTags = JCSystem.makeTransientByteArray(KEY_CACHE_TAGS_SIZE,
+        JCSystem.CLEAR_ON_RESET);
+    keyCacheDigest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
   }
 
-  private boolean isSignerAlgorithm(byte alg) {
-    short index = 0;
-    while (index < SIG_ALGS.length) {
-      if (SIG_ALGS[index++] == alg) {
-        return true;
+  // Computes the tag of the given secret and returns the slot of the cached key with the same tag.
+  // If no key matches then the next slot is invalidated and returned with the bit 0x80 set, so
+  // that the caller sets the secret in that key and then calls commitKeyCacheSlot.
+  private short findKeyCacheSlot(byte alg, byte[] secret, short secretStart,
+      short secretLength) {
+    keyCacheDigest.doFinal(secret, secretStart, secretLength, keyCacheTags,
+        KEY_CACHE_DIGEST_OFFSET);
+    short index = (short) (alg * KEY_CACHE_SLOTS);
+    byte slot = 0;
+    while (slot < KEY_CACHE_SLOTS) {
+      if (keyCacheTags[(short) (KEY_CACHE_STATUS_OFFSET + index + slot)] != 0
+          && 0 == Util.arrayCompare(keyCacheTags, KEY_CACHE_DIGEST_OFFSET, keyCacheTags,
+          (short) ((short) (index + slot) * KEY_CACHE_TAG_SIZE), KEY_CACHE_TAG_SIZE)) {
+        return slot;
       }
+      slot++;
     }
-    return false;
+    slot = keyCacheTags[(short) (KEY_CACHE_NEXT_SLOT_OFFSET + alg)];
+    keyCacheTags[(short) (KEY_CACHE_NEXT_SLOT_OFFSET + alg)] =
+        (byte) ((byte) (slot + 1) % KEY_CACHE_SLOTS);
+    keyCacheTags[(short) (KEY_CACHE_STATUS_OFFSET + index + slot)] = 0;
+    return (short) (slot | 0x80);
+  }
+
+  private void commitKeyCacheSlot(byte alg, short slot) {
+    short index = (short) (alg * KEY_CACHE_SLOTS + slot);
+    Util.arrayCopyNonAtomic(keyCacheTags, KEY_CACHE_DIGEST_OFFSET, keyCacheTags,
+        (short) (index * KEY_CACHE_TAG_SIZE), KEY_CACHE_TAG_SIZE);
+    keyCacheTags[(short) (KEY_CACHE_STATUS_OFFSET + index)] = 1;
+  }
+
+  // Returns an initialized CRT key for the given components, reusing a cached key if possible.
+  private RSAPrivateCrtKey getCachedRsaCrtKey(byte[] crtBuffer, short crtOff) {
+    short slot = findKeyCacheSlot(KEY_CACHE_RSA, crtBuffer, crtOff,
+        KMKeymasterApplet.RSA_CRT_SECRET_SIZE);
+    if ((slot & 0x80) == 0) {
+      return rsaCrtKeyCache[slot];
+    }
+    slot &= 0x7F;
+    setRsaCrtComponents(rsaCrtKeyCache[slot], crtBuffer, crtOff);
+    commitKeyCacheSlot(KEY_CACHE_RSA, slot);
+    return rsaCrtKeyCache[slot];
+  }
+
+  // Returns an initialized EC key for the given secret, reusing a cached key if possible.
+  private ECPrivateKey getCachedEcKey(byte[] secret, short secretStart, short secretLength) {
+    short slot = findKeyCacheSlot(KEY_CACHE_EC, secret, secretStart, secretLength);
+    if ((slot & 0x80) == 0) {
+      return ecKeyCache[slot];
+    }
+    slot &= 0x7F;
+    ecKeyCache[slot].setS(secret, secretStart, secretLength);
+    commitKeyCacheSlot(KEY_CACHE_EC, slot);
+    return ecKeyCache[slot];
+  }
+
+  // The RSA secret is either the CRT components or the private exponent, depending on the
+  // version of the key blob. CRT keys come from the key cache.
+  private PrivateKey getRsaPrivateKey(byte[] secret, short secretStart, short secretLength,
+      boolean crtKey, byte[] modBuffer, short modOff, short modLength) {
+    if (crtKey) {
+      return getCachedRsaCrtKey(secret, secretStart);
+    }
+    return createRsaKey(modBuffer, modOff, modLength, secret, secretStart, secretLength);
+  }
+
+  private short getCipherAlgIndex(byte alg) {
+    switch (alg) {
+      case Cipher.ALG_AES_BLOCK_128_CBC_NOPAD:
+        return 0;
+      case Cipher.ALG_AES_BLOCK_128_ECB_NOPAD:
+        return 1;
+      case Cipher.ALG_DES_CBC_NOPAD:
+        return 2;
+      case Cipher.ALG_DES_ECB_NOPAD:
+        return 3;
+      case Cipher.ALG_AES_CTR:
+        return 4;
+      case Cipher.ALG_RSA_PKCS1:
+        return 5;
+      case KMRsaOAEPEncoding.ALG_RSA_PKCS1_OAEP_SHA256_MGF1_SHA1:
+        return 6;
+      case Cipher.ALG_RSA_NOPAD:
+        return 7;
+      case AEADCipher.ALG_AES_GCM:
+        return 8;
+      default:
+        CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+    }
+    return -1;
+  }
+
+  private short getSignatureAlgIndex(byte alg) {
+    switch (alg) {
+      case Signature.ALG_RSA_SHA_256_PKCS1:
+        return 0;
+      case Signature.ALG_RSA_SHA_256_PKCS1_PSS:
+        return 1;
+      case Signature.ALG_ECDSA_SHA_256:
+        return 2;
+      case Signature.ALG_HMAC_SHA_256:
+        return 3;
+      case KMRsa2048NoDigestSignature.ALG_RSA_SIGN_NOPAD:
+        return 4;
+      case KMRsa2048NoDigestSignature.ALG_RSA_PKCS1_NODIGEST:
+        return 5;
+      case KMEcdsa256NoDigestSignature.ALG_ECDSA_NODIGEST:
+        return 6;
+      default:
+        CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+    }
+    return -1;
   }
 
   private void initializeOperationPool() {
     short index = 0;
-    while (index < 4) {
-      operationPool[index] = new KMInstance();
-      ((KMInstance) operationPool[index]).instanceCount = 1;
-      ((KMInstance) operationPool[index]).object = new KMOperationImpl();
-      ((KMInstance) operationPool[index]).reserved = 0;
+    while (index < (short) operationPool.length) {
+      operationPool[index] = new KMOperationImpl(index);
       index++;
     }
   }
@@ -285,10 +452,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private void initializeSigPool() {
     short index = 0;
     while (index < SIG_ALGS.length) {
-      sigPool[index] = new KMInstance();
-      ((KMInstance) sigPool[index]).instanceCount = 1;
-      ((KMInstance) sigPool[index]).object = getSignatureInstance(SIG_ALGS[index]);
-      ((KMInstance) sigPool[index]).reserved = 0;
+      sigPool[(short) (index * poolInstances)] = getSignatureInstance(SIG_ALGS[index]);
       index++;
     }
   }
@@ -320,119 +484,111 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private void initializeCipherPool() {
     short index = 0;
     while (index < CIPHER_ALGS.length) {
-      cipherPool[index] = new KMInstance();
-      ((KMInstance) cipherPool[index]).instanceCount = 1;
-      ((KMInstance) cipherPool[index]).object = getCipherInstance(CIPHER_ALGS[index]);
-      ((KMInstance) cipherPool[index]).reserved = 0;
+      cipherPool[(short) (index * poolInstances)] = getCipherInstance(CIPHER_ALGS[index]);
       index++;
     }
   }
 
   private KMOperationImpl getOperationInstanceFromPool() {
-    return (KMOperationImpl) getInstanceFromPool(operationPool, (byte) 0x00);
+    short index = 0;
+    while (index < (short) operationPool.length) {
+      if (operationPoolReserved[index] == 0) {
+        operationPoolReserved[index] = 1;
+        return (KMOperationImpl) operationPool[index];
+      }
+      index++;
+    }
+    KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
+    return null;
   }
 
   public void releaseOperationInstance(KMOperationImpl operation) {
-    releaseInstance(operationPool, operation);
+    operationPoolReserved[operation.getPoolIndex()] = 0;
   }
 
   private Signature getSignatureInstanceFromPool(byte alg) {
-    return (Signature) getInstanceFromPool(sigPool, alg);
+    Signature signer = (Signature) getInstanceFromPool(sigPool, sigPoolReserved,
+        getSignatureAlgIndex(alg), alg, false);
+    if (signer == null) {
+      KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
+    }
+    return signer;
   }
 
   public void releaseSignatureInstance(Signature signer) {
-    releaseInstance(sigPool, signer);
+    releaseInstance(sigPool, sigPoolReserved, getSignatureAlgIndex(signer.getAlgorithm()),
+        signer);
   }
 
   private Cipher getCipherInstanceFromPool(byte alg) {
-    return (Cipher) getInstanceFromPool(cipherPool, alg);
+    Cipher cipher = (Cipher) getInstanceFromPool(cipherPool, cipherPoolReserved,
+        getCipherAlgIndex(alg), alg, true);
+    if (cipher == null) {
+      // All the instances of this algorithm are in use, so borrow the instance
+      // of an idle operation which can re-create its cipher later.
+      cipher = swapOutIdleOperation(alg);
+    }
+    if (cipher == null) {
+      KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
+    }
+    return cipher;
   }
 
   public void releaseCipherInstance(Cipher cipher) {
-    releaseInstance(cipherPool, cipher);
-  }
-
-  // This pool implementation can create a maximum of total 4 instances per
-  // algorithm. This function returns the unreserved Cipher/Signature instance
-  // of type algorithm from pool. If there is no unreserved cipher/signature
-  // instance of algorithm type in the pool and Cipher/Signature algorithm
-  // instance count is less than 4 then it creates and returns a new
-  // Cipher/Signature instance of algorithm type. If there is no unreserved
-  // cipher/signature and maximum instance count reaches four it throws
-  // exception.
-  private Object getInstanceFromPool(Object[] pool, byte alg) {
+    releaseInstance(cipherPool, cipherPoolReserved, getCipherAlgIndex(getCipherAlgorithm(cipher)),
+        cipher);
+  }
+
+  // Swaps out the first idle operation which holds a cipher instance of the given
+  // algorithm and returns that cipher instance. The cipher instance stays reserved
+  // in the cipher pool and is released by the operation which borrowed it.
+  private Cipher swapOutIdleOperation(byte alg) {
     short index = 0;
-    short instanceCount = 0;
-    Object object = null;
-    boolean isCipher = isCipherAlgorithm(alg);
-    boolean isSigner = isSignerAlgorithm(alg);
-    short len = (short) pool.length;
-    while (index < len) {
-      if (null == pool[index]) {
-        // No instance of cipher/signature with this algorithm is found
-        if (instanceCount < 4) {
-          pool[index] = new KMInstance();
-          JCSystem.beginTransaction();
-          ((KMInstance) pool[index]).instanceCount = (byte) (++instanceCount);
+    while (index < (short) operationPool.length) {
+      if (operationPoolReserved[index] != 0
+          && ((KMOperationImpl) operationPool[index]).isSwappable(alg)) {
+        return ((KMOperationImpl) operationPool[index]).swapOut();
+      }
+      index++;
+    }
+    return null;
+  }
+
+  // Each algorithm owns poolInstances consecutive slots of the pool starting at
+  // algIndex * poolInstances. This function returns the first unreserved
+  // Cipher/Signature instance of the algorithm, creating the instance if the slot is
+  // still empty. If all the slots of the algorithm are reserved it returns null.
+  // Only the transient reservation status is updated on the hot path, so no
+  // transaction is required.
+  private Object getInstanceFromPool(Object[] pool, byte[] reserved, short algIndex,
+      byte alg, boolean isCipher) {
+    short index = (short) (algIndex * poolInstances);
+    short end = (short) (index + poolInstances);
+    while (index < end) {
+      if (reserved[index] == 0) {
+        if (pool[index] == null) {
           if (isCipher) {
-            ((KMInstance) pool[index]).object = object = getCipherInstance(alg);
+            pool[index] = getCipherInstance(alg);
           } else {
-            // Signature
-            ((KMInstance) pool[index]).object = object = getSignatureInstance(alg);
+            pool[index] = getSignatureInstance(alg);
           }
-          ((KMInstance) pool[index]).reserved = 1;
-          JCSystem.commitTransaction();
-          break;
-        } else {
-          // Cipher/Signature instance count reached its maximum limit.
-          KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
-          break;
         }
+        reserved[index] = 1;
+        return pool[index];
       }
-      object = ((KMInstance) pool[index]).object;
-      if ((isCipher && (alg == getCipherAlgorithm((Cipher) object)))
-          || ((isSigner && (alg == ((Signature) object).getAlgorithm())))) {
-        instanceCount = ((KMInstance) pool[index]).instanceCount;
-        if (((KMInstance) pool[index]).reserved == 0) {
-          JCSystem.beginTransaction();
-          ((KMInstance) pool[index]).reserved = 1;
-          JCSystem.commitTransaction();
-          break;
-        }
-      } else {
-        if (!isCipher && !isSigner) {
-          // OperationImpl
-          if (((KMInstance) pool[index]).reserved == 0) {
-            JCSystem.beginTransaction();
-            ((KMInstance) pool[index]).reserved = 1;
-            JCSystem.commitTransaction();
-            break;
-          }
-        }
-      }
-      object = null;
       index++;
     }
-    return object;
+    return null;
   }
 
-  private void releaseInstance(Object[] pool, short index) {
-    if (((KMInstance) pool[index]).reserved != 0) {
-      JCSystem.beginTransaction();
-      ((KMInstance) pool[index]).reserved = 0;
-      JCSystem.commitTransaction();
-    }
-  }
-
-  private void releaseInstance(Object[] pool, Object object) {
-    short index = 0;
-    short len = (short) pool.length;
-    while (index < len) {
-      if (pool[index] != null) {
-        if (object == ((KMInstance) pool[index]).object) {
-          releaseInstance(pool, index);
-          break;
-        }
+  private void releaseInstance(Object[] pool, byte[] reserved, short algIndex,
+      Object object) {
+    short index = (short) (algIndex * poolInstances);
+    short end = (short) (index + poolInstances);
+    while (index < end) {
+      if (object == pool[index]) {
+        reserved[index] = 0;
+        break;
       }
       index++;
     }
@@ -496,8 +652,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
   }
 
   public KeyPair createRsaKeyPair() {
-    rsaKeyPair.genKeyPair();
-    return rsaKeyPair;
+    rsaCrtKeyPair.genKeyPair();
+    return rsaCrtKeyPair;
   }
 
   public RSAPrivateKey createRsaKey(byte[] modBuffer, short modOff,
@@ -508,6 +664,30 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return privKey;
   }
 
+  public RSAPrivateCrtKey createRsaCrtKey(byte[] crtBuffer, short crtOff) {
+    RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) rsaCrtKeyPair.getPrivate();
+    setRsaCrtComponents(privKey, crtBuffer, crtOff);
+    return privKey;
+  }
+
+  private void setRsaCrtComponents(RSAPrivateCrtKey privKey, byte[] crtBuffer, short crtOff) {
+    short len = KMKeymasterApplet.RSA_CRT_COMPONENT_SIZE;
+    privKey.setP(crtBuffer, crtOff, len);
+    privKey.setQ(crtBuffer, (short) (crtOff + len), len);
+    privKey.setDP1(crtBuffer, (short) (crtOff + (short) (2 * len)), len);
+    privKey.setDQ1(crtBuffer, (short) (crtOff + (short) (3 * len)), len);
+    privKey.setPQ(crtBuffer, (short) (crtOff + (short) (4 * len)), len);
+  }
+
+  // Copies the component right aligned into the field of the given length.
+  private void copyRsaComponent(short len, byte[] buf, short start, short fieldLength) {
+    if (len > fieldLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    Util.arrayFillNonAtomic(buf, start, fieldLength, (byte) 0);
+    Util.arrayCopyNonAtomic(tmpArray, (short) 0, buf, (short) (start + fieldLength - len), len);
+  }
+
   public KeyPair createECKeyPair() {
     ecKeyPair.genKeyPair();
     return ecKeyPair;
@@ -546,29 +726,28 @@ public class KMAndroidSEProvider implements KMSEProvider {
       short pubModStart, short pubModLength, short[] lengths) {
     switch (alg) {
       case KMType.RSA:
-        if (RSA_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
+        if (KMKeymasterApplet.RSA_CRT_SECRET_SIZE != privKeyLength
+            || RSA_KEY_SIZE != pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
         KeyPair rsaKey = createRsaKeyPair();
-        RSAPrivateKey privKey = (RSAPrivateKey) rsaKey.getPrivate();
-        //Copy exponent.
-        Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
-        lengths[0] = privKey.getExponent(tmpArray, (short) 0);
-        if (lengths[0] > privKeyLength) {
-          CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-        }
-        Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, privKeyLength, (byte) 0);
-        Util.arrayCopyNonAtomic(tmpArray, (short) 0,
-            privKeyBuf, (short) (privKeyStart + privKeyLength - lengths[0]), lengths[0]);
+        RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) rsaKey.getPrivate();
+        //Copy CRT components.
+        short len = KMKeymasterApplet.RSA_CRT_COMPONENT_SIZE;
+        copyRsaComponent(privKey.getP(tmpArray, (short) 0), privKeyBuf, privKeyStart, len);
+        copyRsaComponent(privKey.getQ(tmpArray, (short) 0), privKeyBuf,
+            (short) (privKeyStart + len), len);
+        copyRsaComponent(privKey.getDP1(tmpArray, (short) 0), privKeyBuf,
+            (short) (privKeyStart + (short) (2 * len)), len);
+        copyRsaComponent(privKey.getDQ1(tmpArray, (short) 0), privKeyBuf,
+            (short) (privKeyStart + (short) (3 * len)), len);
+        copyRsaComponent(privKey.getPQ(tmpArray, (short) 0), privKeyBuf,
+            (short) (privKeyStart + (short) (4 * len)), len);
+        lengths[0] = privKeyLength;
         //Copy modulus
-        Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
-        lengths[1] = privKey.getModulus(tmpArray, (short) 0);
-        if (lengths[1] > pubModLength) {
-          CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-        }
-        Util.arrayFillNonAtomic(pubModBuf, pubModStart, pubModLength, (byte) 0);
-        Util.arrayCopyNonAtomic(tmpArray, (short) 0,
-            pubModBuf, (short) (pubModStart + pubModLength - lengths[1]), lengths[1]);
+        lengths[1] = ((RSAPublicKey) rsaKey.getPublic()).getModulus(tmpArray, (short) 0);
+        copyRsaComponent(lengths[1], pubModBuf, pubModStart, pubModLength);
+        Util.arrayFillNonAtomic(tmpArray, (short) 0, TMP_ARRAY_SIZE, (byte) 0);
         break;
       case KMType.EC:
         KeyPair ecKey = createECKeyPair();
@@ -625,6 +804,41 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return true;
   }
 
+  @Override
+  public boolean importRsaCrtKey(byte[] crtBuf, short crtStart, byte[] privExpBuf,
+      short privExpStart, short privExpLength, byte[] modBuf, short modStart,
+      short modLength, byte[] scratchPad, short scratchPadStart) {
+    // A random message below the modulus is signed with the private exponent, the signature is
+    // verified with the public key and then compared with the signature of the CRT key.
+    short sig = scratchPadStart;
+    short tmp = (short) (scratchPadStart + RSA_KEY_SIZE);
+    boolean isValid = false;
+    newRandomNumber(tmpArray, (short) 0, RSA_KEY_SIZE);
+    tmpArray[0] = 0;
+    Cipher rsaCipher = getCipherInstanceFromPool(Cipher.ALG_RSA_NOPAD);
+    try {
+      rsaCipher.init(createRsaKey(modBuf, modStart, modLength, privExpBuf, privExpStart,
+          privExpLength), Cipher.MODE_DECRYPT);
+      rsaCipher.doFinal(tmpArray, (short) 0, RSA_KEY_SIZE, scratchPad, sig);
+      RSAPublicKey pubKey = (RSAPublicKey) rsaKeyPair.getPublic();
+      pubKey.setModulus(modBuf, modStart, modLength);
+      pubKey.setExponent(RSA_PUB_EXPONENT, (short) 0, (short) RSA_PUB_EXPONENT.length);
+      rsaCipher.init(pubKey, Cipher.MODE_ENCRYPT);
+      rsaCipher.doFinal(scratchPad, sig, RSA_KEY_SIZE, scratchPad, tmp);
+      if (0 == Util.arrayCompare(tmpArray, (short) 0, scratchPad, tmp, RSA_KEY_SIZE)) {
+        rsaCipher.init(createRsaCrtKey(crtBuf, crtStart), Cipher.MODE_DECRYPT);
+        rsaCipher.doFinal(tmpArray, (short) 0, RSA_KEY_SIZE, scratchPad, tmp);
+        isValid = (0 == Util.arrayCompare(scratchPad, sig, scratchPad, tmp, RSA_KEY_SIZE));
+      }
+    } catch (CryptoException e) {
+      isValid = false;
+    } finally {
+      releaseCipherInstance(rsaCipher);
+      Util.arrayFillNonAtomic(tmpArray, (short) 0, TMP_ARRAY_SIZE, (byte) 0);
+    }
+    return isValid;
+  }
+
   @Override
   public void getTrueRandomNumber(byte[] buf, short start, short length) {
     newRandomNumber(buf, start, length);
@@ -797,6 +1011,13 @@ public class KMAndroidSEProvider implements KMSEProvider {
     }
   }
 
+  @Override
+  public boolean hmacVerify(KMComputedHmacKey key, byte[] data, short dataStart,
+      short dataLength, byte[] mac, short macStart, short macLength) {
+    return hmacVerify(((KMHmacKey) key).getKey(), data, dataStart, dataLength,
+        mac, macStart, macLength);
+  }
+
   @Override
   public boolean hmacVerify(byte[] keyBuf, short keyStart, short keyLength,
       byte[] data, short dataStart, short dataLength, byte[] mac,
@@ -808,12 +1029,11 @@ public class KMAndroidSEProvider implements KMSEProvider {
 
   @Override
   public short rsaDecipherOAEP256(byte[] secret, short secretStart,
-      short secretLength, byte[] modBuffer, short modOff, short modLength,
+      short secretLength, boolean crtKey, byte[] modBuffer, short modOff, short modLength,
       byte[] inputDataBuf, short inputDataStart, short inputDataLength,
       byte[] outputDataBuf, short outputDataStart) {
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, (short) secretStart, (short) secretLength);
-    key.setModulus(modBuffer, (short) modOff, (short) modLength);
+    PrivateKey key = getRsaPrivateKey(secret, secretStart, secretLength, crtKey, modBuffer,
+        modOff, modLength);
     rsaOaepDecipher.init(key, Cipher.MODE_DECRYPT);
     return rsaOaepDecipher.doFinal(inputDataBuf, (short) inputDataStart, (short) inputDataLength,
         outputDataBuf, (short) outputDataStart);
@@ -1002,6 +1222,12 @@ public class KMAndroidSEProvider implements KMSEProvider {
         opr.setPaddingAlgorithm(padding);
         opr.setMode(purpose);
         opr.setMacLength(macLength);
+        // PKCS7 decryption relies on the caller holding back the padded last block,
+        // so it is never swapped out.
+        if (blockMode != KMType.GCM
+            && !(padding == KMType.PKCS7 && purpose == KMType.DECRYPT)) {
+          opr.setSwapState(keyBuf, keyStart, keyLength, ivBuf, ivStart, ivLength);
+        }
         break;
       case KMType.HMAC:
         Signature signerVerifier = createHmacSignerVerifier(purpose, digest,
@@ -1017,7 +1243,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
   }
 
   public Signature createRsaSigner(short digest, short padding, byte[] secret,
-      short secretStart, short secretLength, byte[] modBuffer, short modOff,
+      short secretStart, short secretLength, boolean crtKey, byte[] modBuffer, short modOff,
       short modLength) {
     byte alg = mapSignature256Alg(KMType.RSA, (byte) padding, (byte) digest);
     byte opMode;
@@ -1028,21 +1254,19 @@ public class KMAndroidSEProvider implements KMSEProvider {
       opMode = Signature.MODE_SIGN;
     }
     Signature rsaSigner = getSignatureInstanceFromPool(alg);
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = getRsaPrivateKey(secret, secretStart, secretLength, crtKey, modBuffer,
+        modOff, modLength);
     rsaSigner.init(key, opMode);
     return rsaSigner;
   }
 
   public Cipher createRsaDecipher(short padding, short digest, byte[] secret,
-      short secretStart, short secretLength, byte[] modBuffer, short modOff,
+      short secretStart, short secretLength, boolean crtKey, byte[] modBuffer, short modOff,
       short modLength) {
     byte cipherAlg = mapCipherAlg(KMType.RSA, (byte) padding, (byte) 0, (byte) digest);
     Cipher rsaCipher = getCipherInstanceFromPool(cipherAlg);
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = getRsaPrivateKey(secret, secretStart, secretLength, crtKey, modBuffer,
+        modOff, modLength);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     return rsaCipher;
   }
@@ -1051,8 +1275,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
       short secretStart, short secretLength) {
     byte alg = mapSignature256Alg(KMType.EC, (byte) 0, (byte) digest);
     Signature ecSigner = null;
-    ECPrivateKey key = (ECPrivateKey) ecKeyPair.getPrivate();
-    key.setS(secret, secretStart, secretLength);
+    ECPrivateKey key = getCachedEcKey(secret, secretStart, secretLength);
     ecSigner = getSignatureInstanceFromPool(alg);
     ecSigner.init(key, Signature.MODE_SIGN);
     return ecSigner;
@@ -1061,14 +1284,14 @@ public class KMAndroidSEProvider implements KMSEProvider {
   @Override
   public KMOperation initAsymmetricOperation(byte purpose, byte alg,
       byte padding, byte digest, byte[] privKeyBuf, short privKeyStart,
-      short privKeyLength, byte[] pubModBuf, short pubModStart,
+      short privKeyLength, boolean crtKey, byte[] pubModBuf, short pubModStart,
       short pubModLength) {
     KMOperationImpl opr = null;
     if (alg == KMType.RSA) {
       switch (purpose) {
         case KMType.SIGN:
           Signature signer = createRsaSigner(digest, padding, privKeyBuf,
-              privKeyStart, privKeyLength, pubModBuf, pubModStart, pubModLength);
+              privKeyStart, privKeyLength, crtKey, pubModBuf, pubModStart, pubModLength);
           opr = getOperationInstanceFromPool();
           opr.setSignature(signer);
           opr.setCipherAlgorithm(alg);
@@ -1077,7 +1300,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
           break;
         case KMType.DECRYPT:
           Cipher decipher = createRsaDecipher(padding, digest, privKeyBuf,
-              privKeyStart, privKeyLength, pubModBuf, pubModStart, pubModLength);
+              privKeyStart, privKeyLength, crtKey, pubModBuf, pubModStart, pubModLength);
           opr = getOperationInstanceFromPool();
           opr.setCipher(decipher);
           opr.setCipherAlgorithm(alg);
@@ -1124,7 +1347,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
   @Override
   public void clearCertificateChain() {
     JCSystem.beginTransaction();
-    Util.arrayFillNonAtomic(certificateChain, (short) 0, CERT_CHAIN_MAX_SIZE, (byte) 0);
+    Util.arrayFillNonAtomic(certificateChain, (short) 0, (short) certificateChain.length,
+        (byte) 0);
     JCSystem.commitTransaction();
   }
 
@@ -1138,7 +1362,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
     // CBOR format:
     // Next single byte holds the byte string header.
     // Next 3 bytes holds the total length of the certificate chain.
-    if (totalLen > (short) (CERT_CHAIN_MAX_SIZE - 2)) {
+    if (totalLen > (short) (certificateChain.length - 2)) {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     short persistedLen = Util.getShort(certificateChain, (short) 0);
@@ -1164,6 +1388,11 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return Util.getShort(certificateChain, (short) 0);
   }
 
+  @Override
+  public short getCertificateChainMaxSize() {
+    return (short) certificateChain.length;
+  }
+
   @Override
   public boolean isBootSignalEventSupported() {
     return false;
@@ -1279,21 +1508,24 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return (KMPreSharedKey) preSharedKey;
   }
 
-  private void releasePool(Object[] pool) {
-    short index = 0;
-    short len = (short) pool.length;
-    while (index < len) {
-      if (pool[index] != null) {
-        releaseInstance(pool, index);
-      }
-      index++;
-    }
+  @Override
+  public KMComputedHmacKey createComputedHmacKey(byte[] keyData, short offset, short length) {
+    computedHmacKey.setKey(keyData, offset, length);
+    return (KMComputedHmacKey) computedHmacKey;
+  }
+
+  @Override
+  public KMComputedHmacKey getComputedHmacKey() {
+    return (KMComputedHmacKey) computedHmacKey;
   }
 
   @Override
   public void releaseAllOperations() {
-    releasePool(cipherPool);
-    releasePool(sigPool);
-    releasePool(operationPool);
+    Util.arrayFillNonAtomic(cipherPoolReserved, (short) 0, (short) cipherPoolReserved.length,
+        (byte) 0);
+    Util.arrayFillNonAtomic(sigPoolReserved, (short) 0, (short) sigPoolReserved.length,
+        (byte) 0);
+    Util.arrayFillNonAtomic(operationPoolReserved, (short) 0,
+        (short) operationPoolReserved.length, (byte) 0);
   }
 }
@@ -17,11 +17,12 @@ package com.android.javacard.keymaster;
 
 import org.globalplatform.upgrade.Element;
 
+import com.android.javacard.keymaster.KMComputedHmacKey;
 import com.android.javacard.keymaster.KMPreSharedKey;
 
 import javacard.security.HMACKey;
 
-public class KMHmacKey implements KMPreSharedKey {
+public class KMHmacKey implements KMPreSharedKey, KMComputedHmacKey {
 
   private HMACKey hmacKey;
 
@@ -33,6 +34,10 @@ public class KMHmacKey implements KMPreSharedKey {
     hmacKey.setKey(keyData, kOff, length);
   }
 
+  public HMACKey getKey() {
+    return hmacKey;
+  }
+
   public byte getKey(byte[] keyData, short kOff) {
     return hmacKey.getKey(keyData, kOff);
   }
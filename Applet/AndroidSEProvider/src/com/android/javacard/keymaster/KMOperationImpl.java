@@ -31,13 +31,32 @@ public class KMOperationImpl implements KMOperation {
   //This will hold the length of the buffer stored inside the
   //Java Card after the GCM update operation.
   private static final short AES_GCM_UPDATE_LEN_OFFSET = 0x05;
+  private static final short SWAP_STATUS_OFFSET = 0x06;
+  private static final short PARAMETERS_LENGTH = 0x07;
+  // Transient memory of one instance: the parameters, the instance reference and the swap state.
+  public static final short TRANSIENT_SIZE =
+      PARAMETERS_LENGTH * 2 + 2 + KMCipherSwapState.TRANSIENT_SIZE;
+  // Swap status values.
+  private static final short SWAP_NOT_SUPPORTED = 0x00;
+  private static final short SWAP_ALLOWED = 0x01;
+  private static final short SWAPPED_OUT = 0x02;
   private short[] parameters;
   // Either one of Cipher/Signature instance is stored.
   private Object[] operationInst;
+  // State required to re-create the cipher of a swapped out operation.
+  private KMCipherSwapState swapState;
+  // Index of this instance in the operation pool.
+  private short poolIndex;
 
-  public KMOperationImpl() {
-    parameters = JCSystem.makeTransientShortArray((short) 6, JCSystem.CLEAR_ON_RESET);
+  public KMOperationImpl(short poolIndex) {
+    this.poolIndex = poolIndex;
+    parameters = JCSystem.makeTransientShortArray(PARAMETERS_LENGTH, JCSystem.CLEAR_ON_RESET);
     operationInst = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    swapState = new KMCipherSwapState();
+  }
+
+  public short getPoolIndex() {
+    return poolIndex;
   }
 
   public short getMode() {
@@ -82,14 +101,63 @@ public class KMOperationImpl implements KMOperation {
 
   public void setCipher(Cipher cipher) {
     operationInst[0] = cipher;
+    resetSwapState();
   }
 
   public void setSignature(Signature signer) {
     operationInst[0] = signer;
+    resetSwapState();
+  }
+
+  // Stores the key and the initial iv/counter so that the cipher instance of this
+  // operation can be lent to another operation while this operation is idle. The
+  // cipher algorithm, block mode and mode must be set before.
+  public void setSwapState(byte[] keyBuf, short keyStart, short keyLength,
+                           byte[] ivBuf, short ivStart, short ivLength) {
+    if (swapState.init(parameters[CIPHER_ALG_OFFSET], parameters[BLOCK_MODE_OFFSET],
+        parameters[OPER_MODE_OFFSET], keyBuf, keyStart, keyLength, ivBuf, ivStart, ivLength)) {
+      parameters[SWAP_STATUS_OFFSET] = SWAP_ALLOWED;
+    }
+  }
+
+  private void resetSwapState() {
+    swapState.reset();
+    parameters[SWAP_STATUS_OFFSET] = SWAP_NOT_SUPPORTED;
+  }
+
+  // Returns true if this operation holds a cipher instance of the given algorithm
+  // which can be handed over to another operation.
+  public boolean isSwappable(byte alg) {
+    return parameters[SWAP_STATUS_OFFSET] == SWAP_ALLOWED
+        && operationInst[0] != null
+        && ((Cipher) operationInst[0]).getAlgorithm() == alg;
+  }
+
+  // Gives up the cipher instance of this operation. The cipher is re-created from the
+  // swap state when this operation is used again.
+  public Cipher swapOut() {
+    Cipher cipher = (Cipher) operationInst[0];
+    operationInst[0] = null;
+    parameters[SWAP_STATUS_OFFSET] = SWAPPED_OUT;
+    return cipher;
+  }
+
+  private Cipher getCipher() {
+    if (parameters[SWAP_STATUS_OFFSET] == SWAPPED_OUT) {
+      operationInst[0] = KMAndroidSEProvider.getInstance().createSymmetricCipher(
+          parameters[CIPHER_ALG_OFFSET], parameters[OPER_MODE_OFFSET],
+          parameters[BLOCK_MODE_OFFSET], parameters[PADDING_OFFSET],
+          swapState.getBuffer(), swapState.getKeyStart(), swapState.getKeyLength(),
+          swapState.getBuffer(), swapState.getChainBlockStart(),
+          KMCipherSwapState.CHAIN_BLOCK_LENGTH);
+      parameters[SWAP_STATUS_OFFSET] = SWAP_ALLOWED;
+    }
+    return (Cipher) operationInst[0];
   }
 
   private void resetCipher() {
     operationInst[0] = null;
+    resetSwapState();
     parameters[MAC_LENGTH_OFFSET] = 0;
     parameters[AES_GCM_UPDATE_LEN_OFFSET] = 0;
     parameters[BLOCK_MODE_OFFSET] = 0;
@@ -101,12 +169,21 @@ public class KMOperationImpl implements KMOperation {
   @Override
   public short update(byte[] inputDataBuf, short inputDataStart,
                       short inputDataLength, byte[] outputDataBuf, short outputDataStart) {
-    short len = ((Cipher) operationInst[0]).update(inputDataBuf, inputDataStart, inputDataLength,
+    if (parameters[SWAP_STATUS_OFFSET] != SWAP_NOT_SUPPORTED) {
+      swapState.prepareUpdate(inputDataBuf, inputDataStart, inputDataLength);
+    }
+    short len = getCipher().update(inputDataBuf, inputDataStart, inputDataLength,
       outputDataBuf, outputDataStart);
     if (parameters[CIPHER_ALG_OFFSET] == KMType.AES && parameters[BLOCK_MODE_OFFSET] == KMType.GCM) {
       // Every time Block size data is stored as intermediate result.
       parameters[AES_GCM_UPDATE_LEN_OFFSET] += (short) (inputDataLength - len);
     }
+    // Once an update leaves data buffered inside the cipher, or is not block aligned,
+    // the cipher can no longer be re-created from the swap state.
+    if (parameters[SWAP_STATUS_OFFSET] != SWAP_NOT_SUPPORTED
+        && !swapState.update(inputDataLength, outputDataBuf, outputDataStart, len)) {
+      parameters[SWAP_STATUS_OFFSET] = SWAP_NOT_SUPPORTED;
+    }
     return len;
   }
 
@@ -121,7 +198,7 @@ public class KMOperationImpl implements KMOperation {
   public short finish(byte[] inputDataBuf, short inputDataStart,
                       short inputDataLen, byte[] outputDataBuf, short outputDataStart) {
     byte[] tmpArray = KMAndroidSEProvider.getInstance().tmpArray;
-    Cipher cipher = (Cipher) operationInst[0];
+    Cipher cipher = getCipher();
     short cipherAlg = parameters[CIPHER_ALG_OFFSET];
     short blockMode = parameters[BLOCK_MODE_OFFSET];
     short mode = parameters[OPER_MODE_OFFSET];
@@ -241,6 +318,9 @@ public class KMOperationImpl implements KMOperation {
         KMAndroidSEProvider.getInstance().releaseSignatureInstance((Signature) operationInst[0]);
       }
       operationInst[0] = null;
+    } else if (parameters[SWAP_STATUS_OFFSET] == SWAPPED_OUT) {
+      // The cipher instance is already lent to another operation.
+      resetCipher();
     }
     KMAndroidSEProvider.getInstance().releaseOperationInstance(this);
   }
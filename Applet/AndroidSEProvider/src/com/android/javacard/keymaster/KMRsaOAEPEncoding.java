@@ -27,7 +27,7 @@ public class KMRsaOAEPEncoding extends Cipher {
   public static final byte ALG_RSA_PKCS1_OAEP_SHA256_MGF1_SHA1 = (byte) 0x1E;
   public static final byte ALG_RSA_PKCS1_OAEP_SHA256_MGF1_SHA256 = (byte) 0x1F;
 
-  final short MGF1_BUF_SIZE = 256;
+  public static final short MGF1_BUF_SIZE = 256;
   static byte[] mgf1Buf;
   private Cipher cipher;
   private byte hash;
@@ -20,51 +20,29 @@ import javacard.framework.Util;
 public class KMUtils {
 
   // 64 bit unsigned calculations for time
-  public static final byte[] oneSecMsec = {
-      0, 0, 0, 0, 0, 0, 0x03, (byte) 0xE8}; // 1000 msec
-  public static final byte[] oneMinMsec = {
-      0, 0, 0, 0, 0, 0, (byte) 0xEA, 0x60}; // 60000 msec
-  public static final byte[] oneHourMsec = {
-      0, 0, 0, 0, 0, 0x36, (byte) 0xEE, (byte) 0x80}; // 3600000 msec
-  public static final byte[] oneDayMsec = {
-      0, 0, 0, 0, 0x05, 0x26, 0x5C, 0x00}; // 86400000 msec
   public static final byte[] oneMonthMsec = {
       0, 0, 0, 0, (byte) 0x9C, (byte) 0xBE, (byte) 0xBD, 0x50}; // 2629746000 msec
-  public static final byte[] leapYearMsec = {
-      0, 0, 0, 0x07, (byte) 0x5C, (byte) 0xD7, (byte) 0x88, 0x00}; //31622400000;
-  public static final byte[] yearMsec = {
-      0, 0, 0, 0x07, 0x57, (byte) 0xB1, 0x2C, 0x00}; //31536000000
-  //Leap year(366) + 3 * 365
-  public static final byte[] fourYrsMsec = {
-      0, 0, 0, 0x1D, 0x63, (byte) 0xEB, 0x0C, 0x00};//126230400000
   public static final byte[] firstJan2020 = {
       0, 0, 0x01, 0x6F, 0x5E, 0x66, (byte) 0xE8, 0x00}; // 1577836800000 msec
   public static final byte[] firstJan2051 = {
       0, 0, 0x02, 0x53, 0x26, (byte) 0x0E, (byte) 0x1C, 0x00}; // 2556144000000
   // msec
-  public static final byte[] febMonthLeapMSec = {
-      0, 0, 0, 0, (byte) 0x95, 0x58, 0x6C, 0x00}; //2505600000
-  public static final byte[] febMonthMsec = {
-      0, 0, 0, 0, (byte) 0x90, 0x32, 0x10, 0x00}; //2419200000
-  public static final byte[] ThirtyOneDaysMonthMsec = {
-      0, 0, 0, 0, (byte) 0x9F, (byte) 0xA5, 0x24, 0x00};//2678400000
-  public static final byte[] ThirtDaysMonthMsec = {
-      0, 0, 0, 0, (byte) 0x9A, 0x7E, (byte) 0xC8, 0x00};//2592000000
-  public static final short year2051 = 2051;
-  public static final short year2020 = 2020;
+  // Days from 1 Jan 1970 to 1 Mar 2000, the start of a 400 year Gregorian cycle.
+  public static final short DAYS_TO_MARCH_2000 = 11017;
+  public static final byte[] fourCenturiesDays = {
+      0, 0, 0, 0, 0, 0x02, 0x3A, (byte) 0xB1}; // 146097 days
+  public static final byte[] centuryDays = {
+      0, 0, 0, 0, 0, 0, (byte) 0x8E, (byte) 0xAC}; // 36524 days
+  public static final short FOUR_YEARS_DAYS = 1461;
+  public static final short YEAR_DAYS = 365;
+  // Day of the year on which each month starts, with the year starting on 1 March.
+  public static final short[] monthStartDays = {
+      0, 31, 61, 92, 122, 153, 184, 214, 245, 275, 306, 337, 366};
 
   // --------------------------------------
   public static short convertToDate(short time, byte[] scratchPad,
       boolean utcFlag) {
-
-    short yrsCount = 0;
-    short monthCount = 1;
-    short dayCount = 1;
-    short hhCount = 0;
-    short mmCount = 0;
-    short ssCount = 0;
     byte Z = 0x5A;
-    boolean from2020 = true;
     Util.arrayFillNonAtomic(scratchPad, (short) 0, (short) 256, (byte) 0);
     Util.arrayCopyNonAtomic(KMInteger.cast(time).getBuffer(),
         KMInteger.cast(time).getStartOff(), scratchPad,
@@ -80,158 +58,50 @@ public class KMUtils {
         (short) 0, (short) 8) >= 0) {
       KMException.throwIt(KMError.INVALID_ARGUMENT);
     }
+    // Split the time into days, hours, minutes and seconds.
+    divideBySmall(scratchPad, (short) 0, (short) 1000);
+    short ssCount = divideBySmall(scratchPad, (short) 0, (short) 60);
+    short mmCount = divideBySmall(scratchPad, (short) 0, (short) 60);
+    short hhCount = divideBySmall(scratchPad, (short) 0, (short) 24);
 
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, firstJan2051, (short) 0,
-        (short) 8) < 0) {
-      Util.arrayCopyNonAtomic(firstJan2020, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      subtract(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
+    // Days since 1 Mar 2000, so that the leap day is the last day of a year.
+    Util.setShort(scratchPad, (short) 14, DAYS_TO_MARCH_2000);
+    subtract(scratchPad, (short) 0, (short) 8, (short) 16);
+    copy(scratchPad, (short) 16, (short) 0);
+    // Split the days into 400 year cycles, centuries, 4 year cycles and years.
+    copy(fourCenturiesDays, scratchPad, (short) 8);
+    short yrsCount = (short) (divide(scratchPad, (short) 0, (short) 8, (short) 16) * 400);
+    copy(centuryDays, scratchPad, (short) 8);
+    short centuries = divide(scratchPad, (short) 0, (short) 8, (short) 16);
+    short dayCount;
+    if (centuries == 4) {
+      // Last day of the 400 year cycle is the extra leap day.
+      yrsCount += 399;
+      dayCount = YEAR_DAYS;
     } else {
-      from2020 = false;
-      Util.arrayCopyNonAtomic(firstJan2051, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      subtract(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    }
-    // divide the given time with four yrs msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, fourYrsMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(fourYrsMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      yrsCount = divide(scratchPad, (short) 0, (short) 8, (short) 16); // quotient
-      // is
-      // multiple
-      // of 4
-      yrsCount = (short) (yrsCount * 4); // number of yrs.
-      // copy reminder as new dividend
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    }
-
-    //Get the leap year index starting from the (base Year + yrsCount) Year.
-    short leapYrIdx = getLeapYrIndex(from2020, yrsCount);
-
-    // if leap year index is 0, then the number of days for the 1st year will be 366 days.
-    // if leap year index is not 0, then the number of days for the 1st year will be 365 days.
-    if (((leapYrIdx == 0) &&
-        (KMInteger
-            .unsignedByteArrayCompare(scratchPad, (short) 0, leapYearMsec, (short) 0, (short) 8)
-            >= 0)) ||
-        ((leapYrIdx != 0) &&
-            (KMInteger
-                .unsignedByteArrayCompare(scratchPad, (short) 0, yearMsec, (short) 0, (short) 8)
-                >= 0))) {
-      for (short i = 0; i < 4; i++) {
-        yrsCount++;
-        if (i == leapYrIdx) {
-          Util.arrayCopyNonAtomic(leapYearMsec, (short) 0, scratchPad,
-              (short) 8, (short) 8);
-        } else {
-          Util.arrayCopyNonAtomic(yearMsec, (short) 0, scratchPad, (short) 8,
-              (short) 8);
-        }
-        subtract(scratchPad, (short) 0, (short) 8, (short) 16);
-        Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-            (short) 8);
-        if (((short) (i + 1) == leapYrIdx)) {
-          if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, leapYearMsec,
-              (short) 0, (short) 8) < 0) {
-            break;
-          }
-        } else {
-          if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, yearMsec,
-              (short) 0, (short) 8) < 0) {
-            break;
-          }
-        }
+      yrsCount += (short) (centuries * 100);
+      dayCount = divideBySmall(scratchPad, (short) 0, FOUR_YEARS_DAYS);
+      yrsCount += (short) (Util.getShort(scratchPad, (short) 6) * 4);
+      short years = (short) (dayCount / YEAR_DAYS);
+      if (years == 4) {
+        // Leap day at the end of the 4 year cycle.
+        years = 3;
       }
+      yrsCount += years;
+      dayCount -= (short) (years * YEAR_DAYS);
     }
-
-    // total yrs from 1970
-    if (from2020) {
-      yrsCount = (short) (year2020 + yrsCount);
-    } else {
-      yrsCount = (short) (year2051 + yrsCount);
-    }
-
-    // divide the given time with one month msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneMonthMsec, (short) 0,
-        (short) 8) >= 0) {
-      for (short i = 0; i < 12; i++) {
-        if (i == 1) {
-          // Feb month
-          if (isLeapYear(yrsCount)) {
-            // Leap year 29 days
-            Util.arrayCopyNonAtomic(febMonthLeapMSec, (short) 0, scratchPad,
-                (short) 8, (short) 8);
-          } else {
-            // 28 days
-            Util.arrayCopyNonAtomic(febMonthMsec, (short) 0, scratchPad,
-                (short) 8, (short) 8);
-          }
-        } else if (((i <= 6) && ((i % 2 == 0))) || ((i > 6) && ((i % 2 == 1)))) {
-          Util.arrayCopyNonAtomic(ThirtyOneDaysMonthMsec, (short) 0,
-              scratchPad, (short) 8, (short) 8);
-        } else {
-          // 30 Days
-          Util.arrayCopyNonAtomic(ThirtDaysMonthMsec, (short) 0, scratchPad,
-              (short) 8, (short) 8);
-        }
-
-        if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, scratchPad, (short) 8,
-            (short) 8) >= 0) {
-          subtract(scratchPad, (short) 0, (short) 8, (short) 16);
-          Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-              (short) 8);
-        } else {
-          break;
-        }
-        monthCount++;
-      }
-    }
-
-    // divide the given time with one day msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneDayMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(oneDayMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      dayCount = divide(scratchPad, (short) 0, (short) 8, (short) 16);
-      dayCount++;
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    }
-
-    // divide the given time with one hour msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneHourMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(oneHourMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      hhCount = divide(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
-    }
-
-    // divide the given time with one minute msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneMinMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(oneMinMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      mmCount = divide(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
+    yrsCount += 2000;
+    // Month lookup; no month is longer than 31 days so the estimate is at most one short.
+    short month = (short) (dayCount / 31);
+    if (dayCount >= monthStartDays[(short) (month + 1)]) {
+      month++;
     }
-
-    // divide the given time with one second msec count
-    if (KMInteger.unsignedByteArrayCompare(scratchPad, (short) 0, oneSecMsec, (short) 0,
-        (short) 8) >= 0) {
-      Util.arrayCopyNonAtomic(oneSecMsec, (short) 0, scratchPad, (short) 8,
-          (short) 8);
-      ssCount = divide(scratchPad, (short) 0, (short) 8, (short) 16);
-      Util.arrayCopyNonAtomic(scratchPad, (short) 16, scratchPad, (short) 0,
-          (short) 8);
+    dayCount = (short) (dayCount - monthStartDays[month] + 1);
+    // Convert from March based month index to calendar month.
+    short monthCount = (short) (month + 3);
+    if (monthCount > 12) {
+      monthCount -= 12;
+      yrsCount++;
     }
 
     // Now convert to ascii string YYMMDDhhmmssZ or YYYYMMDDhhmmssZ
@@ -295,10 +165,34 @@ public class KMUtils {
     return q;
   }
 
+  // Divides the 8 byte number at offset in place by a divisor less than 2048 and
+  // returns the remainder. Works a nibble at a time so the cost does not depend on the value.
+  public static short divideBySmall(byte[] buf, short offset, short divisor) {
+    short rem = 0;
+    short index = 0;
+    short hi;
+    short lo;
+    while (index < 8) {
+      rem = (short) ((short) (rem << 4) | ((buf[(short) (offset + index)] >> 4) & 0x0F));
+      hi = (short) (rem / divisor);
+      rem = (short) (rem - (short) (hi * divisor));
+      rem = (short) ((short) (rem << 4) | (buf[(short) (offset + index)] & 0x0F));
+      lo = (short) (rem / divisor);
+      rem = (short) (rem - (short) (lo * divisor));
+      buf[(short) (offset + index)] = (byte) ((hi << 4) | lo);
+      index++;
+    }
+    return rem;
+  }
+
   public static void copy(byte[] buf, short from, short to) {
     Util.arrayCopyNonAtomic(buf, from, buf, to, (short) 8);
   }
 
+  public static void copy(byte[] src, byte[] buf, short to) {
+    Util.arrayCopyNonAtomic(src, (short) 0, buf, to, (short) 8);
+  }
+
   public static byte compare(byte[] buf, short lhs, short rhs) {
     return KMInteger.unsignedByteArrayCompare(buf, lhs, buf, rhs, (short) 8);
   }
@@ -388,25 +282,4 @@ public class KMUtils {
     return divide(scratchPad, (short) 0, (short) 8, (short) 16);
   }
 
-  public static boolean isLeapYear(short year) {
-    if ((short) (year % 4) == (short) 0) {
-      if (((short) (year % 100) == (short) 0) &&
-          ((short) (year % 400)) != (short) 0) {
-        return false;
-      }
-      return true;
-    }
-    return false;
-  }
-
-  public static short getLeapYrIndex(boolean from2020, short yrsCount) {
-    short newBaseYr = (short) (from2020 ? (year2020 + yrsCount) : (year2051 + yrsCount));
-    for (short i = 0; i < 4; i++) {
-      if (isLeapYear((short) (newBaseYr + i))) {
-        return i;
-      }
-    }
-    return -1;
-  }
-
-}
\ No newline at end of file
+}
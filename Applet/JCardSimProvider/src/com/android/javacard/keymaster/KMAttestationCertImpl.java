@@ -17,37 +17,60 @@ package com.android.javacard.keymaster;
 
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
+import javacard.security.MessageDigest;
+import javacard.security.Signature;
 
 // The class encodes strongbox generated amd signed attestation certificate. This only encodes
 // required fields of the certificates. It is not meant to be generic X509 cert encoder.
 // Whatever fields that are fixed are added as byte arrays. The Extensions are encoded as per
 // the values.
-// The certificate is assembled with leafs first and then the sequences.
+// The certificate is sized first and then written forwards in a single pass.
 
 public class KMAttestationCertImpl implements KMAttestationCert {
 
   private static final byte MAX_PARAMS = 30;
-  // DER encoded object identifiers required by the cert.
-  // rsaEncryption - 1.2.840.113549.1.1.1
-  private static final byte[] rsaEncryption = {
-      0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01, 0x01
+  // Pre-encoded templates of the fixed portions of the certificate. The variable fields are
+  // written between them and only their lengths are computed while building the certificate.
+  // AlgorithmIdentifier SEQUENCE{rsaEncryption - 1.2.840.113549.1.1.1, NULL}
+  private static final byte[] rsaAlgorithmId = {
+      0x30, 0x0D, 0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01,
+      0x01, 0x05, 0x00
   };
-  // ecPublicKey -  1.2.840.10045.2.1
-  private static final byte[] eccPubKey = {
-      0x06, 0x07, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x02, 0x01
+  // AlgorithmIdentifier SEQUENCE{ecPublicKey - 1.2.840.10045.2.1,
+  // prime256v1 curve - 1.2.840.10045.3.1.7}
+  private static final byte[] ecAlgorithmId = {
+      0x30, 0x13, 0x06, 0x07, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x02, 0x01, 0x06, 0x08,
+      0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x03, 0x01, 0x07
   };
-  // prime256v1 curve - 1.2.840.10045.3.1.7
-  private static final byte[] prime256v1 = {
-      0x06, 0x08, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x03, 0x01, 0x07
+  // Key Usage Extn - SEQUENCE{2.5.29.15, OCTET STRING{BIT STRING{unused bits, key usage}}}
+  private static final byte[] keyUsageExtn = {
+      0x30, 0x0B, 0x06, 0x03, 0x55, 0x1D, 0x0F, 0x04, 0x04, 0x03, 0x02, 0x00, 0x00
   };
-  // Key Usage Extn - 2.5.29.15
-  private static final byte[] keyUsageExtn = {0x06, 0x03, 0x55, 0x1D, 0x0F};
+  private static final short KEY_USAGE_UNUSED_BITS_OFFSET = 11;
+  private static final short KEY_USAGE_OFFSET = 12;
   // Android Extn - 1.3.6.1.4.1.11129.2.1.17
   private static final byte[] androidExtn = {
       0x06, 0x0A, 0X2B, 0X06, 0X01, 0X04, 0X01, (byte) 0XD6, 0X79, 0X02, 0X01, 0X11
   };
+  // attestationVersion, attestationSecurityLevel, keymasterVersion and keymasterSecurityLevel
+  // fields of the key description.
+  private static final byte[] keyDescriptionVersions = {
+      0x02, 0x01, 0x04, 0x0A, 0x01, KMType.STRONGBOX, 0x02, 0x01, 0x29, 0x0A, 0x01,
+      KMType.STRONGBOX
+  };
+  // RSA public exponent 65537 as INTEGER.
+  private static final byte[] rsaPubExponent = {0x02, 0x03, 0x01, 0x00, 0x01};
 
   private static final short ECDSA_MAX_SIG_LEN = 72;
+  // SEQUENCE tag, 0x82 and 2 bytes of length.
+  private static final short CERT_HEADER_LEN = 4;
+  // Maximum number of constructed elements in the certificate.
+  private static final short MAX_ELEMENTS = 96;
+  private static final byte INTEGER_TAG = 0x02;
+  private static final byte BIT_STRING_TAG = 0x03;
+  private static final byte OCTET_STRING_TAG = 0x04;
+  private static final byte SEQUENCE_TAG = 0x30;
+  private static final byte SET_TAG = 0x31;
   //Signature algorithm identifier - always ecdsaWithSha256 - 1.2.840.10045.4.3.2
   //SEQUENCE of alg OBJ ID and parameters = NULL.
   private static final byte[] X509SignAlgIdentifier = {
@@ -74,23 +97,62 @@ public class KMAttestationCertImpl implements KMAttestationCert {
       0x79
   };
 
+  // Version [0] INTEGER 2, serial number INTEGER 1 and the signature algorithm identifier.
+  private static final byte[] tbsHeader = {
+      (byte) 0xA0, 0x03, 0x02, 0x01, 0x02, 0x02, 0x01, 0x01, 0x30, 0x0A, 0x06, 0x08, 0x2A,
+      (byte) 0x86, 0x48, (byte) 0xCE, (byte) 0x3D, 0x04, 0x03, 0x02
+  };
+
+  // Below are the allowed softwareEnforced Authorization tags inside the attestation
+  // certificate's extension, in the order they are encoded.
+  private static final short[] swTagIds = {
+      KMType.UNLOCKED_DEVICE_REQUIRED, KMType.ACTIVE_DATETIME,
+      KMType.ORIGINATION_EXPIRE_DATETIME, KMType.USAGE_EXPIRE_DATETIME,
+      KMType.CREATION_DATETIME, KMType.ATTESTATION_APPLICATION_ID};
+  // Below are the allowed hardwareEnforced Authorization tags inside the attestation
+  // certificate's extension, in the order they are encoded.
+  private static final short[] hwTagIds = {
+      KMType.PURPOSE, KMType.ALGORITHM, KMType.KEYSIZE, KMType.BLOCK_MODE, KMType.DIGEST,
+      KMType.PADDING, KMType.CALLER_NONCE, KMType.MIN_MAC_LENGTH, KMType.ECCURVE,
+      KMType.RSA_PUBLIC_EXPONENT, KMType.USER_SECURE_ID, KMType.NO_AUTH_REQUIRED,
+      KMType.USER_AUTH_TYPE, KMType.AUTH_TIMEOUT, KMType.ORIGIN, KMType.ROOT_OF_TRUST,
+      KMType.OS_VERSION, KMType.OS_PATCH_LEVEL, KMType.ATTESTATION_ID_BRAND,
+      KMType.ATTESTATION_ID_DEVICE, KMType.ATTESTATION_ID_PRODUCT,
+      KMType.ATTESTATION_ID_SERIAL, KMType.ATTESTATION_ID_IMEI, KMType.ATTESTATION_ID_MEID,
+      KMType.ATTESTATION_ID_MANUFACTURER, KMType.ATTESTATION_ID_MODEL,
+      KMType.VENDOR_PATCH_LEVEL, KMType.BOOT_PATCH_LEVEL};
+
+  // Unique id cache - each entry holds the start of the temporal count period of the creation
+  // time, the reset since id rotation flag + 1 (0 for an empty entry), the digest of the
+  // application id and the unique id. The last byte of the cache is the next entry to replace.
+  private static final short UNIQUE_ID_CACHE_ENTRIES = 2;
+  private static final short UNIQUE_ID_SIZE = 32;
+  private static final short CACHE_PERIOD_START = 0;
+  private static final short CACHE_RESET_FLAG = 8;
+  private static final short CACHE_APP_ID_DIGEST = 9;
+  private static final short CACHE_UNIQUE_ID = 41;
+  private static final short CACHE_ENTRY_SIZE = 73;
+  private static final short CACHE_NEXT_ENTRY = UNIQUE_ID_CACHE_ENTRIES * CACHE_ENTRY_SIZE;
+  // Transient memory of the unique id cache and the hw and sw parameters.
+  public static final short TRANSIENT_SIZE = CACHE_NEXT_ENTRY + 1 + MAX_PARAMS * 2 * 2;
+
   private static final byte keyUsageSign = (byte) 0x80; // 0 bit
   private static final byte keyUsageKeyEncipher = (byte) 0x20; // 2nd- bit
   private static final byte keyUsageDataEncipher = (byte) 0x10; // 3rd- bit
 
-  private static final byte KEYMASTER_VERSION = 41;
-  private static final byte ATTESTATION_VERSION = 4;
-  private static final byte[] pubExponent = {0x01, 0x00, 0x01};
-  private static final byte SERIAL_NUM = (byte) 0x01;
-  private static final byte X509_VERSION = (byte) 0x02;
-
   private static short certStart;
-  private static short signatureOffset;
-  private static short tbsOffset;
-  private static short tbsLength;
-
-  private static short stackPtr;
-  private static byte[] stack;
+  private static short certLength;
+  private static short signedOffset;
+  // Lengths of the constructed elements recorded by the sizing pass - byte blob.
+  private static short lengths;
+  private static short lengthIndex;
+  private static boolean sizing;
+  private static Signature signer;
+  private static MessageDigest digest;
+  private static byte[] uniqueIdCache;
+
+  private static short writePtr;
+  private static byte[] certBuf;
   private static short start;
   private static short length;
   //  private static KMRepository repo;
@@ -127,13 +189,24 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   }
 
   private static void init() {
-    stack = null;
-    stackPtr = 0;
+    certBuf = null;
+    writePtr = 0;
     certStart = 0;
-    signatureOffset = 0;
+    certLength = 0;
+    signedOffset = 0;
     start = 0;
     length = 0;
-    tbsLength = 0;
+    lengths = 0;
+    lengthIndex = 0;
+    sizing = false;
+    if (signer == null) {
+      signer = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+    }
+    if (uniqueIdCache == null) {
+      uniqueIdCache = JCSystem.makeTransientByteArray((short) (CACHE_NEXT_ENTRY + 1),
+          JCSystem.CLEAR_ON_RESET);
+      digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+    }
     if (swParams == null) {
       swParams = JCSystem.makeTransientShortArray((short) MAX_PARAMS, JCSystem.CLEAR_ON_RESET);
     }
@@ -273,76 +346,71 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     }
   }
 
-  private static void pushTbsCert(boolean rsaCert) {
-    short last = stackPtr;
-    pushExtensions();
-    // subject public key info
-    if (rsaCert) {
-      pushRsaSubjectKeyInfo();
-    } else {
-      pushEccSubjectKeyInfo();
-    }
-    // subject
-    pushBytes(X509Subject, (short) 0, (short) X509Subject.length);
-    pushValidity();
+  // TBSCertificate ::= SEQUENCE {version, serialNumber, signature, issuer, validity, subject,
+  // subjectPublicKeyInfo, extensions}
+  private static void writeTbsCert(boolean rsaCert) {
+    short index = beginElement(SEQUENCE_TAG);
+    // Version, serial number and algorithm Id
+    writeBytes(tbsHeader, (short) 0, (short) tbsHeader.length);
     // issuer - der encoded
-    pushBytes(
+    writeBytes(
         KMByteBlob.cast(issuer).getBuffer(),
         KMByteBlob.cast(issuer).getStartOff(),
         KMByteBlob.cast(issuer).length());
-    // Algorithm Id
-    pushAlgorithmId(X509SignAlgIdentifier);
-    // Serial Number
-    pushByte(SERIAL_NUM);
-    pushIntegerHeader((short) 1);
-    // Version
-    pushByte(X509_VERSION);
-    pushIntegerHeader((short) 1);
-    pushByte((byte) 0x03);
-    pushByte((byte) 0xA0);
-    // Finally sequence header.
-    pushSequenceHeader((short) (last - stackPtr));
-  }
-
-  private static void pushExtensions() {
-    short last = stackPtr;
-    if (keyUsage != 0) {
-      pushKeyUsage(keyUsage, unusedBits);
+    writeValidity();
+    // subject
+    writeBytes(X509Subject, (short) 0, (short) X509Subject.length);
+    updateSignature();
+    // subject public key info
+    if (rsaCert) {
+      writeRsaSubjectKeyInfo();
+    } else {
+      writeEccSubjectKeyInfo();
     }
-    pushKeyDescription();
-    pushSequenceHeader((short) (last - stackPtr));
+    updateSignature();
+    writeExtensions();
+    endElement(index);
+    updateSignature();
+  }
+
+  private static void writeExtensions() {
     // Extensions have explicit tag of [3]
-    pushLength((short) (last - stackPtr));
-    pushByte((byte) 0xA3);
+    short extnIndex = beginElement((byte) 0xA3);
+    short index = beginElement(SEQUENCE_TAG);
+    writeKeyDescription();
+    if (keyUsage != 0) {
+      writeKeyUsage(keyUsage, unusedBits);
+    }
+    endElement(index);
+    endElement(extnIndex);
   }
 
   // Time SEQUENCE{UTCTime, UTC or Generalized Time)
-  private static void pushValidity() {
-    short last = stackPtr;
-    if (notAfter != 0) {
-      pushBytes(
-          KMByteBlob.cast(notAfter).getBuffer(),
-          KMByteBlob.cast(notAfter).getStartOff(),
-          KMByteBlob.cast(notAfter).length());
-    } else {
+  private static void writeValidity() {
+    if (notAfter == 0) {
       KMException.throwIt(KMError.INVALID_DATA);
     }
-    pushTimeHeader(KMByteBlob.cast(notAfter).length());
-    pushBytes(
+    short index = beginElement(SEQUENCE_TAG);
+    writeTimeHeader(KMByteBlob.cast(notBefore).length());
+    writeBytes(
         KMByteBlob.cast(notBefore).getBuffer(),
         KMByteBlob.cast(notBefore).getStartOff(),
         KMByteBlob.cast(notBefore).length());
-    pushTimeHeader(KMByteBlob.cast(notBefore).length());
-    pushSequenceHeader((short) (last - stackPtr));
+    writeTimeHeader(KMByteBlob.cast(notAfter).length());
+    writeBytes(
+        KMByteBlob.cast(notAfter).getBuffer(),
+        KMByteBlob.cast(notAfter).getStartOff(),
+        KMByteBlob.cast(notAfter).length());
+    endElement(index);
   }
 
-  private static void pushTimeHeader(short len) {
+  private static void writeTimeHeader(short len) {
     if (len == 13) { // UTC Time
-      pushLength((short) 0x0D);
-      pushByte((byte) 0x17);
+      writeByte((byte) 0x17);
+      writeLength((short) 0x0D);
     } else if (len == 15) { // Generalized Time
-      pushLength((short) 0x0F);
-      pushByte((byte) 0x18);
+      writeByte((byte) 0x18);
+      writeLength((short) 0x0F);
     } else {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
@@ -351,52 +419,36 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   // SEQUENCE{SEQUENCE{algId, NULL}, bitString{SEQUENCE{ modulus as positive integer, public
   // exponent
   // as positive integer}
-  private static void pushRsaSubjectKeyInfo() {
-    short last = stackPtr;
-    pushBytes(pubExponent, (short) 0, (short) pubExponent.length);
-    pushIntegerHeader((short) pubExponent.length);
-    pushBytes(
+  private static void writeRsaSubjectKeyInfo() {
+    short index = beginElement(SEQUENCE_TAG);
+    writeBytes(rsaAlgorithmId, (short) 0, (short) rsaAlgorithmId.length);
+    short bitStringIndex = beginElement(BIT_STRING_TAG);
+    writeByte((byte) 0x00); // unused bits
+    short keyIndex = beginElement(SEQUENCE_TAG);
+    // encode modulus as positive if the MSB is 1.
+    writeInteger(
         KMByteBlob.cast(pubKey).getBuffer(),
         KMByteBlob.cast(pubKey).getStartOff(),
-        KMByteBlob.cast(pubKey).length());
-
-    // encode modulus as positive if the MSB is 1.
-    if (KMByteBlob.cast(pubKey).get((short) 0) < 0) {
-      pushByte((byte) 0x00);
-      pushIntegerHeader((short) (KMByteBlob.cast(pubKey).length() + 1));
-    } else {
-      pushIntegerHeader(KMByteBlob.cast(pubKey).length());
-    }
-    pushSequenceHeader((short) (last - stackPtr));
-    pushBitStringHeader((byte) 0x00, (short) (last - stackPtr));
-    pushRsaEncryption();
-    pushSequenceHeader((short) (last - stackPtr));
+        KMByteBlob.cast(pubKey).length(),
+        false);
+    writeBytes(rsaPubExponent, (short) 0, (short) rsaPubExponent.length);
+    endElement(keyIndex);
+    endElement(bitStringIndex);
+    endElement(index);
   }
 
   // SEQUENCE{SEQUENCE{ecPubKey, prime256v1}, bitString{pubKey}}
-  private static void pushEccSubjectKeyInfo() {
-    short last = stackPtr;
-    pushBytes(
+  private static void writeEccSubjectKeyInfo() {
+    short index = beginElement(SEQUENCE_TAG);
+    writeBytes(ecAlgorithmId, (short) 0, (short) ecAlgorithmId.length);
+    writeByte(BIT_STRING_TAG);
+    writeLength((short) (KMByteBlob.cast(pubKey).length() + 1));
+    writeByte((byte) 0x00); // unused bits
+    writeBytes(
         KMByteBlob.cast(pubKey).getBuffer(),
         KMByteBlob.cast(pubKey).getStartOff(),
         KMByteBlob.cast(pubKey).length());
-    pushBitStringHeader((byte) 0x00, KMByteBlob.cast(pubKey).length());
-    pushEcDsa();
-    pushSequenceHeader((short) (last - stackPtr));
-  }
-
-  private static void pushEcDsa() {
-    short last = stackPtr;
-    pushBytes(prime256v1, (short) 0, (short) prime256v1.length);
-    pushBytes(eccPubKey, (short) 0, (short) eccPubKey.length);
-    pushSequenceHeader((short) (last - stackPtr));
-  }
-
-  private static void pushRsaEncryption() {
-    short last = stackPtr;
-    pushNullHeader();
-    pushBytes(rsaEncryption, (short) 0, (short) rsaEncryption.length);
-    pushSequenceHeader((short) (last - stackPtr));
+    endElement(index);
   }
 
   // KeyDescription ::= SEQUENCE {
@@ -409,82 +461,58 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   //         softwareEnforced           AuthorizationList, # See below
   //         hardwareEnforced           AuthorizationList, # See below
   //     }
-  private static void pushKeyDescription() {
-    short last = stackPtr;
-    pushHWParams();
-    pushSWParams();
+  private static void writeKeyDescription() {
+    short index = beginElement(SEQUENCE_TAG);
+    writeBytes(androidExtn, (short) 0, (short) androidExtn.length);
+    short octetStringIndex = beginElement(OCTET_STRING_TAG);
+    short descIndex = beginElement(SEQUENCE_TAG);
+    writeBytes(keyDescriptionVersions, (short) 0, (short) keyDescriptionVersions.length);
+    writeOctetString(
+        KMByteBlob.cast(attChallenge).getBuffer(),
+        KMByteBlob.cast(attChallenge).getStartOff(),
+        KMByteBlob.cast(attChallenge).length());
     if (uniqueId != 0) {
-      pushOctetString(
+      writeOctetString(
           KMByteBlob.cast(uniqueId).getBuffer(),
           KMByteBlob.cast(uniqueId).getStartOff(),
           KMByteBlob.cast(uniqueId).length());
     } else {
-      pushOctetStringHeader((short) 0);
+      writeOctetString(null, (short) 0, (short) 0);
     }
-    pushOctetString(
-        KMByteBlob.cast(attChallenge).getBuffer(),
-        KMByteBlob.cast(attChallenge).getStartOff(),
-        KMByteBlob.cast(attChallenge).length());
-    pushEnumerated(KMType.STRONGBOX);
-    pushByte(KEYMASTER_VERSION);
-    pushIntegerHeader((short) 1);
-    pushEnumerated(KMType.STRONGBOX);
-    pushByte(ATTESTATION_VERSION);
-    pushIntegerHeader((short) 1);
-    pushSequenceHeader((short) (last - stackPtr));
-    pushOctetStringHeader((short) (last - stackPtr));
-    pushBytes(androidExtn, (short) 0, (short) androidExtn.length);
-    pushSequenceHeader((short) (last - stackPtr));
-  }
-
-  private static void pushSWParams() {
-    short last = stackPtr;
-    // Below are the allowed softwareEnforced Authorization tags inside the attestation certificate's extension.
-    short[] tagIds = {
-        KMType.ATTESTATION_APPLICATION_ID, KMType.CREATION_DATETIME,
-        KMType.USAGE_EXPIRE_DATETIME, KMType.ORIGINATION_EXPIRE_DATETIME,
-        KMType.ACTIVE_DATETIME, KMType.UNLOCKED_DEVICE_REQUIRED};
-    byte index = 0;
+    writeSWParams();
+    writeHWParams();
+    endElement(descIndex);
+    endElement(octetStringIndex);
+    endElement(index);
+  }
+
+  private static void writeSWParams() {
+    short index = beginElement(SEQUENCE_TAG);
+    short tagIndex = 0;
     do {
-      pushParams(swParams, swParamsIndex, tagIds[index]);
-    } while (++index < tagIds.length);
-    pushSequenceHeader((short) (last - stackPtr));
-  }
-
-  private static void pushHWParams() {
-    short last = stackPtr;
-    // Below are the allowed hardwareEnforced Authorization tags inside the attestation certificate's extension.
-    short[] tagIds = {
-        KMType.BOOT_PATCH_LEVEL, KMType.VENDOR_PATCH_LEVEL,
-        KMType.ATTESTATION_ID_MODEL, KMType.ATTESTATION_ID_MANUFACTURER,
-        KMType.ATTESTATION_ID_MEID, KMType.ATTESTATION_ID_IMEI,
-        KMType.ATTESTATION_ID_SERIAL, KMType.ATTESTATION_ID_PRODUCT,
-        KMType.ATTESTATION_ID_DEVICE, KMType.ATTESTATION_ID_BRAND,
-        KMType.OS_PATCH_LEVEL, KMType.OS_VERSION, KMType.ROOT_OF_TRUST,
-        KMType.ORIGIN, KMType.AUTH_TIMEOUT, KMType.USER_AUTH_TYPE,
-        KMType.NO_AUTH_REQUIRED, KMType.USER_SECURE_ID,
-        KMType.RSA_PUBLIC_EXPONENT, KMType.ECCURVE, KMType.MIN_MAC_LENGTH,
-        KMType.CALLER_NONCE, KMType.PADDING, KMType.DIGEST, KMType.BLOCK_MODE,
-        KMType.KEYSIZE, KMType.ALGORITHM, KMType.PURPOSE};
+      writeParams(swParams, swParamsIndex, swTagIds[tagIndex]);
+    } while (++tagIndex < swTagIds.length);
+    endElement(index);
+  }
 
-    byte index = 0;
+  private static void writeHWParams() {
+    short index = beginElement(SEQUENCE_TAG);
+    short tagIndex = 0;
     do {
-      if (tagIds[index] == KMType.ROOT_OF_TRUST) {
-        pushRoT();
+      if (hwTagIds[tagIndex] == KMType.ROOT_OF_TRUST) {
+        writeRoT();
         continue;
       }
-      if (pushParams(hwParams, hwParamsIndex, tagIds[index])) {
-        continue;
-      }
-    } while (++index < tagIds.length);
-    pushSequenceHeader((short) (last - stackPtr));
+      writeParams(hwParams, hwParamsIndex, hwTagIds[tagIndex]);
+    } while (++tagIndex < hwTagIds.length);
+    endElement(index);
   }
 
-  private static boolean pushParams(short[] params, short len, short tagId) {
+  private static boolean writeParams(short[] params, short len, short tagId) {
     short index = 0;
     while (index < len) {
       if (tagId == KMTag.getKey(params[index])) {
-        pushTag(params[index]);
+        writeTag(params[index]);
         return true;
       }
       index++;
@@ -492,14 +520,14 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     return false;
   }
 
-  private static void pushTag(short tag) {
+  private static void writeTag(short tag) {
     short type = KMTag.getTagType(tag);
     short tagId = KMTag.getKey(tag);
     short val;
     switch (type) {
       case KMType.BYTES_TAG:
         val = KMByteTag.cast(tag).getValue();
-        pushBytesTag(
+        writeBytesTag(
             tagId,
             KMByteBlob.cast(val).getBuffer(),
             KMByteBlob.cast(val).getStartOff(),
@@ -507,11 +535,11 @@ public class KMAttestationCertImpl implements KMAttestationCert {
         break;
       case KMType.ENUM_TAG:
         val = KMEnumTag.cast(tag).getValue();
-        pushEnumTag(tagId, (byte) val);
+        writeEnumTag(tagId, (byte) val);
         break;
       case KMType.ENUM_ARRAY_TAG:
         val = KMEnumArrayTag.cast(tag).getValues();
-        pushEnumArrayTag(
+        writeEnumArrayTag(
             tagId,
             KMByteBlob.cast(val).getBuffer(),
             KMByteBlob.cast(val).getStartOff(),
@@ -521,7 +549,7 @@ public class KMAttestationCertImpl implements KMAttestationCert {
       case KMType.ULONG_TAG:
       case KMType.DATE_TAG:
         val = KMIntegerTag.cast(tag).getValue();
-        pushIntegerTag(
+        writeIntegerTag(
             tagId,
             KMInteger.cast(val).getBuffer(),
             KMInteger.cast(val).getStartOff(),
@@ -532,11 +560,10 @@ public class KMAttestationCertImpl implements KMAttestationCert {
         // According to keymaster hal only one user secure id is used but this conflicts with
         //  tag type which is ULONG-REP. Currently this is encoded as SET OF INTEGERS
         val = KMIntegerArrayTag.cast(tag).getValues();
-        pushIntegerArrayTag(tagId, val);
+        writeIntegerArrayTag(tagId, val);
         break;
       case KMType.BOOL_TAG:
-        val = KMBoolTag.cast(tag).getVal();
-        pushBoolTag(tagId);
+        writeBoolTag(tagId);
         break;
       default:
         KMException.throwIt(KMError.INVALID_TAG);
@@ -556,243 +583,271 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   //          Unverified                 (2),
   //          Failed                     (3),
   //      }
-  private static void pushRoT() {
-    short last = stackPtr;
-    // verified boot hash
-    pushOctetString(
-        KMByteBlob.cast(verifiedHash).getBuffer(),
-        KMByteBlob.cast(verifiedHash).getStartOff(),
-        KMByteBlob.cast(verifiedHash).length());
-
-    pushEnumerated(verifiedState);
-
-    pushBoolean(deviceLocked);
+  private static void writeRoT() {
+    writeTagId(KMType.ROOT_OF_TRUST);
+    short tagIndex = beginContent();
+    short index = beginElement(SEQUENCE_TAG);
     // verified boot Key
-    pushOctetString(
+    writeOctetString(
         KMByteBlob.cast(verifiedBootKey).getBuffer(),
         KMByteBlob.cast(verifiedBootKey).getStartOff(),
         KMByteBlob.cast(verifiedBootKey).length());
-
-    // Finally sequence header
-    pushSequenceHeader((short) (last - stackPtr));
-    // ... and tag Id
-    pushTagIdHeader(KMType.ROOT_OF_TRUST, (short) (last - stackPtr));
+    writeBoolean(deviceLocked);
+    writeEnumerated(verifiedState);
+    // verified boot hash
+    writeOctetString(
+        KMByteBlob.cast(verifiedHash).getBuffer(),
+        KMByteBlob.cast(verifiedHash).getStartOff(),
+        KMByteBlob.cast(verifiedHash).length());
+    endElement(index);
+    endElement(tagIndex);
   }
 
-  private static void pushOctetString(byte[] buf, short start, short len) {
-    pushBytes(buf, start, len);
-    pushOctetStringHeader(len);
+  private static void writeOctetString(byte[] buf, short start, short len) {
+    writeByte(OCTET_STRING_TAG);
+    writeLength(len);
+    writeBytes(buf, start, len);
   }
 
-  private static void pushBoolean(byte val) {
-    pushByte(val);
-    pushBooleanHeader((short) 1);
+  private static void writeBoolean(byte val) {
+    writeByte((byte) 0x01);
+    writeLength((short) 1);
+    writeByte(val);
   }
 
-  private static void pushBooleanHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x01);
+  private static void writeEnumerated(byte val) {
+    writeByte((byte) 0x0A);
+    writeLength((short) 1);
+    writeByte(val);
   }
 
   // Only SET of INTEGERS supported are padding, digest, purpose and blockmode
   // All of these are enum array tags i.e. byte long values
-  private static void pushEnumArrayTag(short tagId, byte[] buf, short start, short len) {
-    short last = stackPtr;
-    short index = 0;
-    while (index < len) {
-      pushByte(buf[(short) (start + index)]);
-      pushIntegerHeader((short) 1);
-      index++;
+  private static void writeEnumArrayTag(short tagId, byte[] buf, short start, short len) {
+    writeTagId(tagId);
+    short tagIndex = beginContent();
+    short index = beginElement(SET_TAG);
+    // The values are encoded from the last to the first.
+    while (len > 0) {
+      len--;
+      writeByte(INTEGER_TAG);
+      writeLength((short) 1);
+      writeByte(buf[(short) (start + len)]);
     }
-    pushSetHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+    endElement(index);
+    endElement(tagIndex);
   }
 
   // Only SET of INTEGERS supported are padding, digest, purpose and blockmode
   // All of these are enum array tags i.e. byte long values
-  private static void pushIntegerArrayTag(short tagId, short arr) {
-    short last = stackPtr;
-    short index = 0;
+  private static void writeIntegerArrayTag(short tagId, short arr) {
+    writeTagId(tagId);
+    short tagIndex = beginContent();
+    short index = beginElement(SET_TAG);
+    // The values are encoded from the last to the first.
     short len = KMArray.cast(arr).length();
     short ptr;
-    while (index < len) {
-      ptr = KMArray.cast(arr).get(index);
-      pushInteger(
+    while (len > 0) {
+      len--;
+      ptr = KMArray.cast(arr).get(len);
+      writeInteger(
           KMInteger.cast(ptr).getBuffer(),
           KMInteger.cast(ptr).getStartOff(),
-          KMInteger.cast(ptr).length());
-      index++;
+          KMInteger.cast(ptr).length(),
+          true);
     }
-    pushSetHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
-  }
-
-  private static void pushSetHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x31);
-  }
-
-  private static void pushEnumerated(byte val) {
-    short last = stackPtr;
-    pushByte(val);
-    pushEnumeratedHeader((short) (last - stackPtr));
-  }
-
-  private static void pushEnumeratedHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x0A);
-  }
-
-  private static void pushBoolTag(short tagId) {
-    short last = stackPtr;
-    pushNullHeader();
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+    endElement(index);
+    endElement(tagIndex);
   }
 
-  private static void pushNullHeader() {
-    pushByte((byte) 0);
-    pushByte((byte) 0x05);
+  private static void writeBoolTag(short tagId) {
+    writeTagId(tagId);
+    writeLength((short) 2);
+    // NULL
+    writeByte((byte) 0x05);
+    writeByte((byte) 0);
   }
 
-  private static void pushEnumTag(short tagId, byte val) {
-    short last = stackPtr;
-    pushByte(val);
-    pushIntegerHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+  private static void writeEnumTag(short tagId, byte val) {
+    writeTagId(tagId);
+    writeLength((short) 3);
+    writeByte(INTEGER_TAG);
+    writeLength((short) 1);
+    writeByte(val);
   }
 
-  private static void pushIntegerTag(short tagId, byte[] buf, short start, short len) {
-    short last = stackPtr;
-    pushInteger(buf, start, len);
-    //    pushIntegerHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+  private static void writeIntegerTag(short tagId, byte[] buf, short start, short len) {
+    writeTagId(tagId);
+    short tagIndex = beginContent();
+    writeInteger(buf, start, len, true);
+    endElement(tagIndex);
   }
 
-  // Ignore leading zeros. Only Unsigned Integers are required hence if MSB is set then add 0x00
-  // as most significant byte.
-  private static void pushInteger(byte[] buf, short start, short len) {
-    short last = stackPtr;
-    byte index = 0;
-    while (index < (byte) len) {
-      if (buf[(short) (start + index)] != 0) {
-        break;
+  // Only Unsigned Integers are required hence if MSB is set then add 0x00 as most significant
+  // byte. Leading zeros are ignored if stripZeros is true.
+  private static void writeInteger(byte[] buf, short start, short len, boolean stripZeros) {
+    short index = 0;
+    if (stripZeros) {
+      while (index < len) {
+        if (buf[(short) (start + index)] != 0) {
+          break;
+        }
+        index++;
       }
-      index++;
     }
-    if (index == (byte) len) {
-      pushByte((byte) 0x00);
+    writeByte(INTEGER_TAG);
+    if (index == len) {
+      writeLength((short) 1);
+      writeByte((byte) 0x00);
+      return;
+    }
+    start += index;
+    len -= index;
+    if (buf[start] < 0) { // MSB is 1
+      writeLength((short) (len + 1));
+      writeByte((byte) 0x00); // always unsigned int
     } else {
-      pushBytes(buf, (short) (start + index), (short) (len - index));
-      if (buf[(short) (start + index)] < 0) { // MSB is 1
-        pushByte((byte) 0x00); // always unsigned int
-      }
+      writeLength(len);
     }
-    pushIntegerHeader((short) (last - stackPtr));
+    writeBytes(buf, start, len);
   }
 
   // Bytes Tag is a octet string and tag id is added explicitly
-  private static void pushBytesTag(short tagId, byte[] buf, short start, short len) {
-    short last = stackPtr;
-    pushBytes(buf, start, len);
-    pushOctetStringHeader((short) (last - stackPtr));
-    pushTagIdHeader(tagId, (short) (last - stackPtr));
+  private static void writeBytesTag(short tagId, byte[] buf, short start, short len) {
+    writeTagId(tagId);
+    short tagIndex = beginContent();
+    writeOctetString(buf, start, len);
+    endElement(tagIndex);
   }
 
   // tag id <= 30 ---> 0xA0 | {tagId}
   // 30 < tagId < 128 ---> 0xBF 0x{tagId}
   // tagId >= 128 ---> 0xBF 0x80+(tagId/128) 0x{tagId - (128*(tagId/128))}
-  private static void pushTagIdHeader(short tagId, short len) {
-    pushLength(len);
+  private static void writeTagId(short tagId) {
     short count = (short) (tagId / 128);
     if (count > 0) {
-      pushByte((byte) (tagId - (128 * count)));
-      pushByte((byte) (0x80 + count));
-      pushByte((byte) 0xBF);
+      writeByte((byte) 0xBF);
+      writeByte((byte) (0x80 + count));
+      writeByte((byte) (tagId - (128 * count)));
     } else if (tagId > 30) {
-      pushByte((byte) tagId);
-      pushByte((byte) 0xBF);
+      writeByte((byte) 0xBF);
+      writeByte((byte) tagId);
     } else {
-      pushByte((byte) (0xA0 | (byte) tagId));
+      writeByte((byte) (0xA0 | (byte) tagId));
     }
   }
 
   // SEQUENCE {ObjId, OCTET STRING{BIT STRING{keyUsage}}}
-  private static void pushKeyUsage(byte keyUsage, byte unusedBits) {
-    short last = stackPtr;
-    pushByte(keyUsage);
-    pushBitStringHeader(unusedBits, (short) (last - stackPtr));
-    pushOctetStringHeader((short) (last - stackPtr));
-    pushBytes(keyUsageExtn, (short) 0, (short) keyUsageExtn.length);
-    pushSequenceHeader((short) (last - stackPtr));
+  private static void writeKeyUsage(byte keyUsage, byte unusedBits) {
+    short offset = writePtr;
+    writeBytes(keyUsageExtn, (short) 0, (short) keyUsageExtn.length);
+    if (!sizing) {
+      // Patch the variable fields into the template.
+      certBuf[(short) (offset + KEY_USAGE_UNUSED_BITS_OFFSET)] = unusedBits;
+      certBuf[(short) (offset + KEY_USAGE_OFFSET)] = keyUsage;
+    }
   }
 
-  private static void pushAlgorithmId(byte[] algId) {
-    pushBytes(algId, (short) 0, (short) algId.length);
+  // Starts a constructed element with the given identifier and returns its index.
+  private static short beginElement(byte tag) {
+    writeByte(tag);
+    return beginContent();
   }
 
-  private static void pushIntegerHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x02);
+  // Starts the content of a constructed element whose identifier is already written. The sizing
+  // pass remembers where the content starts and the write pass writes the length recorded for
+  // the element by the sizing pass. The elements are numbered in the order they are started,
+  // which is the same in both the passes.
+  private static short beginContent() {
+    short index = lengthIndex;
+    if (index >= MAX_ELEMENTS) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    lengthIndex++;
+    if (sizing) {
+      setElementLength(index, writePtr);
+    } else {
+      writeLength(getElementLength(index));
+    }
+    return index;
   }
 
-  private static void pushOctetStringHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x04);
+  // Ends a constructed element. The sizing pass records the length of its content and accounts
+  // for the length field.
+  private static void endElement(short index) {
+    if (sizing) {
+      short len = (short) (writePtr - getElementLength(index));
+      setElementLength(index, len);
+      writeLength(len);
+    }
   }
 
-  private static void pushSequenceHeader(short len) {
-    pushLength(len);
-    pushByte((byte) 0x30);
+  private static short getElementLength(short index) {
+    return Util.getShort(KMByteBlob.cast(lengths).getBuffer(),
+        (short) (KMByteBlob.cast(lengths).getStartOff() + (short) (index * 2)));
   }
 
-  private static void pushBitStringHeader(byte unusedBits, short len) {
-    pushByte(unusedBits);
-    pushLength((short) (len + 1)); // 1 extra byte for unused bits byte
-    pushByte((byte) 0x03);
+  private static void setElementLength(short index, short len) {
+    Util.setShort(KMByteBlob.cast(lengths).getBuffer(),
+        (short) (KMByteBlob.cast(lengths).getStartOff() + (short) (index * 2)), len);
   }
 
-  private static void pushLength(short len) {
+  private static void writeLength(short len) {
     if (len < 128) {
-      pushByte((byte) len);
+      writeByte((byte) len);
     } else if (len < 256) {
-      pushByte((byte) len);
-      pushByte((byte) 0x81);
+      writeByte((byte) 0x81);
+      writeByte((byte) len);
     } else {
-      pushShort(len);
-      pushByte((byte) 0x82);
+      writeByte((byte) 0x82);
+      writeShort(len);
     }
   }
 
-  private static void pushShort(short val) {
-    decrementStackPtr((short) 2);
-    Util.setShort(stack, stackPtr, val);
+  // The sizing pass only counts the bytes.
+  private static void writeShort(short val) {
+    if (!sizing) {
+      reserve((short) 2);
+      Util.setShort(certBuf, writePtr, val);
+    }
+    writePtr += 2;
   }
 
-  private static void pushByte(byte val) {
-    decrementStackPtr((short) 1);
-    stack[stackPtr] = val;
+  private static void writeByte(byte val) {
+    if (!sizing) {
+      reserve((short) 1);
+      certBuf[writePtr] = val;
+    }
+    writePtr++;
   }
 
-  private static void pushBytes(byte[] buf, short start, short len) {
-    decrementStackPtr(len);
-    if (buf != null) {
-      Util.arrayCopyNonAtomic(buf, start, stack, stackPtr, len);
+  private static void writeBytes(byte[] buf, short start, short len) {
+    if (!sizing && buf != null) {
+      reserve(len);
+      Util.arrayCopyNonAtomic(buf, start, certBuf, writePtr, len);
     }
+    writePtr += len;
   }
 
-  private static void decrementStackPtr(short cnt) {
-    stackPtr = (short) (stackPtr - cnt);
-    if (start > stackPtr) {
+  private static void reserve(short cnt) {
+    if ((short) (writePtr + cnt) > (short) (start + length)) {
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
   }
 
+  // Feeds the bytes written since the last update into the signature.
+  private static void updateSignature() {
+    if (!sizing) {
+      signer.update(certBuf, signedOffset, (short) (writePtr - signedOffset));
+      signedOffset = writePtr;
+    }
+  }
+
   @Override
   public KMAttestationCert buffer(byte[] buf, short bufStart, short maxLen) {
-    stack = buf;
+    certBuf = buf;
     start = bufStart;
     length = maxLen;
-    stackPtr = (short) (start + length);
     return this;
   }
 
@@ -803,45 +858,56 @@ public class KMAttestationCertImpl implements KMAttestationCert {
 
   @Override
   public short getCertEnd() {
-    return (short) (start + length - 1);
+    return (short) (certStart + certLength - 1);
   }
 
   @Override
   public short getCertLength() {
-    return (short) (getCertEnd() - getCertStart() + 1);
+    return certLength;
   }
 
+  // The certificate is encoded in two passes. The sizing pass computes the lengths of all the
+  // constructed elements without writing anything. The write pass then encodes the certificate
+  // forwards and feeds the TBS certificate into the signature as it gets written, so it is
+  // signed without another pass over it.
   @Override
   public void build() {
-    short last = stackPtr;
-    decrementStackPtr((short) ECDSA_MAX_SIG_LEN);
-    signatureOffset = stackPtr;
-    pushBitStringHeader((byte) 0, (short) (last - stackPtr));
-    pushAlgorithmId(X509SignAlgIdentifier);
-    tbsLength = stackPtr;
-    pushTbsCert(rsaCert);
-    tbsOffset = stackPtr;
-    tbsLength = (short) (tbsLength - tbsOffset);
-    pushSequenceHeader((short) (last - stackPtr));
-    certStart = stackPtr;
-    KMJCardSimulator provider = KMJCardSimulator.getInstance();
-    short sigLen = provider
-        .ecSign256(
-            provider.getAttestationKey(),
-            stack,
-            tbsOffset,
-            tbsLength,
-            stack,
-            signatureOffset);
-    if (sigLen != ECDSA_MAX_SIG_LEN) {
-      // Update the lengths appropriately.
-      stackPtr = (short) (signatureOffset - 1);
-      pushLength((short) (sigLen + 1));
-      stackPtr = tbsOffset;
-      last -= (short) (ECDSA_MAX_SIG_LEN - sigLen);
-      pushLength((short) (last - stackPtr));
-      length -= (short) (ECDSA_MAX_SIG_LEN - sigLen);
+    lengths = KMByteBlob.instance((short) (MAX_ELEMENTS * 2));
+    sizing = true;
+    lengthIndex = 0;
+    writePtr = 0;
+    writeTbsCert(rsaCert);
+    // Certificate SEQUENCE{TBS, algorithm Id, BIT STRING{unused bits, signature}}
+    short maxLen = (short) (CERT_HEADER_LEN + writePtr + X509SignAlgIdentifier.length + 3
+        + ECDSA_MAX_SIG_LEN);
+    if (maxLen > length) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
+    // The certificate is placed at the end of the buffer, which leaves space in front of it
+    // for the response header.
+    sizing = false;
+    lengthIndex = 0;
+    certStart = (short) (start + length - maxLen);
+    writePtr = certStart;
+    // The certificate is always longer than 255 bytes, so its length takes 2 bytes. It is
+    // updated once the length of the signature is known.
+    writeByte(SEQUENCE_TAG);
+    writeByte((byte) 0x82);
+    writeShort((short) 0);
+    signedOffset = writePtr;
+    signer.init(((KMECPrivateKey) KMJCardSimulator.getInstance().getAttestationKey()).getPrivateKey(),
+        Signature.MODE_SIGN);
+    writeTbsCert(rsaCert);
+    writeBytes(X509SignAlgIdentifier, (short) 0, (short) X509SignAlgIdentifier.length);
+    writeByte(BIT_STRING_TAG);
+    short sigLenOffset = writePtr;
+    writeByte((byte) 0);
+    writeByte((byte) 0); // unused bits
+    short sigLen = signer.sign(certBuf, writePtr, (short) 0, certBuf, writePtr);
+    certBuf[sigLenOffset] = (byte) (sigLen + 1);
+    writePtr += sigLen;
+    certLength = (short) (writePtr - certStart);
+    Util.setShort(certBuf, (short) (certStart + 2), (short) (certLength - CERT_HEADER_LEN));
   }
 
   @Override
@@ -849,10 +915,35 @@ public class KMAttestationCertImpl implements KMAttestationCert {
       byte[] creationTime, short timeOffset, short creationTimeLen,
       byte[] attestAppId, short appIdOff, short attestAppIdLen,
       byte resetSinceIdRotation, KMMasterKey masterKey) {
+    // The unique id only changes with the temporal count period of the creation time, the
+    // application id and the reset flag, so it is looked up in the cache first.
+    short appIdDigest = KMByteBlob.instance(MessageDigest.LENGTH_SHA_256);
+    digest.doFinal(attestAppId, appIdOff, attestAppIdLen,
+        KMByteBlob.cast(appIdDigest).getBuffer(), KMByteBlob.cast(appIdDigest).getStartOff());
+    Util.arrayFillNonAtomic(scratchPad, scratchPadOff, (short) 24, (byte) 0);
+    Util.arrayCopyNonAtomic(creationTime, timeOffset, scratchPad,
+        (short) (scratchPadOff + 8 - creationTimeLen), creationTimeLen);
+    short entry = findUniqueId(scratchPad, scratchPadOff, appIdDigest, resetSinceIdRotation);
+    if (entry >= 0) {
+      return uniqueId(KMByteBlob.instance(uniqueIdCache, (short) (entry + CACHE_UNIQUE_ID),
+          UNIQUE_ID_SIZE));
+    }
     // Concatenate T||C||R
     // temporal count T
     short temp = KMUtils.countTemporalCount(creationTime, timeOffset,
         creationTimeLen, scratchPad, scratchPadOff);
+    // The remainder is left in place of the creation time - start of the period is the
+    // creation time minus the remainder.
+    entry = (short) (uniqueIdCache[CACHE_NEXT_ENTRY] * CACHE_ENTRY_SIZE);
+    uniqueIdCache[(short) (entry + CACHE_RESET_FLAG)] = 0;
+    Util.arrayCopyNonAtomic(creationTime, timeOffset, scratchPad,
+        (short) (scratchPadOff + 16 - creationTimeLen), creationTimeLen);
+    Util.arrayFillNonAtomic(scratchPad, (short) (scratchPadOff + 8),
+        (short) (8 - creationTimeLen), (byte) 0);
+    KMUtils.subtract(scratchPad, (short) (scratchPadOff + 8), scratchPadOff,
+        (short) (scratchPadOff + 16));
+    Util.arrayCopyNonAtomic(scratchPad, (short) (scratchPadOff + 16), uniqueIdCache,
+        (short) (entry + CACHE_PERIOD_START), (short) 8);
     Util.setShort(scratchPad, (short) scratchPadOff, temp);
     temp = scratchPadOff;
     scratchPadOff += 2;
@@ -882,9 +973,47 @@ public class KMAttestationCertImpl implements KMAttestationCert {
         scratchPadOff, /* data length */
         KMByteBlob.cast(timeOffset).getBuffer(), /* signature buffer */
         KMByteBlob.cast(timeOffset).getStartOff()); /* signature start */
-    if (appIdOff != 32) {
+    if (appIdOff != UNIQUE_ID_SIZE) {
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
+    // Add the unique id to the cache.
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(appIdDigest).getBuffer(),
+        KMByteBlob.cast(appIdDigest).getStartOff(), uniqueIdCache,
+        (short) (entry + CACHE_APP_ID_DIGEST), MessageDigest.LENGTH_SHA_256);
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(timeOffset).getBuffer(),
+        KMByteBlob.cast(timeOffset).getStartOff(), uniqueIdCache,
+        (short) (entry + CACHE_UNIQUE_ID), UNIQUE_ID_SIZE);
+    uniqueIdCache[(short) (entry + CACHE_RESET_FLAG)] = (byte) (resetSinceIdRotation + 1);
+    uniqueIdCache[CACHE_NEXT_ENTRY] =
+        (byte) ((short) (uniqueIdCache[CACHE_NEXT_ENTRY] + 1) % UNIQUE_ID_CACHE_ENTRIES);
     return uniqueId(timeOffset);
   }
+
+  // Returns the offset of the cache entry which matches the creation time, stored as 8 byte
+  // number at the offset, the digest of the application id and the reset flag or -1.
+  // Uses 24 bytes of the scratch pad from the offset.
+  private static short findUniqueId(byte[] scratchPad, short offset, short appIdDigest,
+      byte resetSinceIdRotation) {
+    short entry = 0;
+    while (entry < CACHE_NEXT_ENTRY) {
+      if (uniqueIdCache[(short) (entry + CACHE_RESET_FLAG)] == (byte) (resetSinceIdRotation + 1)
+          && Util.arrayCompare(uniqueIdCache, (short) (entry + CACHE_APP_ID_DIGEST),
+          KMByteBlob.cast(appIdDigest).getBuffer(), KMByteBlob.cast(appIdDigest).getStartOff(),
+          MessageDigest.LENGTH_SHA_256) == 0) {
+        // The creation time must be within the period i.e. 0 <= time - start < one month.
+        Util.arrayCopyNonAtomic(uniqueIdCache, (short) (entry + CACHE_PERIOD_START), scratchPad,
+            (short) (offset + 8), (short) 8);
+        if (KMUtils.compare(scratchPad, offset, (short) (offset + 8)) >= 0) {
+          KMUtils.subtract(scratchPad, offset, (short) (offset + 8), (short) (offset + 16));
+          Util.arrayCopyNonAtomic(KMUtils.oneMonthMsec, (short) 0, scratchPad,
+              (short) (offset + 8), (short) 8);
+          if (KMUtils.compare(scratchPad, (short) (offset + 16), (short) (offset + 8)) < 0) {
+            return entry;
+          }
+        }
+      }
+      entry += CACHE_ENTRY_SIZE;
+    }
+    return -1;
+  }
 }
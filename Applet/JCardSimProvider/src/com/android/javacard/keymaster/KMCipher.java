@@ -42,4 +42,7 @@ public abstract class KMCipher {
   public abstract short getCipherProvider();
 
   public abstract short getAesGcmOutputSize(short len, short macLength);
+
+  // Returns the underlying provider cipher for reuse. The instance must not be used afterwards.
+  public abstract void release();
 }
@@ -32,6 +32,8 @@ public class KMCipherImpl extends KMCipher {
   private short padding;
   private short mode;
   private short blockMode;
+  // Holds the last, padded block of a PKCS7 encryption.
+  private byte[] padBlock;
 
   KMCipherImpl(Cipher c) {
     cipher = c;
@@ -86,51 +88,24 @@ public class KMCipherImpl extends KMCipher {
     } else {
       if ((cipherAlg == KMType.DES || cipherAlg == KMType.AES) && padding == KMType.PKCS7
           && mode == KMType.ENCRYPT) {
-        byte blkSize = 16;
-        byte paddingBytes;
-        short len = length;
-        if (cipherAlg == KMType.DES) {
-          blkSize = 8;
-        }
-        // padding bytes
-        if (len % blkSize == 0) {
-          paddingBytes = blkSize;
-        } else {
-          paddingBytes = (byte) (blkSize - (len % blkSize));
-        }
-        // final len with padding
-        len = (short) (len + paddingBytes);
-        // intermediate buffer to copy input data+padding
-        byte[] tmp = new byte[len];
-        // fill in the padding
-        Util.arrayFillNonAtomic(tmp, (short) 0, len, paddingBytes);
-        // copy the input data
-        Util.arrayCopyNonAtomic(buffer, startOff, tmp, (short) 0, length);
-        buffer = tmp;
-        length = len;
-        startOff = 0;
+        return pkcs7EncryptFinal(buffer, startOff, length, scratchPad, i);
       }
       short len = cipher.doFinal(buffer, startOff, length, scratchPad, i);
       // JCard Sim removes leading zeros during decryption in case of no padding - so add that back.
       if (cipherAlg == KMType.RSA && padding == KMType.PADDING_NONE && mode == KMType.DECRYPT
           && len < 256) {
-        byte[] tempBuf = new byte[256];
-        Util.arrayFillNonAtomic(tempBuf, (short) 0, (short) 256, (byte) 0);
-        Util.arrayCopyNonAtomic(scratchPad, (short) 0, tempBuf, (short) (i + 256 - len), len);
-        Util.arrayCopyNonAtomic(tempBuf, (short) 0, scratchPad, i, (short) 256);
+        // Shift the output right in place and zero fill the front.
+        Util.arrayCopyNonAtomic(scratchPad, i, scratchPad, (short) (i + 256 - len), len);
+        Util.arrayFillNonAtomic(scratchPad, i, (short) (256 - len), (byte) 0);
         len = 256;
       } else if ((cipherAlg == KMType.AES || cipherAlg == KMType.DES) // PKCS7
           && padding == KMType.PKCS7
           && mode == KMType.DECRYPT) {
-        byte blkSize = 16;
-        if (cipherAlg == KMType.DES) {
-          blkSize = 8;
-        }
         if (len > 0) {
           //verify if padding is corrupted.
           byte paddingByte = scratchPad[i + len - 1];
           //padding byte always should be <= block size
-          if ((short) paddingByte > blkSize ||
+          if ((short) paddingByte > getBlockSize() ||
               (short) paddingByte <= 0) {
             KMException.throwIt(KMError.INVALID_ARGUMENT);
           }
@@ -148,6 +123,32 @@ public class KMCipherImpl extends KMCipher {
     return KMType.INVALID_VALUE;
   }
 
+  private byte getBlockSize() {
+    return (cipherAlg == KMType.DES) ? (byte) 8 : (byte) 16;
+  }
+
+  // Encrypts the block aligned part of the input with update and finishes with a single padded
+  // block, so that the input is never copied.
+  private short pkcs7EncryptFinal(byte[] buffer, short startOff, short length, byte[] out,
+      short outOff) {
+    byte blkSize = getBlockSize();
+    short remaining = (short) (length % blkSize);
+    short aligned = (short) (length - remaining);
+    if (padBlock == null) {
+      padBlock = new byte[16];
+    }
+    // Take the tail before update, which may write over the input.
+    Util.arrayFillNonAtomic(padBlock, (short) 0, blkSize, (byte) (blkSize - remaining));
+    Util.arrayCopyNonAtomic(buffer, (short) (startOff + aligned), padBlock, (short) 0, remaining);
+    short len = 0;
+    if (aligned > 0) {
+      len = cipher.update(buffer, startOff, aligned, out, outOff);
+    }
+    len += cipher.doFinal(padBlock, (short) 0, blkSize, out, (short) (outOff + len));
+    Util.arrayFillNonAtomic(padBlock, (short) 0, blkSize, (byte) 0);
+    return len;
+  }
+
   @Override
   public short getCipherAlgorithm() {
     return cipherAlg;
@@ -223,6 +224,14 @@ public class KMCipherImpl extends KMCipher {
     return KMCipher.SUN_JCE;
   }
 
+  @Override
+  public void release() {
+    if (sunCipher != null) {
+      KMJCardSimulator.releaseJceCipher(sunCipher);
+      sunCipher = null;
+    }
+  }
+
   @Override
   public short getAesGcmOutputSize(short len, short macLength) {
     if (sunCipher != null) {
@@ -17,7 +17,7 @@ package com.android.javacard.keymaster;
 
 import javacard.security.HMACKey;
 
-public class KMHmacKey implements KMPreSharedKey {
+public class KMHmacKey implements KMPreSharedKey, KMComputedHmacKey {
 
   private HMACKey hmacKey;
 
@@ -29,6 +29,10 @@ public class KMHmacKey implements KMPreSharedKey {
     hmacKey.setKey(keyData, kOff, length);
   }
 
+  public HMACKey getKey() {
+    return hmacKey;
+  }
+
   public byte getKey(byte[] keyData, short kOff) {
     return hmacKey.getKey(keyData, kOff);
   }
@@ -19,6 +19,8 @@ public class KMJCardSimApplet extends KMKeymasterApplet {
 
   KMJCardSimApplet() {
     super(new KMJCardSimulator());
+    // The simulator is used to size the heap, so profile it.
+    KMRepository.instance().enableHeapProfile();
   }
 
   /**
@@ -29,6 +31,8 @@ public class KMJCardSimApplet extends KMKeymasterApplet {
    * @param bLength the length in bytes of the parameter data in bArray
    */
   public static void install(byte[] bArray, short bOffset, byte bLength) {
+    KMConfiguration.init(bArray, bOffset, bLength);
+    KMConfiguration.validateAvailableMemory(KMJCardSimulator.TRANSIENT_SIZE, false);
     new KMJCardSimApplet().register();
   }
 
@@ -22,10 +22,14 @@ import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
@@ -40,6 +44,8 @@ import javacard.security.HMACKey;
 import javacard.security.Key;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
+import javacard.security.PrivateKey;
+import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
 import javacard.security.RandomData;
@@ -72,8 +78,29 @@ public class KMJCardSimulator implements KMSEProvider {
   public static final short MAX_RND_NUM_SIZE = 64;
   public static final short ENTROPY_POOL_SIZE = 16; // simulator does not support 256 bit aes keys
   public static final byte[] aesICV = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-  private static final short CERT_CHAIN_MAX_SIZE = 2500;//First 2 bytes for length.
   private static final short RSA_KEY_SIZE = 256;
+  // Random numbers are served from a reservoir of AES-CTR keystream, which is refilled with one
+  // cipher operation. The entropy pool is reseeded after RNG_RESEED_BUDGET bytes of output.
+  private static final short RNG_RESERVOIR_SIZE = 256;
+  private static final short RNG_RESEED_BUDGET = 4096;
+  private static final byte RNG_RESERVOIR_AVAILABLE = 0;
+  private static final byte RNG_OUTPUT_BUDGET = 1;
+  private static final short RNG_COUNTER_SIZE = 8;
+  private static final short RNG_STATE_SIZE = 2;
+  // Transient memory of the random number buffers and the attestation buffers. The JCE objects
+  // of the operations are not allocated on the card.
+  public static final short TRANSIENT_SIZE = MAX_RND_NUM_SIZE + ENTROPY_POOL_SIZE
+      + RNG_COUNTER_SIZE + RNG_RESERVOIR_SIZE + RNG_STATE_SIZE * 2
+      + KMAttestationCertImpl.TRANSIENT_SIZE;
+  // JCE lookups are slow, so each thread keeps free lists of JCE ciphers, one per transformation.
+  // One-shot calls return their cipher right away. Operations return theirs when they end.
+  private static final String AES_GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final String AES_CTR_TRANSFORMATION = "AES/CTR/NoPadding";
+  private static final String RSA_OAEP_TRANSFORMATION = "RSA/ECB/OAEPPadding";
+  private static final ThreadLocal<HashMap<String, ArrayDeque<javax.crypto.Cipher>>> jceCiphers =
+      ThreadLocal.withInitial(HashMap::new);
+  // Per thread scratch buffer for the JCE one-shot calls.
+  private static final ThreadLocal<byte[]> jceBuffer = new ThreadLocal<>();
 
 
   public static boolean jcardSim = false;
@@ -85,10 +112,13 @@ public class KMJCardSimulator implements KMSEProvider {
   private static Cipher aesRngCipher;
   private static byte[] entropyPool;
   private static byte[] rndNum;
+  private static byte[] rngReservoir;
+  private static short[] rngState;
   private byte[] certificateChain;
   private KMAESKey masterKey;
   private KMECPrivateKey attestationKey;
   private KMHmacKey preSharedKey;
+  private KMHmacKey computedHmacKey;
 
   private static KMJCardSimulator jCardSimulator = null;
 
@@ -101,26 +131,32 @@ public class KMJCardSimulator implements KMSEProvider {
     // Various Keys
     kdf = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
     hmacSignature = Signature.getInstance(Signature.ALG_HMAC_SHA_256, false);
+    // Computed hmac key in transient memory, reloaded from the repository after reset.
+    computedHmacKey = new KMHmacKey((HMACKey) KeyBuilder.buildKey(
+        KeyBuilder.TYPE_HMAC_TRANSIENT_RESET,
+        (short) (KMRepository.COMPUTED_HMAC_KEY_SIZE * 8), false));
     // RNG
     rndNum = JCSystem.makeTransientByteArray(MAX_RND_NUM_SIZE, JCSystem.CLEAR_ON_RESET);
     entropyPool = JCSystem.makeTransientByteArray(ENTROPY_POOL_SIZE, JCSystem.CLEAR_ON_RESET);
-    rngCounter = JCSystem.makeTransientByteArray((short) 8, JCSystem.CLEAR_ON_RESET);
+    rngCounter = JCSystem.makeTransientByteArray(RNG_COUNTER_SIZE, JCSystem.CLEAR_ON_RESET);
+    rngReservoir = JCSystem.makeTransientByteArray(RNG_RESERVOIR_SIZE, JCSystem.CLEAR_ON_RESET);
+    rngState = JCSystem.makeTransientShortArray(RNG_STATE_SIZE, JCSystem.CLEAR_ON_RESET);
     initEntropyPool(entropyPool);
     try {
-      aesRngCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+      aesRngCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
     } catch (CryptoException exp) {
       ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
     }
     aesRngKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
     // various ciphers
-    //Allocate buffer for certificate chain.
-    certificateChain = new byte[CERT_CHAIN_MAX_SIZE];
+    //Allocate buffer for certificate chain. First 2 bytes for length.
+    certificateChain = new byte[KMConfiguration.getCertChainMaxSize()];
     jCardSimulator = this;
   }
 
 
   public KeyPair createRsaKeyPair() {
-    KeyPair rsaKeyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
+    KeyPair rsaKeyPair = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
     rsaKeyPair.genKeyPair();
     return rsaKeyPair;
   }
@@ -136,6 +172,38 @@ public class KMJCardSimulator implements KMSEProvider {
 
   }
 
+  public RSAPrivateCrtKey createRsaCrtKey(byte[] crtBuffer, short crtOff) {
+    RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) KeyBuilder
+        .buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
+    short len = KMKeymasterApplet.RSA_CRT_COMPONENT_SIZE;
+    privKey.setP(crtBuffer, crtOff, len);
+    privKey.setQ(crtBuffer, (short) (crtOff + len), len);
+    privKey.setDP1(crtBuffer, (short) (crtOff + (short) (2 * len)), len);
+    privKey.setDQ1(crtBuffer, (short) (crtOff + (short) (3 * len)), len);
+    privKey.setPQ(crtBuffer, (short) (crtOff + (short) (4 * len)), len);
+    return privKey;
+  }
+
+  // The RSA secret is either the CRT components or the private exponent, depending on the
+  // version of the key blob.
+  public PrivateKey createRsaPrivateKey(byte[] secret, short secretStart, short secretLength,
+      boolean crtKey, byte[] modBuffer, short modOff, short modLength) {
+    if (crtKey) {
+      return createRsaCrtKey(secret, secretStart);
+    }
+    return createRsaKey(modBuffer, modOff, modLength, secret, secretStart, secretLength);
+  }
+
+  // Copies the component right aligned into the field of the given length.
+  private void copyRsaComponent(byte[] component, short len, byte[] buf, short start,
+      short fieldLength) {
+    if (len > fieldLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    Util.arrayFillNonAtomic(buf, start, fieldLength, (byte) 0);
+    Util.arrayCopyNonAtomic(component, (short) 0, buf, (short) (start + fieldLength - len), len);
+  }
+
 
   public KeyPair createECKeyPair() {
     KeyPair ecKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
@@ -220,29 +288,28 @@ public class KMJCardSimulator implements KMSEProvider {
       byte[] pubModBuf, short pubModStart, short pubModLength, short[] lengths) {
     switch (alg) {
       case KMType.RSA:
-        if (RSA_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
+        if (KMKeymasterApplet.RSA_CRT_SECRET_SIZE != privKeyLength
+            || RSA_KEY_SIZE != pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
         KeyPair rsaKey = createRsaKeyPair();
-        RSAPrivateKey privKey = (RSAPrivateKey) rsaKey.getPrivate();
-        //Copy exponent.
-        byte[] exp = new byte[RSA_KEY_SIZE];
-        lengths[0] = privKey.getExponent(exp, (short) 0);
-        if (lengths[0] > privKeyLength) {
-          CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-        }
-        Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, privKeyLength, (byte) 0);
-        Util.arrayCopyNonAtomic(exp, (short) 0,
-            privKeyBuf, (short) (privKeyStart + privKeyLength - lengths[0]), lengths[0]);
+        RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) rsaKey.getPrivate();
+        //Copy CRT components.
+        byte[] tmp = new byte[RSA_KEY_SIZE];
+        short len = KMKeymasterApplet.RSA_CRT_COMPONENT_SIZE;
+        copyRsaComponent(tmp, privKey.getP(tmp, (short) 0), privKeyBuf, privKeyStart, len);
+        copyRsaComponent(tmp, privKey.getQ(tmp, (short) 0), privKeyBuf,
+            (short) (privKeyStart + len), len);
+        copyRsaComponent(tmp, privKey.getDP1(tmp, (short) 0), privKeyBuf,
+            (short) (privKeyStart + (short) (2 * len)), len);
+        copyRsaComponent(tmp, privKey.getDQ1(tmp, (short) 0), privKeyBuf,
+            (short) (privKeyStart + (short) (3 * len)), len);
+        copyRsaComponent(tmp, privKey.getPQ(tmp, (short) 0), privKeyBuf,
+            (short) (privKeyStart + (short) (4 * len)), len);
+        lengths[0] = privKeyLength;
         //Copy modulus
-        byte[] mod = new byte[RSA_KEY_SIZE];
-        lengths[1] = privKey.getModulus(mod, (short) 0);
-        if (lengths[1] > pubModLength) {
-          CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-        }
-        Util.arrayFillNonAtomic(pubModBuf, pubModStart, pubModLength, (byte) 0);
-        Util.arrayCopyNonAtomic(mod, (short) 0,
-            pubModBuf, (short) (pubModStart + pubModLength - lengths[1]), lengths[1]);
+        lengths[1] = ((RSAPublicKey) rsaKey.getPublic()).getModulus(tmp, (short) 0);
+        copyRsaComponent(tmp, lengths[1], pubModBuf, pubModStart, pubModLength);
         break;
       case KMType.EC:
         KeyPair ecKey = createECKeyPair();
@@ -298,6 +365,37 @@ public class KMJCardSimulator implements KMSEProvider {
     return true;
   }
 
+  @Override
+  public boolean importRsaCrtKey(byte[] crtBuf, short crtStart, byte[] privExpBuf,
+      short privExpStart, short privExpLength, byte[] modBuf, short modStart, short modLength,
+      byte[] scratchPad, short scratchPadStart) {
+    BigInteger[] comps = new BigInteger[5];
+    short len = KMKeymasterApplet.RSA_CRT_COMPONENT_SIZE;
+    for (short i = 0; i < comps.length; i++) {
+      comps[i] = toBigInteger(crtBuf, (short) (crtStart + i * len), len);
+    }
+    BigInteger privExp = toBigInteger(privExpBuf, privExpStart, privExpLength);
+    BigInteger mod = toBigInteger(modBuf, modStart, modLength);
+    BigInteger p = comps[0];
+    BigInteger q = comps[1];
+    if (p.signum() == 0 || q.signum() == 0 || !p.multiply(q).equals(mod)) {
+      return false;
+    }
+    try {
+      return comps[2].equals(privExp.mod(p.subtract(BigInteger.ONE)))
+          && comps[3].equals(privExp.mod(q.subtract(BigInteger.ONE)))
+          && comps[4].equals(q.modInverse(p));
+    } catch (ArithmeticException e) {
+      return false;
+    }
+  }
+
+  private BigInteger toBigInteger(byte[] buf, short start, short len) {
+    byte[] num = new byte[len];
+    Util.arrayCopyNonAtomic(buf, start, num, (short) 0, len);
+    return new BigInteger(1, num);
+  }
+
 
   public HMACKey createHMACKey(byte[] secretBuffer, short secretOff, short secretLength) {
     HMACKey key = null;
@@ -331,45 +429,18 @@ public class KMJCardSimulator implements KMSEProvider {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
     java.security.Key aesKey = new SecretKeySpec(keyBuf, keyStart, keyLen, "AES");
-    // Create the cipher
-    javax.crypto.Cipher cipher = null;
-    try {
-      cipher = javax.crypto.Cipher.getInstance("AES/GCM/NoPadding", "SunJCE");
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-    } catch (NoSuchProviderException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
-    } catch (NoSuchPaddingException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    // Copy nonce
     if (nonceLen != AES_GCM_NONCE_LENGTH) {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
-    byte[] iv = new byte[AES_GCM_NONCE_LENGTH];
-    Util.arrayCopyNonAtomic(nonce, nonceStart, iv, (short) 0, AES_GCM_NONCE_LENGTH);
     // Init Cipher
     GCMParameterSpec spec = new GCMParameterSpec(AES_GCM_TAG_LENGTH * 8, nonce, nonceStart,
         AES_GCM_NONCE_LENGTH);
-    try {
-      cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, aesKey, spec);
-    } catch (InvalidKeyException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
-    } catch (InvalidAlgorithmParameterException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-    }
-    // Create auth data
-    byte[] aad = new byte[authDataLen];
-    Util.arrayCopyNonAtomic(authData, authDataStart, aad, (short) 0, authDataLen);
-    cipher.updateAAD(aad);
+    javax.crypto.Cipher cipher =
+        initJceCipher(AES_GCM_TRANSFORMATION, javax.crypto.Cipher.ENCRYPT_MODE, aesKey, spec);
+    cipher.updateAAD(authData, authDataStart, authDataLen);
     // Encrypt secret
     short len = 0;
-    byte[] outputBuf = new byte[cipher.getOutputSize(secretLen)];
+    byte[] outputBuf = getJceBuffer(cipher.getOutputSize(secretLen));
     try {
       len = (short) (cipher.doFinal(secret, secretStart, secretLen, outputBuf, (short) 0));
     } catch (ShortBufferException e) {
@@ -382,6 +453,7 @@ public class KMJCardSimulator implements KMSEProvider {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
+    releaseJceCipher(cipher);
     // Extract Tag appended at the end.
     Util.arrayCopyNonAtomic(outputBuf, (short) (len - AES_GCM_TAG_LENGTH), authTag, authTagStart,
         AES_GCM_TAG_LENGTH);
@@ -415,56 +487,26 @@ public class KMJCardSimulator implements KMSEProvider {
     }
     java.security.Key aesKey = new SecretKeySpec(keyBuf, keyStart, keyLen,
         "AES");
-    // Create the cipher
-    javax.crypto.Cipher cipher = null;
-    try {
-      cipher = javax.crypto.Cipher.getInstance("AES/GCM/NoPadding", "SunJCE");
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-    } catch (NoSuchProviderException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
-    } catch (NoSuchPaddingException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    // Copy nonce
     if (nonceLen != AES_GCM_NONCE_LENGTH) {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
-    byte[] iv = new byte[AES_GCM_NONCE_LENGTH];
-    Util.arrayCopyNonAtomic(nonce, nonceStart, iv, (short) 0,
-        AES_GCM_NONCE_LENGTH);
     // Init Cipher
     GCMParameterSpec spec = new GCMParameterSpec(authTagLen * 8, nonce,
         nonceStart, AES_GCM_NONCE_LENGTH);
-    try {
-      cipher.init(javax.crypto.Cipher.DECRYPT_MODE, aesKey, spec);
-    } catch (InvalidKeyException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
-    } catch (InvalidAlgorithmParameterException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-    }
-    // Create auth data
-    byte[] aad = new byte[authDataLen];
-    Util.arrayCopyNonAtomic(authData, authDataStart, aad, (short) 0,
-        authDataLen);
-    cipher.updateAAD(aad);
+    javax.crypto.Cipher cipher =
+        initJceCipher(AES_GCM_TRANSFORMATION, javax.crypto.Cipher.DECRYPT_MODE, aesKey, spec);
+    cipher.updateAAD(authData, authDataStart, authDataLen);
     // Append the auth tag at the end of data
-    byte[] inputBuf = new byte[(short) (encSecretLen + authTagLen)];
+    short inputLen = (short) (encSecretLen + authTagLen);
+    byte[] inputBuf = getJceBuffer(inputLen);
     Util.arrayCopyNonAtomic(encSecret, encSecretStart, inputBuf, (short) 0,
         encSecretLen);
     Util.arrayCopyNonAtomic(authTag, authTagStart, inputBuf, encSecretLen,
         authTagLen);
-    // Decrypt
-    short len = 0;
-    byte[] outputBuf = new byte[cipher.getOutputSize((short) inputBuf.length)];
+    // Decrypt. JCE only releases the plain text once the tag is verified, so it is written
+    // straight to the output.
     try {
-      len = (short) (cipher.doFinal(inputBuf, (short) 0,
-          (short) inputBuf.length, outputBuf, (short) 0));
+      cipher.doFinal(inputBuf, (short) 0, inputLen, secret, secretStart);
     } catch (AEADBadTagException e) {
       e.printStackTrace();
       return false;
@@ -478,11 +520,74 @@ public class KMJCardSimulator implements KMSEProvider {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
-    // Copy the decrypted data
-    Util.arrayCopyNonAtomic(outputBuf, (short) 0, secret, secretStart, len);
+    releaseJceCipher(cipher);
     return true;
   }
 
+  private static javax.crypto.Cipher newJceCipher(String transformation) {
+    javax.crypto.Cipher cipher = null;
+    try {
+      cipher = javax.crypto.Cipher.getInstance(transformation, "SunJCE");
+    } catch (NoSuchAlgorithmException e) {
+      e.printStackTrace();
+      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+    } catch (NoSuchProviderException e) {
+      e.printStackTrace();
+      CryptoException.throwIt(CryptoException.INVALID_INIT);
+    } catch (NoSuchPaddingException e) {
+      e.printStackTrace();
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    return cipher;
+  }
+
+  static javax.crypto.Cipher acquireJceCipher(String transformation) {
+    ArrayDeque<javax.crypto.Cipher> free = jceCiphers.get().get(transformation);
+    if (free != null && !free.isEmpty()) {
+      return free.pop();
+    }
+    return newJceCipher(transformation);
+  }
+
+  static void releaseJceCipher(javax.crypto.Cipher cipher) {
+    ArrayDeque<javax.crypto.Cipher> free =
+        jceCiphers.get().computeIfAbsent(cipher.getAlgorithm(), k -> new ArrayDeque<>());
+    if (free.size() < KMConfiguration.getMaxOps()) {
+      free.push(cipher);
+    }
+  }
+
+  // JCE refuses to initialize a GCM encryption with the key and nonce the cipher was last
+  // initialized with, so a pooled cipher is replaced by a new one in that case.
+  private static javax.crypto.Cipher initJceCipher(String transformation, int mode,
+      java.security.Key key, AlgorithmParameterSpec spec) {
+    javax.crypto.Cipher cipher = acquireJceCipher(transformation);
+    try {
+      try {
+        cipher.init(mode, key, spec);
+      } catch (InvalidAlgorithmParameterException e) {
+        cipher = newJceCipher(transformation);
+        cipher.init(mode, key, spec);
+      }
+    } catch (InvalidKeyException e) {
+      e.printStackTrace();
+      CryptoException.throwIt(CryptoException.INVALID_INIT);
+    } catch (InvalidAlgorithmParameterException e) {
+      e.printStackTrace();
+      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+    }
+    return cipher;
+  }
+
+  private static byte[] getJceBuffer(int size) {
+    byte[] buf = jceBuffer.get();
+    if (buf == null || buf.length < size) {
+      buf = new byte[size];
+      jceBuffer.set(buf);
+    }
+    return buf;
+  }
+
   @Override
   public void getTrueRandomNumber(byte[] buf, short start, short length) {
     Util.arrayCopy(entropyPool, (short) 0, buf, start, length);
@@ -563,6 +668,13 @@ public class KMJCardSimulator implements KMSEProvider {
     return hmacSign(key, data, dataStart, dataLength, mac, macStart);
   }
 
+  @Override
+  public boolean hmacVerify(KMComputedHmacKey key, byte[] data, short dataStart,
+      short dataLength, byte[] mac, short macStart, short macLength) {
+    return hmacVerify(((KMHmacKey) key).getKey(), data, dataStart, dataLength, mac, macStart,
+        macLength);
+  }
+
   @Override
   public boolean hmacVerify(byte[] keyBuf, short keyStart, short keyLength, byte[] data,
       short dataStart, short dataLength, byte[] mac, short macStart, short macLength) {
@@ -572,14 +684,18 @@ public class KMJCardSimulator implements KMSEProvider {
 
   @Override
   public short rsaDecipherOAEP256(byte[] secret, short secretStart, short secretLength,
-      byte[] modBuffer, short modOff, short modLength,
+      boolean crtKey, byte[] modBuffer, short modOff, short modLength,
       byte[] inputDataBuf, short inputDataStart, short inputDataLength,
       byte[] outputDataBuf, short outputDataStart) {
     KMCipher cipher = createRsaDecipher(
-        KMType.RSA_OAEP, KMType.SHA2_256, secret, secretStart, secretLength, modBuffer, modOff,
-        modLength);
-    return cipher.doFinal(
-        inputDataBuf, inputDataStart, inputDataLength, outputDataBuf, outputDataStart);
+        KMType.RSA_OAEP, KMType.SHA2_256, secret, secretStart, secretLength, crtKey, modBuffer,
+        modOff, modLength);
+    try {
+      return cipher.doFinal(
+          inputDataBuf, inputDataStart, inputDataLength, outputDataBuf, outputDataStart);
+    } finally {
+      cipher.release();
+    }
   }
 
   @Override
@@ -612,7 +728,7 @@ public class KMJCardSimulator implements KMSEProvider {
 
   @Override
   public KMOperation initAsymmetricOperation(byte purpose, byte alg, byte padding, byte digest,
-      byte[] privKeyBuf, short privKeyStart, short privKeyLength,
+      byte[] privKeyBuf, short privKeyStart, short privKeyLength, boolean crtKey,
       byte[] pubModBuf, short pubModStart, short pubModLength) {
     if (alg == KMType.RSA) {
       switch (purpose) {
@@ -624,6 +740,7 @@ public class KMJCardSimulator implements KMSEProvider {
                   privKeyBuf,
                   privKeyStart,
                   privKeyLength,
+                  crtKey,
                   pubModBuf,
                   pubModStart,
                   pubModLength);
@@ -631,8 +748,8 @@ public class KMJCardSimulator implements KMSEProvider {
         case KMType.DECRYPT:
           KMCipher decipher =
               createRsaDecipher(
-                  padding, digest, privKeyBuf, privKeyStart, privKeyLength, pubModBuf, pubModStart,
-                  pubModLength);
+                  padding, digest, privKeyBuf, privKeyStart, privKeyLength, crtKey, pubModBuf,
+                  pubModStart, pubModLength);
           return new KMOperationImpl(decipher);
         default:
           KMException.throwIt(KMError.UNSUPPORTED_PURPOSE);
@@ -652,17 +769,15 @@ public class KMJCardSimulator implements KMSEProvider {
   }
 
   public KMCipher createRsaDecipher(short padding, short digest, byte[] secret, short secretStart,
-      short secretLength, byte[] modBuffer, short modOff, short modLength) {
+      short secretLength, boolean crtKey, byte[] modBuffer, short modOff, short modLength) {
     byte cipherAlg = mapCipherAlg(KMType.RSA, (byte) padding, (byte) 0);
     if (cipherAlg == Cipher.ALG_RSA_PKCS1_OAEP) {
       return createRsaOAEP256Cipher(KMType.DECRYPT, (byte) digest, secret, secretStart,
-          secretLength, modBuffer, modOff, modLength);
+          secretLength, crtKey, modBuffer, modOff, modLength);
     }
     Cipher rsaCipher = Cipher.getInstance(cipherAlg, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder
-        .buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength, crtKey, modBuffer,
+        modOff, modLength);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     KMCipherImpl inst = new KMCipherImpl(rsaCipher);
     inst.setCipherAlgorithm(KMType.RSA);
@@ -672,7 +787,7 @@ public class KMJCardSimulator implements KMSEProvider {
   }
 
   private KMCipher createRsaOAEP256Cipher(byte mode, byte digest,
-      byte[] secret, short secretStart, short secretLen,
+      byte[] secret, short secretStart, short secretLen, boolean crtKey,
       byte[] modBuffer, short modOff, short modLength) {
     // Convert byte arrays into keys
     byte[] exp = null;
@@ -700,14 +815,19 @@ public class KMJCardSimulator implements KMSEProvider {
         oaepSpec = new OAEPParameterSpec("SHA1", "MGF1",
             MGF1ParameterSpec.SHA1, PSource.PSpecified.DEFAULT);
       }
-      rsaCipher = javax.crypto.Cipher.getInstance("RSA/ECB/OAEPPadding", "SunJCE");
+      rsaCipher = acquireJceCipher(RSA_OAEP_TRANSFORMATION);
       if (mode == KMType.ENCRYPT) {
         RSAPublicKeySpec pubSpec = new RSAPublicKeySpec(modInt, expInt);
         java.security.interfaces.RSAPublicKey pubKey = (java.security.interfaces.RSAPublicKey) kf
             .generatePublic(pubSpec);
         rsaCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, pubKey, oaepSpec);
       } else {
-        RSAPrivateKeySpec privSpec = new RSAPrivateKeySpec(modInt, expInt);
+        RSAPrivateKeySpec privSpec;
+        if (crtKey) {
+          privSpec = createRsaCrtKeySpec(modInt, exp);
+        } else {
+          privSpec = new RSAPrivateKeySpec(modInt, expInt);
+        }
         java.security.interfaces.RSAPrivateKey privKey = (java.security.interfaces.RSAPrivateKey) kf
             .generatePrivate(privSpec);
         rsaCipher.init(javax.crypto.Cipher.DECRYPT_MODE, privKey, oaepSpec);
@@ -724,12 +844,6 @@ public class KMJCardSimulator implements KMSEProvider {
     } catch (InvalidAlgorithmParameterException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    } catch (NoSuchPaddingException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    } catch (NoSuchProviderException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
     }
     KMCipherImpl ret = new KMCipherImpl(rsaCipher);
     ret.setCipherAlgorithm(KMType.RSA);
@@ -738,6 +852,22 @@ public class KMJCardSimulator implements KMSEProvider {
     return ret;
   }
 
+  // Builds the JCE key spec from the CRT components. JCE also needs the private exponent, which
+  // is derived from the primes.
+  private RSAPrivateCrtKeySpec createRsaCrtKeySpec(BigInteger modInt, byte[] crt) {
+    BigInteger[] comps = new BigInteger[5];
+    short len = KMKeymasterApplet.RSA_CRT_COMPONENT_SIZE;
+    for (short i = 0; i < comps.length; i++) {
+      byte[] comp = new byte[len];
+      Util.arrayCopyNonAtomic(crt, (short) (i * len), comp, (short) 0, len);
+      comps[i] = new BigInteger(1, comp);
+    }
+    BigInteger pubExp = BigInteger.valueOf(0x010001);
+    BigInteger phi = comps[0].subtract(BigInteger.ONE).multiply(comps[1].subtract(BigInteger.ONE));
+    return new RSAPrivateCrtKeySpec(modInt, pubExp, pubExp.modInverse(phi), comps[0], comps[1],
+        comps[2], comps[3], comps[4]);
+  }
+
   private String toHexString(byte[] num) {
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < num.length; i++) {
@@ -747,31 +877,27 @@ public class KMJCardSimulator implements KMSEProvider {
   }
 
   public Signature createRsaSigner(short digest, short padding, byte[] secret,
-      short secretStart, short secretLength, byte[] modBuffer,
+      short secretStart, short secretLength, boolean crtKey, byte[] modBuffer,
       short modOff, short modLength) {
     short alg = mapSignature256Alg(KMType.RSA, (byte) padding);
     if (padding == KMType.PADDING_NONE ||
         (padding == KMType.RSA_PKCS1_1_5_SIGN && digest == KMType.DIGEST_NONE)) {
-      return createNoDigestSigner(padding, secret, secretStart, secretLength,
+      return createNoDigestSigner(padding, secret, secretStart, secretLength, crtKey,
           modBuffer, modOff, modLength);
     }
     Signature rsaSigner = Signature.getInstance((byte) alg, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder
-        .buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength, crtKey, modBuffer,
+        modOff, modLength);
     rsaSigner.init(key, Signature.MODE_SIGN);
     return rsaSigner;
   }
 
   private Signature createNoDigestSigner(short padding,
-      byte[] secret, short secretStart, short secretLength,
+      byte[] secret, short secretStart, short secretLength, boolean crtKey,
       byte[] modBuffer, short modOff, short modLength) {
     Cipher rsaCipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE,
-        KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength, crtKey, modBuffer,
+        modOff, modLength);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     KMRsa2048NoDigestSignature inst = new KMRsa2048NoDigestSignature(rsaCipher, (byte) padding,
         modBuffer, modOff, modLength);
@@ -948,41 +1074,13 @@ public class KMJCardSimulator implements KMSEProvider {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
     //Create the sun jce compliant aes key
-    byte[] keyMaterial = new byte[secretLength];
-    Util.arrayCopyNonAtomic(secret, secretStart, keyMaterial, (short) 0, secretLength);
-    java.security.Key aesKey = new SecretKeySpec(keyMaterial, (short) 0, keyMaterial.length, "AES");
-    // Create the cipher
-    javax.crypto.Cipher cipher = null;
-    try {
-      cipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding", "SunJCE");
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-    } catch (NoSuchProviderException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
-    } catch (NoSuchPaddingException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    // Copy nonce
-    byte[] iv = new byte[ivLength];
-    Util.arrayCopyNonAtomic(ivBuffer, ivStart, iv, (short) 0, ivLength);
+    java.security.Key aesKey = new SecretKeySpec(secret, secretStart, secretLength, "AES");
     // Init Cipher
-    IvParameterSpec ivSpec = new IvParameterSpec(iv);
-    try {
-      if (mode == KMType.ENCRYPT) {
-        cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, aesKey, ivSpec);
-      } else {
-        cipher.init(javax.crypto.Cipher.DECRYPT_MODE, aesKey, ivSpec);
-      }
-    } catch (InvalidKeyException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
-    } catch (InvalidAlgorithmParameterException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-    }
+    IvParameterSpec ivSpec = new IvParameterSpec(ivBuffer, ivStart, ivLength);
+    javax.crypto.Cipher cipher = initJceCipher(AES_CTR_TRANSFORMATION,
+        (mode == KMType.ENCRYPT)
+            ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE,
+        aesKey, ivSpec);
     KMCipherImpl ret = new KMCipherImpl(cipher);
     ret.setCipherAlgorithm(KMType.AES);
     ret.setMode(mode);
@@ -1020,42 +1118,15 @@ public class KMJCardSimulator implements KMSEProvider {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
     //Create the sun jce compliant aes key
-    byte[] keyMaterial = new byte[secretLength];
-    Util.arrayCopyNonAtomic(secret, secretStart, keyMaterial, (short) 0, secretLength);
-    java.security.Key aesKey = new SecretKeySpec(keyMaterial, (short) 0, keyMaterial.length, "AES");
-    // Create the cipher
-    javax.crypto.Cipher cipher = null;
-    try {
-      cipher = javax.crypto.Cipher.getInstance("AES/GCM/NoPadding", "SunJCE");
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-    } catch (NoSuchProviderException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
-    } catch (NoSuchPaddingException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    // Copy nonce
-    byte[] iv = new byte[AES_GCM_NONCE_LENGTH];
-    Util.arrayCopyNonAtomic(ivBuffer, ivStart, iv, (short) 0, AES_GCM_NONCE_LENGTH);
+    java.security.Key aesKey = new SecretKeySpec(secret, secretStart, secretLength, "AES");
     // Init Cipher
-    GCMParameterSpec spec = new GCMParameterSpec(tagLen, iv, (short) 0, AES_GCM_NONCE_LENGTH);
-    try {
-      if (mode == KMType.ENCRYPT) {
-        mode = javax.crypto.Cipher.ENCRYPT_MODE;
-      } else {
-        mode = javax.crypto.Cipher.DECRYPT_MODE;
-      }
-      cipher.init(mode, aesKey, spec);
-    } catch (InvalidKeyException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.INVALID_INIT);
-    } catch (InvalidAlgorithmParameterException e) {
-      e.printStackTrace();
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+    GCMParameterSpec spec = new GCMParameterSpec(tagLen, ivBuffer, ivStart, AES_GCM_NONCE_LENGTH);
+    if (mode == KMType.ENCRYPT) {
+      mode = javax.crypto.Cipher.ENCRYPT_MODE;
+    } else {
+      mode = javax.crypto.Cipher.DECRYPT_MODE;
     }
+    javax.crypto.Cipher cipher = initJceCipher(AES_GCM_TRANSFORMATION, mode, aesKey, spec);
     KMCipherImpl ret = new KMCipherImpl(cipher);
     ret.setCipherAlgorithm(KMType.AES);
     ret.setMode(mode);
@@ -1066,53 +1137,86 @@ public class KMJCardSimulator implements KMSEProvider {
 
   private void initEntropyPool(byte[] pool) {
     byte index = 0;
-    RandomData trng;
     while (index < rngCounter.length) {
       rngCounter[index++] = 0;
     }
+    readTrueRandom(pool, (short) 0, (short) pool.length);
+  }
+
+  private void readTrueRandom(byte[] buf, short start, short length) {
+    RandomData trng;
     try {
       trng = RandomData.getInstance(RandomData.ALG_TRNG);
-      trng.nextBytes(pool, (short) 0, (short) pool.length);
+      trng.nextBytes(buf, start, length);
     } catch (CryptoException exp) {
       if (exp.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
         // simulator does not support TRNG algorithm. So, PRNG algorithm (deprecated) is used.
         trng = RandomData.getInstance(RandomData.ALG_PSEUDO_RANDOM);
-        trng.nextBytes(pool, (short) 0, (short) pool.length);
+        trng.nextBytes(buf, start, length);
       } else {
         ISOException.throwIt(ISO7816.SW_UNKNOWN);
       }
     }
   }
 
-  // Generate a secure random number from existing entropy pool. This uses aes ecb algorithm with
-  // 8 byte rngCounter and 16 byte block size.
+  // Generate a secure random number from existing entropy pool. Requests are served from the
+  // keystream reservoir, which is refilled when it runs out.
   @Override
   public void newRandomNumber(byte[] num, short startOff, short length) {
-    KMRepository repository = KMRepository.instance();
-    byte[] bufPtr = repository.getHeap();
-    short countBufInd = repository.alloc(KMKeymasterApplet.AES_BLOCK_SIZE);
-    short randBufInd = repository.alloc(KMKeymasterApplet.AES_BLOCK_SIZE);
-    short len = KMKeymasterApplet.AES_BLOCK_SIZE;
-    aesRngKey.setKey(entropyPool, (short) 0);
-    aesRngCipher.init(aesRngKey, Cipher.MODE_ENCRYPT, aesICV, (short) 0, (short) 16);
+    short len;
+    short index;
     while (length > 0) {
+      if (rngState[RNG_RESERVOIR_AVAILABLE] == 0) {
+        refillRngReservoir();
+      }
+      len = rngState[RNG_RESERVOIR_AVAILABLE];
       if (length < len) {
         len = length;
       }
-      // increment rngCounter by one
-      incrementCounter();
-      // copy the 8 byte rngCounter into the 16 byte rngCounter buffer.
-      Util.arrayCopy(rngCounter, (short) 0, bufPtr, countBufInd, (short) rngCounter.length);
-      // encrypt the rngCounter buffer with existing entropy which forms the aes key.
-      aesRngCipher.doFinal(
-          bufPtr, countBufInd, KMKeymasterApplet.AES_BLOCK_SIZE, bufPtr, randBufInd);
-      // copy the encrypted rngCounter block to buffer passed in the argument
-      Util.arrayCopy(bufPtr, randBufInd, num, startOff, len);
+      // The reservoir is consumed from its end. Served bytes are cleared.
+      index = (short) (rngState[RNG_RESERVOIR_AVAILABLE] - len);
+      Util.arrayCopyNonAtomic(rngReservoir, index, num, startOff, len);
+      Util.arrayFillNonAtomic(rngReservoir, index, len, (byte) 0);
+      rngState[RNG_RESERVOIR_AVAILABLE] = index;
       length = (short) (length - len);
       startOff = (short) (startOff + len);
     }
   }
 
+  // Fills the reservoir with consecutive 16 byte counter blocks and encrypts all of them with the
+  // entropy pool as the aes key in a single ecb operation.
+  private void refillRngReservoir() {
+    // The budget is also zero after a card reset, which clears the entropy pool.
+    if (rngState[RNG_OUTPUT_BUDGET] <= 0) {
+      reseedEntropyPool();
+    }
+    short index = 0;
+    while (index < RNG_RESERVOIR_SIZE) {
+      incrementCounter();
+      Util.arrayFillNonAtomic(rngReservoir, index, KMKeymasterApplet.AES_BLOCK_SIZE, (byte) 0);
+      Util.arrayCopyNonAtomic(rngCounter, (short) 0, rngReservoir, index,
+          (short) rngCounter.length);
+      index += KMKeymasterApplet.AES_BLOCK_SIZE;
+    }
+    aesRngKey.setKey(entropyPool, (short) 0);
+    aesRngCipher.init(aesRngKey, Cipher.MODE_ENCRYPT);
+    aesRngCipher.doFinal(rngReservoir, (short) 0, RNG_RESERVOIR_SIZE, rngReservoir, (short) 0);
+    rngState[RNG_RESERVOIR_AVAILABLE] = RNG_RESERVOIR_SIZE;
+    rngState[RNG_OUTPUT_BUDGET] -= RNG_RESERVOIR_SIZE;
+  }
+
+  // Mixes fresh true random bytes into the entropy pool.
+  private void reseedEntropyPool() {
+    readTrueRandom(rndNum, (short) 0, (short) entropyPool.length);
+    short index = 0;
+    while (index < entropyPool.length) {
+      entropyPool[index] = (byte) (entropyPool[index] ^ rndNum[index]);
+      index++;
+    }
+    Util.arrayFillNonAtomic(rndNum, (short) 0, (short) entropyPool.length, (byte) 0);
+    rngState[RNG_OUTPUT_BUDGET] = RNG_RESEED_BUDGET;
+  }
+
   // increment 8 byte rngCounter by one
   private void incrementCounter() {
     // start with least significant byte
@@ -1160,6 +1264,9 @@ public class KMJCardSimulator implements KMSEProvider {
         randIndex = 0;
       }
     }
+    // Drop the keystream derived from the previous pool.
+    Util.arrayFillNonAtomic(rngReservoir, (short) 0, RNG_RESERVOIR_SIZE, (byte) 0);
+    rngState[RNG_RESERVOIR_AVAILABLE] = 0;
   }
 
   @Override
@@ -1178,6 +1285,11 @@ public class KMJCardSimulator implements KMSEProvider {
     return Util.getShort(certificateChain, (short) 0);
   }
 
+  @Override
+  public short getCertificateChainMaxSize() {
+    return (short) certificateChain.length;
+  }
+
   @Override
   public short ecSign256(KMAttestationKey attestationKey,
       byte[] inputDataBuf, short inputDataStart, short inputDataLength,
@@ -1195,7 +1307,8 @@ public class KMJCardSimulator implements KMSEProvider {
   @Override
   public void clearCertificateChain() {
     JCSystem.beginTransaction();
-    Util.arrayFillNonAtomic(certificateChain, (short) 0, CERT_CHAIN_MAX_SIZE, (byte) 0);
+    Util.arrayFillNonAtomic(certificateChain, (short) 0, (short) certificateChain.length,
+        (byte) 0);
     JCSystem.commitTransaction();
   }
 
@@ -1209,7 +1322,7 @@ public class KMJCardSimulator implements KMSEProvider {
     // CBOR format:
     // Next single byte holds the byte string header.
     // Next 3 bytes holds the total length of the certificate chain.
-    if (totalLen > (short) (CERT_CHAIN_MAX_SIZE - 2)) {
+    if (totalLen > (short) (certificateChain.length - 2)) {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     short persistedLen = Util.getShort(certificateChain, (short) 0);
@@ -1316,6 +1429,17 @@ public class KMJCardSimulator implements KMSEProvider {
     return (KMPreSharedKey) preSharedKey;
   }
 
+  @Override
+  public KMComputedHmacKey createComputedHmacKey(byte[] keyData, short offset, short length) {
+    computedHmacKey.setKey(keyData, offset, length);
+    return (KMComputedHmacKey) computedHmacKey;
+  }
+
+  @Override
+  public KMComputedHmacKey getComputedHmacKey() {
+    return (KMComputedHmacKey) computedHmacKey;
+  }
+
   @Override
   public void releaseAllOperations() {
     //Do nothing.
@@ -48,8 +48,12 @@ public class KMOperationImpl implements KMOperation {
   @Override
   public short finish(byte[] inputDataBuf, short inputDataStart, short inputDataLength,
       byte[] outputDataBuf, short outputDataStart) {
-    return cipher
-        .doFinal(inputDataBuf, inputDataStart, inputDataLength, outputDataBuf, outputDataStart);
+    try {
+      return cipher
+          .doFinal(inputDataBuf, inputDataStart, inputDataLength, outputDataBuf, outputDataStart);
+    } finally {
+      cipher.release();
+    }
   }
 
   @Override
@@ -67,7 +71,9 @@ public class KMOperationImpl implements KMOperation {
 
   @Override
   public void abort() {
-    // do nothing
+    if (cipher != null) {
+      cipher.release();
+    }
   }
 
   @Override
@@ -20,6 +20,8 @@ import com.android.javacard.keymaster.KMArray;
 import com.android.javacard.keymaster.KMBoolTag;
 import com.android.javacard.keymaster.KMByteBlob;
 import com.android.javacard.keymaster.KMByteTag;
+import com.android.javacard.keymaster.KMCipherSwapState;
+import com.android.javacard.keymaster.KMConfiguration;
 import com.android.javacard.keymaster.KMJCardSimApplet;
 import com.android.javacard.keymaster.KMJCardSimulator;
 import com.android.javacard.keymaster.KMSEProvider;
@@ -29,6 +31,7 @@ import com.android.javacard.keymaster.KMEnum;
 import com.android.javacard.keymaster.KMEnumArrayTag;
 import com.android.javacard.keymaster.KMEnumTag;
 import com.android.javacard.keymaster.KMError;
+import com.android.javacard.keymaster.KMException;
 import com.android.javacard.keymaster.KMHardwareAuthToken;
 import com.android.javacard.keymaster.KMHmacSharingParameters;
 import com.android.javacard.keymaster.KMInteger;
@@ -36,14 +39,22 @@ import com.android.javacard.keymaster.KMIntegerTag;
 import com.android.javacard.keymaster.KMKeyCharacteristics;
 import com.android.javacard.keymaster.KMKeyParameters;
 import com.android.javacard.keymaster.KMKeymasterApplet;
+import com.android.javacard.keymaster.KMOperation;
+import com.android.javacard.keymaster.KMOperationState;
 import com.android.javacard.keymaster.KMRepository;
+import com.android.javacard.keymaster.KMTag;
 import com.android.javacard.keymaster.KMType;
+import com.android.javacard.keymaster.KMUtils;
 import com.android.javacard.keymaster.KMVerificationToken;
 import com.licel.jcardsim.smartcardio.CardSimulator;
 import com.licel.jcardsim.utils.AIDUtil;
 
 import javacard.framework.AID;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.SystemException;
 import javacard.framework.Util;
+import javacard.security.AESKey;
 import javacard.security.ECPublicKey;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
@@ -56,9 +67,14 @@ import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateCrtKey;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
@@ -67,8 +83,12 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.MGF1ParameterSpec;
 import java.security.spec.RSAPublicKeySpec;
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.TimeZone;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -118,6 +138,9 @@ public class KMFunctionalTest {
   private static final byte INS_DEVICE_LOCKED_CMD = INS_END_KM_PROVISION_CMD + 20;//0x34
   private static final byte INS_EARLY_BOOT_ENDED_CMD = INS_END_KM_PROVISION_CMD + 21; //0x35
   private static final byte INS_GET_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD + 22; //0x36
+  private static final byte INS_BATCH_ATTEST_KEY_CMD = INS_END_KM_PROVISION_CMD + 23; //0x37
+  private static final byte INS_PERFORM_BACKGROUND_WORK_CMD = INS_END_KM_PROVISION_CMD + 24; //0x38
+  private static final byte INS_GET_HEAP_PROFILE_CMD = INS_END_KM_PROVISION_CMD + 25; //0x39
 
   private static final byte[] kEcPrivKey = {
       (byte) 0x21, (byte) 0xe0, (byte) 0x86, (byte) 0x43, (byte) 0x2a,
@@ -847,12 +870,9 @@ public class KMFunctionalTest {
   public void testRsaImportKeySuccess() {
     init();
     byte[] pub = new byte[]{0x00, 0x01, 0x00, 0x01};
-    byte[] mod = new byte[256];
-    byte[] priv = new byte[256];
-    short[] lengths = new short[2];
-    cryptoProvider
-        .createAsymmetricKey(KMType.RSA, priv, (short) 0, (short) 256, mod, (short) 0, (short) 256,
-            lengths);
+    RSAPrivateCrtKey rsaKey = generateJceRsaKey();
+    byte[] mod = toUnsignedBytes(rsaKey.getModulus(), 256);
+    byte[] priv = toUnsignedBytes(rsaKey.getPrivateExponent(), 256);
     short arrPtr = KMArray.instance((short) 6);
     short boolTag = KMBoolTag.instance(KMType.NO_AUTH_REQUIRED);
     short keySize = KMIntegerTag
@@ -921,6 +941,306 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testRsaImportCrtKeySuccess() {
+    init();
+    RSAPrivateCrtKey rsaKey = generateJceRsaKey();
+    BigInteger[] components = {rsaKey.getPrivateExponent(), rsaKey.getModulus(),
+        rsaKey.getPrimeP(), rsaKey.getPrimeQ(), rsaKey.getPrimeExponentP(),
+        rsaKey.getPrimeExponentQ(), rsaKey.getCrtCoefficient()};
+    short ret = importRsaKeyComponents(components);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    byte[] keyBlob = getKeyBlob(ret);
+    // The secret of the key blob holds the CRT components.
+    Assert.assertEquals(KMKeymasterApplet.KEY_BLOB_VERSION_2, keyBlob[0]);
+    Assert.assertEquals(KMKeymasterApplet.RSA_CRT_SECRET_SIZE,
+        Util.getShort(keyBlob, KMKeymasterApplet.KEY_BLOB_SECRET_LEN_OFFSET));
+    // Decrypt with the imported CRT key.
+    byte[] message = "Hello World!".getBytes();
+    byte[] cipherText = null;
+    try {
+      javax.crypto.Cipher rsaCipher = javax.crypto.Cipher.getInstance("RSA/ECB/PKCS1Padding");
+      rsaCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, KeyFactory.getInstance("RSA")
+          .generatePublic(new RSAPublicKeySpec(rsaKey.getModulus(), rsaKey.getPublicExponent())));
+      cipherText = rsaCipher.doFinal(message);
+    } catch (Exception e) {
+      Assert.fail(e.getMessage());
+    }
+    short params = getRsaParams(KMType.DIGEST_NONE, KMType.RSA_PKCS1_1_5_ENCRYPT);
+    Assert.assertArrayEquals(message, DecryptMessage(cipherText, params, keyBlob));
+    cleanUp();
+  }
+
+  @Test
+  public void testRsaImportKeyWithoutCrtComponents() {
+    init();
+    RSAPrivateCrtKey rsaKey = generateJceRsaKey();
+    BigInteger[] components = {rsaKey.getPrivateExponent(), rsaKey.getModulus()};
+    short ret = importRsaKeyComponents(components);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    byte[] keyBlob = getKeyBlob(ret);
+    // The secret of the key blob holds the private exponent.
+    Assert.assertEquals(KMKeymasterApplet.KEY_BLOB_VERSION_2, keyBlob[0]);
+    Assert.assertEquals(KMKeymasterApplet.RSA_KEY_SIZE,
+        Util.getShort(keyBlob, KMKeymasterApplet.KEY_BLOB_SECRET_LEN_OFFSET));
+    byte[] message = "Hello World!".getBytes();
+    byte[] cipherText = null;
+    try {
+      javax.crypto.Cipher rsaCipher = javax.crypto.Cipher.getInstance("RSA/ECB/PKCS1Padding");
+      rsaCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, KeyFactory.getInstance("RSA")
+          .generatePublic(new RSAPublicKeySpec(rsaKey.getModulus(), rsaKey.getPublicExponent())));
+      cipherText = rsaCipher.doFinal(message);
+    } catch (Exception e) {
+      Assert.fail(e.getMessage());
+    }
+    short params = getRsaParams(KMType.DIGEST_NONE, KMType.RSA_PKCS1_1_5_ENCRYPT);
+    Assert.assertArrayEquals(message, DecryptMessage(cipherText, params, keyBlob));
+    cleanUp();
+  }
+
+  @Test
+  public void testRsaImportCrtKeyMismatch() {
+    init();
+    RSAPrivateCrtKey rsaKey = generateJceRsaKey();
+    RSAPrivateCrtKey otherKey = generateJceRsaKey();
+    // The primes do not belong to the modulus.
+    BigInteger[] components = {rsaKey.getPrivateExponent(), rsaKey.getModulus(),
+        otherKey.getPrimeP(), otherKey.getPrimeQ(), otherKey.getPrimeExponentP(),
+        otherKey.getPrimeExponentQ(), otherKey.getCrtCoefficient()};
+    short ret = importRsaKeyComponents(components);
+    Assert.assertEquals(KMError.IMPORT_PARAMETER_MISMATCH,
+        KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    // The CRT exponents do not belong to the private exponent.
+    components[4] = rsaKey.getPrimeExponentQ();
+    components[5] = rsaKey.getPrimeExponentP();
+    components[2] = rsaKey.getPrimeP();
+    components[3] = rsaKey.getPrimeQ();
+    components[6] = rsaKey.getCrtCoefficient();
+    ret = importRsaKeyComponents(components);
+    Assert.assertEquals(KMError.IMPORT_PARAMETER_MISMATCH,
+        KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    cleanUp();
+  }
+
+  // Imports a raw RSA decryption key made of the private exponent and the modulus, optionally
+  // followed by the CRT components.
+  private short importRsaKeyComponents(BigInteger[] components) {
+    short keyMaterial = KMArray.instance((short) components.length);
+    for (short i = 0; i < components.length; i++) {
+      byte[] component = toUnsignedBytes(components[i], i < 2 ? 256 : 128);
+      short blob = KMByteBlob.instance(component, (short) 0, (short) component.length);
+      KMArray.cast(keyMaterial).add(i, blob);
+    }
+    byte[] material = new byte[1400];
+    short len = encoder.encode(keyMaterial, material, (short) 0);
+    short arrPtr = KMArray.instance((short) 7);
+    byte[] pub = new byte[]{0x00, 0x01, 0x00, 0x01};
+    short tag = KMBoolTag.instance(KMType.NO_AUTH_REQUIRED);
+    KMArray.cast(arrPtr).add((short) 0, tag);
+    tag = KMIntegerTag.instance(KMType.UINT_TAG, KMType.KEYSIZE, KMInteger.uint_16((short) 2048));
+    KMArray.cast(arrPtr).add((short) 1, tag);
+    short byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.DIGEST_NONE);
+    tag = KMEnumArrayTag.instance(KMType.DIGEST, byteBlob);
+    KMArray.cast(arrPtr).add((short) 2, tag);
+    tag = KMIntegerTag.instance(KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT,
+        KMInteger.uint_32(pub, (short) 0));
+    KMArray.cast(arrPtr).add((short) 3, tag);
+    tag = KMEnumTag.instance(KMType.ALGORITHM, KMType.RSA);
+    KMArray.cast(arrPtr).add((short) 4, tag);
+    byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.RSA_PKCS1_1_5_ENCRYPT);
+    tag = KMEnumArrayTag.instance(KMType.PADDING, byteBlob);
+    KMArray.cast(arrPtr).add((short) 5, tag);
+    byteBlob = KMByteBlob.instance((short) 1);
+    KMByteBlob.cast(byteBlob).add((short) 0, KMType.DECRYPT);
+    tag = KMEnumArrayTag.instance(KMType.PURPOSE, byteBlob);
+    KMArray.cast(arrPtr).add((short) 6, tag);
+    short keyParams = KMKeyParameters.instance(arrPtr);
+    short keyFormatPtr = KMEnum.instance(KMType.KEY_FORMAT, KMType.RAW);
+    short keyMaterialPtr = KMByteBlob.instance(material, (short) 0, len);
+    arrPtr = KMArray.instance((short) 3);
+    KMArray.cast(arrPtr).add((short) 0, keyParams);
+    KMArray.cast(arrPtr).add((short) 1, keyFormatPtr);
+    KMArray.cast(arrPtr).add((short) 2, keyMaterialPtr);
+    CommandAPDU apdu = encodeApdu((byte) INS_IMPORT_KEY_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    Assert.assertEquals(0x9000, response.getSW());
+    byte[] respBuf = response.getBytes();
+    short ret = KMArray.instance((short) 1);
+    if (readMajorType(respBuf) != CBOR_ARRAY_MAJOR_TYPE) {
+      // Only the error code is returned.
+      short error = decoder.decode(KMInteger.exp(), respBuf, (short) 0, (short) respBuf.length);
+      KMArray.cast(ret).add((short) 0, error);
+      return ret;
+    }
+    ret = KMArray.instance((short) 3);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMByteBlob.exp());
+    short inst = KMKeyCharacteristics.exp();
+    KMArray.cast(ret).add((short) 2, inst);
+    return decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+  }
+
+  private RSAPrivateCrtKey generateJceRsaKey() {
+    try {
+      KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+      kpg.initialize(2048);
+      return (RSAPrivateCrtKey) kpg.generateKeyPair().getPrivate();
+    } catch (NoSuchAlgorithmException e) {
+      Assert.fail(e.getMessage());
+      return null;
+    }
+  }
+
+  // Converts the number to an unsigned big endian array of the given length.
+  private byte[] toUnsignedBytes(BigInteger num, int len) {
+    byte[] bytes = num.toByteArray();
+    byte[] out = new byte[len];
+    int copyLen = Math.min(bytes.length, len);
+    System.arraycopy(bytes, bytes.length - copyLen, out, len - copyLen, copyLen);
+    return out;
+  }
+
+  @Test
+  public void testKeyPoolBackgroundWork() {
+    init();
+    // Each command fills one slot of the key pool.
+    short emptySlots = performBackgroundWork();
+    while (emptySlots > 0) {
+      short next = performBackgroundWork();
+      Assert.assertEquals(emptySlots - 1, next);
+      emptySlots = next;
+    }
+    // Keys taken from the pool are usable and their slots are freed.
+    testSignVerifyWithRsa(KMType.SHA2_256, KMType.RSA_PKCS1_1_5_SIGN, false, true);
+    testSignVerifyWithEcdsa(KMType.SHA2_256, false);
+    Assert.assertEquals(1, performBackgroundWork());
+    cleanUp();
+  }
+
+  private short performBackgroundWork() {
+    CommandAPDU apdu = encodeApdu((byte) INS_PERFORM_BACKGROUND_WORK_CMD,
+        KMArray.instance((short) 0));
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    Assert.assertEquals(0x9000, response.getSW());
+    short ret = KMArray.instance((short) 2);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMInteger.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    return KMInteger.cast(KMArray.cast(ret).get((short) 1)).getShort();
+  }
+
+  @Test
+  public void testRandomNumberAcrossReservoirRefills() {
+    init();
+    // Small requests cross several refills of the random number reservoir.
+    byte[] rnd = new byte[1200];
+    for (short off = 0; off < rnd.length; off += 3) {
+      cryptoProvider.newRandomNumber(rnd, off, (short) 3);
+    }
+    byte[] seed = {0x01, 0x02, 0x03, 0x04};
+    cryptoProvider.addRngEntropy(seed, (short) 0, (short) seed.length);
+    byte[] next = new byte[16];
+    cryptoProvider.newRandomNumber(next, (short) 0, (short) next.length);
+    HashSet<String> blocks = new HashSet<>();
+    for (int off = 0; off < rnd.length; off += 16) {
+      Assert.assertTrue(blocks.add(Arrays.toString(Arrays.copyOfRange(rnd, off, off + 16))));
+    }
+    Assert.assertTrue(blocks.add(Arrays.toString(next)));
+    cleanUp();
+  }
+
+  @Test
+  public void testAesPkcs7UnalignedFinish() {
+    init();
+    byte[] key = new byte[16];
+    byte[] iv = new byte[16];
+    cryptoProvider.newRandomNumber(key, (short) 0, (short) key.length);
+    cryptoProvider.newRandomNumber(iv, (short) 0, (short) iv.length);
+    byte[] plainData = "Hello World 123! Hip Hip Hoorah! Bye".getBytes();
+    byte[] cipherData = new byte[64];
+    KMOperation op = cryptoProvider.initSymmetricOperation(KMType.ENCRYPT, KMType.AES,
+        KMType.DIGEST_NONE, KMType.PKCS7, KMType.CBC, key, (short) 0, (short) key.length,
+        iv, (short) 0, (short) iv.length, (short) 0);
+    short len = op.finish(plainData, (short) 0, (short) plainData.length, cipherData, (short) 0);
+    try {
+      javax.crypto.Cipher jceCipher = javax.crypto.Cipher.getInstance("AES/CBC/PKCS5Padding");
+      jceCipher.init(javax.crypto.Cipher.ENCRYPT_MODE,
+          new javax.crypto.spec.SecretKeySpec(key, "AES"),
+          new javax.crypto.spec.IvParameterSpec(iv));
+      Assert.assertArrayEquals(jceCipher.doFinal(plainData), Arrays.copyOf(cipherData, len));
+    } catch (Exception e) {
+      Assert.fail(e.getMessage());
+    }
+    byte[] output = new byte[64];
+    op = cryptoProvider.initSymmetricOperation(KMType.DECRYPT, KMType.AES,
+        KMType.DIGEST_NONE, KMType.PKCS7, KMType.CBC, key, (short) 0, (short) key.length,
+        iv, (short) 0, (short) iv.length, (short) 0);
+    len = op.finish(cipherData, (short) 0, len, output, (short) 0);
+    Assert.assertArrayEquals(plainData, Arrays.copyOf(output, len));
+    cleanUp();
+  }
+
+  @Test
+  public void testJceCipherReuse() {
+    init();
+    byte[] key = new byte[32];
+    byte[] nonce = new byte[12];
+    byte[] aad = "Associated data".getBytes();
+    byte[] plainData = "Hello World 123! Hip Hip Hoorah! Bye".getBytes();
+    byte[] cipherData = new byte[plainData.length];
+    byte[] tag = new byte[16];
+    short len = 0;
+    cryptoProvider.newRandomNumber(key, (short) 0, (short) key.length);
+    for (int i = 0; i < 3; i++) {
+      // The first encryption creates the pooled cipher and the second one reuses it with a new
+      // nonce. The third one uses the same key and nonce again, which the pooled cipher refuses,
+      // so that a new cipher is created.
+      if (i < 2) {
+        cryptoProvider.newRandomNumber(nonce, (short) 0, (short) nonce.length);
+      }
+      byte[] expected = aesGcmEncrypt(key, nonce, aad, plainData);
+      len = cryptoProvider.aesGCMEncrypt(key, (short) 0, (short) key.length,
+          plainData, (short) 0, (short) plainData.length, cipherData, (short) 0,
+          nonce, (short) 0, (short) nonce.length, aad, (short) 0, (short) aad.length,
+          tag, (short) 0, (short) tag.length);
+      Assert.assertEquals(plainData.length, len);
+      Assert.assertArrayEquals(Arrays.copyOf(expected, len), cipherData);
+      Assert.assertArrayEquals(Arrays.copyOfRange(expected, len, expected.length), tag);
+    }
+    // The pooled cipher is reused for decryption.
+    byte[] output = new byte[plainData.length];
+    for (int i = 0; i < 2; i++) {
+      Arrays.fill(output, (byte) 0);
+      Assert.assertTrue(cryptoProvider.aesGCMDecrypt(key, (short) 0, (short) key.length,
+          cipherData, (short) 0, len, output, (short) 0, nonce, (short) 0, (short) nonce.length,
+          aad, (short) 0, (short) aad.length, tag, (short) 0, (short) tag.length));
+      Assert.assertArrayEquals(plainData, output);
+    }
+    tag[0] ^= 0x01;
+    Assert.assertFalse(cryptoProvider.aesGCMDecrypt(key, (short) 0, (short) key.length,
+        cipherData, (short) 0, len, output, (short) 0, nonce, (short) 0, (short) nonce.length,
+        aad, (short) 0, (short) aad.length, tag, (short) 0, (short) tag.length));
+    cleanUp();
+  }
+
+  private byte[] aesGcmEncrypt(byte[] key, byte[] nonce, byte[] aad, byte[] plainData) {
+    try {
+      javax.crypto.Cipher jceCipher = javax.crypto.Cipher.getInstance("AES/GCM/NoPadding");
+      jceCipher.init(javax.crypto.Cipher.ENCRYPT_MODE,
+          new javax.crypto.spec.SecretKeySpec(key, "AES"),
+          new javax.crypto.spec.GCMParameterSpec(128, nonce));
+      jceCipher.updateAAD(aad);
+      return jceCipher.doFinal(plainData);
+    } catch (Exception e) {
+      Assert.fail(e.getMessage());
+      return null;
+    }
+  }
+
   @Test
   public void testDeviceLocked() {
     init();
@@ -976,9 +1296,138 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testHwTokenCache() {
+    init();
+    computeSharedHmac();
+    short aesKey = generateAesDesKey(KMType.AES, (short) 128, null, null, true);
+    short keyBlobPtr = KMArray.cast(aesKey).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(), keyBlob, (short) 0, (short) keyBlob.length);
+    byte[] tokenData = new byte[256];
+    byte[] mac = new byte[KMRepository.HW_TOKEN_MAC_SIZE];
+    signHwTokenMac(mac);
+    getHwTokenData(makeHwToken(), tokenData);
+    Assert.assertFalse(isHwTokenCached(tokenData, mac));
+    // While the device is locked every begin has to verify the token. The first begin caches it,
+    // the second one finds it in the cache.
+    beginWhileLocked(keyBlob, mac, KMError.OK);
+    Assert.assertTrue(isHwTokenCached(tokenData, mac));
+    beginWhileLocked(keyBlob, mac, KMError.OK);
+    Assert.assertTrue(isHwTokenCached(tokenData, mac));
+    // A new shared hmac key invalidates the cache, so the token signed with the former key is
+    // rejected.
+    computeSharedHmac();
+    Assert.assertFalse(isHwTokenCached(tokenData, mac));
+    beginWhileLocked(keyBlob, mac, KMError.DEVICE_LOCKED);
+    // The same token signed with the new key is accepted.
+    signHwTokenMac(mac);
+    beginWhileLocked(keyBlob, mac, KMError.OK);
+    KMRepository.instance().setDeviceLock(false);
+    KMRepository.instance().clearDeviceLockTimeStamp();
+    cleanUp();
+  }
+
+  private short makeHwToken() {
+    short hwToken = KMHardwareAuthToken.instance();
+    KMHardwareAuthToken.cast(hwToken).setTimestamp(KMInteger.uint_16((short) 2));
+    KMHardwareAuthToken.cast(hwToken)
+        .setHwAuthenticatorType(KMEnum.instance(KMType.USER_AUTH_TYPE, (byte) KMType.PASSWORD));
+    return hwToken;
+  }
+
+  // Signs the token of makeHwToken with the current computed hmac key and copies its mac.
+  private void signHwTokenMac(byte[] mac) {
+    short ptr = KMHardwareAuthToken.cast(signHwToken(makeHwToken())).getMac();
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(ptr).getBuffer(), KMByteBlob.cast(ptr).getStartOff(),
+        mac, (short) 0, (short) mac.length);
+  }
+
+  private boolean isHwTokenCached(byte[] tokenData, byte[] mac) {
+    return KMRepository.instance().isHwTokenVerified(tokenData, (short) 0, mac, (short) 0,
+        (short) mac.length);
+  }
+
+  // Locks the device and begins a decrypt operation with the key, which requires an unlocked
+  // device, and the token of makeHwToken carrying the given mac. The operation is aborted if it
+  // started.
+  private void beginWhileLocked(byte[] keyBlob, byte[] mac, short expectedErr) {
+    short verToken = KMVerificationToken.instance();
+    KMVerificationToken.cast(verToken).setTimestamp(KMInteger.uint_16((short) 1));
+    deviceLock(signVerificationToken(verToken));
+    short hwToken = makeHwToken();
+    KMHardwareAuthToken.cast(hwToken)
+        .setMac(KMByteBlob.instance(mac, (short) 0, (short) mac.length));
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    short ret = begin(KMType.DECRYPT,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(inParams), hwToken, false);
+    if (expectedErr != KMError.OK) {
+      Assert.assertEquals(expectedErr, ret);
+      return;
+    }
+    ret = abort(KMArray.cast(ret).get((short) 2), false);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(ret).getShort());
+  }
+
+  @Test
+  public void testComputedHmacKeyReload() {
+    init();
+    byte[] hmacKey = new byte[32];
+    cryptoProvider.newRandomNumber(hmacKey, (short) 0, (short) 32);
+    KMRepository.instance().initComputedHmac(hmacKey, (short) 0, (short) 32);
+    Assert.assertFalse(KMRepository.instance().isComputedHmacKeyLoaded());
+    short verToken = KMVerificationToken.instance();
+    KMVerificationToken.cast(verToken).setTimestamp(KMInteger.uint_16((short) 1));
+    deviceLock(signVerificationToken(verToken));
+    Assert.assertTrue(KMRepository.instance().isComputedHmacKeyLoaded());
+    // A new key must be loaded into the SE provider before the next verification.
+    cryptoProvider.newRandomNumber(hmacKey, (short) 0, (short) 32);
+    KMRepository.instance().initComputedHmac(hmacKey, (short) 0, (short) 32);
+    Assert.assertFalse(KMRepository.instance().isComputedHmacKeyLoaded());
+    verToken = KMVerificationToken.instance();
+    KMVerificationToken.cast(verToken).setTimestamp(KMInteger.uint_16((short) 2));
+    deviceLock(signVerificationToken(verToken));
+    KMRepository.instance().setDeviceLock(false);
+    KMRepository.instance().clearDeviceLockTimeStamp();
+    cleanUp();
+  }
+
   private short signHwToken(short hwToken) {
-    short len = 0;
     byte[] scratchPad = new byte[256];
+    short len = getHwTokenData(hwToken, scratchPad);
+    // hmac the data
+/*    HMACKey key =
+      cryptoProvider.createHMACKey(
+        KMRepository.instance().getComputedHmacKey(),
+        (short) 0,
+        (short) KMRepository.instance().getComputedHmacKey().length);
+
+ */
+    byte[] mac = new byte[32];
+    /*
+    len =
+      cryptoProvider.hmacSign(key, scratchPad, (short) 0, len,
+        mac,
+        (short)0);
+     */
+    short key = KMRepository.instance().getComputedHmacKey();
+    cryptoProvider.hmacSign(
+        KMByteBlob.cast(key).getBuffer(),
+        KMByteBlob.cast(key).getStartOff(),
+        KMByteBlob.cast(key).length(),
+        scratchPad, (short) 0, len,
+        mac,
+        (short) 0);
+    KMHardwareAuthToken.cast(hwToken)
+        .setMac(KMByteBlob.instance(mac, (short) 0, (short) mac.length));
+    return hwToken;
+  }
+
+  // Serializes the fields of the hw auth token which are input to its mac.
+  private short getHwTokenData(short hwToken, byte[] scratchPad) {
+    short len = 0;
     // add 0
     Util.arrayFillNonAtomic(scratchPad, (short) 0, (short) 256, (byte) 0);
     len = 1;
@@ -1006,32 +1455,7 @@ public class KMFunctionalTest {
     KMInteger.cast(ptr)
         .value(scratchPad, (short) (len + (short) (8 - KMInteger.cast(ptr).length())));
     len += 8;
-    // hmac the data
-/*    HMACKey key =
-      cryptoProvider.createHMACKey(
-        KMRepository.instance().getComputedHmacKey(),
-        (short) 0,
-        (short) KMRepository.instance().getComputedHmacKey().length);
-
- */
-    byte[] mac = new byte[32];
-    /*
-    len =
-      cryptoProvider.hmacSign(key, scratchPad, (short) 0, len,
-        mac,
-        (short)0);
-     */
-    short key = KMRepository.instance().getComputedHmacKey();
-    cryptoProvider.hmacSign(
-        KMByteBlob.cast(key).getBuffer(),
-        KMByteBlob.cast(key).getStartOff(),
-        KMByteBlob.cast(key).length(),
-        scratchPad, (short) 0, len,
-        mac,
-        (short) 0);
-    KMHardwareAuthToken.cast(hwToken)
-        .setMac(KMByteBlob.instance(mac, (short) 0, (short) mac.length));
-    return hwToken;
+    return len;
   }
 
   private void deviceLock(short verToken) {
@@ -1174,20 +1598,32 @@ public class KMFunctionalTest {
   }
 
   private short extractKeyBlobArray(byte[] buf, short off, short buflen) {
-    short ret = KMArray.instance((short) 5);
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_SECRET, KMByteBlob.exp());
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG, KMByteBlob.exp());
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_NONCE, KMByteBlob.exp());
-    short ptr = KMKeyCharacteristics.exp();
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR, ptr);
-    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY, KMByteBlob.exp());
-    ret =
-        decoder.decodeArray(
-            ret,
-            buf, off, buflen);
-    short len = KMArray.cast(ret).length();
-    ptr = KMArray.cast(ret).get((short) 4);
-//    print(KMByteBlob.cast(ptr).getBuffer(),KMByteBlob.cast(ptr).getStartOff(),KMByteBlob.cast(ptr).length());
+    Assert.assertEquals(KMKeymasterApplet.KEY_BLOB_VERSION_2, buf[off]);
+    short keyCharLen = Util.getShort(buf,
+        (short) (off + KMKeymasterApplet.KEY_BLOB_KEYCHAR_LEN_OFFSET));
+    short pubKeyLen = Util.getShort(buf,
+        (short) (off + KMKeymasterApplet.KEY_BLOB_PUB_KEY_LEN_OFFSET));
+    short secretLen = Util.getShort(buf,
+        (short) (off + KMKeymasterApplet.KEY_BLOB_SECRET_LEN_OFFSET));
+    Assert.assertEquals(buflen, (short) (KMKeymasterApplet.KEY_BLOB_HEADER_SIZE + keyCharLen
+        + pubKeyLen + 12 + 16 + secretLen));
+    off += KMKeymasterApplet.KEY_BLOB_HEADER_SIZE;
+    short keyChar = decoder.decode(KMKeyCharacteristics.exp(), buf, off, keyCharLen);
+    short ret = KMArray.instance(pubKeyLen > 0 ? (short) 5 : (short) 4);
+    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR, keyChar);
+    off += keyCharLen;
+    if (pubKeyLen > 0) {
+      KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY,
+          KMByteBlob.instance(buf, off, pubKeyLen));
+    }
+    off += pubKeyLen;
+    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_NONCE, KMByteBlob.instance(buf, off, (short) 12));
+    off += 12;
+    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG,
+        KMByteBlob.instance(buf, off, (short) 16));
+    off += 16;
+    KMArray.cast(ret).add(KMKeymasterApplet.KEY_BLOB_SECRET,
+        KMByteBlob.instance(buf, off, secretLen));
     return ret;
   }
 
@@ -1660,6 +2096,12 @@ public class KMFunctionalTest {
   @Test
   public void testComputeHmacParams() {
     init();
+    computeSharedHmac();
+    cleanUp();
+  }
+
+  // Computes the shared hmac key with the applet and a peer with a random nonce.
+  private void computeSharedHmac() {
     // Get Hmac parameters
     short ret = getHmacSharingParams();
     short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
@@ -1704,8 +2146,6 @@ public class KMFunctionalTest {
     error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
     Assert.assertEquals(0x9000, response.getSW());
     Assert.assertEquals(error, KMError.OK);
-
-    cleanUp();
   }
 
   @Test
@@ -1942,6 +2382,35 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testEncodedLength() {
+    init();
+    // The key blob size is checked with the encoded length before the key characteristics are
+    // written, so the length must match what is encoded.
+    short ret = generateRsaKey(null, null);
+    short keyChar = KMArray.cast(ret).get((short) 2);
+    byte[] buf = new byte[1024];
+    short len = encoder.encode(keyChar, buf, (short) 0);
+    Assert.assertEquals(len, encoder.getEncodedLength(keyChar));
+    cleanUp();
+  }
+
+  @Test
+  public void testDeleteKeyChecksCompactHeader() {
+    init();
+    short ret = generateRsaKey(null, null);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    Assert.assertEquals(KMKeymasterApplet.KEY_BLOB_VERSION_2, keyBlob[0]);
+    // The lengths in the header must add up to the length of the key blob.
+    ret = deleteKey(KMByteBlob.instance(keyBlob, (short) 0, (short) (keyBlob.length - 1)));
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, ret);
+    ret = deleteKey(KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    Assert.assertEquals(KMError.OK, ret);
+    cleanUp();
+  }
+
   @Test
   public void testDeleteAllKeySuccess() {
     init();
@@ -1968,7 +2437,8 @@ public class KMFunctionalTest {
     // print(commandAPDU.getBytes());
     ResponseAPDU response = simulator.transmitCommand(apdu);
     byte[] respBuf = response.getBytes();
-    return respBuf[0];
+    short ret = decoder.decode(KMInteger.exp(), respBuf, (short) 0, (short) respBuf.length);
+    return KMInteger.cast(ret).getShort();
   }
 
   private short abort(short opHandle, boolean triggerReset) {
@@ -2470,6 +2940,332 @@ public class KMFunctionalTest {
     return int_random;
   }
 
+  @Test
+  public void testKeyBlobAuthDataInPlace() {
+    init();
+    short aesKey = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(aesKey).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(), keyBlob, (short) 0,
+        (short) keyBlob.length);
+    // Version 2 key blob with the key characteristics right after the header.
+    Assert.assertEquals(KMKeymasterApplet.KEY_BLOB_VERSION_2, keyBlob[0]);
+    short keyCharLen = Util.getShort(keyBlob, KMKeymasterApplet.KEY_BLOB_KEYCHAR_LEN_OFFSET);
+    short ret = getKeyCharacteristics(
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    // Any change of the authenticated key characteristics must be detected.
+    keyBlob[KMKeymasterApplet.KEY_BLOB_HEADER_SIZE + keyCharLen - 1] ^= 0x01;
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, null);
+    ret = begin(KMType.ENCRYPT,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(inParams), (short) 0, false);
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, ret);
+    cleanUp();
+  }
+  @Test
+  public void testLazyKeyCharacteristics() {
+    init();
+    short aesKey = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(aesKey).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    short keyCharLen = Util.getShort(keyBlob, KMKeymasterApplet.KEY_BLOB_KEYCHAR_LEN_OFFSET);
+    short blob = KMByteBlob.instance(keyBlob, KMKeymasterApplet.KEY_BLOB_HEADER_SIZE, keyCharLen);
+    short keyChar = decoder.decodeKeyCharLazy(KMByteBlob.cast(blob).getBuffer(),
+        KMByteBlob.cast(blob).getStartOff(), keyCharLen);
+    short hwParams = KMKeyCharacteristics.cast(keyChar).getHardwareEnforced();
+    Assert.assertEquals(KMType.AES, KMEnumTag.getValue(KMType.ALGORITHM, hwParams));
+    Assert.assertEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.UINT_TAG, KMType.MIN_MAC_LENGTH, hwParams));
+    // Decoding the remaining tags gives back the same key characteristics.
+    byte[] encoded = new byte[(short) (keyCharLen * 2)];
+    Assert.assertEquals(keyCharLen, encoder.encode(keyChar, encoded, (short) 0));
+    Assert.assertEquals(0, Util.arrayCompare(keyBlob, KMKeymasterApplet.KEY_BLOB_HEADER_SIZE,
+        encoded, (short) 0, keyCharLen));
+    cleanUp();
+  }
+  @Test
+  public void testByteBlobView() {
+    init();
+    byte[] val = {0x01, 0x02, 0x03, 0x04};
+    short blob = KMByteBlob.instance(val, (short) 0, (short) val.length);
+    short view = KMByteBlob.view(KMByteBlob.cast(blob).getBuffer(),
+        (short) (KMByteBlob.cast(blob).getStartOff() + 1), (short) 2);
+    Assert.assertTrue(KMByteBlob.cast(view).isView());
+    Assert.assertEquals(2, KMByteBlob.cast(view).length());
+    Assert.assertEquals(0x02, KMByteBlob.cast(view).get((short) 0));
+    // Changes made through the view are seen by the blob it refers to.
+    KMByteBlob.cast(view).add((short) 1, (byte) 0x05);
+    Assert.assertEquals(0x05, KMByteBlob.cast(blob).get((short) 2));
+    KMByteBlob.cast(view).decrementLength((short) 1);
+    Assert.assertTrue(KMByteBlob.cast(view).isView());
+    Assert.assertEquals(1, KMByteBlob.cast(view).length());
+    // Views can only refer to the heap.
+    try {
+      KMByteBlob.view(val, (short) 0, (short) val.length);
+      Assert.fail("View over a buffer other than the heap must fail");
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+    }
+    // Byte blobs decoded from the heap are views.
+    byte[] encoded = {0x42, 0x0A, 0x0B};
+    blob = KMByteBlob.instance(encoded, (short) 0, (short) encoded.length);
+    view = decoder.decode(KMByteBlob.exp(), KMByteBlob.cast(blob).getBuffer(),
+        KMByteBlob.cast(blob).getStartOff(), (short) encoded.length);
+    Assert.assertTrue(KMByteBlob.cast(view).isView());
+    Assert.assertEquals((short) (KMByteBlob.cast(blob).getStartOff() + 1),
+        KMByteBlob.cast(view).getStartOff());
+    cleanUp();
+  }
+  @Test
+  public void testHeapProfile() {
+    init();
+    generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    // Allocations which do not fit are recorded before they throw.
+    KMRepository repository = KMRepository.instance();
+    short heapLength = (short) repository.getHeap().length;
+    repository.startHeapProfile(INS_GENERATE_KEY_CMD);
+    short request = (short) (repository.getHeapIndex() + heapLength);
+    try {
+      repository.alloc(heapLength);
+      Assert.fail("Allocation must fail");
+    } catch (ISOException e) {
+    }
+    try {
+      repository.allocReclaimableMemory((short) (heapLength / 2));
+      Assert.fail("Allocation must fail");
+    } catch (ISOException e) {
+    }
+    repository.clean();
+    CommandAPDU apdu = new CommandAPDU(0x80, INS_GET_HEAP_PROFILE_CMD, 0x40, 0x00);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    Assert.assertEquals(0x9000, response.getSW());
+    short ret = KMArray.instance((short) 5);
+    short entryExp = KMArray.instance((short) 6);
+    short index = 0;
+    while (index < 6) {
+      KMArray.cast(entryExp).add(index, KMInteger.exp());
+      index++;
+    }
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMInteger.exp());
+    KMArray.cast(ret).add((short) 2, KMInteger.exp());
+    KMArray.cast(ret).add((short) 3, KMInteger.exp());
+    KMArray.cast(ret).add((short) 4, KMArray.exp(entryExp));
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort());
+    short heapSize = KMInteger.cast(KMArray.cast(ret).get((short) 1)).getShort();
+    Assert.assertEquals(KMConfiguration.getHeapSize(), heapSize);
+    short profile = KMArray.cast(ret).get((short) 4);
+    boolean found = false;
+    short entry;
+    index = 0;
+    while (index < KMArray.cast(profile).length()) {
+      entry = KMArray.cast(profile).get(index);
+      if (KMInteger.cast(KMArray.cast(entry).get((short) 0)).getShort() == INS_GENERATE_KEY_CMD) {
+        short peakHeap = KMInteger.cast(KMArray.cast(entry).get((short) 1)).getShort();
+        short allocs = KMInteger.cast(KMArray.cast(entry).get((short) 3)).getShort();
+        Assert.assertTrue(peakHeap > 0 && peakHeap <= heapSize);
+        Assert.assertTrue(allocs > 0);
+        Assert.assertEquals(request, KMInteger.cast(KMArray.cast(entry).get((short) 4)).getShort());
+        Assert.assertEquals(2, KMInteger.cast(KMArray.cast(entry).get((short) 5)).getShort());
+        found = true;
+      }
+      index++;
+    }
+    Assert.assertTrue(found);
+    cleanUp();
+  }
+
+  @Test
+  public void testInstallTimeLimits() {
+    AID appletAID = AIDUtil.create("A000000062");
+    // Instance AID | no privileges | heap size 8192, max ops 4, pool instances 2.
+    byte[] installParams = {
+        0x05, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62,
+        0x00,
+        0x09,
+        KMConfiguration.HEAP_SIZE_TAG, 0x20, 0x00,
+        KMConfiguration.MAX_OPS_TAG, 0x00, 0x04,
+        KMConfiguration.POOL_INSTANCES_TAG, 0x00, 0x02};
+    simulator.installApplet(appletAID, KMJCardSimApplet.class, installParams, (short) 0,
+        (byte) installParams.length);
+    simulator.selectApplet(appletAID);
+    Assert.assertEquals(8192, KMRepository.instance().getHeap().length);
+    CommandAPDU apdu = new CommandAPDU(0x80, INS_GET_HW_INFO_CMD, 0x40, 0x00);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    Assert.assertEquals(0x9000, response.getSW());
+    short ret = KMArray.instance((short) 8);
+    KMArray.cast(ret).add((short) 0, KMEnum.instance(KMType.HARDWARE_TYPE));
+    KMArray.cast(ret).add((short) 1, KMByteBlob.exp());
+    KMArray.cast(ret).add((short) 2, KMByteBlob.exp());
+    short index = 3;
+    while (index < 8) {
+      KMArray.cast(ret).add(index, KMInteger.exp());
+      index++;
+    }
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    Assert.assertEquals(8192, KMInteger.cast(KMArray.cast(ret).get((short) 3)).getShort());
+    Assert.assertEquals(KMConfiguration.DEFAULT_DATA_MEM_SIZE,
+        KMInteger.cast(KMArray.cast(ret).get((short) 4)).getShort());
+    Assert.assertEquals(4, KMInteger.cast(KMArray.cast(ret).get((short) 5)).getShort());
+    Assert.assertEquals(KMConfiguration.DEFAULT_CERT_CHAIN_MAX_SIZE,
+        KMInteger.cast(KMArray.cast(ret).get((short) 6)).getShort());
+    Assert.assertEquals(2, KMInteger.cast(KMArray.cast(ret).get((short) 7)).getShort());
+    // The fifth operation is rejected.
+    provisionCmd(simulator);
+    assertMaxConcurrentOperations((short) 4);
+    cleanUp();
+    // A limit out of its bounds is rejected at install time. The simulator reports any install
+    // failure as a SystemException, so the status word is checked on the parameters directly.
+    installParams[installParams.length - 1] = 0x00;
+    try {
+      KMConfiguration.init(installParams, (short) 0, (byte) installParams.length);
+      Assert.fail("Install must fail");
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_WRONG_DATA, e.getReason());
+    }
+    // The transient memory of the SE provider is added to the memory of the shared classes.
+    KMConfiguration.init(null, (short) 0, (byte) 0);
+    try {
+      KMConfiguration.validateAvailableMemory(Short.MAX_VALUE, false);
+      Assert.fail("Install must fail");
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_FILE_FULL, e.getReason());
+    }
+    try {
+      simulator.installApplet(AIDUtil.create("A000000063"), KMJCardSimApplet.class,
+          installParams, (short) 0, (byte) installParams.length);
+      Assert.fail("Install must fail");
+    } catch (SystemException e) {
+    }
+  }
+
+
+
+
+  // Hardware and software enforced tags as listed by the former makeHwEnforced and
+  // makeSwEnforced.
+  private static final short[] HW_ENFORCED_TAGS = {
+      KMType.ENUM_TAG, KMType.ORIGIN,
+      KMType.ENUM_ARRAY_TAG, KMType.PURPOSE,
+      KMType.ENUM_TAG, KMType.ALGORITHM,
+      KMType.UINT_TAG, KMType.KEYSIZE,
+      KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT,
+      KMType.ENUM_TAG, KMType.BLOB_USAGE_REQ,
+      KMType.ENUM_ARRAY_TAG, KMType.DIGEST,
+      KMType.ENUM_ARRAY_TAG, KMType.PADDING,
+      KMType.ENUM_ARRAY_TAG, KMType.BLOCK_MODE,
+      KMType.ULONG_ARRAY_TAG, KMType.USER_SECURE_ID,
+      KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED,
+      KMType.UINT_TAG, KMType.AUTH_TIMEOUT,
+      KMType.BOOL_TAG, KMType.CALLER_NONCE,
+      KMType.UINT_TAG, KMType.MIN_MAC_LENGTH,
+      KMType.ENUM_TAG, KMType.ECCURVE,
+      KMType.BOOL_TAG, KMType.INCLUDE_UNIQUE_ID,
+      KMType.BOOL_TAG, KMType.ROLLBACK_RESISTANCE,
+      KMType.ENUM_TAG, KMType.USER_AUTH_TYPE,
+      KMType.BOOL_TAG, KMType.UNLOCKED_DEVICE_REQUIRED,
+      KMType.BOOL_TAG, KMType.RESET_SINCE_ID_ROTATION
+  };
+  private static final short[] SW_ENFORCED_TAGS = {
+      KMType.DATE_TAG, KMType.ACTIVE_DATETIME,
+      KMType.DATE_TAG, KMType.ORIGINATION_EXPIRE_DATETIME,
+      KMType.DATE_TAG, KMType.USAGE_EXPIRE_DATETIME,
+      KMType.UINT_TAG, KMType.USERID,
+      KMType.DATE_TAG, KMType.CREATION_DATETIME
+  };
+
+  @Test
+  public void testKeyCharacteristicsSplit() {
+    init();
+    byte[] purpose = {KMType.ENCRYPT, KMType.DECRYPT};
+    short[] tags = {
+        KMEnumTag.instance(KMType.ALGORITHM, KMType.AES),
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.KEYSIZE, KMInteger.uint_16((short) 128)),
+        KMIntegerTag.instance(KMType.DATE_TAG, KMType.ACTIVE_DATETIME,
+            KMInteger.uint_16((short) 1)),
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.USERID, KMInteger.uint_16((short) 10)),
+        KMBoolTag.instance(KMType.NO_AUTH_REQUIRED),
+        // Unsupported and unclassified tags are in neither list.
+        KMBoolTag.instance(KMType.ALLOW_WHILE_ON_BODY),
+        KMByteTag.instance(KMType.APPLICATION_ID,
+            KMByteBlob.instance(purpose, (short) 0, (short) purpose.length)),
+        // A classified key with another tag type is in neither list.
+        KMIntegerTag.instance(KMType.ULONG_TAG, KMType.KEYSIZE, KMInteger.uint_16((short) 128)),
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.ACTIVE_DATETIME,
+            KMInteger.uint_16((short) 1)),
+        KMIntegerTag.instance(KMType.DATE_TAG, KMType.CREATION_DATETIME,
+            KMInteger.uint_16((short) 2)),
+        KMEnumArrayTag.instance(KMType.PURPOSE,
+            KMByteBlob.instance(purpose, (short) 0, (short) purpose.length)),
+        KMIntegerTag.instance(KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT,
+            KMInteger.uint_32(new byte[] {0x00, 0x01, 0x00, 0x01}, (short) 0))
+    };
+    short keyChar = makeKeyCharacteristics(tags, (short) 256);
+    short hwParams = KMKeyCharacteristics.cast(keyChar).getHardwareEnforced();
+    short swParams = KMKeyCharacteristics.cast(keyChar).getSoftwareEnforced();
+    assertTagSplit(tags, HW_ENFORCED_TAGS, KMKeyParameters.cast(hwParams).getVals(), (short) 5);
+    assertTagSplit(tags, SW_ENFORCED_TAGS, KMKeyParameters.cast(swParams).getVals(), (short) 0);
+    // A tag which is invalid in key parameters is rejected.
+    short[] invalidTags = {
+        KMEnumTag.instance(KMType.ALGORITHM, KMType.AES),
+        KMIntegerTag.instance(KMType.UINT_TAG, KMType.MAC_LENGTH, KMInteger.uint_16((short) 128))
+    };
+    try {
+      makeKeyCharacteristics(invalidTags, (short) 256);
+      Assert.fail("Invalid tag must be rejected");
+    } catch (KMException e) {
+      Assert.assertEquals(KMError.INVALID_KEY_BLOB, KMException.getReason());
+    }
+    // The scratch pad must hold both lists.
+    try {
+      makeKeyCharacteristics(tags, (short) ((tags.length + 5) * 2 + tags.length * 2 - 1));
+      Assert.fail("Scratch pad overflow must be rejected");
+    } catch (KMException e) {
+      Assert.assertEquals(KMError.INVALID_ARGUMENT, KMException.getReason());
+    }
+    cleanUp();
+  }
+
+  private short makeKeyCharacteristics(short[] tags, short scratchPadLength) {
+    short arrPtr = KMArray.instance((short) tags.length);
+    short index = 0;
+    while (index < tags.length) {
+      KMArray.cast(arrPtr).add(index, tags[index]);
+      index++;
+    }
+    return KMKeyParameters.makeKeyCharacteristics(KMKeyParameters.instance(arrPtr),
+        KMType.GENERATED, KMInteger.uint_16((short) 1), KMInteger.uint_16((short) 2),
+        KMInteger.uint_16((short) 3), KMInteger.uint_16((short) 4), new byte[scratchPadLength]);
+  }
+
+  // Checks that the list holds the tags found in the table, in their original order, followed by
+  // the given number of added tags.
+  private void assertTagSplit(short[] tags, short[] table, short list, short addedTags) {
+    short count = 0;
+    short index = 0;
+    short tagInd;
+    while (index < tags.length) {
+      tagInd = 0;
+      while (tagInd < table.length) {
+        if (table[tagInd] == KMTag.getTagType(tags[index])
+            && table[(short) (tagInd + 1)] == KMTag.getKey(tags[index])) {
+          Assert.assertEquals(tags[index], KMArray.cast(list).get(count));
+          count++;
+          break;
+        }
+        tagInd += 2;
+      }
+      index++;
+    }
+    Assert.assertEquals(count + addedTags, KMArray.cast(list).length());
+  }
+
   @Test
   public void testUnsupportedBlockMode() {
     init();
@@ -2692,7 +3488,7 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
-  public void testAttestKey(byte[] keyBlob) {
+  public X509Certificate testAttestKey(byte[] keyBlob) {
     short arrPtr = KMArray.instance((short) 2);
     KMArray.cast(arrPtr).add((short) 0, KMByteTag.instance(KMType.ATTESTATION_APPLICATION_ID,
         KMByteBlob.instance(attAppId, (short) 0, (short) attAppId.length)));
@@ -2720,6 +3516,152 @@ public class KMFunctionalTest {
     arrBlobs = KMArray.cast(ret).get((short) 1);
     short cert = KMArray.cast(arrBlobs).get((short) 0);
     //printCert(KMByteBlob.cast(cert).getBuffer(),KMByteBlob.cast(cert).getStartOff(),KMByteBlob.cast(cert).length());
+    return verifyAttestationCert(cert);
+  }
+
+  // The certificate must be well formed and signed by the provisioned attestation key.
+  private X509Certificate verifyAttestationCert(short cert) {
+    byte[] certBytes = new byte[KMByteBlob.cast(cert).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(cert).getBuffer(),
+        KMByteBlob.cast(cert).getStartOff(), certBytes, (short) 0, (short) certBytes.length);
+    try {
+      CertificateFactory factory = CertificateFactory.getInstance("X.509");
+      X509Certificate attestCert = (X509Certificate) factory
+          .generateCertificate(new ByteArrayInputStream(certBytes));
+      X509Certificate signingCert = (X509Certificate) factory
+          .generateCertificate(new ByteArrayInputStream(kEcAttestCert));
+      attestCert.verify(signingCert.getPublicKey());
+      return attestCert;
+    } catch (CertificateException | NoSuchAlgorithmException | InvalidKeyException
+        | NoSuchProviderException | SignatureException e) {
+      Assert.fail(e.getMessage());
+    }
+    return null;
+  }
+
+  // Returns the uniqueId field of the key description in the attestation extension.
+  private byte[] getUniqueId(X509Certificate cert) {
+    byte[] extn = cert.getExtensionValue("1.3.6.1.4.1.11129.2.1.17");
+    // OCTET STRING{KeyDescription SEQUENCE{version, securityLevel, keymasterVersion,
+    // keymasterSecurityLevel, challenge, uniqueId, ...}}
+    int[] offset = {0};
+    readDerHeader(extn, offset);
+    readDerHeader(extn, offset);
+    for (int i = 0; i < 5; i++) {
+      int len = readDerHeader(extn, offset);
+      offset[0] += len;
+    }
+    int len = readDerHeader(extn, offset);
+    return Arrays.copyOfRange(extn, offset[0], offset[0] + len);
+  }
+
+  // Skips the DER tag and length at the offset and returns the length.
+  private int readDerHeader(byte[] buf, int[] offset) {
+    offset[0]++;
+    int len = buf[offset[0]++] & 0xFF;
+    if (len > 0x80) {
+      int count = len & 0x7F;
+      len = 0;
+      while (count-- > 0) {
+        len = (len << 8) | (buf[offset[0]++] & 0xFF);
+      }
+    }
+    return len;
+  }
+
+  @Test
+  public void testAttestUniqueIdCache() {
+    init();
+    short key = generateRsaKey(null, null);
+    short keyBlobPtr = KMArray.cast(key).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    // The second attestation gets the unique id from the cache.
+    byte[] uniqueId = getUniqueId(testAttestKey(keyBlob));
+    Assert.assertEquals(32, uniqueId.length);
+    Assert.assertArrayEquals(uniqueId, getUniqueId(testAttestKey(keyBlob)));
+    cleanUp();
+  }
+
+  @Test
+  public void testConvertToDate() {
+    init();
+    long[] times = {
+        1577836800000L, // 1 Jan 2020
+        1582934400000L, // 29 Feb 2020
+        1609459199000L, // 31 Dec 2020 23:59:59
+        2556143999000L, // 31 Dec 2050 23:59:59
+        4107542400000L, // 1 Mar 2100
+        13574563200000L, // 29 Feb 2400
+        253402300799000L}; // 31 Dec 9999 23:59:59
+    SimpleDateFormat utc = new SimpleDateFormat("yyMMddHHmmss'Z'");
+    SimpleDateFormat generalized = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+    utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+    generalized.setTimeZone(TimeZone.getTimeZone("UTC"));
+    byte[] scratchPad = new byte[256];
+    for (long time : times) {
+      boolean utcFlag = time < 2556144000000L;
+      String expected = (utcFlag ? utc : generalized).format(new java.util.Date(time));
+      short timePtr = KMInteger.uint_64(
+          BigInteger.valueOf(time).add(BigInteger.ONE.shiftLeft(64)).toByteArray(), (short) 1);
+      short date = KMUtils.convertToDate(timePtr, scratchPad, utcFlag);
+      byte[] actual = new byte[KMByteBlob.cast(date).length()];
+      Util.arrayCopyNonAtomic(KMByteBlob.cast(date).getBuffer(),
+          KMByteBlob.cast(date).getStartOff(), actual, (short) 0, (short) actual.length);
+      Assert.assertEquals(expected, new String(actual));
+    }
+    cleanUp();
+  }
+
+  @Test
+  public void testBatchAttestKey() {
+    init();
+    byte[][] keys = {getKeyBlob(generateRsaKey(null, null)), getKeyBlob(generateEcKey(null, null))};
+    short keyBlobs = KMArray.instance((short) keys.length);
+    short keyParamsArr = KMArray.instance((short) keys.length);
+    for (short i = 0; i < keys.length; i++) {
+      short keyBlob = KMByteBlob.instance(keys[i], (short) 0, (short) keys[i].length);
+      KMArray.cast(keyBlobs).add(i, keyBlob);
+      short arrPtr = KMArray.instance((short) 2);
+      KMArray.cast(arrPtr).add((short) 0, KMByteTag.instance(KMType.ATTESTATION_APPLICATION_ID,
+          KMByteBlob.instance(attAppId, (short) 0, (short) attAppId.length)));
+      KMArray.cast(arrPtr).add((short) 1, KMByteTag.instance(KMType.ATTESTATION_CHALLENGE,
+          KMByteBlob.instance(attChallenge, (short) 0, (short) attChallenge.length)));
+      short keyParams = KMKeyParameters.instance(arrPtr);
+      KMArray.cast(keyParamsArr).add(i, keyParams);
+    }
+    short args = KMArray.instance((short) 2);
+    KMArray.cast(args).add((short) 0, keyBlobs);
+    KMArray.cast(args).add((short) 1, keyParamsArr);
+    CommandAPDU apdu = encodeApdu((byte) INS_BATCH_ATTEST_KEY_CMD, args);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    short ret = KMArray.instance((short) 2);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    short certsExp = KMArray.exp(KMByteBlob.exp());
+    KMArray.cast(ret).add((short) 1, certsExp);
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    short certs = KMArray.cast(ret).get((short) 1);
+    Assert.assertEquals(keys.length, KMArray.cast(certs).length());
+    for (short i = 0; i < keys.length; i++) {
+      verifyAttestationCert(KMArray.cast(certs).get(i));
+    }
+    cleanUp();
+  }
+
+  private byte[] getKeyBlob(short key) {
+    short keyBlobPtr = KMArray.cast(key).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    return keyBlob;
   }
 
   @Test
@@ -3014,6 +3956,169 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testOperationHandleTopByte() {
+    init();
+    // A handle whose random tag starts with zero bytes must still be encoded in 8 bytes.
+    short opHandle = KMInteger.instance(KMRepository.OPERATION_HANDLE_SIZE);
+    KMOperationState op = KMRepository.instance().reserveOperation(opHandle);
+    Assert.assertNotNull(op);
+    Assert.assertNotEquals(0, KMInteger.cast(opHandle).getBuffer()[
+        KMInteger.cast(opHandle).getStartOff()]);
+    byte[] encoded = new byte[16];
+    Assert.assertEquals(1 + KMRepository.OPERATION_HANDLE_SIZE,
+        encoder.encode(opHandle, encoded, (short) 0));
+    cleanUp();
+  }
+
+  @Test
+  public void testStaleOperationHandleAfterSlotReuse() {
+    init();
+    short aesDesKeyArr = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(aesDesKeyArr).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    byte[] nonce = new byte[16];
+    byte[] plainData = "Hello World 123!".getBytes();
+    byte[] staleHandleBuf = new byte[KMRepository.OPERATION_HANDLE_SIZE];
+    byte[] opHandleBuf = new byte[KMRepository.OPERATION_HANDLE_SIZE];
+    // Begin and abort an operation so that its slot becomes free.
+    short inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, nonce);
+    short ret = begin(KMType.ENCRYPT,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(inParams), (short) 0, false);
+    KMInteger.cast(KMArray.cast(ret).get((short) 2)).getValue(staleHandleBuf, (short) 0,
+        (short) staleHandleBuf.length);
+    ret = abort(KMInteger.uint_64(staleHandleBuf, (short) 0), false);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(ret).getShort());
+    // The next operation reuses the same slot with a different handle.
+    inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, nonce);
+    ret = begin(KMType.ENCRYPT,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(inParams), (short) 0, false);
+    KMInteger.cast(KMArray.cast(ret).get((short) 2)).getValue(opHandleBuf, (short) 0,
+        (short) opHandleBuf.length);
+    Assert.assertEquals(staleHandleBuf[opHandleBuf.length - 1],
+        opHandleBuf[opHandleBuf.length - 1]);
+    Assert.assertNotEquals(0, Util.arrayCompare(staleHandleBuf, (short) 0, opHandleBuf,
+        (short) 0, (short) opHandleBuf.length));
+    // The stale handle must not resolve to the new operation.
+    short dataPtr = KMByteBlob.instance(plainData, (short) 0, (short) plainData.length);
+    ret = update(KMInteger.uint_64(staleHandleBuf, (short) 0), dataPtr, (short) 0, (short) 0,
+        (short) 0, false);
+    Assert.assertEquals(KMError.INVALID_OPERATION_HANDLE, KMInteger.cast(ret).getShort());
+    ret = abort(KMInteger.uint_64(opHandleBuf, (short) 0), false);
+    Assert.assertEquals(KMError.OK, KMInteger.cast(ret).getShort());
+    cleanUp();
+  }
+
+  @Test
+  public void testMaxConcurrentOperations() {
+    init();
+    assertMaxConcurrentOperations(KMConfiguration.getMaxOps());
+    cleanUp();
+  }
+
+  // Begins maxOps operations, checks that one more is rejected and then finishes them.
+  private void assertMaxConcurrentOperations(short maxOps) {
+    short aesDesKeyArr = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(aesDesKeyArr).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    byte[] nonce = new byte[16];
+    byte[] plainData = "Hello World 123!".getBytes();
+    byte[][] opHandles = new byte[maxOps][KMRepository.OPERATION_HANDLE_SIZE];
+    short inParams;
+    short ret;
+    short index = 0;
+    while (index < maxOps) {
+      inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, nonce);
+      ret = begin(KMType.ENCRYPT,
+          KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+          KMKeyParameters.instance(inParams), (short) 0, false);
+      KMInteger.cast(KMArray.cast(ret).get((short) 2)).getValue(opHandles[index], (short) 0,
+          KMRepository.OPERATION_HANDLE_SIZE);
+      index++;
+    }
+    // No more operations can be started.
+    inParams = getAesDesParams(KMType.AES, KMType.ECB, KMType.PKCS7, nonce);
+    ret = begin(KMType.ENCRYPT,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(inParams), (short) 0, false);
+    Assert.assertEquals(KMError.TOO_MANY_OPERATIONS, ret);
+    index = 0;
+    while (index < maxOps) {
+      finish(KMInteger.uint_64(opHandles[index], (short) 0),
+          KMByteBlob.instance(plainData, (short) 0, (short) plainData.length), null,
+          (short) 0, (short) 0, (short) 0, KMError.OK, false);
+      index++;
+    }
+  }
+
+  @Test
+  public void testCipherSwapState() {
+    init();
+    byte[] key = new byte[16];
+    byte[] iv = new byte[16];
+    byte[] plainData = new byte[64];
+    cryptoProvider.newRandomNumber(key, (short) 0, (short) key.length);
+    cryptoProvider.newRandomNumber(iv, (short) 0, (short) iv.length);
+    cryptoProvider.newRandomNumber(plainData, (short) 0, (short) plainData.length);
+    byte[] expected = new byte[64];
+    aesCbc(key, (short) 0, iv, (short) 0, Cipher.MODE_ENCRYPT).doFinal(plainData, (short) 0,
+        (short) 64, expected, (short) 0);
+    KMCipherSwapState swapState = new KMCipherSwapState();
+    // Encrypt the first half, then swap out the cipher and resume from the swap state.
+    byte[] out = new byte[64];
+    Assert.assertTrue(swapState.init(KMType.AES, KMType.CBC, KMType.ENCRYPT, key, (short) 0,
+        (short) 16, iv, (short) 0, (short) 16));
+    short len = aesCbc(key, (short) 0, iv, (short) 0, Cipher.MODE_ENCRYPT)
+        .update(plainData, (short) 0, (short) 32, out, (short) 0);
+    swapState.prepareUpdate(plainData, (short) 0, (short) 32);
+    Assert.assertTrue(swapState.update((short) 32, out, (short) 0, len));
+    aesCbc(swapState.getBuffer(), swapState.getKeyStart(), swapState.getBuffer(),
+        swapState.getChainBlockStart(), Cipher.MODE_ENCRYPT)
+        .doFinal(plainData, (short) 32, (short) 32, out, (short) 32);
+    Assert.assertArrayEquals(expected, out);
+    // Same for decryption, which is done in place so that the cipher text is overwritten.
+    Assert.assertTrue(swapState.init(KMType.AES, KMType.CBC, KMType.DECRYPT, key, (short) 0,
+        (short) 16, iv, (short) 0, (short) 16));
+    Util.arrayCopyNonAtomic(expected, (short) 0, out, (short) 0, (short) 32);
+    swapState.prepareUpdate(out, (short) 0, (short) 32);
+    len = aesCbc(key, (short) 0, iv, (short) 0, Cipher.MODE_DECRYPT)
+        .update(out, (short) 0, (short) 32, out, (short) 0);
+    Assert.assertTrue(swapState.update((short) 32, out, (short) 0, len));
+    aesCbc(swapState.getBuffer(), swapState.getKeyStart(), swapState.getBuffer(),
+        swapState.getChainBlockStart(), Cipher.MODE_DECRYPT)
+        .doFinal(expected, (short) 32, (short) 32, out, (short) 32);
+    Assert.assertArrayEquals(plainData, out);
+    // Updates which are not block aligned or which hold back data can not be swapped out.
+    Assert.assertTrue(swapState.init(KMType.AES, KMType.CBC, KMType.ENCRYPT, key, (short) 0,
+        (short) 16, iv, (short) 0, (short) 16));
+    Assert.assertFalse(swapState.update((short) 20, out, (short) 0, (short) 16));
+    Assert.assertFalse(swapState.isValid());
+    Assert.assertTrue(swapState.init(KMType.AES, KMType.CBC, KMType.DECRYPT, key, (short) 0,
+        (short) 16, iv, (short) 0, (short) 16));
+    Assert.assertFalse(swapState.update((short) 32, out, (short) 0, (short) 16));
+    Assert.assertFalse(swapState.isValid());
+    Assert.assertFalse(swapState.init(KMType.AES, KMType.GCM, KMType.ENCRYPT, key, (short) 0,
+        (short) 16, iv, (short) 0, (short) 16));
+    cleanUp();
+  }
+
+  private Cipher aesCbc(byte[] keyBuf, short keyStart, byte[] ivBuf, short ivStart, byte mode) {
+    AESKey aesKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128,
+        false);
+    aesKey.setKey(keyBuf, keyStart);
+    Cipher cipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+    cipher.init(aesKey, mode, ivBuf, ivStart, (short) 16);
+    return cipher;
+  }
+
   public void testEncryptDecryptWithAesDes(byte alg, byte blockMode, byte padding, boolean update) {
     short aesDesKeyArr;
     boolean aesGcmFlag = false;
@@ -23,11 +23,16 @@ import javacard.framework.Util;
 /**
  * KMByteBlob represents contiguous block of bytes. It corresponds to CBOR type of Byte String. It
  * extends KMType by specifying value field as zero or more sequence of bytes. struct{byte
- * BYTE_BLOB_TYPE; short length; sequence of bytes}
+ * BYTE_BLOB_TYPE; short length; sequence of bytes}. A view refers to bytes held elsewhere in the
+ * heap without copying them. struct{byte BYTE_BLOB_TYPE; short length | VIEW_FLAG; short
+ * startOff}.
  */
 public class KMByteBlob extends KMType {
 
   private static KMByteBlob prototype;
+  // Set in the length of views. Blobs are always smaller than this.
+  private static final short VIEW_FLAG = 0x4000;
+  private static final short LENGTH_MASK = 0x3FFF;
 
   private KMByteBlob() {
   }
@@ -57,6 +62,20 @@ public class KMByteBlob extends KMType {
     return ptr;
   }
 
+  // byte blob referring to the bytes in the heap
+  public static short view(byte[] buf, short startOff, short length) {
+    if (buf != heap) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+    if (length < 0 || length > LENGTH_MASK) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    short ptr = KMType.instance(BYTE_BLOB_TYPE, (short) 2);
+    Util.setShort(heap, (short) (ptr + 1), (short) (length | VIEW_FLAG));
+    Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE), startOff);
+    return ptr;
+  }
+
   // cast the ptr to KMByteBlob
   public static KMByteBlob cast(short ptr) {
     if (heap[ptr] != BYTE_BLOB_TYPE) {
@@ -74,7 +93,7 @@ public class KMByteBlob extends KMType {
     if (index >= len) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    heap[(short) (instanceTable[KM_BYTE_BLOB_OFFSET] + TLV_HEADER_SIZE + index)] = val;
+    getBuffer()[(short) (getStartOff() + index)] = val;
   }
 
   // Get the byte
@@ -83,17 +102,27 @@ public class KMByteBlob extends KMType {
     if (index >= len) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    return heap[(short) (instanceTable[KM_BYTE_BLOB_OFFSET] + TLV_HEADER_SIZE + index)];
+    return getBuffer()[(short) (getStartOff() + index)];
+  }
+
+  public boolean isView() {
+    return (Util.getShort(heap, (short) (instanceTable[KM_BYTE_BLOB_OFFSET] + 1)) & VIEW_FLAG)
+        != 0;
   }
 
   // Get the start of blob
   public short getStartOff() {
-    return (short) (instanceTable[KM_BYTE_BLOB_OFFSET] + TLV_HEADER_SIZE);
+    short ptr = instanceTable[KM_BYTE_BLOB_OFFSET];
+    if (isView()) {
+      return Util.getShort(heap, (short) (ptr + TLV_HEADER_SIZE));
+    }
+    return (short) (ptr + TLV_HEADER_SIZE);
   }
 
   // Get the length of the blob
   public short length() {
-    return Util.getShort(heap, (short) (instanceTable[KM_BYTE_BLOB_OFFSET] + 1));
+    return (short) (Util.getShort(heap, (short) (instanceTable[KM_BYTE_BLOB_OFFSET] + 1))
+        & LENGTH_MASK);
   }
 
   // Get the buffer pointer in which blob is contained.
@@ -102,12 +131,12 @@ public class KMByteBlob extends KMType {
   }
 
   public void getValue(byte[] destBuf, short destStart, short destLength) {
-    Util.arrayCopyNonAtomic(heap, getStartOff(), destBuf, destStart, destLength);
+    Util.arrayCopyNonAtomic(getBuffer(), getStartOff(), destBuf, destStart, destLength);
   }
 
   public short getValues(byte[] destBuf, short destStart) {
     short destLength = length();
-    Util.arrayCopyNonAtomic(heap, getStartOff(), destBuf, destStart, destLength);
+    Util.arrayCopyNonAtomic(getBuffer(), getStartOff(), destBuf, destStart, destLength);
     return destLength;
   }
 
@@ -115,7 +144,7 @@ public class KMByteBlob extends KMType {
     if (length() > srcLength) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    Util.arrayCopyNonAtomic(srcBuf, srcStart, heap, getStartOff(), length());
+    Util.arrayCopyNonAtomic(srcBuf, srcStart, getBuffer(), getStartOff(), length());
   }
 
   public boolean isValid() {
@@ -127,7 +156,7 @@ public class KMByteBlob extends KMType {
 
   public void decrementLength(short len) {
     short length = Util.getShort(heap, (short) (instanceTable[KM_BYTE_BLOB_OFFSET] + 1));
-    length = (short) (length - len);
+    length = (short) ((short) ((short) (length & LENGTH_MASK) - len) | (length & VIEW_FLAG));
     Util.setShort(heap, (short) (instanceTable[KM_BYTE_BLOB_OFFSET] + 1), length);
   }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright(C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.javacard.keymaster;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * KMCipherSwapState holds the state required to re-create the cipher of an AES/DES ECB, CBC or
+ * CTR operation after its cipher instance was lent to another operation, i.e. the key and the
+ * chaining block reached so far (the next iv or counter). This is only possible while every update
+ * consumed whole blocks and returned all of its output, because then the cipher holds no buffered
+ * data. The state becomes invalid as soon as an update breaks this rule.
+ */
+public class KMCipherSwapState {
+
+  private static final short MAX_KEY_LENGTH = 32;
+  private static final short CHAIN_BLOCK_OFFSET = MAX_KEY_LENGTH;
+  public static final short CHAIN_BLOCK_LENGTH = 16;
+  // Last cipher text block of a CBC decrypt update, captured before the update because the
+  // update may decrypt in place.
+  private static final short PENDING_BLOCK_OFFSET = CHAIN_BLOCK_OFFSET + CHAIN_BLOCK_LENGTH;
+  private static final short STATE_LENGTH = MAX_KEY_LENGTH + CHAIN_BLOCK_LENGTH * 2;
+  // Parameter offsets
+  private static final short KEY_LENGTH = 0;
+  private static final short ALG = 1;
+  private static final short BLOCK_MODE = 2;
+  private static final short MODE = 3;
+  private static final short VALID = 4;
+  private static final short PARAMS_LENGTH = 5;
+  // Transient memory used by one instance.
+  public static final short TRANSIENT_SIZE = STATE_LENGTH + PARAMS_LENGTH * 2;
+
+  private byte[] state;
+  private short[] params;
+
+  public KMCipherSwapState() {
+    state = JCSystem.makeTransientByteArray(STATE_LENGTH, JCSystem.CLEAR_ON_RESET);
+    params = JCSystem.makeTransientShortArray(PARAMS_LENGTH, JCSystem.CLEAR_ON_RESET);
+  }
+
+  // Stores the key and the initial iv/counter. Returns false if the operation can not be
+  // swapped out.
+  public boolean init(short alg, short blockMode, short mode, byte[] keyBuf, short keyStart,
+      short keyLength, byte[] ivBuf, short ivStart, short ivLength) {
+    reset();
+    if ((alg != KMType.AES && alg != KMType.DES)
+        || (blockMode != KMType.ECB && blockMode != KMType.CBC && blockMode != KMType.CTR)
+        || keyLength > MAX_KEY_LENGTH || ivLength > CHAIN_BLOCK_LENGTH) {
+      return false;
+    }
+    Util.arrayCopyNonAtomic(keyBuf, keyStart, state, (short) 0, keyLength);
+    if (ivLength > 0) {
+      Util.arrayCopyNonAtomic(ivBuf, ivStart, state, CHAIN_BLOCK_OFFSET, ivLength);
+    }
+    params[KEY_LENGTH] = keyLength;
+    params[ALG] = alg;
+    params[BLOCK_MODE] = blockMode;
+    params[MODE] = mode;
+    params[VALID] = 1;
+    return true;
+  }
+
+  public void reset() {
+    Util.arrayFillNonAtomic(state, (short) 0, STATE_LENGTH, (byte) 0);
+    short index = 0;
+    while (index < (short) params.length) {
+      params[index] = 0;
+      index++;
+    }
+  }
+
+  public boolean isValid() {
+    return params[VALID] != 0;
+  }
+
+  // Must be called before the cipher update with the same input. Captures the last cipher text
+  // block of a CBC decrypt update, which an in place update overwrites.
+  public void prepareUpdate(byte[] inputBuf, short inputStart, short inputLength) {
+    short blkSize = getBlockSize();
+    if (params[VALID] == 0 || params[BLOCK_MODE] != KMType.CBC || params[MODE] != KMType.DECRYPT
+        || inputLength < blkSize) {
+      return;
+    }
+    Util.arrayCopyNonAtomic(inputBuf, (short) (inputStart + inputLength - blkSize),
+        state, PENDING_BLOCK_OFFSET, blkSize);
+  }
+
+  // Records the chaining block reached after an update which returned outputLength bytes for
+  // inputLength bytes of input. Returns false, and invalidates the state, if the update was not
+  // block aligned or the cipher held back some of the data.
+  public boolean update(short inputLength, byte[] outputBuf, short outputStart,
+      short outputLength) {
+    if (params[VALID] == 0) {
+      return false;
+    }
+    short blkSize = getBlockSize();
+    if (outputLength != inputLength || (short) (inputLength % blkSize) != 0) {
+      reset();
+      return false;
+    }
+    if (inputLength == 0) {
+      return true;
+    }
+    switch (params[BLOCK_MODE]) {
+      case KMType.CBC:
+        // The next iv is the last cipher text block.
+        if (params[MODE] == KMType.ENCRYPT) {
+          Util.arrayCopyNonAtomic(outputBuf, (short) (outputStart + outputLength - blkSize),
+              state, CHAIN_BLOCK_OFFSET, blkSize);
+        } else {
+          Util.arrayCopyNonAtomic(state, PENDING_BLOCK_OFFSET, state, CHAIN_BLOCK_OFFSET,
+              blkSize);
+        }
+        break;
+      case KMType.CTR:
+        // Advance the big endian counter by the number of processed blocks.
+        short carry = (short) (inputLength / blkSize);
+        short index = (short) (CHAIN_BLOCK_OFFSET + CHAIN_BLOCK_LENGTH - 1);
+        while (carry != 0 && index >= CHAIN_BLOCK_OFFSET) {
+          carry = (short) ((state[index] & 0xFF) + carry);
+          state[index] = (byte) carry;
+          carry = (short) ((carry >> 8) & 0xFF);
+          index--;
+        }
+        break;
+      default:
+        break;
+    }
+    return true;
+  }
+
+  private short getBlockSize() {
+    if (params[ALG] == KMType.DES) {
+      return 8;
+    }
+    return 16;
+  }
+
+  public byte[] getBuffer() {
+    return state;
+  }
+
+  public short getKeyStart() {
+    return 0;
+  }
+
+  public short getKeyLength() {
+    return params[KEY_LENGTH];
+  }
+
+  public short getChainBlockStart() {
+    return CHAIN_BLOCK_OFFSET;
+  }
+}
@@ -15,9 +15,11 @@
  */
 package com.android.javacard.keymaster;
 
-public class KMInstance {
+/**
+ * KMComputedHmacKey is a marker interface and the SE Provider has to implement this interface.
+ * Internally the computed shared hmac key is held in a transient Javacard HMac key object, which
+ * is cleared on reset. The computed hmac key is maintained by the SEProvider.
+ */
+public interface KMComputedHmacKey {
 
-  public byte reserved;
-  public Object object;
-  public byte instanceCount;
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright(C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.javacard.keymaster;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * KMConfiguration holds the memory and concurrency limits of the applet. The limits default to
+ * the values below and can be overridden by the application specific install parameters, so that
+ * the same applet can be sized for SEs with different RAM and EEPROM budgets. The install
+ * parameters are a sequence of entries, each one a tag byte followed by a 2 byte value. The
+ * limits are set once at install time, before the applet and the SE provider are created, and
+ * are then validated against the memory that the applet and the SE provider will allocate.
+ */
+public class KMConfiguration {
+
+  // Install parameter tags
+  public static final byte HEAP_SIZE_TAG = 0x01;
+  public static final byte DATA_MEM_SIZE_TAG = 0x02;
+  public static final byte MAX_OPS_TAG = 0x03;
+  public static final byte CERT_CHAIN_MAX_SIZE_TAG = 0x04;
+  public static final byte POOL_INSTANCES_TAG = 0x05;
+  private static final short ENTRY_SIZE = 3;
+
+  // Default limits
+  public static final short DEFAULT_HEAP_SIZE = 10000;
+  public static final short DEFAULT_DATA_MEM_SIZE = 2048;
+  public static final short DEFAULT_MAX_OPS = 8;
+  public static final short DEFAULT_CERT_CHAIN_MAX_SIZE = 2500;
+  public static final short DEFAULT_POOL_INSTANCES = 4;
+
+  // Bounds of the limits
+  private static final short MIN_HEAP_SIZE = 4096;
+  private static final short MIN_DATA_MEM_SIZE = 1024;
+  private static final short MIN_CERT_CHAIN_MAX_SIZE = 1024;
+  private static final short MAX_SIZE = 0x7FFF;
+  private static final short MAX_OPS_LIMIT = 32;
+  private static final short POOL_INSTANCES_LIMIT = 16;
+
+  private static short heapSize = DEFAULT_HEAP_SIZE;
+  private static short dataMemSize = DEFAULT_DATA_MEM_SIZE;
+  private static short maxOps = DEFAULT_MAX_OPS;
+  private static short certChainMaxSize = DEFAULT_CERT_CHAIN_MAX_SIZE;
+  private static short poolInstances = DEFAULT_POOL_INSTANCES;
+
+  /**
+   * Reads the limits from the install parameters.
+   *
+   * @param bArray the array containing installation parameters
+   * @param bOffset the starting offset in bArray
+   * @param bLength the length in bytes of the parameter data in bArray
+   */
+  public static void init(byte[] bArray, short bOffset, byte bLength) {
+    heapSize = DEFAULT_HEAP_SIZE;
+    dataMemSize = DEFAULT_DATA_MEM_SIZE;
+    maxOps = DEFAULT_MAX_OPS;
+    certChainMaxSize = DEFAULT_CERT_CHAIN_MAX_SIZE;
+    poolInstances = DEFAULT_POOL_INSTANCES;
+    if (bArray != null && bLength > 0) {
+      // Skip the instance AID and the privileges.
+      short end = (short) (bOffset + bLength);
+      short offset = skipLengthValue(bArray, bOffset, end);
+      offset = skipLengthValue(bArray, offset, end);
+      if (offset < end) {
+        short paramsLen = (short) (bArray[offset] & 0xFF);
+        offset++;
+        if ((short) (offset + paramsLen) > end) {
+          ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        parseParams(bArray, offset, paramsLen);
+      }
+    }
+  }
+
+  private static short skipLengthValue(byte[] bArray, short offset, short end) {
+    if (offset >= end) {
+      return end;
+    }
+    offset = (short) (offset + 1 + (short) (bArray[offset] & 0xFF));
+    if (offset > end) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    return offset;
+  }
+
+  private static void parseParams(byte[] bArray, short offset, short length) {
+    if ((short) (length % ENTRY_SIZE) != 0) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    short end = (short) (offset + length);
+    while (offset < end) {
+      short val = Util.getShort(bArray, (short) (offset + 1));
+      switch (bArray[offset]) {
+        case HEAP_SIZE_TAG:
+          heapSize = checkRange(val, MIN_HEAP_SIZE, MAX_SIZE);
+          break;
+        case DATA_MEM_SIZE_TAG:
+          dataMemSize = checkRange(val, MIN_DATA_MEM_SIZE, MAX_SIZE);
+          break;
+        case MAX_OPS_TAG:
+          maxOps = checkRange(val, (short) 1, MAX_OPS_LIMIT);
+          break;
+        case CERT_CHAIN_MAX_SIZE_TAG:
+          certChainMaxSize = checkRange(val, MIN_CERT_CHAIN_MAX_SIZE, MAX_SIZE);
+          break;
+        case POOL_INSTANCES_TAG:
+          poolInstances = checkRange(val, (short) 1, POOL_INSTANCES_LIMIT);
+          break;
+        default:
+          ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+      }
+      offset += ENTRY_SIZE;
+    }
+  }
+
+  private static short checkRange(short val, short min, short max) {
+    if (val < min || val > max) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+    return val;
+  }
+
+  // Transient memory of the shared classes which does not depend on the limits. Each class owns
+  // the size of the buffers it allocates, object references are counted as 2 bytes.
+  private static final short FIXED_TRANSIENT_SIZE = KMType.TRANSIENT_SIZE
+      + KMEncoder.TRANSIENT_SIZE + KMDecoder.TRANSIENT_SIZE + KMException.TRANSIENT_SIZE
+      + KMOperationState.TRANSIENT_SIZE + KMKeymasterApplet.TRANSIENT_SIZE
+      + KMRepository.FIXED_TRANSIENT_SIZE;
+
+  /**
+   * Validates the limits against the memory available to the applet. The heap and the operation
+   * state table are the bulk of the transient memory, the data table and the certificate chain are
+   * the bulk of the persistent memory. Both persistent buffers are carried over an upgrade, so
+   * they are not allocated again.
+   *
+   * @param providerTransientSize the transient memory the SE provider allocates for the limits
+   * @param isUpgrading true if the persistent data is restored from a previous applet instance
+   */
+  public static void validateAvailableMemory(short providerTransientSize, boolean isUpgrading) {
+    short transientSize = (short) (heapSize
+        + (short) (maxOps * KMRepository.OPER_TRANSIENT_SIZE)
+        + FIXED_TRANSIENT_SIZE + providerTransientSize);
+    if (transientSize < 0 || transientSize
+        > JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_RESET)) {
+      ISOException.throwIt(ISO7816.SW_FILE_FULL);
+    }
+    if (!isUpgrading) {
+      short persistentSize = (short) (dataMemSize + certChainMaxSize);
+      if (persistentSize < 0 || persistentSize
+          > JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT)) {
+        ISOException.throwIt(ISO7816.SW_FILE_FULL);
+      }
+    }
+  }
+
+  public static short getHeapSize() {
+    return heapSize;
+  }
+
+  public static short getDataMemSize() {
+    return dataMemSize;
+  }
+
+  public static short getMaxOps() {
+    return maxOps;
+  }
+
+  public static short getCertChainMaxSize() {
+    return certChainMaxSize;
+  }
+
+  public static short getPoolInstances() {
+    return poolInstances;
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.android.javacard.keymaster;
 
+import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
@@ -39,10 +40,18 @@ public class KMDecoder {
   private static final short UINT32_LENGTH = 0x1A;
   private static final short UINT64_LENGTH = 0x1B;
 
-  private static final short SCRATCH_BUF_SIZE = 6;
+  private static final short SCRATCH_BUF_SIZE = 10;
+  // Transient memory of the buffer reference and the scratch buffer.
+  public static final short TRANSIENT_SIZE = 2 + SCRATCH_BUF_SIZE * 2;
   private static final short START_OFFSET = 0;
   private static final short LEN_OFFSET = 2;
   private static final short TAG_KEY_OFFSET = 4;
+  // Start of the command data in the APDU buffer while decoding incoming data.
+  private static final short WINDOW_START_OFFSET = 6;
+  // Number of incoming bytes not yet received from the APDU.
+  private static final short REMAINING_LEN_OFFSET = 8;
+  // Largest number of bytes read at once while decoding a header - uint64 value.
+  private static final short MAX_HEADER_LENGTH = 9;
   private Object[] bufferRef;
   private short[] scratchBuf;
 
@@ -59,6 +68,25 @@ public class KMDecoder {
     bufferRef[0] = buffer;
     scratchBuf[START_OFFSET] = startOff;
     scratchBuf[LEN_OFFSET] = (short) (startOff + length);
+    scratchBuf[REMAINING_LEN_OFFSET] = 0;
+    return decode(expression);
+  }
+
+  /**
+   * Receives the incoming data of the apdu and decodes it as per the expression. The data is
+   * decoded directly from the apdu buffer and more data is received as the decoder consumes it,
+   * so the incoming data is never staged in the heap. Byte blobs are copied once from the apdu
+   * buffer into the heap.
+   */
+  public short decodeIncoming(short expression, APDU apdu) {
+    short recvLen = apdu.setIncomingAndReceive();
+    // The apdu buffer is a global array, which must not be stored. Null buffer reference
+    // indicates that the current apdu buffer is decoded.
+    bufferRef[0] = null;
+    scratchBuf[WINDOW_START_OFFSET] = apdu.getOffsetCdata();
+    scratchBuf[START_OFFSET] = scratchBuf[WINDOW_START_OFFSET];
+    scratchBuf[LEN_OFFSET] = (short) (scratchBuf[START_OFFSET] + recvLen);
+    scratchBuf[REMAINING_LEN_OFFSET] = (short) (apdu.getIncomingLength() - recvLen);
     return decode(expression);
   }
 
@@ -66,6 +94,7 @@ public class KMDecoder {
     bufferRef[0] = buffer;
     scratchBuf[START_OFFSET] = startOff;
     scratchBuf[LEN_OFFSET] = (short) (startOff + length);
+    scratchBuf[REMAINING_LEN_OFFSET] = 0;
     short payloadLength = readMajorTypeWithPayloadLength(ARRAY_TYPE);
     short expLength = KMArray.cast(exp).length();
     if (payloadLength > expLength) {
@@ -84,6 +113,127 @@ public class KMDecoder {
     return arrPtr;
   }
 
+  /**
+   * Decodes key characteristics from the heap without decoding their tags. Each key parameters map
+   * is scanned once to check its structure and to record the offsets of its tags. The tags are
+   * decoded when they are looked up, so the encoded bytes must not change while the key
+   * characteristics are in use.
+   */
+  public short decodeKeyCharLazy(byte[] buffer, short startOff, short length) {
+    if (buffer != KMType.heap) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+    bufferRef[0] = buffer;
+    scratchBuf[START_OFFSET] = startOff;
+    scratchBuf[LEN_OFFSET] = (short) (startOff + length);
+    scratchBuf[REMAINING_LEN_OFFSET] = 0;
+    if (readMajorTypeWithPayloadLength(ARRAY_TYPE) != 2) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    short softEnf = scanKeyParam();
+    short hwEnf = scanKeyParam();
+    short vals = KMArray.instance((short) 2);
+    KMArray.cast(vals).add(KMKeyCharacteristics.SOFTWARE_ENFORCED, softEnf);
+    KMArray.cast(vals).add(KMKeyCharacteristics.HARDWARE_ENFORCED, hwEnf);
+    return KMKeyCharacteristics.instance(vals);
+  }
+
+  private short scanKeyParam() {
+    short payloadLength = readMajorTypeWithPayloadLength(MAP_TYPE);
+    short vals = KMArray.instance(payloadLength);
+    short offsets = KMArray.instance((short) (payloadLength + 1));
+    short index = 0;
+    while (index < payloadLength) {
+      KMArray.cast(vals).add(index, KMType.INVALID_VALUE);
+      KMArray.cast(offsets).add(index, scratchBuf[START_OFFSET]);
+      skipTag(peekTagType());
+      index++;
+    }
+    KMArray.cast(offsets).add(payloadLength, scratchBuf[START_OFFSET]);
+    return KMKeyParameters.lazyInstance(vals, offsets);
+  }
+
+  // Skips the tag key and the value of a tag of the given type.
+  private void skipTag(short tagType) {
+    // uint32 tag type and key, already checked by peekTagType.
+    incrementStartOff((short) 5);
+    short len;
+    switch (tagType) {
+      case KMType.BYTES_TAG:
+      case KMType.ENUM_ARRAY_TAG:
+        len = readMajorTypeWithPayloadLength(BYTES_TYPE);
+        incrementStartOff(len);
+        break;
+      case KMType.BOOL_TAG:
+      case KMType.ENUM_TAG:
+      case KMType.UINT_TAG:
+      case KMType.ULONG_TAG:
+      case KMType.DATE_TAG:
+        skipInteger();
+        break;
+      case KMType.UINT_ARRAY_TAG:
+      case KMType.ULONG_ARRAY_TAG:
+        len = readMajorTypeWithPayloadLength(ARRAY_TYPE);
+        while (len > 0) {
+          skipInteger();
+          len--;
+        }
+        break;
+      default:
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+  }
+
+  private void skipInteger() {
+    byte val = readByte();
+    if ((short) (val & MAJOR_TYPE_MASK) != UINT_TYPE) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+    short len = (short) (val & ADDITIONAL_MASK);
+    if (len > UINT64_LENGTH) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    // 1, 2, 4 or 8 bytes follow the header of larger values.
+    if (len >= UINT8_LENGTH) {
+      incrementStartOff((short) (1 << (short) (len - UINT8_LENGTH)));
+    }
+  }
+
+  private byte[] getBuffer() {
+    if (bufferRef[0] == null) {
+      return APDU.getCurrentAPDUBuffer();
+    }
+    return (byte[]) bufferRef[0];
+  }
+
+  // Makes sure that at least len bytes are available to be read from the buffer if the
+  // incoming data has that many bytes. The unread bytes are moved to the start of the
+  // window and more data is received after them.
+  private void ensureAvailable(short len) {
+    short available = (short) (scratchBuf[LEN_OFFSET] - scratchBuf[START_OFFSET]);
+    if (available >= len || scratchBuf[REMAINING_LEN_OFFSET] <= 0) {
+      return;
+    }
+    byte[] buffer = APDU.getCurrentAPDUBuffer();
+    short windowStart = scratchBuf[WINDOW_START_OFFSET];
+    if (available > 0) {
+      Util.arrayCopyNonAtomic(buffer, scratchBuf[START_OFFSET], buffer, windowStart, available);
+    }
+    scratchBuf[START_OFFSET] = windowStart;
+    scratchBuf[LEN_OFFSET] = (short) (windowStart + available);
+    short recvLen;
+    while (available < len && scratchBuf[REMAINING_LEN_OFFSET] > 0
+        && scratchBuf[LEN_OFFSET] < (short) buffer.length) {
+      recvLen = APDU.getCurrentAPDU().receiveBytes(scratchBuf[LEN_OFFSET]);
+      if (recvLen <= 0) {
+        break;
+      }
+      scratchBuf[LEN_OFFSET] += recvLen;
+      scratchBuf[REMAINING_LEN_OFFSET] -= recvLen;
+      available += recvLen;
+    }
+  }
+
   private short decode(short exp) {
     byte type = KMType.getType(exp);
     switch (type) {
@@ -255,7 +405,8 @@ public class KMDecoder {
 
   private short decodeEnumTag(short exp) {
     readTagKey(KMEnumTag.cast(exp).getTagType());
-    byte[] buffer = (byte[])bufferRef[0];
+    ensureAvailable((short) 2);
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     // Enum Tag value will always be integer with max 1 byte length.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
@@ -282,7 +433,8 @@ public class KMDecoder {
 
   private short decodeBoolTag(short exp) {
     readTagKey(KMBoolTag.cast(exp).getTagType());
-    byte[] buffer = (byte[])bufferRef[0];
+    ensureAvailable((short) 1);
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     // BOOL Tag is a leaf node and it must always have tiny encoded uint value = 1.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
@@ -296,7 +448,8 @@ public class KMDecoder {
   }
 
   private short decodeEnum(short exp) {
-    byte[] buffer = (byte[])bufferRef[0];
+    ensureAvailable((short) 2);
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     // Enum value will always be integer with max 1 byte length.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
@@ -323,8 +476,9 @@ public class KMDecoder {
 
   private short decodeInteger(short exp) {
     short inst;
+    ensureAvailable(MAX_HEADER_LENGTH);
     short startOff = scratchBuf[START_OFFSET];
-    byte[] buffer = (byte[])bufferRef[0];
+    byte[] buffer = getBuffer();
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
     }
@@ -356,13 +510,45 @@ public class KMDecoder {
 
   private short decodeByteBlob(short exp) {
     short payloadLength = readMajorTypeWithPayloadLength(BYTES_TYPE);
-    short inst = KMByteBlob.instance((byte[])bufferRef[0], scratchBuf[START_OFFSET], payloadLength);
-    incrementStartOff(payloadLength);
+    short inst;
+    if (bufferRef[0] == KMType.heap) {
+      // The payload is already in the heap, so refer to it in place.
+      inst = KMByteBlob.view(KMType.heap, scratchBuf[START_OFFSET], payloadLength);
+      incrementStartOff(payloadLength);
+      return inst;
+    }
+    if (bufferRef[0] != null) {
+      inst = KMByteBlob.instance((byte[]) bufferRef[0], scratchBuf[START_OFFSET],
+          payloadLength);
+      incrementStartOff(payloadLength);
+      return inst;
+    }
+    // Copy the payload into the blob as it is received. The apdu buffer is reused as scratch pad
+    // by the commands, so the payload cannot be referred to in place.
+    inst = KMByteBlob.instance(payloadLength);
+    short copied = 0;
+    short len;
+    while (copied < payloadLength) {
+      ensureAvailable((short) 1);
+      len = (short) (scratchBuf[LEN_OFFSET] - scratchBuf[START_OFFSET]);
+      if (len > (short) (payloadLength - copied)) {
+        len = (short) (payloadLength - copied);
+      }
+      if (len <= 0) {
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+      }
+      Util.arrayCopyNonAtomic(APDU.getCurrentAPDUBuffer(), scratchBuf[START_OFFSET],
+          KMByteBlob.cast(inst).getBuffer(),
+          (short) (KMByteBlob.cast(inst).getStartOff() + copied), len);
+      incrementStartOff(len);
+      copied += len;
+    }
     return inst;
   }
 
   private short peekTagType() {
-    byte[] buffer = (byte[])bufferRef[0];
+    ensureAvailable((short) 3);
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -377,7 +563,8 @@ public class KMDecoder {
   }
 
   private void readTagKey(short expectedTagType) {
-    byte[] buffer = (byte[])bufferRef[0];
+    ensureAvailable((short) 5);
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -415,7 +602,8 @@ public class KMDecoder {
   }
 
   private short readShort() {
-    byte[] buffer = (byte[])bufferRef[0];
+    ensureAvailable((short) 2);
+    byte[] buffer = getBuffer();
     short startOff = scratchBuf[START_OFFSET];
     short val = Util.makeShort(buffer[startOff], buffer[(short) (startOff + 1)]);
     incrementStartOff((short) 2);
@@ -423,8 +611,9 @@ public class KMDecoder {
   }
 
   private byte readByte() {
+    ensureAvailable((short) 1);
     short startOff = scratchBuf[START_OFFSET];
-    byte val = ((byte[])bufferRef[0])[startOff];
+    byte val = getBuffer()[startOff];
     incrementStartOff((short) 1);
     return val;
   }
@@ -441,6 +630,7 @@ public class KMDecoder {
     bufferRef[0] = buf;
     scratchBuf[START_OFFSET] = bufOffset;
     scratchBuf[LEN_OFFSET] = (short) (bufOffset + bufLen);
+    scratchBuf[REMAINING_LEN_OFFSET] = 0;
     short totalLen = readMajorTypeWithPayloadLength(BYTES_TYPE);
     totalLen += (short) (scratchBuf[START_OFFSET] - bufOffset);
     return totalLen;
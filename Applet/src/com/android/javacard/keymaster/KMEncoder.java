@@ -16,6 +16,7 @@
 
 package com.android.javacard.keymaster;
 
+import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
@@ -40,10 +41,22 @@ public class KMEncoder {
   private static final short TINY_PAYLOAD = 0x17;
   private static final short SHORT_PAYLOAD = 0x100;
   private static final short STACK_SIZE = (short) 50;
-  private static final short SCRATCH_BUF_SIZE = (short) 6;
+  private static final short SCRATCH_BUF_SIZE = (short) 8;
+  // Transient memory of the buffer reference, the scratch buffer and the stack.
+  public static final short TRANSIENT_SIZE = 2 + (SCRATCH_BUF_SIZE + STACK_SIZE) * 2;
   private static final short START_OFFSET = (short) 0;
   private static final short LEN_OFFSET = (short) 2;
   private static final short STACK_PTR_OFFSET = (short) 4;
+  private static final short MODE_OFFSET = (short) 6;
+  // Encoding modes
+  // Encode into the given buffer.
+  private static final short MODE_BUFFER = (short) 0;
+  // Only compute the length of the encoded object.
+  private static final short MODE_LENGTH = (short) 1;
+  // Encode into the apdu buffer and send it whenever it gets full.
+  private static final short MODE_APDU = (short) 2;
+  // Byte blobs of this size or more are sent directly from their buffer.
+  private static final short APDU_BLOB_THRESHOLD = (short) 128;
 
   private Object[] bufferRef;
   private short[] scratchBuf;
@@ -75,23 +88,72 @@ public class KMEncoder {
 
   public short encode(short object, byte[] buffer, short startOff) {
     scratchBuf[STACK_PTR_OFFSET] = 0;
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
     bufferRef[0] = buffer;
     scratchBuf[START_OFFSET] = startOff;
+    // The limit is an end offset in the buffer, so it is only capped by the range of short.
     short len = (short) buffer.length;
+    if (len < 0) {
+      scratchBuf[LEN_OFFSET] = Short.MAX_VALUE;
+    } else {
+      scratchBuf[LEN_OFFSET] = len;
+    }
+    push(object);
+    encode();
+    return (short) (scratchBuf[START_OFFSET] - startOff);
+  }
+
+  // Returns the length of the encoded object without writing it.
+  public short getEncodedLength(short object) {
+    scratchBuf[MODE_OFFSET] = MODE_LENGTH;
+    scratchBuf[STACK_PTR_OFFSET] = 0;
+    scratchBuf[START_OFFSET] = 0;
+    scratchBuf[LEN_OFFSET] = Short.MAX_VALUE;
+    push(object);
+    encode();
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
+    return scratchBuf[START_OFFSET];
+  }
+
+  /**
+   * Encodes the object and sends it as the response of the apdu. The length of the encoded
+   * object is computed first, then CBOR headers and small items are written into the apdu buffer,
+   * which is sent whenever it fills up. Large byte blobs are sent directly from their buffer,
+   * so the response is never materialized in full.
+   */
+  public short encode(short object, APDU apdu) {
+    // Compute the length of the response.
+    scratchBuf[MODE_OFFSET] = MODE_LENGTH;
+    scratchBuf[STACK_PTR_OFFSET] = 0;
+    scratchBuf[START_OFFSET] = 0;
+    scratchBuf[LEN_OFFSET] = Short.MAX_VALUE;
+    push(object);
+    encode();
+    short length = scratchBuf[START_OFFSET];
+    apdu.setOutgoing();
+    apdu.setOutgoingLength(length);
+    // The apdu buffer is a global array, which must not be stored.
+    bufferRef[0] = null;
+    scratchBuf[MODE_OFFSET] = MODE_APDU;
+    scratchBuf[STACK_PTR_OFFSET] = 0;
+    scratchBuf[START_OFFSET] = 0;
+    short len = (short) apdu.getBuffer().length;
     if ((len < 0) || (len > KMKeymasterApplet.MAX_LENGTH)) {
       scratchBuf[LEN_OFFSET] = KMKeymasterApplet.MAX_LENGTH;
     } else {
-      scratchBuf[LEN_OFFSET] = (short) buffer.length;
+      scratchBuf[LEN_OFFSET] = len;
     }
-    //this.length = (short)(startOff + length);
     push(object);
     encode();
-    return (short) (scratchBuf[START_OFFSET] - startOff);
+    flush();
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
+    return length;
   }
 
   // array{KMError.OK,Array{KMByteBlobs}}
   public void encodeCertChain(byte[] buffer, short offset, short length, short errInt32Ptr) {
     bufferRef[0] = buffer;
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
     scratchBuf[START_OFFSET] = offset;
     scratchBuf[LEN_OFFSET] = (short) (offset + 1);
     //Total length is ArrayHeader + [UIntHeader + length(errInt32Ptr)]
@@ -104,6 +166,7 @@ public class KMEncoder {
   //array{KMError.OK,Array{KMByteBlobs}}
   public short encodeCert(byte[] certBuffer, short bufferStart, short certStart, short certLength, short errInt32Ptr) {
     bufferRef[0] = certBuffer;
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
     scratchBuf[START_OFFSET] = certStart;
     scratchBuf[LEN_OFFSET] = (short) (certStart + 1);
     //Array header - 2 elements i.e. 1 byte
@@ -131,6 +194,7 @@ public class KMEncoder {
 
   public short encodeError(short errInt32Ptr, byte[] buffer, short startOff, short length) {
     bufferRef[0] = buffer;
+    scratchBuf[MODE_OFFSET] = MODE_BUFFER;
     scratchBuf[START_OFFSET] = startOff;
     scratchBuf[LEN_OFFSET] = (short) (startOff + length + 1);
     encodeInteger(errInt32Ptr);
@@ -391,23 +455,59 @@ public class KMEncoder {
     }
   }
 
+  private byte[] getBuffer() {
+    if (scratchBuf[MODE_OFFSET] == MODE_APDU) {
+      return APDU.getCurrentAPDUBuffer();
+    }
+    return (byte[]) bufferRef[0];
+  }
+
+  // Sends the encoded bytes pending in the apdu buffer.
+  private void flush() {
+    if (scratchBuf[START_OFFSET] > 0) {
+      APDU.getCurrentAPDU().sendBytes((short) 0, scratchBuf[START_OFFSET]);
+      scratchBuf[START_OFFSET] = 0;
+    }
+  }
+
+  // Returns true if len bytes have to be written into the buffer. In apdu mode the
+  // pending bytes are sent first if len bytes do not fit into the apdu buffer.
+  private boolean prepareWrite(short len) {
+    if (scratchBuf[MODE_OFFSET] == MODE_LENGTH) {
+      return false;
+    }
+    if (scratchBuf[MODE_OFFSET] == MODE_APDU
+        && (short) (scratchBuf[START_OFFSET] + len) >= scratchBuf[LEN_OFFSET]) {
+      flush();
+    }
+    return true;
+  }
+
   private void writeBytes(byte[] buf, short start, short len) {
-    byte[] buffer = (byte[]) bufferRef[0];
-    Util.arrayCopyNonAtomic(buf, start, buffer, scratchBuf[START_OFFSET], len);
+    if (scratchBuf[MODE_OFFSET] == MODE_APDU
+        && (len >= APDU_BLOB_THRESHOLD
+        || (short) (scratchBuf[START_OFFSET] + len) >= scratchBuf[LEN_OFFSET])) {
+      flush();
+      APDU.getCurrentAPDU().sendBytesLong(buf, start, len);
+      return;
+    }
+    if (prepareWrite(len)) {
+      Util.arrayCopyNonAtomic(buf, start, getBuffer(), scratchBuf[START_OFFSET], len);
+    }
     incrementStartOff(len);
   }
 
   private void writeShort(short val) {
-    byte[] buffer = (byte[]) bufferRef[0];
-    buffer[scratchBuf[START_OFFSET]] = (byte) ((val >> 8) & 0xFF);
-    incrementStartOff((short) 1);
-    buffer[scratchBuf[START_OFFSET]] = (byte) ((val & 0xFF));
-    incrementStartOff((short) 1);
+    if (prepareWrite((short) 2)) {
+      Util.setShort(getBuffer(), scratchBuf[START_OFFSET], val);
+    }
+    incrementStartOff((short) 2);
   }
 
   private void writeByte(byte val) {
-    byte[] buffer = (byte[]) bufferRef[0];
-    buffer[scratchBuf[START_OFFSET]] = val;
+    if (prepareWrite((short) 1)) {
+      getBuffer()[scratchBuf[START_OFFSET]] = val;
+    }
     incrementStartOff((short) 1);
   }
 
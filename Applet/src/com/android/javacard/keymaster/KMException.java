@@ -24,6 +24,8 @@ import javacard.framework.JCSystem;
  */
 public class KMException extends RuntimeException {
 
+  // Transient memory of the reason.
+  public static final short TRANSIENT_SIZE = 2;
   public short[] reason;
   public static KMException exception;
 
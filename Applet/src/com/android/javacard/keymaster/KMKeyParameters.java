@@ -23,12 +23,26 @@ import javacard.framework.Util;
 /**
  * KMKeyParameters represents KeyParameters structure from android keymaster hal specifications. It
  * corresponds to CBOR map type. struct{byte KEY_PARAM_TYPE; short length=2; short arrayPtr} where
- * arrayPtr is a pointer to array with any KMTag subtype instances.
+ * arrayPtr is a pointer to array with any KMTag subtype instances. Lazily decoded key parameters
+ * are struct{byte KEY_PARAM_TYPE; short length=4; short arrayPtr; short offsetsPtr} where the
+ * array holds INVALID_VALUE for the tags which are not decoded yet and offsetsPtr is a pointer to
+ * an array of the heap offsets of the encoded tags followed by the end of the last tag.
  */
 public class KMKeyParameters extends KMType {
 
   private static KMKeyParameters prototype;
 
+  // Tag classes used to partition the key parameters.
+  private static final byte TAG_CLASS_NONE = 0;
+  private static final byte TAG_CLASS_HW_ENFORCED = 1;
+  private static final byte TAG_CLASS_SW_ENFORCED = 2;
+  private static final byte TAG_CLASS_UNSUPPORTED = 3;
+  private static final byte TAG_CLASS_INVALID = 4;
+  // Length of lazily decoded key parameters.
+  private static final short LAZY_LENGTH = 4;
+  // Decodes the tags of lazily decoded key parameters.
+  private static KMDecoder decoder;
+
   private KMKeyParameters() {
   }
 
@@ -61,6 +75,21 @@ public class KMKeyParameters extends KMType {
     return ptr;
   }
 
+  // Creates key parameters whose tags are decoded from the heap when they are used.
+  public static short lazyInstance(short vals, short offsets) {
+    if (KMArray.cast(offsets).length() != (short) (KMArray.cast(vals).length() + 1)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    short ptr = KMType.instance(KEY_PARAM_TYPE, LAZY_LENGTH);
+    Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE), vals);
+    Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE + 2), offsets);
+    return ptr;
+  }
+
+  public static void setDecoder(KMDecoder keyParamDecoder) {
+    decoder = keyParamDecoder;
+  }
+
   public static KMKeyParameters cast(short ptr) {
     if (heap[ptr] != KEY_PARAM_TYPE) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -72,21 +101,85 @@ public class KMKeyParameters extends KMType {
     return proto(ptr);
   }
 
+  // Returns the array of tags. Lazily decoded key parameters decode all their remaining tags
+  // first and become regular key parameters.
   public short getVals() {
-    return Util.getShort(heap, (short) (instanceTable[KM_KEY_PARAMETERS_OFFSET] + TLV_HEADER_SIZE));
+    short ptr = instanceTable[KM_KEY_PARAMETERS_OFFSET];
+    short vals = Util.getShort(heap, (short) (ptr + TLV_HEADER_SIZE));
+    if (KMType.length(ptr) == LAZY_LENGTH) {
+      short offsets = Util.getShort(heap, (short) (ptr + TLV_HEADER_SIZE + 2));
+      short index = 0;
+      short len = KMArray.cast(vals).length();
+      while (index < len) {
+        decodeTag(vals, offsets, index);
+        index++;
+      }
+      Util.setShort(heap, (short) (ptr + 1), (short) 2);
+    }
+    return vals;
   }
 
   public short length() {
-    short arrPtr = getVals();
+    short arrPtr =
+        Util.getShort(heap, (short) (instanceTable[KM_KEY_PARAMETERS_OFFSET] + TLV_HEADER_SIZE));
     return KMArray.cast(arrPtr).length();
   }
 
+  // Decodes the tag at the index of lazily decoded key parameters unless it is already decoded.
+  private static short decodeTag(short vals, short offsets, short index) {
+    short obj = KMArray.cast(vals).get(index);
+    if (obj != KMType.INVALID_VALUE) {
+      return obj;
+    }
+    short start = KMArray.cast(offsets).get(index);
+    short end = KMArray.cast(offsets).get((short) (index + 1));
+    obj = decoder.decode(tagExp(getEncodedTagType(start)), heap, start, (short) (end - start));
+    KMArray.cast(vals).add(index, obj);
+    return obj;
+  }
+
+  // Tags are encoded as a uint32 of the tag type and key followed by the value.
+  private static short getEncodedTagType(short tagOff) {
+    return (short) (Util.getShort(heap, (short) (tagOff + 1)) & KMType.TAG_TYPE_MASK);
+  }
+
+  private static short getEncodedTagKey(short tagOff) {
+    return Util.getShort(heap, (short) (tagOff + 3));
+  }
+
+  private static short tagExp(short tagType) {
+    switch (tagType) {
+      case UINT_TAG:
+      case ULONG_TAG:
+      case DATE_TAG:
+        return KMIntegerTag.exp(tagType);
+      case UINT_ARRAY_TAG:
+      case ULONG_ARRAY_TAG:
+        return KMIntegerArrayTag.exp(tagType);
+      case ENUM_TAG:
+        return KMEnumTag.exp();
+      case ENUM_ARRAY_TAG:
+        return KMEnumArrayTag.exp();
+      case BYTES_TAG:
+        return KMByteTag.exp();
+      case BOOL_TAG:
+        return KMBoolTag.exp();
+      default:
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        return KMType.INVALID_VALUE;
+    }
+  }
+
   public static short findTag(short tagType, short tagKey, short keyParam) {
     KMKeyParameters instParam = KMKeyParameters.cast(keyParam);
     return instParam.findTag(tagType, tagKey);
   }
 
   public short findTag(short tagType, short tagKey) {
+    short ptr = instanceTable[KM_KEY_PARAMETERS_OFFSET];
+    if (KMType.length(ptr) == LAZY_LENGTH) {
+      return findLazyTag(ptr, tagType, tagKey);
+    }
     KMArray vals = KMArray.cast(getVals());
     short index = 0;
     short length = vals.length();
@@ -107,150 +200,101 @@ public class KMKeyParameters extends KMType {
     return ret;
   }
 
+  // Looks up the tag in the encoded tags and decodes only the matching one.
+  private static short findLazyTag(short ptr, short tagType, short tagKey) {
+    short vals = Util.getShort(heap, (short) (ptr + TLV_HEADER_SIZE));
+    short offsets = Util.getShort(heap, (short) (ptr + TLV_HEADER_SIZE + 2));
+    short index = 0;
+    short length = KMArray.cast(vals).length();
+    short tagOff;
+    while (index < length) {
+      tagOff = KMArray.cast(offsets).get(index);
+      if (getEncodedTagKey(tagOff) == tagKey && getEncodedTagType(tagOff) == tagType) {
+        return decodeTag(vals, offsets, index);
+      }
+      index++;
+    }
+    return KMType.INVALID_VALUE;
+  }
+
   public static boolean hasUnsupportedTags(short keyParamsPtr) {
-    final short[] tagArr = {
-        // Unsupported tags.
-        KMType.BOOL_TAG, KMType.TRUSTED_CONFIRMATION_REQUIRED,
-        KMType.BOOL_TAG, KMType.TRUSTED_USER_PRESENCE_REQUIRED,
-        KMType.BOOL_TAG, KMType.ALLOW_WHILE_ON_BODY,
-        KMType.UINT_TAG, KMType.MIN_SEC_BETWEEN_OPS,
-        KMType.UINT_TAG, KMType.MAX_USES_PER_BOOT
-    };
-    byte index = 0;
-    short tagInd;
+    short index = 0;
     short tagPtr;
-    short tagKey;
-    short tagType;
     short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
     short len = KMArray.cast(arrPtr).length();
     while (index < len) {
-      tagInd = 0;
       tagPtr = KMArray.cast(arrPtr).get(index);
-      tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      while (tagInd < (short) tagArr.length) {
-        if ((tagArr[tagInd] == tagType)
-            && (tagArr[(short) (tagInd + 1)] == tagKey)) {
-          return true;
-        }
-        tagInd += 2;
+      if (getTagClass(KMTag.getTagType(tagPtr), KMTag.getKey(tagPtr)) == TAG_CLASS_UNSUPPORTED) {
+        return true;
       }
       index++;
     }
     return false;
   }
 
+  // Partitions the key parameters into hardware and software enforced lists in a single pass and
+  // returns them as key characteristics. The hardware enforced list also gets the origin, os
+  // version and patch level tags.
   // KDF, ECIES_SINGLE_HASH_MODE missing from types.hal
-  public static short makeHwEnforced(short keyParamsPtr, byte origin,
+  // ALL_USERS, EXPORTABLE missing from types.hal
+  public static short makeKeyCharacteristics(short keyParamsPtr, byte origin,
       short osVersionObjPtr, short osPatchObjPtr, short vendorPatchObjPtr,
       short bootPatchObjPtr, byte[] scratchPad) {
-    final short[] hwEnforcedTagArr = {
-        // HW Enforced
-        KMType.ENUM_TAG, KMType.ORIGIN,
-        KMType.ENUM_ARRAY_TAG, KMType.PURPOSE,
-        KMType.ENUM_TAG, KMType.ALGORITHM,
-        KMType.UINT_TAG, KMType.KEYSIZE,
-        KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT,
-        KMType.ENUM_TAG, KMType.BLOB_USAGE_REQ,
-        KMType.ENUM_ARRAY_TAG, KMType.DIGEST,
-        KMType.ENUM_ARRAY_TAG, KMType.PADDING,
-        KMType.ENUM_ARRAY_TAG, KMType.BLOCK_MODE,
-        KMType.ULONG_ARRAY_TAG, KMType.USER_SECURE_ID,
-        KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED,
-        KMType.UINT_TAG, KMType.AUTH_TIMEOUT,
-        KMType.BOOL_TAG, KMType.CALLER_NONCE,
-        KMType.UINT_TAG, KMType.MIN_MAC_LENGTH,
-        KMType.ENUM_TAG, KMType.ECCURVE,
-        KMType.BOOL_TAG, KMType.INCLUDE_UNIQUE_ID,
-        KMType.BOOL_TAG, KMType.ROLLBACK_RESISTANCE,
-        KMType.ENUM_TAG, KMType.USER_AUTH_TYPE,
-        KMType.BOOL_TAG, KMType.UNLOCKED_DEVICE_REQUIRED,
-        KMType.BOOL_TAG, KMType.RESET_SINCE_ID_ROTATION
-    };
-    byte index = 0;
-    short tagInd;
-    short arrInd = 0;
+    short index = 0;
     short tagPtr;
-    short tagKey;
-    short tagType;
     short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
     short len = KMArray.cast(arrPtr).length();
+    // Hardware enforced pointers are collected from the start of the scratch pad and software
+    // enforced pointers after room for all the parameters and the five added tags.
+    short hwInd = 0;
+    short swStart = (short) ((short) (len + 5) * 2);
+    if ((short) (swStart + (short) (len * 2)) > scratchPad.length) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
+    short swInd = swStart;
     while (index < len) {
-      tagInd = 0;
       tagPtr = KMArray.cast(arrPtr).get(index);
-      tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      if (!isValidTag(tagType, tagKey)) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
-      }
-      while (tagInd < (short) hwEnforcedTagArr.length) {
-        if ((hwEnforcedTagArr[tagInd] == tagType)
-            && (hwEnforcedTagArr[(short) (tagInd + 1)] == tagKey)) {
-          Util.setShort(scratchPad, arrInd, tagPtr);
-          arrInd += 2;
+      switch (getTagClass(KMTag.getTagType(tagPtr), KMTag.getKey(tagPtr))) {
+        case TAG_CLASS_INVALID:
+          KMException.throwIt(KMError.INVALID_KEY_BLOB);
+          break;
+        case TAG_CLASS_HW_ENFORCED:
+          Util.setShort(scratchPad, hwInd, tagPtr);
+          hwInd += 2;
+          break;
+        case TAG_CLASS_SW_ENFORCED:
+          Util.setShort(scratchPad, swInd, tagPtr);
+          swInd += 2;
+          break;
+        default:
           break;
-        }
-        tagInd += 2;
       }
       index++;
     }
     short originTag = KMEnumTag.instance(KMType.ORIGIN, origin);
-    Util.setShort(scratchPad, arrInd, originTag);
-    arrInd += 2;
+    Util.setShort(scratchPad, hwInd, originTag);
+    hwInd += 2;
     short osVersionTag = KMIntegerTag.instance(KMType.UINT_TAG, KMType.OS_VERSION, osVersionObjPtr);
-    Util.setShort(scratchPad, arrInd, osVersionTag);
-    arrInd += 2;
+    Util.setShort(scratchPad, hwInd, osVersionTag);
+    hwInd += 2;
     short osPatchTag = KMIntegerTag.instance(KMType.UINT_TAG, KMType.OS_PATCH_LEVEL, osPatchObjPtr);
-    Util.setShort(scratchPad, arrInd, osPatchTag);
-    arrInd += 2;
+    Util.setShort(scratchPad, hwInd, osPatchTag);
+    hwInd += 2;
     short vendorPatchTag = KMIntegerTag
         .instance(KMType.UINT_TAG, KMType.VENDOR_PATCH_LEVEL, vendorPatchObjPtr);
-    Util.setShort(scratchPad, arrInd, vendorPatchTag);
-    arrInd += 2;
+    Util.setShort(scratchPad, hwInd, vendorPatchTag);
+    hwInd += 2;
     short bootPatchTag = KMIntegerTag
         .instance(KMType.UINT_TAG, KMType.BOOT_PATCH_LEVEL, bootPatchObjPtr);
-    Util.setShort(scratchPad, arrInd, bootPatchTag);
-    arrInd += 2;
-    return createKeyParameters(scratchPad, (short) (arrInd / 2));
-  }
-
-  // ALL_USERS, EXPORTABLE missing from types.hal
-  public static short makeSwEnforced(short keyParamsPtr, byte[] scratchPad) {
-    final short[] swEnforcedTagsArr = {
-        KMType.DATE_TAG, KMType.ACTIVE_DATETIME,
-        KMType.DATE_TAG, KMType.ORIGINATION_EXPIRE_DATETIME,
-        KMType.DATE_TAG, KMType.USAGE_EXPIRE_DATETIME,
-        KMType.UINT_TAG, KMType.USERID,
-        KMType.DATE_TAG, KMType.CREATION_DATETIME
-    };
-    byte index = 0;
-    short tagInd;
-    short arrInd = 0;
-    short tagPtr;
-    short tagKey;
-    short tagType;
-    short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
-    short len = KMArray.cast(arrPtr).length();
-    while (index < len) {
-      tagInd = 0;
-      tagPtr = KMArray.cast(arrPtr).get(index);
-      tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      if (!isValidTag(tagType, tagKey)) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
-      }
-      while (tagInd < (short) swEnforcedTagsArr.length) {
-        if ((swEnforcedTagsArr[tagInd] == tagType)
-            && (swEnforcedTagsArr[(short) (tagInd + 1)] == tagKey)) {
-          Util.setShort(scratchPad, arrInd, tagPtr);
-          arrInd += 2;
-          break;
-        }
-        tagInd += 2;
-      }
-      index++;
-    }
-    return createKeyParameters(scratchPad, (short) (arrInd / 2));
+    Util.setShort(scratchPad, hwInd, bootPatchTag);
+    hwInd += 2;
+    short hwParams = createKeyParameters(scratchPad, (short) 0, (short) (hwInd / 2));
+    short swParams =
+        createKeyParameters(scratchPad, swStart, (short) ((short) (swInd - swStart) / 2));
+    short keyChar = KMKeyCharacteristics.instance();
+    KMKeyCharacteristics.cast(keyChar).setHardwareEnforced(hwParams);
+    KMKeyCharacteristics.cast(keyChar).setSoftwareEnforced(swParams);
+    return keyChar;
   }
 
   public static short makeHidden(short keyParamsPtr, short rootOfTrustBlob, byte[] scratchPad) {
@@ -287,30 +331,113 @@ public class KMKeyParameters extends KMType {
   }
 
   public static boolean isValidTag(short tagType, short tagKey) {
-    short[] invalidTagsArr = {
-        KMType.BYTES_TAG, KMType.NONCE,
-        KMType.BYTES_TAG, KMType.ASSOCIATED_DATA,
-        KMType.BYTES_TAG, KMType.UNIQUE_ID,
-        KMType.UINT_TAG, KMType.MAC_LENGTH,
-        KMType.BOOL_TAG, KMType.BOOTLOADER_ONLY
-    };
-    short index = 0;
-    if (tagKey == KMType.INVALID_TAG) {
-      return false;
+    return getTagClass(tagType, tagKey) != TAG_CLASS_INVALID;
+  }
+
+  // Returns the class of the tag. The switch on the tag key is compiled into a lookup table in the
+  // byte code, so no table has to be kept in memory. Tag keys are unique across tag types, so the
+  // tag type only needs to be checked once the key is matched.
+  private static byte getTagClass(short tagType, short tagKey) {
+    short classType;
+    byte tagClass;
+    switch (tagKey) {
+      case KMType.INVALID_TAG:
+        return TAG_CLASS_INVALID;
+      // HW Enforced
+      case KMType.ORIGIN:
+      case KMType.ALGORITHM:
+      case KMType.BLOB_USAGE_REQ:
+      case KMType.ECCURVE:
+      case KMType.USER_AUTH_TYPE:
+        classType = KMType.ENUM_TAG;
+        tagClass = TAG_CLASS_HW_ENFORCED;
+        break;
+      case KMType.PURPOSE:
+      case KMType.DIGEST:
+      case KMType.PADDING:
+      case KMType.BLOCK_MODE:
+        classType = KMType.ENUM_ARRAY_TAG;
+        tagClass = TAG_CLASS_HW_ENFORCED;
+        break;
+      case KMType.KEYSIZE:
+      case KMType.AUTH_TIMEOUT:
+      case KMType.MIN_MAC_LENGTH:
+        classType = KMType.UINT_TAG;
+        tagClass = TAG_CLASS_HW_ENFORCED;
+        break;
+      case KMType.RSA_PUBLIC_EXPONENT:
+        classType = KMType.ULONG_TAG;
+        tagClass = TAG_CLASS_HW_ENFORCED;
+        break;
+      case KMType.USER_SECURE_ID:
+        classType = KMType.ULONG_ARRAY_TAG;
+        tagClass = TAG_CLASS_HW_ENFORCED;
+        break;
+      case KMType.NO_AUTH_REQUIRED:
+      case KMType.CALLER_NONCE:
+      case KMType.INCLUDE_UNIQUE_ID:
+      case KMType.ROLLBACK_RESISTANCE:
+      case KMType.UNLOCKED_DEVICE_REQUIRED:
+      case KMType.RESET_SINCE_ID_ROTATION:
+        classType = KMType.BOOL_TAG;
+        tagClass = TAG_CLASS_HW_ENFORCED;
+        break;
+      // SW Enforced
+      case KMType.ACTIVE_DATETIME:
+      case KMType.ORIGINATION_EXPIRE_DATETIME:
+      case KMType.USAGE_EXPIRE_DATETIME:
+      case KMType.CREATION_DATETIME:
+        classType = KMType.DATE_TAG;
+        tagClass = TAG_CLASS_SW_ENFORCED;
+        break;
+      case KMType.USERID:
+        classType = KMType.UINT_TAG;
+        tagClass = TAG_CLASS_SW_ENFORCED;
+        break;
+      // Unsupported tags.
+      case KMType.TRUSTED_CONFIRMATION_REQUIRED:
+      case KMType.TRUSTED_USER_PRESENCE_REQUIRED:
+      case KMType.ALLOW_WHILE_ON_BODY:
+        classType = KMType.BOOL_TAG;
+        tagClass = TAG_CLASS_UNSUPPORTED;
+        break;
+      case KMType.MIN_SEC_BETWEEN_OPS:
+      case KMType.MAX_USES_PER_BOOT:
+        classType = KMType.UINT_TAG;
+        tagClass = TAG_CLASS_UNSUPPORTED;
+        break;
+      // Invalid in key parameters.
+      case KMType.NONCE:
+      case KMType.ASSOCIATED_DATA:
+      case KMType.UNIQUE_ID:
+        classType = KMType.BYTES_TAG;
+        tagClass = TAG_CLASS_INVALID;
+        break;
+      case KMType.MAC_LENGTH:
+        classType = KMType.UINT_TAG;
+        tagClass = TAG_CLASS_INVALID;
+        break;
+      case KMType.BOOTLOADER_ONLY:
+        classType = KMType.BOOL_TAG;
+        tagClass = TAG_CLASS_INVALID;
+        break;
+      default:
+        return TAG_CLASS_NONE;
     }
-    while (index < invalidTagsArr.length) {
-      if ((tagType == invalidTagsArr[index]) && (tagKey == invalidTagsArr[(short) (index + 1)])) {
-        return false;
-      }
-      index += 2;
+    if (tagType != classType) {
+      return TAG_CLASS_NONE;
     }
-    return true;
+    return tagClass;
   }
 
   public static short createKeyParameters(byte[] ptrArr, short len) {
+    return createKeyParameters(ptrArr, (short) 0, len);
+  }
+
+  public static short createKeyParameters(byte[] ptrArr, short start, short len) {
     short arrPtr = KMArray.instance(len);
     short index = 0;
-    short ptr = 0;
+    short ptr = start;
     while (index < len) {
       KMArray.cast(arrPtr).add(index, Util.getShort(ptrArr, ptr));
       index++;
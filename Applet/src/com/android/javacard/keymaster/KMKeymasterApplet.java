@@ -112,6 +112,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private static final byte INS_DEVICE_LOCKED_CMD = INS_END_KM_PROVISION_CMD + 20;//0x34
   private static final byte INS_EARLY_BOOT_ENDED_CMD = INS_END_KM_PROVISION_CMD + 21; //0x35
   private static final byte INS_GET_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD + 22; //0x36
+  private static final byte INS_BATCH_ATTEST_KEY_CMD = INS_END_KM_PROVISION_CMD + 23; //0x37
+  private static final byte INS_PERFORM_BACKGROUND_WORK_CMD = INS_END_KM_PROVISION_CMD + 24; //0x38
+  // Diagnostics, only supported when heap profiling is enabled.
+  private static final byte INS_GET_HEAP_PROFILE_CMD = INS_END_KM_PROVISION_CMD + 25; //0x39
 
   private static final byte INS_END_KM_CMD = 0x7F;
 
@@ -129,6 +133,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte DATA_ARRAY_SIZE = 30;
   public static final byte TMP_VARIABLE_ARRAY_SIZE = 20;
   public static final byte UPDATE_PARAM_ARRAY_SIZE = 40;
+  private static final byte BUFFER_PROP_SIZE = 4;
+  // Transient memory of the data dictionary, the buffer reference and properties and the
+  // temporary variables.
+  public static final short TRANSIENT_SIZE =
+      (DATA_ARRAY_SIZE + BUFFER_PROP_SIZE + TMP_VARIABLE_ARRAY_SIZE) * 2 + 2;
   public static final byte KEY_PARAMETERS = 0;
   public static final byte KEY_CHARACTERISTICS = 1;
   public static final byte HIDDEN_PARAMETERS = 2;
@@ -158,6 +167,27 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte HW_TOKEN = 26;
   public static final byte VERIFICATION_TOKEN = 27;
   public static final byte SIGNATURE = 28;
+  public static final byte ATTEST_COMPONENTS = 29;
+
+  // Attestation components shared by all the certificates of an attest command.
+  private static final byte ATTEST_ISSUER = 0;
+  private static final byte ATTEST_CERT_EXPIRY = 1;
+  private static final byte ATTEST_VERIFIED_BOOT_KEY = 2;
+  private static final byte ATTEST_VERIFIED_BOOT_HASH = 3;
+  private static final byte ATTEST_BOOT_STATE = 4;
+  private static final byte ATTEST_DEVICE_LOCKED = 5;
+  private static final byte ATTEST_IDS = 6;
+  private static final byte ATTEST_COMPONENTS_SIZE = 7;
+  private static final short[] ATTEST_ID_TAGS = {
+      KMType.ATTESTATION_ID_BRAND,
+      KMType.ATTESTATION_ID_DEVICE,
+      KMType.ATTESTATION_ID_IMEI,
+      KMType.ATTESTATION_ID_MANUFACTURER,
+      KMType.ATTESTATION_ID_MEID,
+      KMType.ATTESTATION_ID_MODEL,
+      KMType.ATTESTATION_ID_PRODUCT,
+      KMType.ATTESTATION_ID_SERIAL
+  };
 
   // AddRngEntropy
   protected static final short MAX_SEED_SIZE = 2048;
@@ -167,6 +197,33 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte KEY_BLOB_AUTH_TAG = 2;
   public static final byte KEY_BLOB_KEYCHAR = 3;
   public static final byte KEY_BLOB_PUB_KEY = 4;
+  // Key blob versions. Version 1 blobs are CBOR arrays of 4 or 5 elements and their AAD is
+  // re-encoded from the key parameters.
+  public static final byte KEY_BLOB_VERSION_1 = 1;
+  // Version 2 blobs have a fixed layout which is not CBOR encoded:
+  // version | key char length | public key length | secret length | key characteristics |
+  // public key | nonce | auth tag | secret
+  // The lengths are shorts, so each field can be located from the header alone. The AAD is the
+  // span from the version to the end of the public key, which is authenticated in place instead
+  // of being re-encoded. Version 1 blobs are still parsed and are re-encoded by upgradeKey.
+  public static final byte KEY_BLOB_VERSION_2 = 2;
+  public static final short KEY_BLOB_KEYCHAR_LEN_OFFSET = 1;
+  public static final short KEY_BLOB_PUB_KEY_LEN_OFFSET = 3;
+  public static final short KEY_BLOB_SECRET_LEN_OFFSET = 5;
+  public static final short KEY_BLOB_HEADER_SIZE = 7;
+  // Maximum size of the encoded key blob.
+  private static final short MAX_KEY_BLOB_SIZE = 1536;
+  // RSA secret layouts, selected by the secret length. The secret holds either the CRT components
+  // P, Q, DP1, DQ1 and PQ, each right aligned in a field of half the key size, or the private
+  // exponent. RSA keys imported without CRT components and RSA keys upgraded from version 1 blobs
+  // hold the private exponent.
+  public static final short RSA_KEY_SIZE = 256;
+  public static final short RSA_CRT_COMPONENT_SIZE = 128;
+  public static final short RSA_CRT_SECRET_SIZE = 5 * RSA_CRT_COMPONENT_SIZE;
+  private static final byte RSA_IMPORT_CRT_COMPONENTS = 7;
+  // Label used to derive the key pool wrapping key from the master key - "KeyPool".
+  private static final byte[] KEY_POOL_LABEL = {0x4B, 0x65, 0x79, 0x50, 0x6F, 0x6F, 0x6C};
+  private static final short KEY_POOL_KEY_SIZE = 16;
   // AES GCM constants
   private static final byte AES_GCM_AUTH_TAG_LENGTH = 16;
   private static final byte AES_GCM_NONCE_LENGTH = 12;
@@ -205,12 +262,14 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMType.initialize();
     encoder = new KMEncoder();
     decoder = new KMDecoder();
+    KMKeyParameters.setDecoder(decoder);
   }
 
   private void initializeTransientArrays() {
     data = JCSystem.makeTransientShortArray((short) DATA_ARRAY_SIZE, JCSystem.CLEAR_ON_RESET);
     bufferRef = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
-    bufferProp = JCSystem.makeTransientShortArray((short) 4, JCSystem.CLEAR_ON_RESET);
+    bufferProp =
+        JCSystem.makeTransientShortArray((short) BUFFER_PROP_SIZE, JCSystem.CLEAR_ON_RESET);
     tmpVariables =
         JCSystem.makeTransientShortArray((short) TMP_VARIABLE_ARRAY_SIZE, JCSystem.CLEAR_ON_RESET);
     bufferProp[BUF_START_OFFSET] = 0;
@@ -334,6 +393,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
       byte[] apduBuffer = apdu.getBuffer();
       byte apduIns = apduBuffer[ISO7816.OFFSET_INS];
+      repository.startHeapProfile(apduIns);
 
       // Validate whether INS can be supported
       if (!(apduIns > INS_BEGIN_KM_CMD && apduIns < INS_END_KM_CMD)) {
@@ -473,9 +533,18 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
           case INS_EARLY_BOOT_ENDED_CMD:
             processEarlyBootEndedCmd(apdu);
             break;
+          case INS_BATCH_ATTEST_KEY_CMD:
+            processBatchAttestKeyCmd(apdu);
+            break;
           case INS_GET_CERT_CHAIN_CMD:
             processGetCertChainCmd(apdu);
             break;
+          case INS_PERFORM_BACKGROUND_WORK_CMD:
+            processPerformBackgroundWorkCmd(apdu);
+            break;
+          case INS_GET_HEAP_PROFILE_CMD:
+            processGetHeapProfileCmd(apdu);
+            break;
           case INS_SET_VERSION_PATCHLEVEL_CMD:
             processSetVersionAndPatchLevels(apdu);
             break;
@@ -504,12 +573,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
   }
 
-  private void generateUniqueOperationHandle(byte[] buf, short offset, short len) {
-    do {
-      seProvider.newRandomNumber(buf, offset, len);
-    } while (null != repository.findOperation(buf, offset, len));
-  }
-
   private boolean isProvisioningComplete() {
     if ((0 != (provisionStatus & PROVISION_STATUS_ATTESTATION_KEY))
         && (0 != (provisionStatus & PROVISION_STATUS_ATTESTATION_CERT_CHAIN))
@@ -534,17 +597,34 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMException.throwIt(KMError.UNIMPLEMENTED);
   }
 
+  // Fills one empty slot of the key pair pool per command, so that the HAL can call it while
+  // idle and stop as soon as it has other work. The response carries the number of empty slots.
+  private void processPerformBackgroundWorkCmd(APDU apdu) {
+    // No arguments expected
+    byte[] scratchPad = apdu.getBuffer();
+    tmpVariables[0] = repository.findKeyPoolSlot(KMType.RSA, false);
+    if (tmpVariables[0] == KMType.INVALID_VALUE) {
+      tmpVariables[0] = repository.findKeyPoolSlot(KMType.EC, false);
+    }
+    if (tmpVariables[0] != KMType.INVALID_VALUE) {
+      fillKeyPoolSlot(tmpVariables[0], scratchPad);
+    }
+    tmpVariables[1] = buildErrorStatus(KMError.OK);
+    tmpVariables[2] = KMInteger.uint_16(repository.getKeyPoolEmptySlots());
+    tmpVariables[0] = KMArray.instance((short) 2);
+    KMArray.cast(tmpVariables[0]).add((short) 0, tmpVariables[1]);
+    KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[2]);
+    sendOutgoing(apdu, tmpVariables[0]);
+  }
+
   private void processDeviceLockedCmd(APDU apdu) {
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     tmpVariables[0] = KMArray.instance((short) 2);
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.exp());
     tmpVariables[1] = KMVerificationToken.exp();
     KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
     // Decode the arguments
-    tmpVariables[0] = decoder.decode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[0] = decoder.decodeIncoming(tmpVariables[0], apdu);
 
     tmpVariables[1] = KMArray.cast(tmpVariables[0]).get((short) 0);
     tmpVariables[1] = KMInteger.cast(tmpVariables[1]).getByte();
@@ -589,22 +669,62 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     apdu.sendBytesLong((byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
   }
 
-  /**
-   * Receives data, which can be extended data, as requested by the command instance.
-   */
-  public static void receiveIncoming(APDU apdu) {
-    byte[] srcBuffer = apdu.getBuffer();
-    short recvLen = apdu.setIncomingAndReceive();
-    short srcOffset = apdu.getOffsetCdata();
-    bufferProp[BUF_LEN_OFFSET] = apdu.getIncomingLength();
-    bufferProp[BUF_START_OFFSET] = repository.allocReclaimableMemory(bufferProp[BUF_LEN_OFFSET]);
-    short index = bufferProp[BUF_START_OFFSET];
+  // Encodes the response directly into the apdu buffer and sends it.
+  private static void sendOutgoing(APDU apdu, short resp) {
+    encoder.encode(resp, apdu);
+  }
 
-    while (recvLen > 0 && ((short) (index - bufferProp[BUF_START_OFFSET]) < bufferProp[BUF_LEN_OFFSET])) {
-      Util.arrayCopyNonAtomic(srcBuffer, srcOffset, (byte[]) bufferRef[0], index, recvLen);
-      index += recvLen;
-      recvLen = apdu.receiveBytes(srcOffset);
+  // Returns the heap size, the size and use of the data memory and, for every instruction which
+  // allocated memory since reset, its peak heap index, peak use of reclaimable memory and number
+  // of allocations, followed by the largest heap use requested by a failed allocation and the
+  // number of failed allocations.
+  private void processGetHeapProfileCmd(APDU apdu) {
+    if (!repository.isHeapProfileEnabled()) {
+      KMException.throwIt(KMError.UNIMPLEMENTED);
     }
+    short ins = 0;
+    short count = 0;
+    while (ins < KMRepository.HEAP_PROFILE_INS_COUNT) {
+      if (isHeapProfiled(ins)) {
+        count++;
+      }
+      ins++;
+    }
+    short profile = KMArray.instance(count);
+    short entry;
+    ins = 0;
+    count = 0;
+    while (ins < KMRepository.HEAP_PROFILE_INS_COUNT) {
+      if (isHeapProfiled(ins)) {
+        entry = KMArray.instance((short) 6);
+        KMArray.cast(entry).add((short) 0, KMInteger.uint_16(ins));
+        KMArray.cast(entry).add((short) 1, KMInteger.uint_16(
+            repository.getHeapProfile(ins, KMRepository.HEAP_PROFILE_PEAK_HEAP)));
+        KMArray.cast(entry).add((short) 2, KMInteger.uint_16(
+            repository.getHeapProfile(ins, KMRepository.HEAP_PROFILE_PEAK_RECLAIM)));
+        KMArray.cast(entry).add((short) 3, KMInteger.uint_16(
+            repository.getHeapProfile(ins, KMRepository.HEAP_PROFILE_ALLOC_COUNT)));
+        KMArray.cast(entry).add((short) 4, KMInteger.uint_16(
+            repository.getHeapProfile(ins, KMRepository.HEAP_PROFILE_PEAK_REQUEST)));
+        KMArray.cast(entry).add((short) 5, KMInteger.uint_16(
+            repository.getHeapProfile(ins, KMRepository.HEAP_PROFILE_FAIL_COUNT)));
+        KMArray.cast(profile).add(count, entry);
+        count++;
+      }
+      ins++;
+    }
+    short resp = KMArray.instance((short) 5);
+    KMArray.cast(resp).add((short) 0, buildErrorStatus(KMError.OK));
+    KMArray.cast(resp).add((short) 1, KMInteger.uint_16(KMConfiguration.getHeapSize()));
+    KMArray.cast(resp).add((short) 2, KMInteger.uint_16(repository.getDataMemSize()));
+    KMArray.cast(resp).add((short) 3, KMInteger.uint_16(repository.getDataMemoryUsed()));
+    KMArray.cast(resp).add((short) 4, profile);
+    sendOutgoing(apdu, resp);
+  }
+
+  private static boolean isHeapProfiled(short ins) {
+    return repository.getHeapProfile(ins, KMRepository.HEAP_PROFILE_ALLOC_COUNT) != 0
+        || repository.getHeapProfile(ins, KMRepository.HEAP_PROFILE_FAIL_COUNT) != 0;
   }
 
   private void processGetHwInfoCmd(APDU apdu) {
@@ -615,8 +735,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     };
     final byte[] Google = {0x47, 0x6F, 0x6F, 0x67, 0x6C, 0x65};
 
-    // Make the response
-    short respPtr = KMArray.instance((short) 3);
+    // Make the response. The name and author are followed by the install time limits.
+    short respPtr = KMArray.instance((short) 8);
     KMArray resp = KMArray.cast(respPtr);
     resp.add((short) 0, KMEnum.instance(KMType.HARDWARE_TYPE, KMType.STRONGBOX));
     resp.add(
@@ -624,24 +744,22 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.instance(
             JavacardKeymasterDevice, (short) 0, (short) JavacardKeymasterDevice.length));
     resp.add((short) 2, KMByteBlob.instance(Google, (short) 0, (short) Google.length));
-
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response - actual bufferProp[BUF_LEN_OFFSET] is 86
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(respPtr, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    // send buffer to master
-    sendOutgoing(apdu);
+    resp.add((short) 3, KMInteger.uint_16(KMConfiguration.getHeapSize()));
+    resp.add((short) 4, KMInteger.uint_16(repository.getDataMemSize()));
+    resp.add((short) 5, KMInteger.uint_16(KMConfiguration.getMaxOps()));
+    resp.add((short) 6, KMInteger.uint_16(seProvider.getCertificateChainMaxSize()));
+    resp.add((short) 7, KMInteger.uint_16(KMConfiguration.getPoolInstances()));
+
+    // Encode and send the response
+    sendOutgoing(apdu, respPtr);
   }
 
   private void processAddRngEntropyCmd(APDU apdu) {
-    // Receive the incoming request fully from the master.
-    receiveIncoming(apdu);
     // Argument 1
     short argsProto = KMArray.instance((short) 1);
     KMArray.cast(argsProto).add((short) 0, KMByteBlob.exp());
     // Decode the argument
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     // Process
     KMByteBlob blob = KMByteBlob.cast(KMArray.cast(args).get((short) 0));
@@ -654,7 +772,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processSetVersionAndPatchLevels(APDU apdu) {
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     // Argument 1 OS Version
     tmpVariables[0] = KMInteger.exp();
@@ -668,9 +785,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(argsProto).add((short) 1, tmpVariables[1]);
     KMArray.cast(argsProto).add((short) 2, tmpVariables[2]);
     // Decode the arguments
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
     tmpVariables[1] = KMArray.cast(args).get((short) 1);
@@ -715,16 +830,13 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processProvisionAttestationCertParams(APDU apdu) {
-    receiveIncoming(apdu);
     // Arguments
     short blob = KMByteBlob.exp();
     short argsProto = KMArray.instance((short) 2);
     KMArray.cast(argsProto).add((short) 0, blob); // Cert - DER encoded issuer
     KMArray.cast(argsProto).add((short) 1, blob); // Cert - Expiry Time
     // Decode the argument.
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     // save issuer - DER Encoded
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
@@ -774,7 +886,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processProvisionAttestationKey(APDU apdu) {
-    receiveIncoming(apdu);
     // Re-purpose the apdu buffer as scratch pad.
     byte[] scratchPad = apdu.getBuffer();
     // Arguments
@@ -787,9 +898,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(argsProto).add((short) 2, blob);
 
     // Decode the argument
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     // key params should have os patch, os version and verified root of trust
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 0);
@@ -846,15 +955,12 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processProvisionAttestIdsCmd(APDU apdu) {
-    receiveIncoming(apdu);
     // Arguments
     short keyparams = KMKeyParameters.exp();
     short argsProto = KMArray.instance((short) 1);
     KMArray.cast(argsProto).add((short) 0, keyparams);
     // Decode the argument.
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 0);
     // persist attestation Ids - if any is missing then exception occurs
@@ -869,15 +975,12 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processProvisionSharedSecretCmd(APDU apdu) {
-    receiveIncoming(apdu);
     // Arguments
     short blob = KMByteBlob.exp();
     short argsProto = KMArray.instance((short) 1);
     KMArray.cast(argsProto).add((short) 0, blob);
     // Decode the argument.
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
     if (tmpVariables[0] != KMType.INVALID_VALUE
@@ -896,9 +999,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, buildErrorStatus(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, KMInteger.uint_16(provisionStatus));
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void saveAttId(short attTag) {
@@ -939,8 +1041,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processGetKeyCharacteristicsCmd(APDU apdu) {
-    // Receive the incoming request fully from the master.
-    receiveIncoming(apdu);
     // Re-purpose the apdu buffer as scratch pad.
     byte[] scratchPad = apdu.getBuffer();
     // Arguments
@@ -949,9 +1049,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 1, KMByteBlob.exp());
     KMArray.cast(tmpVariables[0]).add((short) 2, KMByteBlob.exp());
     // Decode the arguments
-    tmpVariables[0] = decoder.decode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[0] = decoder.decodeIncoming(tmpVariables[0], apdu);
 
     data[KEY_BLOB] = KMArray.cast(tmpVariables[0]).get((short) 0);
     data[APP_ID] = KMArray.cast(tmpVariables[0]).get((short) 1);
@@ -971,10 +1069,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, buildErrorStatus(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_CHARACTERISTICS]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void processGetHmacSharingParamCmd(APDU apdu) {
@@ -988,10 +1084,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[3]).add((short) 0, buildErrorStatus(KMError.OK));
     KMArray.cast(tmpVariables[3]).add((short) 1, tmpVariables[2]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[3], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[3]);
   }
 
   private void processDeleteAllKeysCmd(APDU apdu) {
@@ -1003,19 +1097,22 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private void processDeleteKeyCmd(APDU apdu) {
 
-    // Receive the incoming request fully from the master.
-    receiveIncoming(apdu);
     // Arguments
     short argsProto = KMArray.instance((short) 1);
     KMArray.cast(argsProto).add((short) 0, KMByteBlob.exp());
     // Decode the argument
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     // Process
     data[KEY_BLOB] = KMArray.cast(args).get((short) 0);
-    tmpVariables[0] = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
+    if (isCompactKeyBlob(data[KEY_BLOB])) {
+      // Only the header needs to be checked.
+      getCompactKeyBlobAuthDataLength(KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
+          KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
+          KMByteBlob.cast(data[KEY_BLOB]).length());
+      sendError(apdu, KMError.OK);
+      return;
+    }
     tmpVariables[1] = KMArray.instance((short) 5);
     KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_SECRET, KMByteBlob.exp());
     KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG, KMByteBlob.exp());
@@ -1042,17 +1139,13 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processComputeSharedHmacCmd(APDU apdu) {
-    // Receive the incoming request fully from the master into buffer.
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     tmpVariables[1] = KMHmacSharingParameters.exp();
     tmpVariables[0] = KMArray.exp(tmpVariables[1]);
     tmpVariables[2] = KMArray.instance((short) 1);
     KMArray.cast(tmpVariables[2]).add((short) 0, tmpVariables[0]); // Vector of hmac params
     // Decode the arguments
-    tmpVariables[0] = decoder.decode(tmpVariables[2], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[0] = decoder.decodeIncoming(tmpVariables[2], apdu);
 
     data[HMAC_SHARING_PARAMS] = KMArray.cast(tmpVariables[0]).get((short) 0);
     // Concatenate HMAC Params
@@ -1133,8 +1226,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             tmpVariables[3],
             scratchPad,
             (short) 0);
-    // persist the computed hmac key.
+    // persist the computed hmac key and load it into the SE provider.
     repository.initComputedHmac(scratchPad, (short) 0, tmpVariables[6]);
+    seProvider.createComputedHmacKey(scratchPad, (short) 0, tmpVariables[6]);
+    repository.setComputedHmacKeyLoaded();
 
     // Generate sharingKey verification signature and store that in scratch pad.
     tmpVariables[5] =
@@ -1154,10 +1249,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, buildErrorStatus(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private boolean isKeyUpgradeRequired(short tag, short systemParam) {
@@ -1186,17 +1279,13 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processUpgradeKeyCmd(APDU apdu) {
-    // Receive the incoming request fully from the master into buffer.
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     tmpVariables[1] = KMArray.instance((short) 2);
     tmpVariables[2] = KMKeyParameters.exp();
     KMArray.cast(tmpVariables[1]).add((short) 0, KMByteBlob.exp()); // Key Blob
     KMArray.cast(tmpVariables[1]).add((short) 1, tmpVariables[2]); // Key Params
     // Decode the arguments
-    tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[2] = decoder.decodeIncoming(tmpVariables[1], apdu);
 
     data[KEY_BLOB] = KMArray.cast(tmpVariables[2]).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -1210,9 +1299,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     if (tmpVariables[0] != KMTag.INVALID_VALUE) {
       data[APP_DATA] = KMByteTag.cast(tmpVariables[0]).getValue();
     }
+    // Older key blob formats are always re-encoded in the current format.
+    boolean isKeyUpgradeRequired = !isCompactKeyBlob(data[KEY_BLOB]);
     // parse existing key blob
     parseEncryptedKeyBlob(scratchPad);
-    boolean isKeyUpgradeRequired = false;
     // Check if key requires upgrade.
     isKeyUpgradeRequired |= isKeyUpgradeRequired(KMType.OS_VERSION, repository.getOsVersion());
     isKeyUpgradeRequired |= isKeyUpgradeRequired(KMType.OS_PATCH_LEVEL, repository.getOsPatch());
@@ -1232,10 +1322,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, buildErrorStatus(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void processExportKeyCmd(APDU apdu) {
@@ -1243,8 +1331,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processImportWrappedKeyCmd(APDU apdu) {
-    // Receive the incoming request fully from the master into buffer.
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     tmpVariables[1] = KMArray.instance((short) 12);
     // Arguments
@@ -1263,9 +1349,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[1]).add((short) 10, KMInteger.exp()); // Password Sid
     KMArray.cast(tmpVariables[1]).add((short) 11, KMInteger.exp()); // Biometric Sid
     // Decode the arguments
-    short args = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(tmpVariables[1], apdu);
 
     // Step -0 - check whether the key format and algorithm supported
     // read algorithm
@@ -1323,6 +1407,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             KMByteBlob.cast(data[SECRET]).getBuffer(),
             KMByteBlob.cast(data[SECRET]).getStartOff(),
             KMByteBlob.cast(data[SECRET]).length(),
+            isRsaCrtSecret(KMType.RSA),
             KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
             KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
             KMByteBlob.cast(data[PUB_KEY]).length(),
@@ -1402,8 +1487,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processAttestKeyCmd(APDU apdu) {
-    // Receive the incoming request fully from the master into buffer.
-    receiveIncoming(apdu);
 
     // Re-purpose the apdu buffer as scratch pad.
     byte[] scratchPad = apdu.getBuffer();
@@ -1416,13 +1499,102 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(argsProto).add((short) 1, keyParams);
 
     // Decode the argument
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     data[KEY_BLOB] = KMArray.cast(args).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 1);
 
+    readAttestComponents();
+    // buffer for cert - we allocate 2KBytes buffer
+    // make this buffer size configurable
+    short certBuf = KMByteBlob.instance(MAX_CERT_SIZE);
+    KMAttestationCert cert = buildAttestationCert(scratchPad,
+        KMByteBlob.cast(certBuf).getBuffer(), KMByteBlob.cast(certBuf).getStartOff(),
+        KMByteBlob.cast(certBuf).length());
+    bufferRef[0] = KMByteBlob.cast(certBuf).getBuffer();
+    bufferProp[BUF_START_OFFSET] = KMByteBlob.cast(certBuf).getStartOff();
+    bufferProp[BUF_START_OFFSET] =
+        encoder.encodeCert((byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], cert.getCertStart(), cert.getCertLength(),
+            buildErrorStatus(KMError.OK));
+    bufferProp[BUF_LEN_OFFSET] = (short) (cert.getCertLength() + (cert.getCertStart() - bufferProp[BUF_START_OFFSET]));
+    sendOutgoing(apdu);
+  }
+
+  private void processBatchAttestKeyCmd(APDU apdu) {
+    // Re-purpose the apdu buffer as scratch pad.
+    byte[] scratchPad = apdu.getBuffer();
+
+    // Arguments - array of key blobs and array of attestation parameters, one for each key.
+    short keyBlobs = KMArray.exp(KMByteBlob.exp());
+    short keyParams = KMArray.exp(KMKeyParameters.exp());
+    short argsProto = KMArray.instance((short) 2);
+    KMArray.cast(argsProto).add((short) 0, keyBlobs);
+    KMArray.cast(argsProto).add((short) 1, keyParams);
+
+    // Decode the argument
+    short args = decoder.decodeIncoming(argsProto, apdu);
+    keyBlobs = KMArray.cast(args).get((short) 0);
+    keyParams = KMArray.cast(args).get((short) 1);
+    short count = KMArray.cast(keyBlobs).length();
+    if (count == 0 || count != KMArray.cast(keyParams).length()) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
+    // Components shared by all the certificates are read only once.
+    readAttestComponents();
+    short certs = KMArray.instance(count);
+    short index = 0;
+    short heapIndex;
+    short certBuf;
+    KMAttestationCert cert;
+    while (index < count) {
+      data[KEY_BLOB] = KMArray.cast(keyBlobs).get(index);
+      data[KEY_PARAMETERS] = KMArray.cast(keyParams).get(index);
+      // The certificate is built in the reclaimable memory, so that everything else allocated
+      // for this key can be released once the certificate is copied out.
+      heapIndex = repository.getHeapIndex();
+      certBuf = repository.allocReclaimableMemory(MAX_CERT_SIZE);
+      cert = buildAttestationCert(scratchPad, repository.getHeap(), certBuf, MAX_CERT_SIZE);
+      repository.releaseHeap(heapIndex);
+      KMArray.cast(certs).add(index,
+          KMByteBlob.instance(repository.getHeap(), cert.getCertStart(), cert.getCertLength()));
+      repository.reclaimMemory(MAX_CERT_SIZE);
+      index++;
+    }
+    short resp = KMArray.instance((short) 2);
+    KMArray.cast(resp).add((short) 0, buildErrorStatus(KMError.OK));
+    KMArray.cast(resp).add((short) 1, certs);
+    // Encode and send the response
+    sendOutgoing(apdu, resp);
+  }
+
+  // Reads the attestation components which do not depend on the attested key.
+  private void readAttestComponents() {
+    data[ATTEST_COMPONENTS] = KMArray.instance(ATTEST_COMPONENTS_SIZE);
+    KMArray.cast(data[ATTEST_COMPONENTS]).add(ATTEST_ISSUER, repository.getIssuer());
+    KMArray.cast(data[ATTEST_COMPONENTS])
+        .add(ATTEST_CERT_EXPIRY, repository.getCertExpiryTime());
+    KMArray.cast(data[ATTEST_COMPONENTS])
+        .add(ATTEST_VERIFIED_BOOT_KEY, repository.getVerifiedBootKey());
+    KMArray.cast(data[ATTEST_COMPONENTS])
+        .add(ATTEST_VERIFIED_BOOT_HASH, repository.getVerifiedBootHash());
+    KMArray.cast(data[ATTEST_COMPONENTS])
+        .add(ATTEST_BOOT_STATE, KMInteger.uint_8(repository.getBootState()));
+    KMArray.cast(data[ATTEST_COMPONENTS]).add(ATTEST_DEVICE_LOCKED,
+        KMInteger.uint_8(repository.getBootLoaderLock() ? (byte) 0x01 : (byte) 0x00));
+    short attIds = KMArray.instance((short) ATTEST_ID_TAGS.length);
+    short index = 0;
+    while (index < (short) ATTEST_ID_TAGS.length) {
+      KMArray.cast(attIds)
+          .add(index, repository.getAttId(mapToAttId(ATTEST_ID_TAGS[index])));
+      index++;
+    }
+    KMArray.cast(data[ATTEST_COMPONENTS]).add(ATTEST_IDS, attIds);
+  }
+
+  // Builds the attestation certificate of the key blob in data[KEY_BLOB] for the attestation
+  // parameters in data[KEY_PARAMETERS].
+  private KMAttestationCert buildAttestationCert(byte[] scratchPad, byte[] buf, short start,
+      short len) {
     // parse key blob
     parseEncryptedKeyBlob(scratchPad);
     // This below code is added to pass one of the VTS 4.1 tests.
@@ -1485,32 +1657,26 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // expiry time - byte blob
     tmpVariables[2] =
         KMKeyParameters.findTag(KMType.DATE_TAG, KMType.USAGE_EXPIRE_DATETIME, data[SW_PARAMETERS]);
-    cert.notAfter(tmpVariables[2], repository.getCertExpiryTime(), scratchPad, (short) 0);
+    cert.notAfter(tmpVariables[2],
+        KMArray.cast(data[ATTEST_COMPONENTS]).get(ATTEST_CERT_EXPIRY), scratchPad, (short) 0);
 
     addTags(KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).getHardwareEnforced(), true, cert);
     addTags(
         KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).getSoftwareEnforced(), false, cert);
 
-    cert.deviceLocked(repository.getBootLoaderLock());
-    cert.issuer(repository.getIssuer());
+    cert.deviceLocked(
+        KMInteger.cast(KMArray.cast(data[ATTEST_COMPONENTS]).get(ATTEST_DEVICE_LOCKED))
+            .getByte() != 0);
+    cert.issuer(KMArray.cast(data[ATTEST_COMPONENTS]).get(ATTEST_ISSUER));
     cert.publicKey(data[PUB_KEY]);
-    cert.verifiedBootHash(repository.getVerifiedBootHash());
+    cert.verifiedBootHash(KMArray.cast(data[ATTEST_COMPONENTS]).get(ATTEST_VERIFIED_BOOT_HASH));
 
-    cert.verifiedBootKey(repository.getVerifiedBootKey());
-    cert.verifiedBootState(repository.getBootState());
-    // buffer for cert - we allocate 2KBytes buffer
-    // make this buffer size configurable
-    tmpVariables[3] = KMByteBlob.instance(MAX_CERT_SIZE);
-    bufferRef[0] = KMByteBlob.cast(tmpVariables[3]).getBuffer();
-    bufferProp[BUF_START_OFFSET] = KMByteBlob.cast(tmpVariables[3]).getStartOff();
-    bufferProp[BUF_LEN_OFFSET] = KMByteBlob.cast(tmpVariables[3]).length();
-    cert.buffer((byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
+    cert.verifiedBootKey(KMArray.cast(data[ATTEST_COMPONENTS]).get(ATTEST_VERIFIED_BOOT_KEY));
+    cert.verifiedBootState(
+        KMInteger.cast(KMArray.cast(data[ATTEST_COMPONENTS]).get(ATTEST_BOOT_STATE)).getByte());
+    cert.buffer(buf, start, len);
     cert.build();
-    bufferProp[BUF_START_OFFSET] =
-        encoder.encodeCert((byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], cert.getCertStart(), cert.getCertLength(),
-            buildErrorStatus(KMError.OK));
-    bufferProp[BUF_LEN_OFFSET] = (short) (cert.getCertLength() + (cert.getCertStart() - bufferProp[BUF_START_OFFSET]));
-    sendOutgoing(apdu);
+    return cert;
   }
 
   private boolean isEmpty(byte[] buf, short offset, short len) {
@@ -1533,26 +1699,17 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   // id values of both the requested parameters and the provisioned parameters
   // then throw INVALID_TAG error.
   private void addAttestationIds(KMAttestationCert cert) {
-    final short[] attTags =
-        new short[]{
-            KMType.ATTESTATION_ID_BRAND,
-            KMType.ATTESTATION_ID_DEVICE,
-            KMType.ATTESTATION_ID_IMEI,
-            KMType.ATTESTATION_ID_MANUFACTURER,
-            KMType.ATTESTATION_ID_MEID,
-            KMType.ATTESTATION_ID_MODEL,
-            KMType.ATTESTATION_ID_PRODUCT,
-            KMType.ATTESTATION_ID_SERIAL
-        };
     byte index = 0;
     short attIdTag;
     short attIdTagValue;
     short storedAttId;
-    while (index < (short) attTags.length) {
-      attIdTag = KMKeyParameters.findTag(KMType.BYTES_TAG, attTags[index], data[KEY_PARAMETERS]);
+    short attIds = KMArray.cast(data[ATTEST_COMPONENTS]).get(ATTEST_IDS);
+    while (index < (short) ATTEST_ID_TAGS.length) {
+      attIdTag = KMKeyParameters.findTag(KMType.BYTES_TAG, ATTEST_ID_TAGS[index],
+          data[KEY_PARAMETERS]);
       if (attIdTag != KMType.INVALID_VALUE) {
         attIdTagValue = KMByteTag.cast(attIdTag).getValue();
-        storedAttId = repository.getAttId(mapToAttId(attTags[index]));
+        storedAttId = KMArray.cast(attIds).get(index);
         // Return CANNOT_ATTEST_IDS if Attestation IDs are not provisioned or
         // Attestation IDs are deleted.
         if (storedAttId == 0 ||
@@ -1642,12 +1799,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processAbortOperationCmd(APDU apdu) {
-    receiveIncoming(apdu);
     tmpVariables[1] = KMArray.instance((short) 1);
     KMArray.cast(tmpVariables[1]).add((short) 0, KMInteger.exp());
-    tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[2] = decoder.decodeIncoming(tmpVariables[1], apdu);
 
     data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
     KMOperationState op = repository.findOperation(data[OP_HANDLE]);
@@ -1659,7 +1813,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processFinishOperationCmd(APDU apdu) {
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     tmpVariables[1] = KMArray.instance((short) 6);
     // Arguments
@@ -1673,9 +1826,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[4] = KMVerificationToken.exp();
     KMArray.cast(tmpVariables[1]).add((short) 5, tmpVariables[4]);
     // Decode the arguments
-    tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[2] = decoder.decodeIncoming(tmpVariables[1], apdu);
 
     data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -1715,10 +1866,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[2]).add((short) 1, tmpVariables[1]);
     KMArray.cast(tmpVariables[2]).add((short) 2, data[OUTPUT_DATA]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[2], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[2]);
   }
 
   private void finishEncryptOperation(KMOperationState op, byte[] scratchPad) {
@@ -2055,12 +2204,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
     // hmac the data
     ptr = KMVerificationToken.cast(verToken).getMac();
-    short key = repository.getComputedHmacKey();
     boolean verified =
         seProvider.hmacVerify(
-            KMByteBlob.cast(key).getBuffer(),
-            KMByteBlob.cast(key).getStartOff(),
-            KMByteBlob.cast(key).length(),
+            getComputedHmacKey(),
             scratchPad,
             (short) 0,
             len,
@@ -2074,7 +2220,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processUpdateOperationCmd(APDU apdu) {
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     tmpVariables[1] = KMArray.instance((short) 5);
     // Arguments
@@ -2087,9 +2232,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[4] = KMVerificationToken.exp();
     KMArray.cast(tmpVariables[1]).add((short) 4, tmpVariables[4]);
     // Decode the arguments
-    tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[2] = decoder.decodeIncoming(tmpVariables[1], apdu);
 
     data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -2198,15 +2341,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[2]).add((short) 2, tmpVariables[1]);
     KMArray.cast(tmpVariables[2]).add((short) 3, data[OUTPUT_DATA]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[2], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[2]);
   }
 
   private void processBeginOperationCmd(APDU apdu) {
-    // Receive the incoming request fully from the master into buffer.
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     short args;
     tmpVariables[1] = KMArray.instance((short) 4);
@@ -2218,9 +2357,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[3] = KMHardwareAuthToken.exp();
     KMArray.cast(tmpVariables[1]).add((short) 3, tmpVariables[3]);
     // Decode the arguments
-    args = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    args = decoder.decodeIncoming(tmpVariables[1], apdu);
 
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 2);
     data[KEY_BLOB] = KMArray.cast(args).get((short) 1);
@@ -2242,17 +2379,14 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
     tmpVariables[0] = KMEnum.cast(tmpVariables[0]).getVal();
     data[HW_TOKEN] = KMArray.cast(args).get((short) 3);
-    /*Generate a random number for operation handle */
-    short buf = KMByteBlob.instance(KMRepository.OPERATION_HANDLE_SIZE);
-    generateUniqueOperationHandle(
-        KMByteBlob.cast(buf).getBuffer(),
-        KMByteBlob.cast(buf).getStartOff(),
-        KMByteBlob.cast(buf).length());
-    /* opHandle is a KMInteger and is encoded as KMInteger when it is returned back. */
-    short opHandle = KMInteger.instance(
-        KMByteBlob.cast(buf).getBuffer(),
-        KMByteBlob.cast(buf).getStartOff(),
-        KMByteBlob.cast(buf).length());
+    /* opHandle is a KMInteger and is encoded as KMInteger when it is returned back.
+     * Generate a random tag for the operation handle, reserveOperation stamps the
+     * operation slot into it. */
+    short opHandle = KMInteger.instance(KMRepository.OPERATION_HANDLE_SIZE);
+    seProvider.newRandomNumber(
+        KMInteger.cast(opHandle).getBuffer(),
+        KMInteger.cast(opHandle).getStartOff(),
+        KMRepository.OPERATION_HANDLE_SIZE);
     KMOperationState op = repository.reserveOperation(opHandle);
     if (op == null) {
       KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
@@ -2303,10 +2437,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
     KMArray.cast(tmpVariables[0]).add((short) 2, data[OP_HANDLE]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void authorizeAlgorithm(KMOperationState op) {
@@ -2605,6 +2737,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
                     KMByteBlob.cast(data[SECRET]).getBuffer(),
                     KMByteBlob.cast(data[SECRET]).getStartOff(),
                     KMByteBlob.cast(data[SECRET]).length(),
+                    isRsaCrtSecret(op.getAlgorithm()),
                     KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
                     KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
                     KMByteBlob.cast(data[PUB_KEY]).length()));
@@ -2659,6 +2792,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
                     KMByteBlob.cast(data[SECRET]).getBuffer(),
                     KMByteBlob.cast(data[SECRET]).getStartOff(),
                     KMByteBlob.cast(data[SECRET]).length(),
+                    isRsaCrtSecret(op.getAlgorithm()),
                     KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
                     KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
                     KMByteBlob.cast(data[PUB_KEY]).length()));
@@ -2681,6 +2815,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
                     KMByteBlob.cast(data[SECRET]).getBuffer(),
                     KMByteBlob.cast(data[SECRET]).getStartOff(),
                     KMByteBlob.cast(data[SECRET]).length(),
+                    false,
                     null,
                     (short) 0,
                     (short) 0));
@@ -2782,6 +2917,20 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
   }
 
+  // Returns the computed hmac key held by the SE provider. The key is loaded from the repository
+  // only after it has changed or after a reset cleared the transient key.
+  private KMComputedHmacKey getComputedHmacKey() {
+    if (!repository.isComputedHmacKeyLoaded()) {
+      short key = repository.getComputedHmacKey();
+      seProvider.createComputedHmacKey(
+          KMByteBlob.cast(key).getBuffer(),
+          KMByteBlob.cast(key).getStartOff(),
+          KMByteBlob.cast(key).length());
+      repository.setComputedHmacKeyLoaded();
+    }
+    return seProvider.getComputedHmacKey();
+  }
+
   private boolean validateHwToken(short hwToken, byte[] scratchPad) {
     // CBOR Encoding is always big endian
     short ptr = KMHardwareAuthToken.cast(hwToken).getMac();
@@ -2817,24 +2966,33 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMInteger.cast(ptr)
         .value(scratchPad, (short) (len + (short) (8 - KMInteger.cast(ptr).length())));
     len += 8;
-    // hmac the data
+    // Skip the hmac if the same token was verified earlier.
     ptr = KMHardwareAuthToken.cast(hwToken).getMac();
-    short key = repository.getComputedHmacKey();
-    return seProvider.hmacVerify(
-        KMByteBlob.cast(key).getBuffer(),
-        KMByteBlob.cast(key).getStartOff(),
-        KMByteBlob.cast(key).length(),
+    if (repository.isHwTokenVerified(scratchPad, (short) 0,
+        KMByteBlob.cast(ptr).getBuffer(),
+        KMByteBlob.cast(ptr).getStartOff(),
+        KMByteBlob.cast(ptr).length())) {
+      return true;
+    }
+    // hmac the data
+    if (!seProvider.hmacVerify(
+        getComputedHmacKey(),
         scratchPad,
         (short) 0,
         len,
+        KMByteBlob.cast(ptr).getBuffer(),
+        KMByteBlob.cast(ptr).getStartOff(),
+        KMByteBlob.cast(ptr).length())) {
+      return false;
+    }
+    repository.addVerifiedHwToken(scratchPad, (short) 0,
         KMByteBlob.cast(ptr).getBuffer(),
         KMByteBlob.cast(ptr).getStartOff(),
         KMByteBlob.cast(ptr).length());
+    return true;
   }
 
   private void processImportKeyCmd(APDU apdu) {
-    // Receive the incoming request fully from the master into buffer.
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     tmpVariables[1] = KMArray.instance((short) 3);
     // Arguments
@@ -2843,9 +3001,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[1]).add((short) 1, KMEnum.instance(KMType.KEY_FORMAT));
     KMArray.cast(tmpVariables[1]).add((short) 2, KMByteBlob.exp());
     // Decode the arguments
-    tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[2] = decoder.decodeIncoming(tmpVariables[1], apdu);
 
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 0);
     tmpVariables[3] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -2913,10 +3069,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
     KMArray.cast(tmpVariables[0]).add((short) 2, data[KEY_CHARACTERISTICS]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private void importECKeys(byte[] scratchPad) {
@@ -3122,18 +3276,28 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void importRSAKey(byte[] scratchPad) {
-    // Decode key material
-    tmpVariables[0] = KMArray.instance((short) 2);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp()); // secret = private exponent
-    KMArray.cast(tmpVariables[0]).add((short) 1, KMByteBlob.exp()); // modulus
+    // Decode key material - private exponent and modulus, optionally followed by the
+    // CRT components P, Q, DP1, DQ1 and PQ.
+    tmpVariables[0] = KMArray.instance(RSA_IMPORT_CRT_COMPONENTS);
+    tmpVariables[1] = 0;
+    while (tmpVariables[1] < RSA_IMPORT_CRT_COMPONENTS) {
+      tmpVariables[2] = KMByteBlob.exp();
+      KMArray.cast(tmpVariables[0]).add(tmpVariables[1], tmpVariables[2]);
+      tmpVariables[1]++;
+    }
     tmpVariables[0] =
-        decoder.decode(
+        decoder.decodeArray(
             tmpVariables[0],
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getBuffer(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getStartOff(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).length());
+    tmpVariables[1] = KMArray.cast(tmpVariables[0]).length();
+    if (tmpVariables[1] != 2 && tmpVariables[1] != RSA_IMPORT_CRT_COMPONENTS) {
+      KMException.throwIt(KMError.INVALID_ARGUMENT);
+    }
     data[SECRET] = KMArray.cast(tmpVariables[0]).get((short) 0);
     data[PUB_KEY] = KMArray.cast(tmpVariables[0]).get((short) 1);
+    data[IMPORTED_KEY_BLOB] = tmpVariables[0];
     tmpVariables[4] = 0; // index in scratchPad for update parameters.
     // validate public exponent if present in key params - it must be 0x010001
     tmpVariables[2] =
@@ -3185,6 +3349,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
         KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
         KMByteBlob.cast(data[PUB_KEY]).length());
+    if (KMArray.cast(data[IMPORTED_KEY_BLOB]).length() == RSA_IMPORT_CRT_COMPONENTS) {
+      data[SECRET] = makeRsaCrtSecret(data[IMPORTED_KEY_BLOB]);
+    }
 
     // update the key parameters list
     updateKeyParameters(scratchPad, tmpVariables[4]);
@@ -3194,6 +3361,53 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
   }
 
+  // Packs the imported CRT components into the fixed layout of the RSA key blob secret and checks
+  // that they belong to the imported private exponent and modulus.
+  private static short makeRsaCrtSecret(short keyMaterial) {
+    short secret = KMByteBlob.instance(RSA_CRT_SECRET_SIZE);
+    short index = 2;
+    short offset = KMByteBlob.cast(secret).getStartOff();
+    short component;
+    short len;
+    Util.arrayFillNonAtomic(KMByteBlob.cast(secret).getBuffer(), offset, RSA_CRT_SECRET_SIZE,
+        (byte) 0);
+    while (index < RSA_IMPORT_CRT_COMPONENTS) {
+      component = KMArray.cast(keyMaterial).get(index);
+      len = KMByteBlob.cast(component).length();
+      if (len > RSA_CRT_COMPONENT_SIZE) {
+        KMException.throwIt(KMError.IMPORT_PARAMETER_MISMATCH);
+      }
+      offset += RSA_CRT_COMPONENT_SIZE;
+      Util.arrayCopyNonAtomic(
+          KMByteBlob.cast(component).getBuffer(),
+          KMByteBlob.cast(component).getStartOff(),
+          KMByteBlob.cast(secret).getBuffer(),
+          (short) (offset - len),
+          len);
+      index++;
+    }
+    short privExp = KMArray.cast(keyMaterial).get((short) 0);
+    short mod = KMArray.cast(keyMaterial).get((short) 1);
+    short tmp = repository.allocReclaimableMemory((short) (2 * RSA_KEY_SIZE));
+    boolean isValid = seProvider.importRsaCrtKey(
+        KMByteBlob.cast(secret).getBuffer(),
+        KMByteBlob.cast(secret).getStartOff(),
+        KMByteBlob.cast(privExp).getBuffer(),
+        KMByteBlob.cast(privExp).getStartOff(),
+        KMByteBlob.cast(privExp).length(),
+        KMByteBlob.cast(mod).getBuffer(),
+        KMByteBlob.cast(mod).getStartOff(),
+        KMByteBlob.cast(mod).length(),
+        repository.getHeap(),
+        tmp);
+    Util.arrayFillNonAtomic(repository.getHeap(), tmp, (short) (2 * RSA_KEY_SIZE), (byte) 0);
+    repository.reclaimMemory((short) (2 * RSA_KEY_SIZE));
+    if (!isValid) {
+      KMException.throwIt(KMError.IMPORT_PARAMETER_MISMATCH);
+    }
+    return secret;
+  }
+
   private void updateKeyParameters(byte[] ptrArr, short len) {
     if (len == 0) {
       return; // nothing to update
@@ -3229,7 +3443,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   // setBootParams is removed, then make sure that releaseAllOperations
   // is moved to a place where it is called on every boot.
   private void processSetBootParamsCmd(APDU apdu) {
-    receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     // Argument 0 Boot Patch level
     tmpVariables[0] = KMInteger.exp();
@@ -3249,9 +3462,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(argsProto).add((short) 3, tmpVariables[3]);
     KMArray.cast(argsProto).add((short) 4, tmpVariables[4]);
     // Decode the arguments
-    short args = decoder.decode(argsProto, (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    short args = decoder.decodeIncoming(argsProto, apdu);
 
     tmpVariables[0] = KMArray.cast(args).get((short) 0);
     tmpVariables[1] = KMArray.cast(args).get((short) 1);
@@ -3303,8 +3514,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private static void processGenerateKey(APDU apdu) {
-    // Receive the incoming request fully from the master into buffer.
-    receiveIncoming(apdu);
     // Re-purpose the apdu buffer as scratch pad.
     byte[] scratchPad = apdu.getBuffer();
     // Argument
@@ -3313,9 +3522,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[1] = KMArray.instance((short) 1);
     KMArray.cast(tmpVariables[1]).add((short) 0, tmpVariables[0]);
     // Decode the argument
-    tmpVariables[2] = decoder.decode(tmpVariables[1], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET], bufferProp[BUF_LEN_OFFSET]);
-    //reclaim memory
-    repository.reclaimMemory(bufferProp[BUF_LEN_OFFSET]);
+    tmpVariables[2] = decoder.decodeIncoming(tmpVariables[1], apdu);
 
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 0);
     // Check if EarlyBootEnded tag is present.
@@ -3393,11 +3600,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
     KMArray.cast(tmpVariables[0]).add((short) 2, data[KEY_CHARACTERISTICS]);
 
-    bufferProp[BUF_START_OFFSET] = repository.allocAvailableMemory();
-    // Encode the response
-    bufferProp[BUF_LEN_OFFSET] = encoder.encode(tmpVariables[0], (byte[]) bufferRef[0], bufferProp[BUF_START_OFFSET]);
-
-    sendOutgoing(apdu);
+    // Encode and send the response
+    sendOutgoing(apdu, tmpVariables[0]);
   }
 
   private static void validateRSAKey(byte[] scratchPad) {
@@ -3432,19 +3636,22 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private static void generateRSAKey(byte[] scratchPad) {
     // Validate RSA Key
     validateRSAKey(scratchPad);
-    // Now generate 2048 bit RSA keypair for the given exponent
-    short[] lengths = tmpVariables;
-    data[PUB_KEY] = KMByteBlob.instance((short) 256);
-    data[SECRET] = KMByteBlob.instance((short) 256);
-    seProvider.createAsymmetricKey(
-        KMType.RSA,
-        KMByteBlob.cast(data[SECRET]).getBuffer(),
-        KMByteBlob.cast(data[SECRET]).getStartOff(),
-        KMByteBlob.cast(data[SECRET]).length(),
-        KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
-        KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
-        KMByteBlob.cast(data[PUB_KEY]).length(),
-        lengths);
+    // Use a pre-generated key pair if the pool has one.
+    if (!takePooledKeyPair(KMType.RSA, scratchPad)) {
+      // Now generate 2048 bit RSA keypair for the given exponent
+      short[] lengths = tmpVariables;
+      data[PUB_KEY] = KMByteBlob.instance(RSA_KEY_SIZE);
+      data[SECRET] = KMByteBlob.instance(RSA_CRT_SECRET_SIZE);
+      seProvider.createAsymmetricKey(
+          KMType.RSA,
+          KMByteBlob.cast(data[SECRET]).getBuffer(),
+          KMByteBlob.cast(data[SECRET]).getStartOff(),
+          KMByteBlob.cast(data[SECRET]).length(),
+          KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
+          KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
+          KMByteBlob.cast(data[PUB_KEY]).length(),
+          lengths);
+    }
 
     data[KEY_BLOB] = KMArray.instance((short) 5);
     KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
@@ -3512,22 +3719,126 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private static void generateECKeys(byte[] scratchPad) {
     validateECKeys();
-    short[] lengths = tmpVariables;
-    seProvider.createAsymmetricKey(
-        KMType.EC,
-        scratchPad,
-        (short) 0,
-        (short) 128,
-        scratchPad,
-        (short) 128,
-        (short) 128,
-        lengths);
-    data[PUB_KEY] = KMByteBlob.instance(scratchPad, (short) 128, lengths[1]);
-    data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, lengths[0]);
+    // Use a pre-generated key pair if the pool has one.
+    if (!takePooledKeyPair(KMType.EC, scratchPad)) {
+      short[] lengths = tmpVariables;
+      seProvider.createAsymmetricKey(
+          KMType.EC,
+          scratchPad,
+          (short) 0,
+          (short) 128,
+          scratchPad,
+          (short) 128,
+          (short) 128,
+          lengths);
+      data[PUB_KEY] = KMByteBlob.instance(scratchPad, (short) 128, lengths[1]);
+      data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, lengths[0]);
+    }
     data[KEY_BLOB] = KMArray.instance((short) 5);
     KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
   }
 
+  // Derives the key pool wrapping key from the master key into the start of the scratch pad.
+  private static void deriveKeyPoolKey(byte[] scratchPad) {
+    Util.arrayCopyNonAtomic(KEY_POOL_LABEL, (short) 0, scratchPad, (short) 64,
+        (short) KEY_POOL_LABEL.length);
+    short len = seProvider.hmacKDF(seProvider.getMasterKey(), scratchPad, (short) 64,
+        (short) KEY_POOL_LABEL.length, scratchPad, (short) 0);
+    if (len < KEY_POOL_KEY_SIZE) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+  }
+
+  // Generates a key pair and stores it wrapped in the given empty slot of the key pool.
+  private static void fillKeyPoolSlot(short slot, byte[] scratchPad) {
+    byte alg = repository.getKeyPoolSlotAlgorithm(slot);
+    short secretSize = RSA_CRT_SECRET_SIZE;
+    short pubSize = RSA_KEY_SIZE;
+    short dataSize = KMRepository.KEY_POOL_RSA_DATA_SIZE;
+    if (alg == KMType.EC) {
+      secretSize = 128;
+      pubSize = 128;
+      dataSize = KMRepository.KEY_POOL_EC_DATA_SIZE;
+    }
+    short tmp = repository.allocReclaimableMemory((short) (secretSize + pubSize));
+    byte[] heap = repository.getHeap();
+    short[] lengths = tmpVariables;
+    seProvider.createAsymmetricKey(alg, heap, tmp, secretSize, heap, (short) (tmp + secretSize),
+        pubSize, lengths);
+    short secretLen = lengths[0];
+    short pubLen = lengths[1];
+    if ((short) (secretLen + pubLen) > dataSize) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    // Public key follows the secret.
+    Util.arrayCopyNonAtomic(heap, (short) (tmp + secretSize), heap, (short) (tmp + secretLen),
+        pubLen);
+    byte[] pool = repository.getKeyPool();
+    short offset = repository.getKeyPoolSlotOffset(slot);
+    Util.setShort(pool, (short) (offset + KMRepository.KEY_POOL_SECRET_LEN_OFFSET), secretLen);
+    Util.setShort(pool, (short) (offset + KMRepository.KEY_POOL_PUB_LEN_OFFSET), pubLen);
+    seProvider.newRandomNumber(pool, (short) (offset + KMRepository.KEY_POOL_NONCE_OFFSET),
+        KMRepository.KEY_POOL_NONCE_SIZE);
+    deriveKeyPoolKey(scratchPad);
+    // The algorithm byte of the slot is the associated data.
+    seProvider.aesGCMEncrypt(
+        scratchPad, (short) 0, KEY_POOL_KEY_SIZE,
+        heap, tmp, (short) (secretLen + pubLen),
+        pool, (short) (offset + KMRepository.KEY_POOL_DATA_OFFSET),
+        pool, (short) (offset + KMRepository.KEY_POOL_NONCE_OFFSET),
+        KMRepository.KEY_POOL_NONCE_SIZE,
+        pool, (short) (offset + KMRepository.KEY_POOL_ALG_OFFSET), (short) 1,
+        pool, (short) (offset + KMRepository.KEY_POOL_AUTH_TAG_OFFSET),
+        KMRepository.KEY_POOL_AUTH_TAG_SIZE);
+    Util.arrayFillNonAtomic(scratchPad, (short) 0, KEY_POOL_KEY_SIZE, (byte) 0);
+    Util.arrayFillNonAtomic(heap, tmp, (short) (secretSize + pubSize), (byte) 0);
+    repository.reclaimMemory((short) (secretSize + pubSize));
+    repository.setKeyPoolSlotFilled(slot, true);
+  }
+
+  // Takes a pre-generated key pair of the given algorithm from the key pool into data[SECRET]
+  // and data[PUB_KEY]. Returns false if the pool has no usable key pair.
+  private static boolean takePooledKeyPair(byte alg, byte[] scratchPad) {
+    short slot = repository.findKeyPoolSlot(alg, true);
+    if (slot == KMType.INVALID_VALUE) {
+      return false;
+    }
+    // A pooled key pair is handed out at most once.
+    repository.setKeyPoolSlotFilled(slot, false);
+    byte[] pool = repository.getKeyPool();
+    short offset = repository.getKeyPoolSlotOffset(slot);
+    short secretLen =
+        Util.getShort(pool, (short) (offset + KMRepository.KEY_POOL_SECRET_LEN_OFFSET));
+    short pubLen =
+        Util.getShort(pool, (short) (offset + KMRepository.KEY_POOL_PUB_LEN_OFFSET));
+    short len = (short) (secretLen + pubLen);
+    short dataSize = (alg == KMType.RSA)
+        ? KMRepository.KEY_POOL_RSA_DATA_SIZE : KMRepository.KEY_POOL_EC_DATA_SIZE;
+    if (secretLen <= 0 || pubLen <= 0 || len > dataSize) {
+      return false;
+    }
+    short tmp = repository.allocReclaimableMemory(len);
+    byte[] heap = repository.getHeap();
+    deriveKeyPoolKey(scratchPad);
+    boolean valid = seProvider.aesGCMDecrypt(
+        scratchPad, (short) 0, KEY_POOL_KEY_SIZE,
+        pool, (short) (offset + KMRepository.KEY_POOL_DATA_OFFSET), len,
+        heap, tmp,
+        pool, (short) (offset + KMRepository.KEY_POOL_NONCE_OFFSET),
+        KMRepository.KEY_POOL_NONCE_SIZE,
+        pool, (short) (offset + KMRepository.KEY_POOL_ALG_OFFSET), (short) 1,
+        pool, (short) (offset + KMRepository.KEY_POOL_AUTH_TAG_OFFSET),
+        KMRepository.KEY_POOL_AUTH_TAG_SIZE);
+    Util.arrayFillNonAtomic(scratchPad, (short) 0, KEY_POOL_KEY_SIZE, (byte) 0);
+    if (valid) {
+      data[SECRET] = KMByteBlob.instance(heap, tmp, secretLen);
+      data[PUB_KEY] = KMByteBlob.instance(heap, (short) (tmp + secretLen), pubLen);
+    }
+    Util.arrayFillNonAtomic(heap, tmp, len, (byte) 0);
+    repository.reclaimMemory(len);
+    return valid;
+  }
+
   private static void validateTDESKey() {
     // Read Minimum Mac length - it must not be present
     tmpVariables[0] =
@@ -3644,8 +3955,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     tmpVariables[1] = repository.getOsVersion();
     tmpVariables[2] = repository.getVendorPatchLevel();
     tmpVariables[3] = repository.getBootPatchLevel();
-    data[HW_PARAMETERS] =
-        KMKeyParameters.makeHwEnforced(
+    data[KEY_CHARACTERISTICS] =
+        KMKeyParameters.makeKeyCharacteristics(
             data[KEY_PARAMETERS],
             (byte) data[ORIGIN],
             tmpVariables[1],
@@ -3653,10 +3964,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             tmpVariables[2],
             tmpVariables[3],
             scratchPad);
-    data[SW_PARAMETERS] = KMKeyParameters.makeSwEnforced(data[KEY_PARAMETERS], scratchPad);
-    data[KEY_CHARACTERISTICS] = KMKeyCharacteristics.instance();
-    KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).setHardwareEnforced(data[HW_PARAMETERS]);
-    KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).setSoftwareEnforced(data[SW_PARAMETERS]);
+    data[HW_PARAMETERS] =
+        KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).getHardwareEnforced();
+    data[SW_PARAMETERS] =
+        KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).getSoftwareEnforced();
   }
 
   private static void createEncryptedKeyBlob(byte[] scratchPad) {
@@ -3671,21 +3982,128 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // make hidden key params list
     data[HIDDEN_PARAMETERS] =
         KMKeyParameters.makeHidden(data[KEY_PARAMETERS], data[ROT], scratchPad);
-    // make authorization data
-    makeAuthData(scratchPad);
+    // Public key of asymmetric keys, empty for symmetric keys.
+    short pubKey;
+    if (KMArray.cast(data[KEY_BLOB]).length() > KEY_BLOB_PUB_KEY) {
+      pubKey = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_PUB_KEY);
+    } else {
+      pubKey = KMByteBlob.instance((short) 0);
+    }
+    short pubKeyLen = KMByteBlob.cast(pubKey).length();
+    short secretLen = KMByteBlob.cast(data[SECRET]).length();
+    // Check the size of the key blob before anything is written into it.
+    short len = encoder.getEncodedLength(data[KEY_CHARACTERISTICS]);
+    if (len < 0 || len > MAX_KEY_BLOB_SIZE || (short) (KEY_BLOB_HEADER_SIZE + len + pubKeyLen
+        + AES_GCM_NONCE_LENGTH + AES_GCM_AUTH_TAG_LENGTH + secretLen) > MAX_KEY_BLOB_SIZE) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    // Write the header and encode the key characteristics after it. Together with the public key
+    // they form the AAD.
+    short blob = repository.alloc(MAX_KEY_BLOB_SIZE);
+    byte[] heap = repository.getHeap();
+    encoder.encode(data[KEY_CHARACTERISTICS], heap, (short) (blob + KEY_BLOB_HEADER_SIZE));
+    heap[blob] = KEY_BLOB_VERSION_2;
+    Util.setShort(heap, (short) (blob + KEY_BLOB_KEYCHAR_LEN_OFFSET), len);
+    Util.setShort(heap, (short) (blob + KEY_BLOB_PUB_KEY_LEN_OFFSET), pubKeyLen);
+    Util.setShort(heap, (short) (blob + KEY_BLOB_SECRET_LEN_OFFSET), secretLen);
+    len = Util.arrayCopyNonAtomic(KMByteBlob.cast(pubKey).getBuffer(),
+        KMByteBlob.cast(pubKey).getStartOff(), heap,
+        (short) (blob + KEY_BLOB_HEADER_SIZE + len), pubKeyLen);
+    data[AUTH_DATA] = blob;
+    data[AUTH_DATA_LENGTH] = (short) (len - blob);
     // encrypt the secret and cryptographically attach that to authorization data
     encryptSecret(scratchPad);
 
-    // create key blob array
+    // append nonce, auth tag and encrypted secret
+    len = appendByteBlob(data[NONCE], heap, len, AES_GCM_NONCE_LENGTH);
+    len = appendByteBlob(data[AUTH_TAG], heap, len, AES_GCM_AUTH_TAG_LENGTH);
+    len = appendByteBlob(data[SECRET], heap, len, secretLen);
+    data[KEY_BLOB] = KMByteBlob.instance(heap, blob, (short) (len - blob));
+  }
+
+  // Copies a byte blob of the expected length to the buffer and returns the end offset.
+  private static short appendByteBlob(short blob, byte[] buf, short off, short len) {
+    if (KMByteBlob.cast(blob).length() != len) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    return Util.arrayCopyNonAtomic(KMByteBlob.cast(blob).getBuffer(),
+        KMByteBlob.cast(blob).getStartOff(), buf, off, len);
+  }
+
+  // Returns true if the key blob starts with the header of a version 2 key blob.
+  private static boolean isCompactKeyBlob(short keyBlob) {
+    return KMByteBlob.cast(keyBlob).length() > 0
+        && isCompactKeyBlobVersion(KMByteBlob.cast(keyBlob).get((short) 0));
+  }
+
+  private static boolean isCompactKeyBlobVersion(byte version) {
+    return version == KEY_BLOB_VERSION_2;
+  }
+
+  // Returns true if the secret of the key being used is an RSA secret holding the CRT components.
+  // The layout is told apart by the secret length, which is only meaningful for RSA keys.
+  private static boolean isRsaCrtSecret(short alg) {
+    return alg == KMType.RSA && KMByteBlob.cast(data[SECRET]).length() == RSA_CRT_SECRET_SIZE;
+  }
+
+  // Validates the header of a compact key blob against its length and returns the length of
+  // its AAD.
+  private static short getCompactKeyBlobAuthDataLength(byte[] buf, short start, short len) {
+    if (len < KEY_BLOB_HEADER_SIZE) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    short keyCharLen = Util.getShort(buf, (short) (start + KEY_BLOB_KEYCHAR_LEN_OFFSET));
+    short pubKeyLen = Util.getShort(buf, (short) (start + KEY_BLOB_PUB_KEY_LEN_OFFSET));
+    short secretLen = Util.getShort(buf, (short) (start + KEY_BLOB_SECRET_LEN_OFFSET));
+    if (!isCompactKeyBlobVersion(buf[start]) || keyCharLen <= 0 || pubKeyLen < 0 || secretLen <= 0) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    // Each field is at most len bytes, so the sums below cannot overflow.
+    if (keyCharLen > len || pubKeyLen > len || secretLen > len) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    short authDataLen = (short) (KEY_BLOB_HEADER_SIZE + keyCharLen + pubKeyLen);
+    if ((short) (authDataLen + AES_GCM_NONCE_LENGTH + AES_GCM_AUTH_TAG_LENGTH + secretLen)
+        != len) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    return authDataLen;
+  }
+
+  // Parses a compact key blob by jumping to the offsets given by its header. data[KEY_BLOB] is
+  // replaced by an array of its fields in the same order as older key blobs.
+  private static void parseCompactKeyBlob() {
+    byte[] buf = KMByteBlob.cast(data[KEY_BLOB]).getBuffer();
+    short start = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
+    short len = KMByteBlob.cast(data[KEY_BLOB]).length();
+    data[AUTH_DATA_LENGTH] = getCompactKeyBlobAuthDataLength(buf, start, len);
+    data[AUTH_DATA] = start;
+    short keyCharLen = Util.getShort(buf, (short) (start + KEY_BLOB_KEYCHAR_LEN_OFFSET));
+    short pubKeyLen = Util.getShort(buf, (short) (start + KEY_BLOB_PUB_KEY_LEN_OFFSET));
+    short secretLen = Util.getShort(buf, (short) (start + KEY_BLOB_SECRET_LEN_OFFSET));
+    short off = (short) (start + KEY_BLOB_HEADER_SIZE);
+    // Tags are decoded when they are used.
+    data[KEY_CHARACTERISTICS] = decoder.decodeKeyCharLazy(buf, off, keyCharLen);
+    off += keyCharLen;
+    data[PUB_KEY] = KMType.INVALID_VALUE;
+    if (pubKeyLen > 0) {
+      data[PUB_KEY] = KMByteBlob.view(buf, off, pubKeyLen);
+    }
+    off += pubKeyLen;
+    // The fields refer to the key blob in place and the secret is decrypted in place.
+    data[NONCE] = KMByteBlob.view(buf, off, AES_GCM_NONCE_LENGTH);
+    off += AES_GCM_NONCE_LENGTH;
+    data[AUTH_TAG] = KMByteBlob.view(buf, off, AES_GCM_AUTH_TAG_LENGTH);
+    off += AES_GCM_AUTH_TAG_LENGTH;
+    data[SECRET] = KMByteBlob.view(buf, off, secretLen);
+    data[KEY_BLOB] = KMArray.instance(pubKeyLen > 0 ? (short) 5 : (short) 4);
     KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_SECRET, data[SECRET]);
-    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_AUTH_TAG, data[AUTH_TAG]);
     KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_NONCE, data[NONCE]);
+    KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_AUTH_TAG, data[AUTH_TAG]);
     KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_KEYCHAR, data[KEY_CHARACTERISTICS]);
-
-    // allocate reclaimable memory.
-    tmpVariables[0] = repository.alloc((short) 1024);
-    tmpVariables[1] = encoder.encode(data[KEY_BLOB], repository.getHeap(), tmpVariables[0]);
-    data[KEY_BLOB] = KMByteBlob.instance(repository.getHeap(), tmpVariables[0], tmpVariables[1]);
+    if (pubKeyLen > 0) {
+      KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_PUB_KEY, data[PUB_KEY]);
+    }
   }
 
   private static void parseEncryptedKeyBlob(byte[] scratchPad) {
@@ -3694,37 +4112,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
     try {
-      tmpVariables[0] = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
-      tmpVariables[1] = KMArray.instance((short) 5);
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_SECRET,
-          KMByteBlob.exp());
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG,
-          KMByteBlob.exp());
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_NONCE,
-          KMByteBlob.exp());
-      tmpVariables[2] = KMKeyCharacteristics.exp();
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR,
-          tmpVariables[2]);
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY,
-          KMByteBlob.exp());
-      data[KEY_BLOB] = decoder.decodeArray(tmpVariables[1],
-          KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
-          KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
-          KMByteBlob.cast(data[KEY_BLOB]).length());
-      tmpVariables[0] = KMArray.cast(data[KEY_BLOB]).length();
-      if (tmpVariables[0] < 4) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
-      }
-      data[AUTH_TAG] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_AUTH_TAG);
-
-      // initialize data
-      data[NONCE] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_NONCE);
-      data[SECRET] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_SECRET);
-      data[KEY_CHARACTERISTICS] = KMArray.cast(data[KEY_BLOB]).get(
-          KEY_BLOB_KEYCHAR);
-      data[PUB_KEY] = KMType.INVALID_VALUE;
-      if (tmpVariables[0] == 5) {
-        data[PUB_KEY] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_PUB_KEY);
+      if (isCompactKeyBlob(data[KEY_BLOB])) {
+        // The AAD is located by the header.
+        parseCompactKeyBlob();
+      } else {
+        parseLegacyKeyBlob();
       }
       data[HW_PARAMETERS] = KMKeyCharacteristics
           .cast(data[KEY_CHARACTERISTICS]).getHardwareEnforced();
@@ -3733,8 +4125,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
       data[HIDDEN_PARAMETERS] = KMKeyParameters.makeHidden(data[APP_ID],
           data[APP_DATA], data[ROT], scratchPad);
-      // make auth data
-      makeAuthData(scratchPad);
+      if (data[AUTH_DATA] == KMType.INVALID_VALUE) {
+        // make auth data of version 1 key blobs
+        makeAuthData(scratchPad);
+      }
       // Decrypt Secret and verify auth tag
       decryptSecret(scratchPad);
     } catch (Exception e) {
@@ -3742,9 +4136,46 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
   }
 
+  // Decodes version 1 key blobs, whose AAD has to be re-encoded.
+  private static void parseLegacyKeyBlob() {
+    tmpVariables[1] = KMArray.instance((short) 5);
+    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_SECRET,
+        KMByteBlob.exp());
+    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG,
+        KMByteBlob.exp());
+    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_NONCE,
+        KMByteBlob.exp());
+    tmpVariables[2] = KMKeyCharacteristics.exp();
+    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR,
+        tmpVariables[2]);
+    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY,
+        KMByteBlob.exp());
+    data[KEY_BLOB] = decoder.decodeArray(tmpVariables[1],
+        KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
+        KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
+        KMByteBlob.cast(data[KEY_BLOB]).length());
+    tmpVariables[0] = KMArray.cast(data[KEY_BLOB]).length();
+    if (tmpVariables[0] < 4) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
+    }
+    data[AUTH_TAG] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_AUTH_TAG);
+
+    // initialize data
+    data[NONCE] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_NONCE);
+    data[SECRET] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_SECRET);
+    data[KEY_CHARACTERISTICS] = KMArray.cast(data[KEY_BLOB]).get(
+        KEY_BLOB_KEYCHAR);
+    data[PUB_KEY] = KMType.INVALID_VALUE;
+    if (tmpVariables[0] > KEY_BLOB_PUB_KEY) {
+      data[PUB_KEY] = KMArray.cast(data[KEY_BLOB]).get(KEY_BLOB_PUB_KEY);
+    }
+    data[AUTH_DATA] = KMType.INVALID_VALUE;
+  }
+
   private static void decryptSecret(byte[] scratchPad) {
     // derive master key - stored in derivedKey
     tmpVariables[0] = deriveKey(scratchPad);
+    // The RSA secret does not fit in the scratch pad so decrypt in place.
     if (!seProvider.aesGCMDecrypt(
         repository.getHeap(),
         data[DERIVED_KEY],
@@ -3752,8 +4183,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[SECRET]).getBuffer(),
         KMByteBlob.cast(data[SECRET]).getStartOff(),
         KMByteBlob.cast(data[SECRET]).length(),
-        scratchPad,
-        (short) 0,
+        KMByteBlob.cast(data[SECRET]).getBuffer(),
+        KMByteBlob.cast(data[SECRET]).getStartOff(),
         KMByteBlob.cast(data[NONCE]).getBuffer(),
         KMByteBlob.cast(data[NONCE]).getStartOff(),
         KMByteBlob.cast(data[NONCE]).length(),
@@ -3765,9 +4196,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[AUTH_TAG]).length())) {
       KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
-    // Copy the decrypted secret
-    data[SECRET] =
-        KMByteBlob.instance(scratchPad, (short) 0, KMByteBlob.cast(data[SECRET]).length());
   }
 
   private static void encryptSecret(byte[] scratchPad) {
@@ -3786,6 +4214,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[NONCE]).length());
     // derive master key - stored in derivedKey
     tmpVariables[0] = deriveKey(scratchPad);
+    // Encrypt in place as the RSA secret does not fit in the scratch pad.
     tmpVariables[1] =
         seProvider.aesGCMEncrypt(
             repository.getHeap(),
@@ -3794,8 +4223,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             KMByteBlob.cast(data[SECRET]).getBuffer(),
             KMByteBlob.cast(data[SECRET]).getStartOff(),
             KMByteBlob.cast(data[SECRET]).length(),
-            scratchPad,
-            (short) 0,
+            KMByteBlob.cast(data[SECRET]).getBuffer(),
+            KMByteBlob.cast(data[SECRET]).getStartOff(),
             KMByteBlob.cast(data[NONCE]).getBuffer(),
             KMByteBlob.cast(data[NONCE]).getStartOff(),
             KMByteBlob.cast(data[NONCE]).length(),
@@ -3805,11 +4234,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             KMByteBlob.cast(data[AUTH_TAG]).getBuffer(),
             KMByteBlob.cast(data[AUTH_TAG]).getStartOff(),
             KMByteBlob.cast(data[AUTH_TAG]).length());
-    if (tmpVariables[1] > 0) {
-      if (tmpVariables[1] != KMByteBlob.cast(data[SECRET]).length()) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
-      }
-      KMByteBlob.cast(data[SECRET]).setValue(scratchPad, (short) 0, tmpVariables[1]);
+    if (tmpVariables[1] != KMByteBlob.cast(data[SECRET]).length()) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
   }
 
@@ -3865,11 +4291,19 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // generate derivation material from hidden parameters
     tmpVariables[2] = encoder.encode(tmpVariables[0], repository.getHeap(), tmpVariables[1]);
     if (DERIVE_KEY_INPUT_SIZE > tmpVariables[2]) {
-      // Copy KeyCharacteristics in the remaining space of DERIVE_KEY_INPUT_SIZE
+      // Copy KeyCharacteristics in the remaining space of DERIVE_KEY_INPUT_SIZE. The AAD may be
+      // shorter than the remaining space, in which case the rest is zero.
+      tmpVariables[3] = (short) (DERIVE_KEY_INPUT_SIZE - tmpVariables[2]);
+      if (tmpVariables[3] > data[AUTH_DATA_LENGTH]) {
+        tmpVariables[3] = data[AUTH_DATA_LENGTH];
+      }
       Util.arrayCopyNonAtomic(repository.getHeap(), (short) (data[AUTH_DATA]),
           repository.getHeap(),
           (short) (tmpVariables[1] + tmpVariables[2]),
-          (short) (DERIVE_KEY_INPUT_SIZE - tmpVariables[2]));
+          tmpVariables[3]);
+      Util.arrayFillNonAtomic(repository.getHeap(),
+          (short) (tmpVariables[1] + tmpVariables[2] + tmpVariables[3]),
+          (short) (DERIVE_KEY_INPUT_SIZE - tmpVariables[2] - tmpVariables[3]), (byte) 0);
     }
     // KeyDerivation:
     // 1. Do HMAC Sign, with below input parameters.
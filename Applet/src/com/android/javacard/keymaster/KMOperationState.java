@@ -22,12 +22,14 @@ import javacard.framework.Util;
 /**
  * KMOperationState is the container of an active operation started by beginOperation function. This
  * operation state is persisted by the applet in non volatile memory. However, this state is not
- * retained if applet is upgraded. There will be four operation state records maintained i.e. only
- * four active operations are supported at any given time.
+ * retained if applet is upgraded. There will be KMConfiguration.getMaxOps() operation state
+ * records maintained i.e. only that many active operations are supported at any given time.
  */
 public class KMOperationState {
 
   public static final byte MAX_DATA = 20;
+  // Transient memory of the prototype: its data, the object reference and the update flag.
+  public static final short TRANSIENT_SIZE = MAX_DATA + 2 + 1;
   private static final byte OPERATION = 0;
   private static final byte TRUE = 1;
   private static final byte FALSE = 0;
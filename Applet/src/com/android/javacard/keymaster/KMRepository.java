@@ -32,8 +32,6 @@ public class KMRepository implements KMUpgradable {
   // Data table configuration
   public static final short DATA_INDEX_SIZE = 22;
   public static final short DATA_INDEX_ENTRY_SIZE = 4;
-  public static final short DATA_MEM_SIZE = 2048;
-  public static final short HEAP_SIZE = 10000;
   public static final short DATA_INDEX_ENTRY_LENGTH = 0;
   public static final short DATA_INDEX_ENTRY_OFFSET = 2;
   public static final short OPERATION_HANDLE_SIZE = 8; /* 8 bytes */
@@ -42,6 +40,11 @@ public class KMRepository implements KMUpgradable {
   private static final short OPERATION_HANDLE_OFFSET = 1;
   private static final short OPERATION_HANDLE_ENTRY_SIZE =
       OPERATION_HANDLE_SIZE + OPERATION_HANDLE_STATUS_SIZE;
+  // The last byte of the operation handle holds the index of the operation table slot,
+  // the remaining bytes are a random tag which distinguishes successive users of a slot.
+  // The first byte is never zero, so that the handle is always encoded in 8 bytes and comes
+  // back in 8 bytes after the HAL re-encoded it in its shortest form.
+  private static final short OPERATION_HANDLE_SLOT_OFFSET = OPERATION_HANDLE_SIZE - 1;
   private static final byte POWER_RESET_STATUS_FLAG = (byte) 0xEF;
 
   // Data table offsets
@@ -80,9 +83,56 @@ public class KMRepository implements KMUpgradable {
   public static final short DEVICE_LOCK_TS_SIZE = 8;
   public static final short DEVICE_LOCK_FLAG_SIZE = 1;
   public static final short BOOT_STATE_SIZE = 1;
-  public static final short MAX_OPS = 4;
   public static final byte BOOT_KEY_MAX_SIZE = 32;
   public static final byte BOOT_HASH_MAX_SIZE = 32;
+  // Pre-generated key pair pool. Each slot holds one key pair wrapped under a key derived from
+  // the master key. Slot layout: status | algorithm | secret length | public key length | nonce |
+  // auth tag | wrapped secret followed by the public key.
+  public static final byte KEY_POOL_RSA_SLOTS = 2;
+  public static final byte KEY_POOL_EC_SLOTS = 2;
+  public static final short KEY_POOL_STATUS_OFFSET = 0;
+  public static final short KEY_POOL_ALG_OFFSET = 1;
+  public static final short KEY_POOL_SECRET_LEN_OFFSET = 2;
+  public static final short KEY_POOL_PUB_LEN_OFFSET = 4;
+  public static final short KEY_POOL_NONCE_OFFSET = 6;
+  public static final short KEY_POOL_NONCE_SIZE = 12;
+  public static final short KEY_POOL_AUTH_TAG_OFFSET = 18;
+  public static final short KEY_POOL_AUTH_TAG_SIZE = 16;
+  public static final short KEY_POOL_DATA_OFFSET = 34;
+  public static final short KEY_POOL_RSA_DATA_SIZE = 896;
+  public static final short KEY_POOL_EC_DATA_SIZE = 128;
+  private static final short KEY_POOL_RSA_SLOT_SIZE = KEY_POOL_DATA_OFFSET + KEY_POOL_RSA_DATA_SIZE;
+  private static final short KEY_POOL_EC_SLOT_SIZE = KEY_POOL_DATA_OFFSET + KEY_POOL_EC_DATA_SIZE;
+  private static final byte KEY_POOL_SLOT_EMPTY = 0;
+  private static final byte KEY_POOL_SLOT_FILLED = 1;
+  // Cache of recently verified hardware auth tokens. Each entry holds the serialized token data
+  // which is input to the HMAC, followed by its MAC. Entry layout: status | data | mac.
+  // Byte 0 of the cache holds the index of the next entry to be replaced.
+  public static final short HW_TOKEN_DATA_SIZE = 37;
+  public static final short HW_TOKEN_MAC_SIZE = 32;
+  private static final byte HW_TOKEN_CACHE_ENTRIES = 4;
+  private static final short HW_TOKEN_ENTRY_SIZE = 1 + HW_TOKEN_DATA_SIZE + HW_TOKEN_MAC_SIZE;
+  private static final short HW_TOKEN_CACHE_SIZE = 1 + HW_TOKEN_CACHE_ENTRIES * HW_TOKEN_ENTRY_SIZE;
+  private static final byte HW_TOKEN_ENTRY_VALID = 1;
+  // Heap profile, kept only when enabled. There is one entry per instruction, followed by the
+  // entry of the current command and the instruction of the current command. Each entry holds
+  // the peak heap index, the peak use of reclaimable memory and the number of allocations. For
+  // the allocations which failed it holds the largest heap use, i.e. the heap index plus the
+  // reclaimable memory in use plus the requested length, and their number.
+  public static final short HEAP_PROFILE_INS_COUNT = 64;
+  public static final byte HEAP_PROFILE_PEAK_HEAP = 0;
+  public static final byte HEAP_PROFILE_PEAK_RECLAIM = 1;
+  public static final byte HEAP_PROFILE_ALLOC_COUNT = 2;
+  public static final byte HEAP_PROFILE_PEAK_REQUEST = 3;
+  public static final byte HEAP_PROFILE_FAIL_COUNT = 4;
+  private static final byte HEAP_PROFILE_ENTRY_SIZE = 5;
+  private static final short HEAP_PROFILE_CURRENT = HEAP_PROFILE_INS_COUNT * HEAP_PROFILE_ENTRY_SIZE;
+  private static final short HEAP_PROFILE_INS = HEAP_PROFILE_CURRENT + HEAP_PROFILE_ENTRY_SIZE;
+  private static final short HEAP_PROFILE_SIZE = HEAP_PROFILE_INS + 1;
+  private static final short HEAP_PROFILE_MAX_COUNT = 0x7FFF;
+  // Transient memory of the fixed buffers: the hw token cache, the heap profile, the heap and
+  // reclaim indexes and the status flags.
+  static final short FIXED_TRANSIENT_SIZE = HW_TOKEN_CACHE_SIZE + HEAP_PROFILE_SIZE * 2 + 6;
 
   // Class Attributes
   private Object[] operationStateTable;
@@ -91,6 +141,11 @@ public class KMRepository implements KMUpgradable {
   private byte[] dataTable;
   private short dataIndex;
   private short[] reclaimIndex;
+  private byte[] keyPool;
+  private byte[] hwTokenCache;
+  private short[] heapProfile;
+  // Set once the computed hmac key is loaded into the SE provider's transient key object.
+  private byte[] computedHmacKeyLoaded;
   // This variable is used to monitor the power reset status as the Applet does not get
   // any power reset event. Initially the value of this variable is set to POWER_RESET_STATUS_FLAG.
   // If the power reset happens then this value becomes 0.
@@ -99,8 +154,11 @@ public class KMRepository implements KMUpgradable {
   // Operation table.
   private static final short OPER_TABLE_DATA_OFFSET = 0;
   private static final short OPER_TABLE_OPR_OFFSET = 1;
-  private static final short OPER_DATA_LEN = OPERATION_HANDLE_ENTRY_SIZE + KMOperationState.MAX_DATA;
-  private static final short DATA_ARRAY_LENGTH = MAX_OPS * OPER_DATA_LEN;
+  static final short OPER_DATA_LEN = OPERATION_HANDLE_ENTRY_SIZE + KMOperationState.MAX_DATA;
+  // Transient memory of each operation table entry: its data and the operation reference.
+  static final short OPER_TRANSIENT_SIZE = OPER_DATA_LEN + 2;
+  // Number of operation state records, see KMConfiguration.
+  private short maxOps;
 
 
   // Singleton instance
@@ -111,18 +169,24 @@ public class KMRepository implements KMUpgradable {
   }
 
   public KMRepository(boolean isUpgrading) {
-    heap = JCSystem.makeTransientByteArray(HEAP_SIZE, JCSystem.CLEAR_ON_RESET);
+    heap = JCSystem.makeTransientByteArray(KMConfiguration.getHeapSize(),
+        JCSystem.CLEAR_ON_RESET);
     heapIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     reclaimIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     powerResetStatus = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    hwTokenCache = JCSystem.makeTransientByteArray(HW_TOKEN_CACHE_SIZE, JCSystem.CLEAR_ON_RESET);
+    computedHmacKeyLoaded = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_RESET);
     heapIndex[0] = (short) 0;
-    reclaimIndex[0] = HEAP_SIZE;
+    reclaimIndex[0] = (short) heap.length;
     powerResetStatus[0] = POWER_RESET_STATUS_FLAG;
     newDataTable(isUpgrading);
+    newKeyPool();
 
     operationStateTable = new Object[2];
-    operationStateTable[0] = JCSystem.makeTransientByteArray(DATA_ARRAY_LENGTH, JCSystem.CLEAR_ON_RESET);
-    operationStateTable[1] = JCSystem.makeTransientObjectArray(MAX_OPS, JCSystem.CLEAR_ON_RESET);
+    maxOps = KMConfiguration.getMaxOps();
+    operationStateTable[0] = JCSystem.makeTransientByteArray(
+        (short) (maxOps * OPER_DATA_LEN), JCSystem.CLEAR_ON_RESET);
+    operationStateTable[1] = JCSystem.makeTransientObjectArray(maxOps, JCSystem.CLEAR_ON_RESET);
 
     //Initialize the device locked status
     if (!isUpgrading) {
@@ -164,47 +228,71 @@ public class KMRepository implements KMUpgradable {
     KMInteger.cast(oprHandle).getValue(buf, off, len);
   }
 
+  // Returns the operation table slot encoded in the operation handle or -1 if the
+  // handle does not point to a valid slot.
+  private short getOperationSlot(byte[] buf, short off, short len) {
+    if (len != OPERATION_HANDLE_SIZE) {
+      return -1;
+    }
+    short index = buf[(short) (off + OPERATION_HANDLE_SLOT_OFFSET)];
+    if (index < 0 || index >= maxOps) {
+      return -1;
+    }
+    return index;
+  }
+
+  // Returns true if the slot is reserved and holds the given operation handle.
+  private boolean isOperationSlotMatched(short index, byte[] buf, short off) {
+    byte[] oprTableData = (byte[]) operationStateTable[OPER_TABLE_DATA_OFFSET];
+    short offset = (short) (index * OPER_DATA_LEN);
+    return (1 == oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)])
+        && (0 == Util.arrayCompare(buf, off, oprTableData,
+        (short) (offset + OPERATION_HANDLE_OFFSET), OPERATION_HANDLE_SIZE));
+  }
+
   public KMOperationState findOperation(byte[] buf, short off, short len) {
-    short index = 0;
-    byte[] oprTableData;
-    short offset = 0;
-    oprTableData = (byte[]) operationStateTable[OPER_TABLE_DATA_OFFSET];
-    Object[] operations = (Object[]) operationStateTable[OPER_TABLE_OPR_OFFSET];
-    while (index < MAX_OPS) {
-      offset = (short) (index * OPER_DATA_LEN);
-      if (0 == Util.arrayCompare(buf, off, oprTableData, (short) (offset + OPERATION_HANDLE_OFFSET), len)) {
-        return KMOperationState.read(oprTableData, (short) (offset + OPERATION_HANDLE_OFFSET), oprTableData,
-            (short) (offset + OPERATION_HANDLE_ENTRY_SIZE),
-            operations[index]);
-      }
-      index++;
+    short index = getOperationSlot(buf, off, len);
+    if (index < 0 || !isOperationSlotMatched(index, buf, off)) {
+      return null;
     }
-    return null;
+    byte[] oprTableData = (byte[]) operationStateTable[OPER_TABLE_DATA_OFFSET];
+    Object[] operations = (Object[]) operationStateTable[OPER_TABLE_OPR_OFFSET];
+    short offset = (short) (index * OPER_DATA_LEN);
+    return KMOperationState.read(oprTableData, (short) (offset + OPERATION_HANDLE_OFFSET), oprTableData,
+        (short) (offset + OPERATION_HANDLE_ENTRY_SIZE),
+        operations[index]);
   }
 
   /* operationHandle is a KMInteger */
   public KMOperationState findOperation(short operationHandle) {
-    short buf = KMByteBlob.instance(OPERATION_HANDLE_SIZE);
-    getOperationHandle(
-        operationHandle,
-        KMByteBlob.cast(buf).getBuffer(),
-        KMByteBlob.cast(buf).getStartOff(),
-        KMByteBlob.cast(buf).length());
+    if (KMInteger.cast(operationHandle).length() != OPERATION_HANDLE_SIZE) {
+      KMException.throwIt(KMError.INVALID_OPERATION_HANDLE);
+    }
     return findOperation(
-        KMByteBlob.cast(buf).getBuffer(),
-        KMByteBlob.cast(buf).getStartOff(),
-        KMByteBlob.cast(buf).length());
+        KMInteger.cast(operationHandle).getBuffer(),
+        KMInteger.cast(operationHandle).getStartOff(),
+        OPERATION_HANDLE_SIZE);
   }
 
-  /* opHandle is a KMInteger */
+  /* opHandle is a KMInteger holding the random tag. The index of the reserved slot is
+   * written into the last byte of the handle and the first byte is made non zero. */
   public KMOperationState reserveOperation(short opHandle) {
+    if (KMInteger.cast(opHandle).length() != OPERATION_HANDLE_SIZE) {
+      KMException.throwIt(KMError.INVALID_OPERATION_HANDLE);
+    }
     short index = 0;
     byte[] oprTableData = (byte[]) operationStateTable[OPER_TABLE_DATA_OFFSET];
     short offset = 0;
-    while (index < MAX_OPS) {
+    while (index < maxOps) {
       offset = (short) (index * OPER_DATA_LEN);
       /* Check for unreserved operation state */
       if (oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)] == 0) {
+        byte[] buf = KMInteger.cast(opHandle).getBuffer();
+        short off = KMInteger.cast(opHandle).getStartOff();
+        buf[(short) (off + OPERATION_HANDLE_SLOT_OFFSET)] = (byte) index;
+        if (buf[off] == 0) {
+          buf[off] = 1;
+        }
         return KMOperationState.instance(opHandle);
       }
       index++;
@@ -213,80 +301,44 @@ public class KMRepository implements KMUpgradable {
   }
 
   public void persistOperation(byte[] data, short opHandle, KMOperation op) {
-    short index = 0;
+    if (KMInteger.cast(opHandle).length() != OPERATION_HANDLE_SIZE) {
+      KMException.throwIt(KMError.INVALID_OPERATION_HANDLE);
+    }
+    byte[] buf = KMInteger.cast(opHandle).getBuffer();
+    short off = KMInteger.cast(opHandle).getStartOff();
     byte[] oprTableData = (byte[]) operationStateTable[OPER_TABLE_DATA_OFFSET];
     Object[] operations = (Object[]) operationStateTable[OPER_TABLE_OPR_OFFSET];
-    short offset = 0;
-    short buf = KMByteBlob.instance(OPERATION_HANDLE_SIZE);
-    getOperationHandle(
-        opHandle,
-        KMByteBlob.cast(buf).getBuffer(),
-        KMByteBlob.cast(buf).getStartOff(),
-        KMByteBlob.cast(buf).length());
-    //Update an existing operation state.
-    while (index < MAX_OPS) {
-      offset = (short) (index * OPER_DATA_LEN);
-      if ((1 == oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)])
-          && (0 == Util.arrayCompare(
-          oprTableData,
-          (short) (offset + OPERATION_HANDLE_OFFSET),
-          KMByteBlob.cast(buf).getBuffer(),
-          KMByteBlob.cast(buf).getStartOff(),
-          KMByteBlob.cast(buf).length()))) {
-        Util.arrayCopy(data, (short) 0, oprTableData, (short) (offset + OPERATION_HANDLE_ENTRY_SIZE),
-            KMOperationState.MAX_DATA);
-        operations[index] = op;
-        return;
-      }
-      index++;
+    short index = getOperationSlot(buf, off, OPERATION_HANDLE_SIZE);
+    if (index < 0) {
+      KMException.throwIt(KMError.INVALID_OPERATION_HANDLE);
     }
-
-    index = 0;
-    //Persist a new operation.
-    while (index < MAX_OPS) {
-      offset = (short) (index * OPER_DATA_LEN);
-      if (0 == oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)]) {
-        oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)] = 1;/*reserved */
-        Util.arrayCopy(
-            KMByteBlob.cast(buf).getBuffer(),
-            KMByteBlob.cast(buf).getStartOff(),
-            oprTableData,
-            (short) (offset + OPERATION_HANDLE_OFFSET),
-            OPERATION_HANDLE_SIZE);
-        Util.arrayCopy(data, (short) 0, oprTableData, (short) (offset + OPERATION_HANDLE_ENTRY_SIZE),
-            KMOperationState.MAX_DATA);
-        operations[index] = op;
-        break;
+    short offset = (short) (index * OPER_DATA_LEN);
+    if (!isOperationSlotMatched(index, buf, off)) {
+      //Persist a new operation.
+      if (0 != oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)]) {
+        KMException.throwIt(KMError.INVALID_OPERATION_HANDLE);
       }
-      index++;
+      oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)] = 1;/*reserved */
+      Util.arrayCopy(buf, off, oprTableData, (short) (offset + OPERATION_HANDLE_OFFSET),
+          OPERATION_HANDLE_SIZE);
     }
+    Util.arrayCopy(data, (short) 0, oprTableData, (short) (offset + OPERATION_HANDLE_ENTRY_SIZE),
+        KMOperationState.MAX_DATA);
+    operations[index] = op;
   }
 
   public void releaseOperation(KMOperationState op) {
-    short index = 0;
-    byte[] oprTableData = (byte[]) operationStateTable[OPER_TABLE_DATA_OFFSET];
-    Object[] operations = (Object[]) operationStateTable[OPER_TABLE_OPR_OFFSET];
-    short offset = 0;
-    short buf = KMByteBlob.instance(OPERATION_HANDLE_SIZE);
-    getOperationHandle(
-        op.getHandle(),
-        KMByteBlob.cast(buf).getBuffer(),
-        KMByteBlob.cast(buf).getStartOff(),
-        KMByteBlob.cast(buf).length());
-    while (index < MAX_OPS) {
-      offset = (short) (index * OPER_DATA_LEN);
-      if ((oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)] == 1) &&
-          (0 == Util.arrayCompare(oprTableData,
-              (short) (offset + OPERATION_HANDLE_OFFSET),
-              KMByteBlob.cast(buf).getBuffer(),
-              KMByteBlob.cast(buf).getStartOff(),
-              KMByteBlob.cast(buf).length()))) {
-        Util.arrayFillNonAtomic(oprTableData, offset, OPER_DATA_LEN, (byte) 0);
-        op.release();
-        operations[index] = null;
-        break;
-      }
-      index++;
+    short opHandle = op.getHandle();
+    byte[] buf = KMInteger.cast(opHandle).getBuffer();
+    short off = KMInteger.cast(opHandle).getStartOff();
+    short index = getOperationSlot(buf, off, KMInteger.cast(opHandle).length());
+    if (index >= 0 && isOperationSlotMatched(index, buf, off)) {
+      byte[] oprTableData = (byte[]) operationStateTable[OPER_TABLE_DATA_OFFSET];
+      Object[] operations = (Object[]) operationStateTable[OPER_TABLE_OPR_OFFSET];
+      Util.arrayFillNonAtomic(oprTableData, (short) (index * OPER_DATA_LEN), OPER_DATA_LEN,
+          (byte) 0);
+      op.release();
+      operations[index] = null;
     }
   }
 
@@ -295,7 +347,7 @@ public class KMRepository implements KMUpgradable {
     byte[] oprTableData = (byte[]) operationStateTable[OPER_TABLE_DATA_OFFSET];
     Object[] operations = (Object[]) operationStateTable[OPER_TABLE_OPR_OFFSET];
     short offset = 0;
-    while (index < MAX_OPS) {
+    while (index < maxOps) {
       offset = (short) (index * OPER_DATA_LEN);
       if (oprTableData[(short) (offset + OPERATION_HANDLE_STATUS_OFFSET)] == 1) {
         Util.arrayFillNonAtomic(oprTableData, offset, OPER_DATA_LEN, (byte) 0);
@@ -313,6 +365,7 @@ public class KMRepository implements KMUpgradable {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(COMPUTED_HMAC_KEY, key, start, len);
+    onComputedHmacKeyChanged();
   }
 
   public void initHmacNonce(byte[] nonce, short offset, short len) {
@@ -328,6 +381,22 @@ public class KMRepository implements KMUpgradable {
 
   public void clearComputedHmac() {
     clearDataEntry(COMPUTED_HMAC_KEY);
+    onComputedHmacKeyChanged();
+  }
+
+  // Tokens verified with the previous key must be verified again and the key held by the
+  // SE provider must be reloaded.
+  private void onComputedHmacKeyChanged() {
+    clearHwTokenCache();
+    computedHmacKeyLoaded[0] = 0;
+  }
+
+  public boolean isComputedHmacKeyLoaded() {
+    return computedHmacKeyLoaded[0] != 0;
+  }
+
+  public void setComputedHmacKeyLoaded() {
+    computedHmacKeyLoaded[0] = 1;
   }
 
   public void onUninstall() {
@@ -339,9 +408,10 @@ public class KMRepository implements KMUpgradable {
   }
 
   public void clean() {
+    flushHeapProfile();
     Util.arrayFillNonAtomic(heap, (short) 0, heapIndex[0], (byte) 0);
     heapIndex[0] = (short) 0;
-    reclaimIndex[0] = HEAP_SIZE;
+    reclaimIndex[0] = (short) heap.length;
   }
 
   public void onDeselect() {
@@ -355,10 +425,12 @@ public class KMRepository implements KMUpgradable {
   // reclaimMemory function immediately after the use.
   public short allocReclaimableMemory(short length) {
     if ((((short) (reclaimIndex[0] - length)) <= heapIndex[0])
-        || (length >= HEAP_SIZE / 2)) {
+        || (length >= (short) (heap.length / 2))) {
+      profileAllocFailure(length);
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
     reclaimIndex[0] -= length;
+    profileAlloc();
     return reclaimIndex[0];
   }
 
@@ -370,24 +442,150 @@ public class KMRepository implements KMUpgradable {
     reclaimIndex[0] += length;
   }
 
+  public short getHeapIndex() {
+    return heapIndex[0];
+  }
+
+  // Releases and clears the memory allocated after the given heap index.
+  public void releaseHeap(short index) {
+    if (index > heapIndex[0]) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+    Util.arrayFillNonAtomic(heap, index, (short) (heapIndex[0] - index), (byte) 0);
+    heapIndex[0] = index;
+  }
+
   public short allocAvailableMemory() {
     if (heapIndex[0] >= heap.length) {
+      profileAllocFailure((short) 1);
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
     short index = heapIndex[0];
     heapIndex[0] = (short) heap.length;
+    profileAlloc();
     return index;
   }
 
   public short alloc(short length) {
     if ((((short) (heapIndex[0] + length)) > heap.length) ||
         (((short) (heapIndex[0] + length)) > reclaimIndex[0])) {
+      profileAllocFailure(length);
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
     heapIndex[0] += length;
+    profileAlloc();
     return (short) (heapIndex[0] - length);
   }
 
+  // Heap profiling is meant for development builds as it takes RAM and time on every allocation.
+  public void enableHeapProfile() {
+    if (heapProfile == null) {
+      heapProfile = JCSystem.makeTransientShortArray(HEAP_PROFILE_SIZE, JCSystem.CLEAR_ON_RESET);
+    }
+    heapProfile[HEAP_PROFILE_INS] = KMType.INVALID_VALUE;
+  }
+
+  public boolean isHeapProfileEnabled() {
+    return heapProfile != null;
+  }
+
+  // Starts profiling the command with the given instruction.
+  public void startHeapProfile(byte ins) {
+    if (heapProfile == null) {
+      return;
+    }
+    heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_HEAP] = heapIndex[0];
+    heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_RECLAIM] =
+        (short) (heap.length - reclaimIndex[0]);
+    heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_ALLOC_COUNT] = 0;
+    heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_REQUEST] = 0;
+    heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_FAIL_COUNT] = 0;
+    heapProfile[HEAP_PROFILE_INS] = (short) (ins & 0xFF);
+  }
+
+  public short getHeapProfile(short ins, byte field) {
+    if (heapProfile == null || ins < 0 || ins >= HEAP_PROFILE_INS_COUNT) {
+      return 0;
+    }
+    return heapProfile[(short) (ins * HEAP_PROFILE_ENTRY_SIZE + field)];
+  }
+
+  public short getDataMemoryUsed() {
+    return dataIndex;
+  }
+
+  // Size of the data table, which is kept over an upgrade and so may differ from the configured
+  // size.
+  public short getDataMemSize() {
+    return (short) dataTable.length;
+  }
+
+  private void profileAlloc() {
+    if (heapProfile == null) {
+      return;
+    }
+    if (heapIndex[0] > heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_HEAP]) {
+      heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_HEAP] = heapIndex[0];
+    }
+    short reclaimed = (short) (heap.length - reclaimIndex[0]);
+    if (reclaimed > heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_RECLAIM]) {
+      heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_RECLAIM] = reclaimed;
+    }
+    if (heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_ALLOC_COUNT] != HEAP_PROFILE_MAX_COUNT) {
+      heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_ALLOC_COUNT]++;
+    }
+  }
+
+  // Records an allocation of the given length which does not fit into the heap. This is called
+  // before the allocation throws, so the profile shows how much memory the command was short of.
+  private void profileAllocFailure(short length) {
+    if (heapProfile == null) {
+      return;
+    }
+    short request = (short) (heapIndex[0] + (short) (heap.length - reclaimIndex[0]));
+    request += length;
+    if (request < 0) {
+      request = HEAP_PROFILE_MAX_COUNT;
+    }
+    if (request > heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_REQUEST]) {
+      heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_PEAK_REQUEST] = request;
+    }
+    if (heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_FAIL_COUNT] != HEAP_PROFILE_MAX_COUNT) {
+      heapProfile[HEAP_PROFILE_CURRENT + HEAP_PROFILE_FAIL_COUNT]++;
+    }
+  }
+
+  // Merges the profile of the current command into the entry of its instruction.
+  private void flushHeapProfile() {
+    if (heapProfile == null) {
+      return;
+    }
+    short ins = heapProfile[HEAP_PROFILE_INS];
+    if (ins < 0 || ins >= HEAP_PROFILE_INS_COUNT) {
+      return;
+    }
+    heapProfile[HEAP_PROFILE_INS] = KMType.INVALID_VALUE;
+    short entry = (short) (ins * HEAP_PROFILE_ENTRY_SIZE);
+    short field = 0;
+    short val;
+    short cur;
+    while (field < HEAP_PROFILE_ENTRY_SIZE) {
+      val = heapProfile[(short) (entry + field)];
+      cur = heapProfile[(short) (HEAP_PROFILE_CURRENT + field)];
+      if (field == HEAP_PROFILE_ALLOC_COUNT || field == HEAP_PROFILE_FAIL_COUNT) {
+        val += cur;
+        // Saturate instead of wrapping around.
+        if (val < 0) {
+          val = HEAP_PROFILE_MAX_COUNT;
+        }
+      } else if (cur > val) {
+        val = cur;
+      }
+      heapProfile[(short) (entry + field)] = val;
+      field++;
+    }
+  }
+
   private short dataAlloc(short length) {
     if (((short) (dataIndex + length)) > dataTable.length) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -400,12 +598,116 @@ public class KMRepository implements KMUpgradable {
   private void newDataTable(boolean isUpgrading) {
     if (!isUpgrading) {
       if (dataTable == null) {
-        dataTable = new byte[DATA_MEM_SIZE];
+        dataTable = new byte[KMConfiguration.getDataMemSize()];
         dataIndex = (short) (DATA_INDEX_SIZE * DATA_INDEX_ENTRY_SIZE);
       }
     }
   }
 
+  // The key pool is not carried over an upgrade. It is refilled as background work.
+  private void newKeyPool() {
+    keyPool = new byte[KEY_POOL_RSA_SLOTS * KEY_POOL_RSA_SLOT_SIZE
+        + KEY_POOL_EC_SLOTS * KEY_POOL_EC_SLOT_SIZE];
+    short slot = 0;
+    while (slot < (short) (KEY_POOL_RSA_SLOTS + KEY_POOL_EC_SLOTS)) {
+      keyPool[(short) (getKeyPoolSlotOffset(slot) + KEY_POOL_ALG_OFFSET)] =
+          (slot < KEY_POOL_RSA_SLOTS) ? KMType.RSA : KMType.EC;
+      slot++;
+    }
+  }
+
+  public byte[] getKeyPool() {
+    return keyPool;
+  }
+
+  public short getKeyPoolSlotOffset(short slot) {
+    if (slot < KEY_POOL_RSA_SLOTS) {
+      return (short) (slot * KEY_POOL_RSA_SLOT_SIZE);
+    }
+    return (short) (KEY_POOL_RSA_SLOTS * KEY_POOL_RSA_SLOT_SIZE
+        + (short) (slot - KEY_POOL_RSA_SLOTS) * KEY_POOL_EC_SLOT_SIZE);
+  }
+
+  public byte getKeyPoolSlotAlgorithm(short slot) {
+    return keyPool[(short) (getKeyPoolSlotOffset(slot) + KEY_POOL_ALG_OFFSET)];
+  }
+
+  // Returns the first slot of the given algorithm which is filled or empty as requested.
+  public short findKeyPoolSlot(byte alg, boolean filled) {
+    byte status = filled ? KEY_POOL_SLOT_FILLED : KEY_POOL_SLOT_EMPTY;
+    short slot = 0;
+    short offset;
+    while (slot < (short) (KEY_POOL_RSA_SLOTS + KEY_POOL_EC_SLOTS)) {
+      offset = getKeyPoolSlotOffset(slot);
+      if (keyPool[(short) (offset + KEY_POOL_ALG_OFFSET)] == alg
+          && keyPool[(short) (offset + KEY_POOL_STATUS_OFFSET)] == status) {
+        return slot;
+      }
+      slot++;
+    }
+    return KMType.INVALID_VALUE;
+  }
+
+  public short getKeyPoolEmptySlots() {
+    short count = 0;
+    short slot = 0;
+    while (slot < (short) (KEY_POOL_RSA_SLOTS + KEY_POOL_EC_SLOTS)) {
+      if (keyPool[(short) (getKeyPoolSlotOffset(slot) + KEY_POOL_STATUS_OFFSET)]
+          == KEY_POOL_SLOT_EMPTY) {
+        count++;
+      }
+      slot++;
+    }
+    return count;
+  }
+
+  // The status byte is written last so a slot is only seen as filled once its content is complete.
+  public void setKeyPoolSlotFilled(short slot, boolean filled) {
+    keyPool[(short) (getKeyPoolSlotOffset(slot) + KEY_POOL_STATUS_OFFSET)] =
+        filled ? KEY_POOL_SLOT_FILLED : KEY_POOL_SLOT_EMPTY;
+  }
+
+  public void clearHwTokenCache() {
+    Util.arrayFillNonAtomic(hwTokenCache, (short) 0, HW_TOKEN_CACHE_SIZE, (byte) 0);
+  }
+
+  // Returns true if the token data and mac match an entry verified earlier.
+  public boolean isHwTokenVerified(byte[] tokenData, short dataStart, byte[] mac, short macStart,
+      short macLen) {
+    if (macLen != HW_TOKEN_MAC_SIZE) {
+      return false;
+    }
+    short offset = 1;
+    while (offset < HW_TOKEN_CACHE_SIZE) {
+      if (hwTokenCache[offset] == HW_TOKEN_ENTRY_VALID
+          && Util.arrayCompare(hwTokenCache, (short) (offset + 1 + HW_TOKEN_DATA_SIZE),
+          mac, macStart, HW_TOKEN_MAC_SIZE) == 0
+          && Util.arrayCompare(hwTokenCache, (short) (offset + 1),
+          tokenData, dataStart, HW_TOKEN_DATA_SIZE) == 0) {
+        return true;
+      }
+      offset += HW_TOKEN_ENTRY_SIZE;
+    }
+    return false;
+  }
+
+  // Stores a verified token, replacing the entries in round robin order.
+  public void addVerifiedHwToken(byte[] tokenData, short dataStart, byte[] mac, short macStart,
+      short macLen) {
+    if (macLen != HW_TOKEN_MAC_SIZE) {
+      return;
+    }
+    byte index = hwTokenCache[0];
+    short offset = (short) (1 + index * HW_TOKEN_ENTRY_SIZE);
+    hwTokenCache[offset] = 0;
+    Util.arrayCopyNonAtomic(tokenData, dataStart, hwTokenCache, (short) (offset + 1),
+        HW_TOKEN_DATA_SIZE);
+    Util.arrayCopyNonAtomic(mac, macStart, hwTokenCache,
+        (short) (offset + 1 + HW_TOKEN_DATA_SIZE), HW_TOKEN_MAC_SIZE);
+    hwTokenCache[offset] = HW_TOKEN_ENTRY_VALID;
+    hwTokenCache[0] = (byte) ((byte) (index + 1) % HW_TOKEN_CACHE_ENTRIES);
+  }
+
   public void restoreData(short blob) {
     JCSystem.beginTransaction();
     Util.arrayCopy(
@@ -414,6 +716,7 @@ public class KMRepository implements KMUpgradable {
         KMByteBlob.cast(blob).length()
     );
     JCSystem.commitTransaction();
+    onComputedHmacKeyChanged();
   }
 
   public byte[] getDataTable() {
@@ -44,8 +44,8 @@ public interface KMSEProvider extends KMUpgradable {
    * key pair must be 2048 bits and key size of EC key pair must be for p256 curve.
    *
    * @param alg will be KMType.RSA or KMType.EC.
-   * @param privKeyBuf is the buffer to return the private key exponent in case of RSA or private
-   * key in case of EC.
+   * @param privKeyBuf is the buffer to return the CRT components P, Q, DP1, DQ1 and PQ in case of
+   * RSA, each right aligned in a 128 byte field, or private key in case of EC.
    * @param privKeyStart is the start offset.
    * @param privKeyMaxLength is the maximum length of this private key buffer.
    * @param pubModBuf is the buffer to return the modulus in case of RSA or public key in case of
@@ -105,6 +105,36 @@ public interface KMSEProvider extends KMUpgradable {
       short pubModStart,
       short pubModLength);
 
+  /**
+   * Validate that the CRT components of an imported RSA key belong to its private exponent and
+   * modulus, i.e. that the product of the primes is the modulus and that the CRT exponents are
+   * derived from the private exponent. The public exponent is always 0x010001.
+   *
+   * @param crtBuf is the buffer that contains the CRT components P, Q, DP1, DQ1 and PQ, each right
+   * aligned in a field of RSA_CRT_COMPONENT_SIZE bytes.
+   * @param crtStart is the start offset of the CRT components.
+   * @param privExpBuf is the buffer that contains the private exponent.
+   * @param privExpStart is the start offset of the private exponent.
+   * @param privExpLength is the length of the private exponent.
+   * @param modBuf is the buffer that contains the modulus.
+   * @param modStart is the start offset of the modulus.
+   * @param modLength is the length of the modulus.
+   * @param scratchPad is a buffer of at least 512 bytes which can be used by the function.
+   * @param scratchPadStart is the start offset of the scratch pad.
+   * @return true if the CRT components match the private exponent and the modulus.
+   */
+  boolean importRsaCrtKey(
+      byte[] crtBuf,
+      short crtStart,
+      byte[] privExpBuf,
+      short privExpStart,
+      short privExpLength,
+      byte[] modBuf,
+      short modStart,
+      short modLength,
+      byte[] scratchPad,
+      short scratchPadStart);
+
   /**
    * This is a oneshot operation that generates random number of desired length.
    *
@@ -313,14 +343,37 @@ public interface KMSEProvider extends KMUpgradable {
       short signatureStart,
       short signatureLen);
 
+  /**
+   * This is a oneshot operation that verifies the signature using hmac algorithm with the
+   * computed hmac key. The key is already initialized so no key setup is done per call.
+   *
+   * @param key is the instance of the computed hmac key.
+   * @param data is the buffer containing data.
+   * @param dataStart is the start of the data.
+   * @param dataLength is the length of the data.
+   * @param signature is the signature buffer.
+   * @param signatureStart is the start of the signature buffer.
+   * @param signatureLen is the length of the signature buffer in bytes.
+   * @return true if the signature matches.
+   */
+  boolean hmacVerify(
+      KMComputedHmacKey key,
+      byte[] data,
+      short dataStart,
+      short dataLength,
+      byte[] signature,
+      short signatureStart,
+      short signatureLen);
+
   /**
    * This is a oneshot operation that decrypts the data using RSA algorithm with oaep256 padding.
    * The public exponent is always 0x010001. It throws CryptoException if OAEP encoding validation
    * fails.
    *
-   * @param privExp is the private exponent (2048 bit) buffer.
+   * @param privExp is the private exponent (2048 bit) or the CRT components buffer.
    * @param privExpStart is the start of the private exponent buffer.
    * @param privExpLength is the length of the private exponent buffer in bytes.
+   * @param crtKey is true if the buffer holds the CRT components.
    * @param modBuffer is the modulus (2048 bit) buffer.
    * @param modOff is the start of the modulus buffer.
    * @param modLength is the length of the modulus buffer in bytes.
@@ -335,6 +388,7 @@ public interface KMSEProvider extends KMUpgradable {
       byte[] privExp,
       short privExpStart,
       short privExpLength,
+      boolean crtKey,
       byte[] modBuffer,
       short modOff,
       short modLength,
@@ -413,9 +467,12 @@ public interface KMSEProvider extends KMUpgradable {
    * @param padding is KMType.PADDING_NONE or KMType.RSA_OAEP, KMType.RSA_PKCS1_1_5_ENCRYPT,
    * KMType.RSA_PKCS1_1_5_SIGN or KMType.RSA_PSS.
    * @param digest is KMType.DIGEST_NONE or KMType.SHA2_256.
-   * @param privKeyBuf is the private key in case of EC or private key exponent is case of RSA.
+   * @param privKeyBuf is the private key in case of EC or private key exponent or CRT components
+   * in case of RSA.
    * @param privKeyStart is the start of the private key.
    * @param privKeyLength is the length of the private key.
+   * @param crtKey is true if the RSA private key is given as the CRT components. It is ignored
+   * for EC.
    * @param pubModBuf is the modulus (in case of RSA) or public key (in case of EC).
    * @param pubModStart is the start of the modulus.
    * @param pubModLength is the length of the modulus.
@@ -429,6 +486,7 @@ public interface KMSEProvider extends KMUpgradable {
       byte[] privKeyBuf,
       short privKeyStart,
       short privKeyLength,
+      boolean crtKey,
       byte[] pubModBuf,
       short pubModStart,
       short pubModLength);
@@ -475,6 +533,15 @@ public interface KMSEProvider extends KMUpgradable {
    */
   short getCertificateChainLength();
 
+  /**
+   * This function returns the size of the buffer holding the cert chain, including its 2 bytes
+   * length prefix. The buffer is kept over an upgrade, so the size may differ from the configured
+   * size.
+   *
+   * @return size of the certificate chain buffer.
+   */
+  short getCertificateChainMaxSize();
+
   /**
    * This function tells if boot signal event is supported or not.
    *
@@ -538,6 +605,18 @@ public interface KMSEProvider extends KMUpgradable {
    */
   KMPreSharedKey createPresharedKey(byte[] keyData, short offset, short length);
 
+  /**
+   * This function initializes the transient HMACKey, which holds the computed hmac key, with the
+   * provided key data. The created key is maintained by the SEProvider and is cleared on reset.
+   * This function should be called whenever the computed hmac key changes or after a reset.
+   *
+   * @param keyData buffer containing the key data.
+   * @param offset start of the buffer.
+   * @param length length of the buffer.
+   * @return An instance of KMComputedHmacKey.
+   */
+  KMComputedHmacKey createComputedHmacKey(byte[] keyData, short offset, short length);
+
   /**
    * Returns the master key.
    *
@@ -559,6 +638,13 @@ public interface KMSEProvider extends KMUpgradable {
    */
   KMPreSharedKey getPresharedKey();
 
+  /**
+   * Returns the computed hmac key.
+   *
+   * @return Instance of the KMComputedHmacKey.
+   */
+  KMComputedHmacKey getComputedHmacKey();
+
   /**
    * Releases all the instance back to pool.
    * Generally this is used when card is reset.
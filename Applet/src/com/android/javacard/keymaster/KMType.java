@@ -298,6 +298,8 @@ public abstract class KMType {
   protected static byte[] heap;
   // Instance table
   public static final byte INSTANCE_TABLE_SIZE = 15;
+  // Transient memory of the instance table.
+  public static final short TRANSIENT_SIZE = INSTANCE_TABLE_SIZE * 2;
   protected static short[] instanceTable;
 
   public static void initialize() {
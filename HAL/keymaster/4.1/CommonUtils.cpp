@@ -201,9 +201,10 @@ publicKey, EcCurve& ecCurve) {
 }
 
 ErrorCode rsaRawKeyFromPKCS8(const std::vector<uint8_t>& pkcs8Blob, std::vector<uint8_t>& privateExp, std::vector<uint8_t>&
-pubModulus) {
+pubModulus, std::vector<std::vector<uint8_t>>& crtComponents) {
     ErrorCode errorCode = ErrorCode::INVALID_KEY_BLOB;
     const BIGNUM *n=NULL, *e=NULL, *d=NULL;
+    const BIGNUM *p=NULL, *q=NULL, *dmp1=NULL, *dmq1=NULL, *iqmp=NULL;
     EVP_PKEY *pkey = nullptr;
     const uint8_t *data = pkcs8Blob.data();
 
@@ -230,6 +231,17 @@ pubModulus) {
 
         privateExp.insert(privateExp.begin(), privExp.get(), privExp.get()+privExpLen);
         pubModulus.insert(pubModulus.begin(), pubMod.get(), pubMod.get()+pubModLen);
+
+        /* CRT components P, Q, DP1, DQ1 and PQ, if present */
+        RSA_get0_factors(rsa_key.get(), &p, &q);
+        RSA_get0_crt_params(rsa_key.get(), &dmp1, &dmq1, &iqmp);
+        if(p != NULL && q != NULL && dmp1 != NULL && dmq1 != NULL && iqmp != NULL) {
+            for(const BIGNUM *component : {p, q, dmp1, dmq1, iqmp}) {
+                std::vector<uint8_t> crt(BN_num_bytes(component));
+                BN_bn2bin(component, crt.data());
+                crtComponents.push_back(crt);
+            }
+        }
     } else {
         return errorCode;
     }
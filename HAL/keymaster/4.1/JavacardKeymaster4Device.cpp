@@ -15,6 +15,8 @@
  ** limitations under the License.
  */
 
+#include <atomic>
+#include <chrono>
 #include <climits>
 #include <time.h>
 #include <cppbor.h>
@@ -59,6 +61,16 @@ namespace javacard {
 
 static std::unique_ptr<se_transport::TransportFactory> pTransportFactory = nullptr;
 constexpr size_t kOperationTableSize = 4;
+/* Time the secure element must be idle before a background work command is sent. */
+constexpr std::chrono::milliseconds kBackgroundWorkIdleTime(2000);
+/* Serializes the commands of the binder thread and the background worker thread. */
+static std::mutex seChannelLock;
+/* Time of the last command sent to the secure element, as steady clock ticks. */
+static std::atomic<std::chrono::steady_clock::rep> lastSeCommandTime(0);
+/* Set by the background worker when it sees a secure element reset. The operation table is
+ * cleared by the binder thread, which owns it, on its next response.
+ */
+static std::atomic<bool> seResetPending(false);
 /* Key is the newly generated operation handle. Value is a pair with first element having
  * original operation handle and second element represents SW or SB operation.
  */
@@ -92,6 +104,7 @@ enum class Instruction {
     INS_DEVICE_LOCKED_CMD = INS_END_KM_PROVISION_CMD+20,
     INS_EARLY_BOOT_ENDED_CMD = INS_END_KM_PROVISION_CMD+21,
     INS_GET_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD+22,
+    INS_PERFORM_BACKGROUND_WORK_CMD = INS_END_KM_PROVISION_CMD+24,
     INS_GET_PROVISION_STATUS_CMD = INS_BEGIN_KM_CMD+8,
     INS_SET_VERSION_PATCHLEVEL_CMD = INS_BEGIN_KM_CMD+9,
 };
@@ -257,8 +270,10 @@ static inline int32_t get2sCompliment(uint32_t value) {
  * And also extracts the error code value after unmasking the power reset status flag.
  */
 static uint32_t handleErrorCode(const std::unique_ptr<OperationContext>& oprCtx, uint32_t errorCode) {
-    //Check if secure element is reset
-    bool isSeResetOccurred = (0 != (errorCode & SE_POWER_RESET_STATUS_FLAG));
+    //Check if secure element is reset. The pending flag is always consumed, so that a reset
+    //seen by the worker is not reported again on a later response.
+    bool isSeResetPending = seResetPending.exchange(false);
+    bool isSeResetOccurred = (0 != (errorCode & SE_POWER_RESET_STATUS_FLAG)) || isSeResetPending;
 
     if (isSeResetOccurred) {
         //Clear the operation table for Strongbox operations entries.
@@ -335,11 +350,17 @@ ErrorCode prepareCborArrayFromKeyData(const hidl_vec<KeyParameter>& keyParams, K
         if(KM_ALGORITHM_RSA == algorithm) {
             std::vector<uint8_t> privExp;
             std::vector<uint8_t> modulus;
-            if(ErrorCode::OK != (errorCode = rsaRawKeyFromPKCS8(std::vector<uint8_t>(blob), privExp, modulus))) {
+            std::vector<std::vector<uint8_t>> crtComponents;
+            if(ErrorCode::OK != (errorCode = rsaRawKeyFromPKCS8(std::vector<uint8_t>(blob), privExp, modulus,
+                            crtComponents))) {
                 return errorCode;
             }
             array.add(privExp);
             array.add(modulus);
+            /* CRT components let the applet use the faster CRT form of the private key. */
+            for(auto& component : crtComponents) {
+                array.add(component);
+            }
         } else if(KM_ALGORITHM_EC == algorithm) {
             std::vector<uint8_t> privKey;
             std::vector<uint8_t> pubKey;
@@ -432,10 +453,15 @@ ErrorCode sendData(Instruction ins, std::vector<uint8_t>& inData, std::vector<ui
         return ret;
     }
 
-    if(!getTransportFactoryInstance()->sendData(apdu.data(), apdu.size(), response)) {
-        LOG(ERROR) << "error in sendData cmd: " << (int32_t)ins << " status: "
-                   << (int32_t)ErrorCode::SECURE_HW_COMMUNICATION_FAILED;
-        return (ErrorCode::SECURE_HW_COMMUNICATION_FAILED);
+    {
+        std::lock_guard<std::mutex> lock(seChannelLock);
+        bool sent = getTransportFactoryInstance()->sendData(apdu.data(), apdu.size(), response);
+        lastSeCommandTime = std::chrono::steady_clock::now().time_since_epoch().count();
+        if(!sent) {
+            LOG(ERROR) << "error in sendData cmd: " << (int32_t)ins << " status: "
+                       << (int32_t)ErrorCode::SECURE_HW_COMMUNICATION_FAILED;
+            return (ErrorCode::SECURE_HW_COMMUNICATION_FAILED);
+        }
     }
 
     // Response size should be greater than 2. Cbor output data followed by two bytes of APDU status.
@@ -474,6 +500,33 @@ static ErrorCode setAndroidSystemProperties(CborConverter& cborConverter_, const
     return errorCode;
 }
 
+/**
+ * Lets the Applet fill one slot of its pool of pre-generated key pairs and returns the number of
+ * empty slots left. This runs on the background worker thread, so a secure element reset is only
+ * recorded here and handled by the binder thread.
+ */
+static ErrorCode sendBackgroundWorkCmd(CborConverter& cborConverter, uint64_t& emptySlots) {
+    std::unique_ptr<Item> item;
+    std::vector<uint8_t> cborOutData;
+    std::vector<uint8_t> cborInput;
+    ErrorCode errorCode = sendData(Instruction::INS_PERFORM_BACKGROUND_WORK_CMD, cborInput, cborOutData);
+    if (ErrorCode::OK == errorCode) {
+        //Skip last 2 bytes in cborData, it contains status.
+        std::tie(item, errorCode) = cborConverter.decodeData<ErrorCode>(
+                std::vector<uint8_t>(cborOutData.begin(), cborOutData.end()-2), true);
+        uint32_t tempErrCode = static_cast<uint32_t>(errorCode);
+        if (0 != (tempErrCode & SE_POWER_RESET_STATUS_FLAG)) {
+            seResetPending = true;
+            tempErrCode &= ~SE_POWER_RESET_STATUS_FLAG;
+        }
+        errorCode = static_cast<ErrorCode>(get2sCompliment(tempErrCode));
+    }
+    if (ErrorCode::OK == errorCode && (item == nullptr || !cborConverter.getUint64(item, 1, emptySlots))) {
+        errorCode = ErrorCode::UNKNOWN_ERROR;
+    }
+    return errorCode;
+}
+
 JavacardKeymaster4Device::JavacardKeymaster4Device(): softKm_(new ::keymaster::AndroidKeymaster(
             []() -> auto {
             auto context = new JavaCardSoftKeymasterContext();
@@ -487,10 +540,61 @@ JavacardKeymaster4Device::JavacardKeymaster4Device(): softKm_(new ::keymaster::A
     if (ErrorCode::OK == setAndroidSystemProperties(cborConverter_, oprCtx_)) {
         isEachSystemPropertySet = true;
     }
+    // The key pair pool state is unknown at start up, so let the worker check it once idle.
+    backgroundWorkPending_ = true;
+    backgroundWorker_ = std::thread(&JavacardKeymaster4Device::runBackgroundWork, this);
+}
+
+JavacardKeymaster4Device::~JavacardKeymaster4Device() {
+    {
+        std::lock_guard<std::mutex> lock(backgroundMutex_);
+        stopBackgroundWorker_ = true;
+    }
+    backgroundCv_.notify_one();
+    backgroundWorker_.join();
+}
 
+void JavacardKeymaster4Device::scheduleBackgroundWork() {
+    {
+        std::lock_guard<std::mutex> lock(backgroundMutex_);
+        backgroundWorkPending_ = true;
+    }
+    backgroundCv_.notify_one();
 }
 
-JavacardKeymaster4Device::~JavacardKeymaster4Device() {}
+/**
+ * Refills the key pair pool of the Applet, one command at a time, whenever the secure element
+ * has been idle for kBackgroundWorkIdleTime. A client command waits for at most one background
+ * command.
+ */
+void JavacardKeymaster4Device::runBackgroundWork() {
+    CborConverter cborConverter;
+    std::unique_lock<std::mutex> lock(backgroundMutex_);
+    while (!stopBackgroundWorker_) {
+        if (!backgroundWorkPending_) {
+            backgroundCv_.wait(lock);
+            continue;
+        }
+        auto idleTime = std::chrono::steady_clock::now().time_since_epoch() -
+            std::chrono::steady_clock::duration(lastSeCommandTime.load());
+        if (idleTime < kBackgroundWorkIdleTime) {
+            backgroundCv_.wait_for(lock, kBackgroundWorkIdleTime - idleTime);
+            continue;
+        }
+        // Work scheduled while the command is in flight sets the flag again.
+        backgroundWorkPending_ = false;
+        lock.unlock();
+        uint64_t emptySlots = 0;
+        ErrorCode errorCode = sendBackgroundWorkCmd(cborConverter, emptySlots);
+        if (ErrorCode::OK != errorCode) {
+            LOG(ERROR) << "INS_PERFORM_BACKGROUND_WORK_CMD failed, err: " << (int32_t) errorCode;
+        }
+        lock.lock();
+        if (ErrorCode::OK == errorCode && emptySlots > 0) {
+            backgroundWorkPending_ = true;
+        }
+    }
+}
 
 // Methods from IKeymasterDevice follow.
 Return<void> JavacardKeymaster4Device::getHardwareInfo(getHardwareInfo_cb _hidl_cb) {
@@ -645,6 +749,10 @@ Return<void> JavacardKeymaster4Device::computeSharedHmac(const hidl_vec<HmacShar
     }
 #endif
     _hidl_cb(errorCode, sharingCheck);
+    // Shared hmac is computed at every boot. Fill the key pair pool once the device is idle.
+    if (ErrorCode::OK == errorCode) {
+        scheduleBackgroundWork();
+    }
     return Void();
  }
 
@@ -714,6 +822,8 @@ Return<void> JavacardKeymaster4Device::generateKey(const hidl_vec<KeyParameter>&
         }
     }
     _hidl_cb(errorCode, keyBlob, keyCharacteristics);
+    // Refill the key pair pool once the device is idle.
+    scheduleBackgroundWork();
     return Void();
 }
 
@@ -81,7 +81,7 @@ keymaster_key_param_set_t hidlKeyParams2Km(const hidl_vec<KeyParameter>& keyPara
 hidl_vec<KeyParameter> kmParamSet2Hidl(const keymaster_key_param_set_t& set);
 
 ErrorCode rsaRawKeyFromPKCS8(const std::vector<uint8_t>& pkcs8Blob, std::vector<uint8_t>& privateExp, std::vector<uint8_t>&
-pubModulus);
+pubModulus, std::vector<std::vector<uint8_t>>& crtComponents);
 
 ErrorCode ecRawKeyFromPKCS8(const std::vector<uint8_t>& pkcs8Blob, std::vector<uint8_t>& secret, std::vector<uint8_t>&
 publicKey, EcCurve& eccurve);
@@ -22,6 +22,9 @@
 #include <hidl/MQDescriptor.h>
 #include <hidl/Status.h>
 #include <android-base/properties.h>
+#include <condition_variable>
+#include <mutex>
+#include <thread>
 #include "CborConverter.h"
 #include "TransportFactory.h"
 #include <keymaster/keymaster_configuration.h>
@@ -89,9 +92,18 @@ protected:
     CborConverter cborConverter_;
 	
 private:
+    void scheduleBackgroundWork();
+    void runBackgroundWork();
+
     std::unique_ptr<::keymaster::AndroidKeymaster> softKm_;
     std::unique_ptr<OperationContext> oprCtx_;
     bool isEachSystemPropertySet;
+    // Background worker which refills the key pair pool of the Applet while the device is idle.
+    std::thread backgroundWorker_;
+    std::mutex backgroundMutex_;
+    std::condition_variable backgroundCv_;
+    bool backgroundWorkPending_ = false;
+    bool stopBackgroundWorker_ = false;
 };
 
 }  // namespace javacard